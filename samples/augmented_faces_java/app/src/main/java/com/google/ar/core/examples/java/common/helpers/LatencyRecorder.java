@@ -0,0 +1,240 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.helpers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records latencies, such as frame times, into log-bucketed histograms, so that percentiles like
+ * the p99 hitches an average hides can be queried.
+ *
+ * <p>Latencies are measured with {@link System#nanoTime}. Buckets cover each power of two with 32
+ * linear sub-buckets, so reported values are within about 3% of the recorded ones, from
+ * nanoseconds to about 18 minutes. Recording only increments a counter and never allocates.
+ *
+ * <p>The recorder keeps a histogram of all latencies since the last {@link #reset}, and one of the
+ * latencies since the last interval snapshot, which can be written to a file. All methods are
+ * synchronized, so latencies may be recorded on one thread and queried on another.
+ */
+public final class LatencyRecorder {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  // Values of up to 2^MAX_VALUE_BITS - 1 nanoseconds are kept apart; larger ones are clamped.
+  private static final int MAX_VALUE_BITS = 40;
+  private static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+  private static final int BUCKET_COUNT = (MAX_VALUE_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+  private static final double NANOSECONDS_PER_MILLISECOND = 1e6;
+
+  /** A histogram of latencies, in nanoseconds. Not thread-safe on its own. */
+  public static final class Histogram {
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    /** Records a latency, in nanoseconds. Negative latencies are recorded as 0. */
+    public void record(long nanos) {
+      long value = Math.max(0, Math.min(nanos, MAX_VALUE));
+      ++counts[bucketIndex(value)];
+      ++totalCount;
+      sum += value;
+      max = Math.max(max, value);
+    }
+
+    /** Returns the number of recorded latencies. */
+    public long getCount() {
+      return totalCount;
+    }
+
+    /** Returns the largest recorded latency, in nanoseconds, or 0 if there is none. */
+    public long getMaxNanos() {
+      return max;
+    }
+
+    /** Returns the mean recorded latency, in nanoseconds, or 0 if there is none. */
+    public long getMeanNanos() {
+      return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * Returns the latency, in nanoseconds, that {@code percentile} percent of the recorded
+     * latencies are at or below, or 0 if there is none.
+     *
+     * @param percentile between 0 and 100, for example 99 for the p99 latency.
+     */
+    public long getValueAtPercentile(double percentile) {
+      if (totalCount == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(Math.max(0, Math.min(percentile, 100)) / 100 * totalCount);
+      rank = Math.max(rank, 1);
+      long seen = 0;
+      for (int index = 0; index < BUCKET_COUNT; ++index) {
+        seen += counts[index];
+        if (seen >= rank) {
+          return Math.min(bucketUpperBound(index), max);
+        }
+      }
+      return max;
+    }
+
+    /** Returns {@link #getValueAtPercentile} in milliseconds. */
+    public double getPercentileMillis(double percentile) {
+      return getValueAtPercentile(percentile) / NANOSECONDS_PER_MILLISECOND;
+    }
+
+    /** Adds the latencies of another histogram to this one. */
+    public void add(Histogram other) {
+      for (int index = 0; index < BUCKET_COUNT; ++index) {
+        counts[index] += other.counts[index];
+      }
+      totalCount += other.totalCount;
+      sum += other.sum;
+      max = Math.max(max, other.max);
+    }
+
+    /** Removes all latencies. */
+    public void reset() {
+      Arrays.fill(counts, 0);
+      totalCount = 0;
+      sum = 0;
+      max = 0;
+    }
+
+    /**
+     * Writes the histogram as text: a summary line with the count and the p50, p90, p99 and max
+     * latencies in milliseconds, then one line per non-empty bucket with its upper bound in
+     * nanoseconds and its count.
+     */
+    public void writeTo(Writer writer, String label) throws IOException {
+      writer.write(
+          String.format(
+              Locale.US,
+              "# %s count=%d p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms%n",
+              label,
+              totalCount,
+              getPercentileMillis(50),
+              getPercentileMillis(90),
+              getPercentileMillis(99),
+              max / NANOSECONDS_PER_MILLISECOND));
+      for (int index = 0; index < BUCKET_COUNT; ++index) {
+        if (counts[index] != 0) {
+          writer.write(bucketUpperBound(index) + "," + counts[index] + "\n");
+        }
+      }
+    }
+
+    private void copyFrom(Histogram other) {
+      System.arraycopy(other.counts, 0, counts, 0, BUCKET_COUNT);
+      totalCount = other.totalCount;
+      sum = other.sum;
+      max = other.max;
+    }
+  }
+
+  private final Histogram total = new Histogram();
+  private final Histogram interval = new Histogram();
+  private long startNanos = -1;
+
+  /** Records a latency, in nanoseconds. */
+  public synchronized void record(long nanos) {
+    total.record(nanos);
+    interval.record(nanos);
+  }
+
+  /** Starts timing a latency, to be recorded by {@link #stop}. */
+  public synchronized void start() {
+    startNanos = System.nanoTime();
+  }
+
+  /** Records the time since the last call to {@link #start}, if any, and returns it. */
+  public synchronized long stop() {
+    if (startNanos < 0) {
+      return 0;
+    }
+    long nanos = System.nanoTime() - startNanos;
+    startNanos = -1;
+    record(nanos);
+    return nanos;
+  }
+
+  /** Returns the number of latencies recorded since the last {@link #reset}. */
+  public synchronized long getCount() {
+    return total.getCount();
+  }
+
+  /** Returns the largest latency since the last {@link #reset}, in nanoseconds. */
+  public synchronized long getMaxNanos() {
+    return total.getMaxNanos();
+  }
+
+  /** Returns the mean latency since the last {@link #reset}, in nanoseconds. */
+  public synchronized long getMeanNanos() {
+    return total.getMeanNanos();
+  }
+
+  /** Returns a percentile of the latencies since the last {@link #reset}, in nanoseconds. */
+  public synchronized long getValueAtPercentile(double percentile) {
+    return total.getValueAtPercentile(percentile);
+  }
+
+  /** Returns a percentile of the latencies since the last {@link #reset}, in milliseconds. */
+  public synchronized double getPercentileMillis(double percentile) {
+    return total.getPercentileMillis(percentile);
+  }
+
+  /**
+   * Copies the latencies recorded since the previous interval snapshot into {@code snapshot}, and
+   * starts a new interval.
+   */
+  public synchronized void takeIntervalSnapshot(Histogram snapshot) {
+    snapshot.copyFrom(interval);
+    interval.reset();
+  }
+
+  /** Writes the latencies since the last {@link #reset}, see {@link Histogram#writeTo}. */
+  public synchronized void writeTo(Writer writer, String label) throws IOException {
+    total.writeTo(writer, label);
+  }
+
+  /** Removes all latencies, and starts a new interval. */
+  public synchronized void reset() {
+    total.reset();
+    interval.reset();
+    startNanos = -1;
+  }
+
+  private static int bucketIndex(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+  }
+
+  private static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKET_COUNT) {
+      return index;
+    }
+    int shift = index / SUB_BUCKET_COUNT - 1;
+    long subBucket = SUB_BUCKET_COUNT + index % SUB_BUCKET_COUNT;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
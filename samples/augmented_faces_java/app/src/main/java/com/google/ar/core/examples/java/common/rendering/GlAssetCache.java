@@ -0,0 +1,273 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLUtils;
+import de.javagl.obj.Obj;
+import de.javagl.obj.ObjData;
+import de.javagl.obj.ObjReader;
+import de.javagl.obj.ObjUtils;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A process-wide cache of the GL buffers and textures loaded from assets by {@link ObjectRenderer},
+ * keyed by asset name and reference-counted, so that renderers drawing the same model or texture
+ * share a single copy on the GPU.
+ *
+ * <p>GL names are only valid in the context that created them. When the cache is used from a new
+ * EGL context, for example after a {@link android.opengl.GLSurfaceView} recreated its context on
+ * resume, entries of the previous context are forgotten rather than deleted, since the context
+ * took them with it.
+ *
+ * <p>All methods must be called on the GL thread.
+ */
+final class GlAssetCache {
+  private static final String TAG = GlAssetCache.class.getSimpleName();
+
+  /** The GPU buffers of a model, laid out as {@link ObjectRenderer} expects them. */
+  static final class Geometry {
+    final String assetName;
+    final int vertexBufferId;
+    final int indexBufferId;
+    final int verticesBaseAddress;
+    final int texCoordsBaseAddress;
+    final int normalsBaseAddress;
+    final int indexCount;
+    final BoundingVolume boundingVolume;
+    private int referenceCount = 0;
+
+    private Geometry(
+        String assetName,
+        int vertexBufferId,
+        int indexBufferId,
+        int verticesBaseAddress,
+        int texCoordsBaseAddress,
+        int normalsBaseAddress,
+        int indexCount,
+        BoundingVolume boundingVolume) {
+      this.assetName = assetName;
+      this.vertexBufferId = vertexBufferId;
+      this.indexBufferId = indexBufferId;
+      this.verticesBaseAddress = verticesBaseAddress;
+      this.texCoordsBaseAddress = texCoordsBaseAddress;
+      this.normalsBaseAddress = normalsBaseAddress;
+      this.indexCount = indexCount;
+      this.boundingVolume = boundingVolume;
+    }
+  }
+
+  /** A mipmapped texture loaded from an image asset. */
+  static final class Texture {
+    final String assetName;
+    final int textureId;
+    private int referenceCount = 0;
+
+    private Texture(String assetName, int textureId) {
+      this.assetName = assetName;
+      this.textureId = textureId;
+    }
+  }
+
+  private static final Map<String, Geometry> geometries = new HashMap<>();
+  private static final Map<String, Texture> textures = new HashMap<>();
+  private static EGLContext owner = EGL14.EGL_NO_CONTEXT;
+
+  private GlAssetCache() {}
+
+  /**
+   * Returns the buffers of the OBJ model {@code assetName}, loading them on the first request.
+   * Every call must be balanced by a call to {@link #releaseGeometry}.
+   */
+  static synchronized Geometry acquireGeometry(Context context, String assetName)
+      throws IOException {
+    checkContext();
+    Geometry geometry = geometries.get(assetName);
+    if (geometry == null) {
+      geometry = loadGeometry(context, assetName);
+      geometries.put(assetName, geometry);
+    }
+    ++geometry.referenceCount;
+    return geometry;
+  }
+
+  /** Drops a reference to {@code geometry}, and deletes its buffers if it was the last one. */
+  static synchronized void releaseGeometry(Geometry geometry) {
+    checkContext();
+    if (geometries.get(geometry.assetName) != geometry) {
+      return; // Belongs to a context that no longer exists.
+    }
+    if (--geometry.referenceCount > 0) {
+      return;
+    }
+    geometries.remove(geometry.assetName);
+    GLES20.glDeleteBuffers(2, new int[] {geometry.vertexBufferId, geometry.indexBufferId}, 0);
+    ShaderUtil.checkGLError(TAG, "Geometry release");
+  }
+
+  /**
+   * Returns the mipmapped texture loaded from the image {@code assetName}, loading it on the first
+   * request. Every call must be balanced by a call to {@link #releaseTexture}.
+   */
+  static synchronized Texture acquireTexture(Context context, String assetName)
+      throws IOException {
+    checkContext();
+    Texture texture = textures.get(assetName);
+    if (texture == null) {
+      texture = new Texture(assetName, loadTexture(context, assetName));
+      textures.put(assetName, texture);
+    }
+    ++texture.referenceCount;
+    return texture;
+  }
+
+  /** Drops a reference to {@code texture}, and deletes it if it was the last one. */
+  static synchronized void releaseTexture(Texture texture) {
+    checkContext();
+    if (textures.get(texture.assetName) != texture) {
+      return; // Belongs to a context that no longer exists.
+    }
+    if (--texture.referenceCount > 0) {
+      return;
+    }
+    textures.remove(texture.assetName);
+    GLES20.glDeleteTextures(1, new int[] {texture.textureId}, 0);
+    ShaderUtil.checkGLError(TAG, "Texture release");
+  }
+
+  private static void checkContext() {
+    EGLContext current = EGL14.eglGetCurrentContext();
+    if (!current.equals(owner)) {
+      geometries.clear();
+      textures.clear();
+      owner = current;
+    }
+  }
+
+  private static int loadTexture(Context context, String assetName) throws IOException {
+    Bitmap textureBitmap;
+    try (InputStream inputStream = context.getAssets().open(assetName)) {
+      textureBitmap = BitmapFactory.decodeStream(inputStream);
+    }
+
+    int[] textureIds = new int[1];
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glGenTextures(1, textureIds, 0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureIds[0]);
+
+    GLES20.glTexParameteri(
+        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
+    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    textureBitmap.recycle();
+
+    ShaderUtil.checkGLError(TAG, "Texture loading");
+    return textureIds[0];
+  }
+
+  private static Geometry loadGeometry(Context context, String assetName) throws IOException {
+    // Read the obj file.
+    Obj obj;
+    try (InputStream objInputStream = context.getAssets().open(assetName)) {
+      obj = ObjReader.read(objInputStream);
+    }
+
+    // Prepare the Obj so that its structure is suitable for
+    // rendering with OpenGL:
+    // 1. Triangulate it
+    // 2. Make sure that texture coordinates are not ambiguous
+    // 3. Make sure that normals are not ambiguous
+    // 4. Convert it to single-indexed data
+    obj = ObjUtils.convertToRenderable(obj);
+
+    // OpenGL does not use Java arrays. ByteBuffers are used instead to provide data in a format
+    // that OpenGL understands.
+
+    // Obtain the data from the OBJ, as direct buffers:
+    IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
+    FloatBuffer vertices = ObjData.getVertices(obj);
+    FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
+    FloatBuffer normals = ObjData.getNormals(obj);
+
+    BoundingVolume boundingVolume = BoundingVolume.fromVertices(vertices);
+
+    // Convert int indices to shorts for GL ES 2.0 compatibility
+    ShortBuffer indices =
+        ByteBuffer.allocateDirect(2 * wideIndices.limit())
+            .order(ByteOrder.nativeOrder())
+            .asShortBuffer();
+    while (wideIndices.hasRemaining()) {
+      indices.put((short) wideIndices.get());
+    }
+    indices.rewind();
+
+    int[] buffers = new int[2];
+    GLES20.glGenBuffers(2, buffers, 0);
+    int vertexBufferId = buffers[0];
+    int indexBufferId = buffers[1];
+
+    // Load vertex buffer
+    int verticesBaseAddress = 0;
+    int texCoordsBaseAddress = verticesBaseAddress + 4 * vertices.limit();
+    int normalsBaseAddress = texCoordsBaseAddress + 4 * texCoords.limit();
+    final int totalBytes = normalsBaseAddress + 4 * normals.limit();
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
+    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
+    GLES20.glBufferSubData(
+        GLES20.GL_ARRAY_BUFFER, verticesBaseAddress, 4 * vertices.limit(), vertices);
+    GLES20.glBufferSubData(
+        GLES20.GL_ARRAY_BUFFER, texCoordsBaseAddress, 4 * texCoords.limit(), texCoords);
+    GLES20.glBufferSubData(
+        GLES20.GL_ARRAY_BUFFER, normalsBaseAddress, 4 * normals.limit(), normals);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    // Load index buffer
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
+    int indexCount = indices.limit();
+    GLES20.glBufferData(
+        GLES20.GL_ELEMENT_ARRAY_BUFFER, 2 * indexCount, indices, GLES20.GL_STATIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+    ShaderUtil.checkGLError(TAG, "OBJ buffer load");
+
+    return new Geometry(
+        assetName,
+        vertexBufferId,
+        indexBufferId,
+        verticesBaseAddress,
+        texCoordsBaseAddress,
+        normalsBaseAddress,
+        indexCount,
+        boundingVolume);
+  }
+}
@@ -19,6 +19,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLUtils;
 import android.opengl.Matrix;
@@ -96,6 +97,12 @@ public class PlaneRenderer {
           .order(ByteOrder.nativeOrder())
           .asShortBuffer();
 
+  // On GLES3 contexts, each plane's vertices and indices are streamed into these buffers, whose
+  // attribute setup is recorded once in a vertex array object. All are 0 on GLES2 contexts, where
+  // the client-side buffers above are used directly.
+  private final int[] planeBuffers = {0, 0}; // Vertices, indices.
+  private final int[] vertexArray = {0};
+
   // Temporary lists/matrices allocated here to reduce number of allocations for each frame.
   private final float[] modelMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16];
@@ -156,6 +163,27 @@ public class PlaneRenderer {
     planeUvMatrixUniform = GLES20.glGetUniformLocation(planeProgram, "u_PlaneUvMatrix");
 
     ShaderUtil.checkGLError(TAG, "Program parameters");
+
+    if (ShaderUtil.isVertexArraySupported()) {
+      GLES20.glGenBuffers(2, planeBuffers, 0);
+      GLES30.glGenVertexArrays(1, vertexArray, 0);
+      GLES30.glBindVertexArray(vertexArray[0]);
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, planeBuffers[0]);
+      GLES20.glVertexAttribPointer(
+          planeXZPositionAlphaAttribute,
+          COORDS_PER_VERTEX,
+          GLES20.GL_FLOAT,
+          false,
+          BYTES_PER_FLOAT * COORDS_PER_VERTEX,
+          0);
+      GLES20.glEnableVertexAttribArray(planeXZPositionAlphaAttribute);
+      GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, planeBuffers[1]);
+      GLES30.glBindVertexArray(0);
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+      GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+
+      ShaderUtil.checkGLError(TAG, "Vertex array creation");
+    }
   }
 
   /** Updates the plane model transform matrix and extents. */
@@ -252,13 +280,31 @@ public class PlaneRenderer {
 
     // Set the position of the plane
     vertexBuffer.rewind();
-    GLES20.glVertexAttribPointer(
-        planeXZPositionAlphaAttribute,
-        COORDS_PER_VERTEX,
-        GLES20.GL_FLOAT,
-        false,
-        BYTES_PER_FLOAT * COORDS_PER_VERTEX,
-        vertexBuffer);
+    indexBuffer.rewind();
+    if (vertexArray[0] != 0) {
+      // The vertex array is bound, so the index buffer binding is already in place. Respecifying
+      // the whole buffer lets the driver orphan the storage the previous plane is drawn from.
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, planeBuffers[0]);
+      GLES20.glBufferData(
+          GLES20.GL_ARRAY_BUFFER,
+          BYTES_PER_FLOAT * vertexBuffer.limit(),
+          vertexBuffer,
+          GLES20.GL_STREAM_DRAW);
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+      GLES20.glBufferData(
+          GLES20.GL_ELEMENT_ARRAY_BUFFER,
+          BYTES_PER_SHORT * indexBuffer.limit(),
+          indexBuffer,
+          GLES20.GL_STREAM_DRAW);
+    } else {
+      GLES20.glVertexAttribPointer(
+          planeXZPositionAlphaAttribute,
+          COORDS_PER_VERTEX,
+          GLES20.GL_FLOAT,
+          false,
+          BYTES_PER_FLOAT * COORDS_PER_VERTEX,
+          vertexBuffer);
+    }
 
     // Set the Model and ModelViewProjection matrices in the shader.
     GLES20.glUniformMatrix4fv(planeModelUniform, 1, false, modelMatrix, 0);
@@ -266,9 +312,13 @@ public class PlaneRenderer {
     GLES20.glUniformMatrix4fv(
         planeModelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
 
-    indexBuffer.rewind();
-    GLES20.glDrawElements(
-        GLES20.GL_TRIANGLE_STRIP, indexBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, indexBuffer);
+    if (vertexArray[0] != 0) {
+      GLES20.glDrawElements(
+          GLES20.GL_TRIANGLE_STRIP, indexBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, 0);
+    } else {
+      GLES20.glDrawElements(
+          GLES20.GL_TRIANGLE_STRIP, indexBuffer.limit(), GLES20.GL_UNSIGNED_SHORT, indexBuffer);
+    }
     ShaderUtil.checkGLError(TAG, "Drawing plane");
   }
 
@@ -337,7 +387,11 @@ public class PlaneRenderer {
     GLES20.glUniform4fv(gridControlUniform, 1, GRID_CONTROL, 0);
 
     // Enable vertex arrays
-    GLES20.glEnableVertexAttribArray(planeXZPositionAlphaAttribute);
+    if (vertexArray[0] != 0) {
+      GLES30.glBindVertexArray(vertexArray[0]);
+    } else {
+      GLES20.glEnableVertexAttribArray(planeXZPositionAlphaAttribute);
+    }
 
     ShaderUtil.checkGLError(TAG, "Setting up to draw planes");
 
@@ -375,7 +429,11 @@ public class PlaneRenderer {
     }
 
     // Clean up the state we set
-    GLES20.glDisableVertexAttribArray(planeXZPositionAlphaAttribute);
+    if (vertexArray[0] != 0) {
+      GLES30.glBindVertexArray(0);
+    } else {
+      GLES20.glDisableVertexAttribArray(planeXZPositionAlphaAttribute);
+    }
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     GLES20.glDisable(GLES20.GL_BLEND);
     GLES20.glDepthMask(true);
@@ -17,10 +17,13 @@ package com.google.ar.core.examples.java.common.rendering;
 
 import android.content.Context;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
 import com.google.ar.core.PointCloud;
+import com.google.ar.core.examples.java.common.helpers.PointCloudFilter;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 
 /** Renders a point cloud. */
 public class PointCloudRenderer {
@@ -37,6 +40,8 @@ public class PointCloudRenderer {
 
   private int vbo;
   private int vboSize;
+  // Vertex array object recording the attribute setup, or 0 on GLES2 contexts.
+  private final int[] vertexArray = {0};
 
   private int programName;
   private int positionAttribute;
@@ -46,6 +51,9 @@ public class PointCloudRenderer {
 
   private int numPoints = 0;
 
+  // Drops low-confidence and short-lived points before they are uploaded.
+  private final PointCloudFilter filter = new PointCloudFilter();
+
   // Keep track of the last point cloud rendered to avoid updating the VBO if point cloud
   // was not changed.  Do this using the timestamp since we can't compare PointCloud objects.
   private long lastTimestamp = 0;
@@ -91,11 +99,26 @@ public class PointCloudRenderer {
     pointSizeUniform = GLES20.glGetUniformLocation(programName, "u_PointSize");
 
     ShaderUtil.checkGLError(TAG, "program  params");
+
+    if (ShaderUtil.isVertexArraySupported()) {
+      GLES30.glGenVertexArrays(1, vertexArray, 0);
+      GLES30.glBindVertexArray(vertexArray[0]);
+      enableVertexAttributes();
+      GLES30.glBindVertexArray(0);
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+      ShaderUtil.checkGLError(TAG, "vertex array");
+    }
+  }
+
+  private void enableVertexAttributes() {
+    GLES20.glEnableVertexAttribArray(positionAttribute);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
+    GLES20.glVertexAttribPointer(positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
   }
 
   /**
-   * Updates the OpenGL buffer contents to the provided point. Repeated calls with the same point
-   * cloud will be ignored.
+   * Updates the OpenGL buffer contents to the provided point cloud's points that pass the {@link
+   * PointCloudFilter}. Repeated calls with the same point cloud will be ignored.
    */
   public void update(PointCloud cloud) {
     if (cloud.getTimestamp() == lastTimestamp) {
@@ -107,16 +130,19 @@ public class PointCloudRenderer {
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
     lastTimestamp = cloud.getTimestamp();
 
-    // If the VBO is not large enough to fit the new point cloud, resize it.
-    numPoints = cloud.getPoints().remaining() / FLOATS_PER_POINT;
+    // If the VBO is not large enough to fit the filtered point cloud, resize it.
+    FloatBuffer points = filter.filter(cloud);
+    numPoints = filter.getPointCount();
     if (numPoints * BYTES_PER_POINT > vboSize) {
       while (numPoints * BYTES_PER_POINT > vboSize) {
         vboSize *= 2;
       }
       GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vboSize, null, GLES20.GL_DYNAMIC_DRAW);
     }
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, 0, numPoints * BYTES_PER_POINT, cloud.getPoints());
+    // Some GPU drivers fail when glBufferSubData is called with a size of 0, so avoid this case.
+    if (numPoints > 0) {
+      GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, numPoints * BYTES_PER_POINT, points);
+    }
     GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
 
     ShaderUtil.checkGLError(TAG, "after update");
@@ -137,16 +163,22 @@ public class PointCloudRenderer {
     ShaderUtil.checkGLError(TAG, "Before draw");
 
     GLES20.glUseProgram(programName);
-    GLES20.glEnableVertexAttribArray(positionAttribute);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vbo);
-    GLES20.glVertexAttribPointer(positionAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_POINT, 0);
+    if (vertexArray[0] != 0) {
+      GLES30.glBindVertexArray(vertexArray[0]);
+    } else {
+      enableVertexAttributes();
+    }
     GLES20.glUniform4f(colorUniform, 31.0f / 255.0f, 188.0f / 255.0f, 210.0f / 255.0f, 1.0f);
     GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjection, 0);
     GLES20.glUniform1f(pointSizeUniform, 5.0f);
 
     GLES20.glDrawArrays(GLES20.GL_POINTS, 0, numPoints);
-    GLES20.glDisableVertexAttribArray(positionAttribute);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    if (vertexArray[0] != 0) {
+      GLES30.glBindVertexArray(0);
+    } else {
+      GLES20.glDisableVertexAttribArray(positionAttribute);
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
 
     ShaderUtil.checkGLError(TAG, "Draw");
   }
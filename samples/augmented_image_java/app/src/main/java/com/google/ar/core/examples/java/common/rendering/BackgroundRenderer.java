@@ -18,6 +18,7 @@ package com.google.ar.core.examples.java.common.rendering;
 import android.content.Context;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import androidx.annotation.NonNull;
 import com.google.ar.core.Coordinates2d;
@@ -51,6 +52,13 @@ public class BackgroundRenderer {
   private FloatBuffer quadCoords;
   private FloatBuffer quadTexCoords;
 
+  // On GLES3 contexts, the quad is drawn from buffers through one vertex array object per program,
+  // and the texture coordinates are only uploaded again when they change. Both are 0 on GLES2
+  // contexts, where the client-side buffers above are used directly.
+  private final int[] quadBuffers = {0, 0}; // Coordinates, texture coordinates.
+  private final int[] vertexArrays = {0, 0}; // Camera program, depth program.
+  private boolean quadTexCoordsChanged = true;
+
   private int cameraProgram;
   private int depthProgram;
 
@@ -148,6 +156,42 @@ public class BackgroundRenderer {
     }
 
     this.depthTextureId = depthTextureId;
+
+    if (ShaderUtil.isVertexArraySupported()) {
+      createVertexArrays();
+    }
+  }
+
+  private void createVertexArrays() {
+    GLES20.glGenBuffers(2, quadBuffers, 0);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, quadBuffers[0]);
+    GLES20.glBufferData(
+        GLES20.GL_ARRAY_BUFFER, QUAD_COORDS.length * FLOAT_SIZE, quadCoords, GLES20.GL_STATIC_DRAW);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, quadBuffers[1]);
+    GLES20.glBufferData(
+        GLES20.GL_ARRAY_BUFFER,
+        quadTexCoords.capacity() * FLOAT_SIZE,
+        /*data=*/ null,
+        GLES20.GL_DYNAMIC_DRAW);
+    quadTexCoordsChanged = true;
+
+    GLES30.glGenVertexArrays(2, vertexArrays, 0);
+    recordVertexArray(vertexArrays[0], cameraPositionAttrib, cameraTexCoordAttrib);
+    recordVertexArray(vertexArrays[1], depthPositionAttrib, depthTexCoordAttrib);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    ShaderUtil.checkGLError(TAG, "Vertex array creation");
+  }
+
+  private void recordVertexArray(int vertexArray, int positionAttrib, int texCoordAttrib) {
+    GLES30.glBindVertexArray(vertexArray);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, quadBuffers[0]);
+    GLES20.glVertexAttribPointer(positionAttrib, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, 0);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, quadBuffers[1]);
+    GLES20.glVertexAttribPointer(
+        texCoordAttrib, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, 0);
+    GLES20.glEnableVertexAttribArray(positionAttrib);
+    GLES20.glEnableVertexAttribArray(texCoordAttrib);
+    GLES30.glBindVertexArray(0);
   }
 
   public void createOnGlThread(Context context) throws IOException {
@@ -177,6 +221,7 @@ public class BackgroundRenderer {
           quadCoords,
           Coordinates2d.TEXTURE_NORMALIZED,
           quadTexCoords);
+      quadTexCoordsChanged = true;
     }
 
     if (frame.getTimestamp() == 0 && suppressTimestampZeroRendering) {
@@ -238,6 +283,7 @@ public class BackgroundRenderer {
     // Write image texture coordinates.
     quadTexCoords.position(0);
     quadTexCoords.put(texCoordTransformed);
+    quadTexCoordsChanged = true;
 
     draw(/*debugShowDepthMap=*/ false);
   }
@@ -257,6 +303,20 @@ public class BackgroundRenderer {
 
     GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
 
+    if (vertexArrays[0] != 0) {
+      drawWithVertexArray(debugShowDepthMap);
+    } else {
+      drawWithClientArrays(debugShowDepthMap);
+    }
+
+    // Restore the depth state for further drawing.
+    GLES20.glDepthMask(true);
+    GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+
+    ShaderUtil.checkGLError(TAG, "BackgroundRendererDraw");
+  }
+
+  private void drawWithClientArrays(boolean debugShowDepthMap) {
     if (debugShowDepthMap) {
       GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, depthTextureId);
       GLES20.glUseProgram(depthProgram);
@@ -293,12 +353,31 @@ public class BackgroundRenderer {
       GLES20.glDisableVertexAttribArray(cameraPositionAttrib);
       GLES20.glDisableVertexAttribArray(cameraTexCoordAttrib);
     }
+  }
 
-    // Restore the depth state for further drawing.
-    GLES20.glDepthMask(true);
-    GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+  private void drawWithVertexArray(boolean debugShowDepthMap) {
+    if (quadTexCoordsChanged) {
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, quadBuffers[1]);
+      GLES20.glBufferSubData(
+          GLES20.GL_ARRAY_BUFFER, 0, quadTexCoords.capacity() * FLOAT_SIZE, quadTexCoords);
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+      quadTexCoordsChanged = false;
+    }
 
-    ShaderUtil.checkGLError(TAG, "BackgroundRendererDraw");
+    if (debugShowDepthMap) {
+      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, depthTextureId);
+      GLES20.glUseProgram(depthProgram);
+      GLES20.glUniform1i(depthTextureUniform, 0);
+      GLES30.glBindVertexArray(vertexArrays[1]);
+    } else {
+      GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTextureId);
+      GLES20.glUseProgram(cameraProgram);
+      GLES20.glUniform1i(cameraTextureUniform, 0);
+      GLES30.glBindVertexArray(vertexArrays[0]);
+    }
+
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    GLES30.glBindVertexArray(0);
   }
 
   /**
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.helpers;
+
+import com.google.ar.core.PointCloud;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Selects the points of a {@link PointCloud} worth drawing: those with a confidence of at least a
+ * threshold, whose ID has also been present in a number of consecutive point clouds. Points that
+ * flicker in and out of the cloud are usually outliers.
+ *
+ * <p>Each call makes a single pass over the point cloud's buffers and writes the selected points
+ * into an upload buffer that is reused across calls. Point IDs are tracked in two open-addressing
+ * hash tables, for the previous and the current point cloud, which are swapped after each call.
+ * Nothing is allocated unless a point cloud is larger than any seen before.
+ *
+ * <p>This class is not thread-safe.
+ */
+public final class PointCloudFilter {
+  /** The confidence below which points are dropped by default. */
+  public static final float DEFAULT_MIN_CONFIDENCE = 0.3f;
+  /** The number of consecutive point clouds a point must be in by default to be kept. */
+  public static final int DEFAULT_MIN_CONSECUTIVE_FRAMES = 3;
+
+  private static final int FLOATS_PER_POINT = 4; // X,Y,Z,confidence.
+  private static final int INITIAL_CAPACITY_POINTS = 1024;
+
+  private final float minConfidence;
+  private final int minConsecutiveFrames;
+
+  private FloatBuffer uploadBuffer;
+  private int pointCount = 0;
+
+  // Point ID tables. Each slot holds an ID and the number of consecutive point clouds it has been
+  // in; it is occupied if its stamp equals the table's generation, so tables are emptied in
+  // constant time by bumping the generation.
+  private IdTable previousIds;
+  private IdTable currentIds;
+
+  private static final class IdTable {
+    int[] ids;
+    int[] counts;
+    int[] stamps;
+    int mask;
+    int generation = 1;
+
+    IdTable(int capacity) {
+      ids = new int[capacity];
+      counts = new int[capacity];
+      stamps = new int[capacity];
+      mask = capacity - 1;
+    }
+
+    void clear() {
+      if (++generation == 0) {
+        // Stamps wrapped around: really clear them, so that old slots don't look occupied.
+        Arrays.fill(stamps, 0);
+        generation = 1;
+      }
+    }
+
+    /** Returns the count stored for {@code id}, or 0 if there is none. */
+    int get(int id) {
+      for (int slot = hash(id) & mask; ; slot = (slot + 1) & mask) {
+        if (stamps[slot] != generation) {
+          return 0;
+        }
+        if (ids[slot] == id) {
+          return counts[slot];
+        }
+      }
+    }
+
+    /** Stores {@code count} for {@code id}, which is expected not to be in the table yet. */
+    void put(int id, int count) {
+      int slot = hash(id) & mask;
+      while (stamps[slot] == generation) {
+        slot = (slot + 1) & mask;
+      }
+      stamps[slot] = generation;
+      ids[slot] = id;
+      counts[slot] = count;
+    }
+
+    private static int hash(int id) {
+      // Fibonacci hashing spreads sequential IDs over the table.
+      int h = id * 0x9E3779B9;
+      return h ^ (h >>> 16);
+    }
+  }
+
+  /**
+   * Creates a filter with {@link #DEFAULT_MIN_CONFIDENCE} and {@link
+   * #DEFAULT_MIN_CONSECUTIVE_FRAMES}.
+   */
+  public PointCloudFilter() {
+    this(DEFAULT_MIN_CONFIDENCE, DEFAULT_MIN_CONSECUTIVE_FRAMES);
+  }
+
+  /**
+   * Creates a filter.
+   *
+   * @param minConfidence The confidence below which points are dropped, between 0 and 1.
+   * @param minConsecutiveFrames The number of consecutive point clouds, including the current one,
+   *     a point's ID must be in for the point to be kept. 1 disables the temporal filter.
+   */
+  public PointCloudFilter(float minConfidence, int minConsecutiveFrames) {
+    if (minConsecutiveFrames < 1) {
+      throw new IllegalArgumentException("minConsecutiveFrames must be at least 1");
+    }
+    this.minConfidence = minConfidence;
+    this.minConsecutiveFrames = minConsecutiveFrames;
+    uploadBuffer = allocatePoints(INITIAL_CAPACITY_POINTS);
+    previousIds = new IdTable(tableCapacity(INITIAL_CAPACITY_POINTS));
+    currentIds = new IdTable(tableCapacity(INITIAL_CAPACITY_POINTS));
+  }
+
+  /**
+   * Filters a point cloud. Should be called once per new point cloud, since every call counts as
+   * a frame for the temporal filter.
+   *
+   * @return The selected points, four floats (X,Y,Z,confidence) apiece, from position 0 to the
+   *     limit. The buffer is owned by this filter and overwritten by the next call.
+   */
+  public FloatBuffer filter(PointCloud cloud) {
+    return filter(cloud.getPoints(), cloud.getIds());
+  }
+
+  /**
+   * Filters points given as four floats (X,Y,Z,confidence) apiece, with one ID per point. Neither
+   * buffer's position is changed.
+   *
+   * @see #filter(PointCloud)
+   */
+  public FloatBuffer filter(FloatBuffer points, IntBuffer ids) {
+    int numPoints = points.remaining() / FLOATS_PER_POINT;
+    if (ids.remaining() < numPoints) {
+      throw new IllegalArgumentException("Fewer point IDs than points");
+    }
+    reserve(numPoints);
+
+    IdTable previous = previousIds;
+    IdTable current = currentIds;
+    current.clear();
+    FloatBuffer out = uploadBuffer;
+    out.clear();
+
+    int pointBase = points.position();
+    int idBase = ids.position();
+    int kept = 0;
+    for (int i = 0; i < numPoints; ++i) {
+      int id = ids.get(idBase + i);
+      // Counts saturate at the threshold, since higher values make no difference.
+      int consecutiveFrames = Math.min(previous.get(id) + 1, minConsecutiveFrames);
+      current.put(id, consecutiveFrames);
+
+      int offset = pointBase + i * FLOATS_PER_POINT;
+      float confidence = points.get(offset + 3);
+      if (confidence < minConfidence || consecutiveFrames < minConsecutiveFrames) {
+        continue;
+      }
+      int outOffset = kept * FLOATS_PER_POINT;
+      out.put(outOffset, points.get(offset));
+      out.put(outOffset + 1, points.get(offset + 1));
+      out.put(outOffset + 2, points.get(offset + 2));
+      out.put(outOffset + 3, confidence);
+      ++kept;
+    }
+    out.limit(kept * FLOATS_PER_POINT);
+    pointCount = kept;
+
+    previousIds = current;
+    currentIds = previous;
+    return out;
+  }
+
+  /** Returns the number of points selected by the last call to {@link #filter}. */
+  public int getPointCount() {
+    return pointCount;
+  }
+
+  /** Forgets all point IDs, for example when tracking is lost or the session is reset. */
+  public void reset() {
+    previousIds.clear();
+    currentIds.clear();
+    uploadBuffer.clear().limit(0);
+    pointCount = 0;
+  }
+
+  private void reserve(int numPoints) {
+    if (numPoints * FLOATS_PER_POINT > uploadBuffer.capacity()) {
+      int capacityPoints = uploadBuffer.capacity() / FLOATS_PER_POINT;
+      uploadBuffer = allocatePoints(Math.max(numPoints, 2 * capacityPoints));
+    }
+    int capacity = tableCapacity(numPoints);
+    if (capacity > currentIds.ids.length) {
+      // The previous table keeps its contents, so it is rebuilt rather than just reallocated.
+      IdTable grownPrevious = new IdTable(capacity);
+      IdTable old = previousIds;
+      for (int slot = 0; slot < old.ids.length; ++slot) {
+        if (old.stamps[slot] == old.generation) {
+          grownPrevious.put(old.ids[slot], old.counts[slot]);
+        }
+      }
+      previousIds = grownPrevious;
+      currentIds = new IdTable(capacity);
+    }
+  }
+
+  /** Returns a power-of-two table size that keeps the load factor at or below one half. */
+  private static int tableCapacity(int numPoints) {
+    return Integer.highestOneBit(Math.max(2 * numPoints - 1, 1)) << 1;
+  }
+
+  private static FloatBuffer allocatePoints(int numPoints) {
+    return ByteBuffer.allocateDirect(numPoints * FLOATS_PER_POINT * Float.SIZE / 8)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+  }
+}
@@ -0,0 +1,20 @@
+// Fragment shader that renders a texture at half its size, for the levels of an image pyramid.
+//
+// Each output pixel covers a 2x2 block of source texels. Four bilinear taps placed around the
+// block's center, u_TapOffset texels away on each axis, weight the source texels as follows:
+//   0.0:  box filter over the 2x2 block (all taps land on the center).
+//   0.75: binomial 1, 3, 3, 1 over the 4x4 neighbourhood, which approximates a Gaussian.
+
+precision mediump float;
+varying vec2 v_TexCoord;
+uniform sampler2D u_Texture;
+uniform vec2 u_SourceTexelSize;
+uniform float u_TapOffset;
+
+void main() {
+    vec2 offset = u_TapOffset * u_SourceTexelSize;
+    gl_FragColor = 0.25 * (texture2D(u_Texture, v_TexCoord + vec2(-offset.x, -offset.y))
+                         + texture2D(u_Texture, v_TexCoord + vec2(offset.x, -offset.y))
+                         + texture2D(u_Texture, v_TexCoord + vec2(-offset.x, offset.y))
+                         + texture2D(u_Texture, v_TexCoord + vec2(offset.x, offset.y)));
+}
@@ -20,16 +20,64 @@ import android.view.GestureDetector;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 
 /**
- * Helper to detect taps using Android GestureDetector, and pass the taps between UI thread and
- * render thread.
+ * Helper to detect taps and drags using Android GestureDetector, and pass them between UI thread
+ * and render thread.
+ *
+ * <p>Gestures are copied into a preallocated single-producer, single-consumer ring of primitive
+ * records, written on the UI thread and drained on the render thread, so no {@link MotionEvent}
+ * outlives the callback that received it and nothing is allocated per event. If the render thread
+ * falls behind far enough to fill the ring, consecutive drag moves are coalesced into the latest
+ * position, so drag streams stay continuous. A slot is reserved for the end of every queued drag,
+ * so each delivered {@link #ACTION_DRAG_BEGIN} is followed by its {@link #ACTION_DRAG_END}; only
+ * taps and whole drags can be dropped.
  */
 public final class TapHelper implements OnTouchListener {
+  /** A single tap. */
+  public static final int ACTION_TAP = 0;
+  /** The start of a drag, at the position where the finger went down. */
+  public static final int ACTION_DRAG_BEGIN = 1;
+  /** A new position of an ongoing drag. */
+  public static final int ACTION_DRAG_MOVE = 2;
+  /** The end of a drag, at the position where the finger went up. */
+  public static final int ACTION_DRAG_END = 3;
+
+  /** A gesture record, filled by {@link #poll(Event)}. */
+  public static final class Event {
+    /** One of the {@code ACTION_*} constants. */
+    public int action;
+    /** The position of the gesture, in pixels relative to the view. */
+    public float x;
+    public float y;
+    /** The time of the gesture, in the {@link android.os.SystemClock#uptimeMillis} time base. */
+    public long eventTimeMillis;
+  }
+
+  // Must be a power of two.
+  private static final int CAPACITY = 256;
+  private static final int MASK = CAPACITY - 1;
+
   private final GestureDetector gestureDetector;
-  private final BlockingQueue<MotionEvent> queuedSingleTaps = new ArrayBlockingQueue<>(16);
+
+  // The ring. Slots in [readIndex, writeIndex) are published and owned by the consumer; the others
+  // are owned by the producer. The volatile index writes publish the slot contents.
+  private final int[] actions = new int[CAPACITY];
+  private final float[] xs = new float[CAPACITY];
+  private final float[] ys = new float[CAPACITY];
+  private final long[] eventTimes = new long[CAPACITY];
+  private volatile long writeIndex = 0;
+  private volatile long readIndex = 0;
+
+  // Producer-only state.
+  private boolean dragging = false;
+  // Whether the ongoing drag's begin record was queued, so one slot is reserved for its end.
+  private boolean dragQueued = false;
+  private boolean hasPendingMove = false;
+  private float pendingMoveX;
+  private float pendingMoveY;
+  private long pendingMoveTime;
+  private long droppedEventCount = 0;
 
   /**
    * Creates the tap helper.
@@ -43,8 +91,22 @@ public final class TapHelper implements OnTouchListener {
             new GestureDetector.SimpleOnGestureListener() {
               @Override
               public boolean onSingleTapUp(MotionEvent e) {
-                // Queue tap if there is space. Tap is lost if queue is full.
-                queuedSingleTaps.offer(e);
+                push(ACTION_TAP, e.getX(), e.getY(), e.getEventTime());
+                return true;
+              }
+
+              @Override
+              public boolean onScroll(
+                  MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                if (!dragging) {
+                  dragging = true;
+                  MotionEvent down = e1 != null ? e1 : e2;
+                  dragQueued =
+                      push(ACTION_DRAG_BEGIN, down.getX(), down.getY(), down.getEventTime());
+                }
+                if (dragQueued) {
+                  pushMove(e2.getX(), e2.getY(), e2.getEventTime());
+                }
                 return true;
               }
 
@@ -56,16 +118,103 @@ public final class TapHelper implements OnTouchListener {
   }
 
   /**
-   * Polls for a tap.
+   * Polls for a gesture. Must only be called from one thread at a time, typically the render
+   * thread.
    *
-   * @return if a tap was queued, a MotionEvent for the tap. Otherwise null if no taps are queued.
+   * @param out The record to fill with the oldest queued gesture.
+   * @return true if a gesture was queued and copied into {@code out}, false if none are queued.
    */
-  public MotionEvent poll() {
-    return queuedSingleTaps.poll();
+  public boolean poll(Event out) {
+    long read = readIndex;
+    if (read == writeIndex) {
+      return false;
+    }
+    int slot = (int) read & MASK;
+    out.action = actions[slot];
+    out.x = xs[slot];
+    out.y = ys[slot];
+    out.eventTimeMillis = eventTimes[slot];
+    readIndex = read + 1;
+    return true;
   }
 
   @Override
   public boolean onTouch(View view, MotionEvent motionEvent) {
-    return gestureDetector.onTouchEvent(motionEvent);
+    boolean handled = gestureDetector.onTouchEvent(motionEvent);
+    int action = motionEvent.getActionMasked();
+    if (dragging && (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL)) {
+      dragging = false;
+      if (dragQueued) {
+        dragQueued = false;
+        pushDragEnd(motionEvent.getX(), motionEvent.getY(), motionEvent.getEventTime());
+      }
+      handled = true;
+    }
+    return handled;
+  }
+
+  /**
+   * Returns the number of taps and drags dropped so far because the ring was full. Must be called
+   * on the UI thread.
+   */
+  public long getDroppedEventCount() {
+    return droppedEventCount;
+  }
+
+  private void pushMove(float x, float y, long eventTime) {
+    pendingMoveX = x;
+    pendingMoveY = y;
+    pendingMoveTime = eventTime;
+    hasPendingMove = true;
+    flushPendingMove();
+  }
+
+  /** Queues a tap or drag begin, and returns false if it was dropped because the ring is full. */
+  private boolean push(int action, float x, float y, long eventTime) {
+    // Moves that did not fit must come out before any later gesture. A drag begin also needs room
+    // for its end.
+    int reserved = action == ACTION_DRAG_BEGIN ? 1 : 0;
+    if (!flushPendingMove() || !tryWrite(action, x, y, eventTime, reserved)) {
+      ++droppedEventCount;
+      return false;
+    }
+    return true;
+  }
+
+  /** Queues the end of a queued drag, which always fits in the slot reserved for it. */
+  private void pushDragEnd(float x, float y, long eventTime) {
+    // The end carries the final position, so a move that still does not fit is superseded by it.
+    if (!flushPendingMove()) {
+      hasPendingMove = false;
+    }
+    tryWrite(ACTION_DRAG_END, x, y, eventTime, /* reserved= */ 0);
+  }
+
+  /** Publishes the coalesced drag move, if any, and returns false if the ring is still full. */
+  private boolean flushPendingMove() {
+    if (!hasPendingMove) {
+      return true;
+    }
+    // Leave the slot reserved for the end of the drag.
+    if (!tryWrite(ACTION_DRAG_MOVE, pendingMoveX, pendingMoveY, pendingMoveTime, 1)) {
+      return false;
+    }
+    hasPendingMove = false;
+    return true;
+  }
+
+  /** Writes a record if more than {@code reserved} slots are free, and returns whether it did. */
+  private boolean tryWrite(int action, float x, float y, long eventTime, int reserved) {
+    long write = writeIndex;
+    if (write - readIndex + reserved >= CAPACITY) {
+      return false;
+    }
+    int slot = (int) write & MASK;
+    actions[slot] = action;
+    xs[slot] = x;
+    ys[slot] = y;
+    eventTimes[slot] = eventTime;
+    writeIndex = write + 1;
+    return true;
   }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+/**
+ * Tests points, spheres and boxes against the six clip planes of a view frustum.
+ *
+ * <p>The planes are extracted from a combined projection matrix (Gribb and Hartmann). When the
+ * matrix is projection x view, the tests take world-space coordinates; when it is projection x view
+ * x model, they take the model's local coordinates, so a {@link BoundingVolume} can be tested
+ * without transforming it.
+ *
+ * <p>Instances hold no GL state, allocate nothing after construction, and are not thread-safe.
+ */
+public final class FrustumCuller {
+  private static final int NUMBER_OF_PLANES = 6;
+
+  // Plane i is (a, b, c, d) at planes[4 * i], with (a, b, c) pointing into the frustum and
+  // normalized so that a * x + b * y + c * z + d is the signed distance from the plane.
+  private final float[] planes = new float[4 * NUMBER_OF_PLANES];
+  // Scratch space for getBounds.
+  private final float[] corner = new float[3];
+
+  /**
+   * Extracts the frustum planes from a 4x4 column-major clip matrix, typically projection x view.
+   */
+  public void setFromMatrix(float[] matrix) {
+    for (int i = 0; i < NUMBER_OF_PLANES; ++i) {
+      // Planes are w + row, w - row for the x (left, right), y (bottom, top) and z (near, far)
+      // rows of the matrix.
+      int row = i / 2;
+      float sign = (i % 2 == 0) ? 1.0f : -1.0f;
+      float a = matrix[3] + sign * matrix[row];
+      float b = matrix[7] + sign * matrix[4 + row];
+      float c = matrix[11] + sign * matrix[8 + row];
+      float d = matrix[15] + sign * matrix[12 + row];
+      float length = (float) Math.sqrt(a * a + b * b + c * c);
+      float reciprocalLength = length > 0.0f ? 1.0f / length : 0.0f;
+      planes[4 * i] = a * reciprocalLength;
+      planes[4 * i + 1] = b * reciprocalLength;
+      planes[4 * i + 2] = c * reciprocalLength;
+      planes[4 * i + 3] = d * reciprocalLength;
+    }
+  }
+
+  /** Returns true if the point is inside the frustum. */
+  public boolean isPointVisible(float x, float y, float z) {
+    return isSphereVisible(x, y, z, 0.0f);
+  }
+
+  /** Returns true if the sphere intersects the frustum. */
+  public boolean isSphereVisible(float x, float y, float z, float radius) {
+    for (int i = 0; i < 4 * NUMBER_OF_PLANES; i += 4) {
+      if (planes[i] * x + planes[i + 1] * y + planes[i + 2] * z + planes[i + 3] < -radius) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns true if the axis-aligned box intersects the frustum. May conservatively return true for
+   * boxes near the frustum's edges that are actually outside.
+   */
+  public boolean isBoxVisible(float[] min, float[] max) {
+    for (int i = 0; i < 4 * NUMBER_OF_PLANES; i += 4) {
+      // Test the corner of the box that is farthest along the plane normal.
+      float x = planes[i] >= 0.0f ? max[0] : min[0];
+      float y = planes[i + 1] >= 0.0f ? max[1] : min[1];
+      float z = planes[i + 2] >= 0.0f ? max[2] : min[2];
+      if (planes[i] * x + planes[i + 1] * y + planes[i + 2] * z + planes[i + 3] < 0.0f) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Writes the axis-aligned bounding box of the frustum's eight corners into {@code min} and {@code
+   * max} (x, y, z), in the same coordinates as the tests. If the frustum has no finite corners, for
+   * example because its far plane is at infinity, the box is infinite.
+   */
+  public void getBounds(float[] min, float[] max) {
+    for (int axis = 0; axis < 3; ++axis) {
+      min[axis] = Float.POSITIVE_INFINITY;
+      max[axis] = Float.NEGATIVE_INFINITY;
+    }
+    // Each corner is where one of the left and right planes (0, 1), one of the bottom and top
+    // planes (2, 3) and one of the near and far planes (4, 5) meet.
+    for (int corner = 0; corner < 8; ++corner) {
+      if (!intersectPlanes(corner & 1, 2 + ((corner >> 1) & 1), 4 + (corner >> 2), this.corner)) {
+        for (int axis = 0; axis < 3; ++axis) {
+          min[axis] = Float.NEGATIVE_INFINITY;
+          max[axis] = Float.POSITIVE_INFINITY;
+        }
+        return;
+      }
+      for (int axis = 0; axis < 3; ++axis) {
+        min[axis] = Math.min(min[axis], this.corner[axis]);
+        max[axis] = Math.max(max[axis], this.corner[axis]);
+      }
+    }
+  }
+
+  /**
+   * Returns true if the bounding sphere of {@code bounds}, placed in the world by the column-major
+   * {@code modelMatrix} at {@code offset}, intersects the frustum. The frustum must have been set
+   * from a projection x view matrix.
+   */
+  public boolean isVisible(float[] modelMatrix, int offset, BoundingVolume bounds) {
+    float[] center = bounds.getCenter();
+    float x =
+        modelMatrix[offset] * center[0]
+            + modelMatrix[offset + 4] * center[1]
+            + modelMatrix[offset + 8] * center[2]
+            + modelMatrix[offset + 12];
+    float y =
+        modelMatrix[offset + 1] * center[0]
+            + modelMatrix[offset + 5] * center[1]
+            + modelMatrix[offset + 9] * center[2]
+            + modelMatrix[offset + 13];
+    float z =
+        modelMatrix[offset + 2] * center[0]
+            + modelMatrix[offset + 6] * center[1]
+            + modelMatrix[offset + 10] * center[2]
+            + modelMatrix[offset + 14];
+    float scale =
+        Math.max(
+            columnLength(modelMatrix, offset),
+            Math.max(columnLength(modelMatrix, offset + 4), columnLength(modelMatrix, offset + 8)));
+    return isSphereVisible(x, y, z, bounds.getRadius() * scale);
+  }
+
+  /**
+   * Writes the point where planes {@code i}, {@code j} and {@code k} meet into {@code out}, and
+   * returns false if they do not meet in a single finite point.
+   */
+  private boolean intersectPlanes(int i, int j, int k, float[] out) {
+    float[] p = planes;
+    int a = 4 * i;
+    int b = 4 * j;
+    int c = 4 * k;
+    // (nb x nc), (nc x na) and (na x nb).
+    float bcX = p[b + 1] * p[c + 2] - p[b + 2] * p[c + 1];
+    float bcY = p[b + 2] * p[c] - p[b] * p[c + 2];
+    float bcZ = p[b] * p[c + 1] - p[b + 1] * p[c];
+    float caX = p[c + 1] * p[a + 2] - p[c + 2] * p[a + 1];
+    float caY = p[c + 2] * p[a] - p[c] * p[a + 2];
+    float caZ = p[c] * p[a + 1] - p[c + 1] * p[a];
+    float abX = p[a + 1] * p[b + 2] - p[a + 2] * p[b + 1];
+    float abY = p[a + 2] * p[b] - p[a] * p[b + 2];
+    float abZ = p[a] * p[b + 1] - p[a + 1] * p[b];
+    float determinant = p[a] * bcX + p[a + 1] * bcY + p[a + 2] * bcZ;
+    if (Math.abs(determinant) < 1e-6f) {
+      return false;
+    }
+    float scale = -1.0f / determinant;
+    out[0] = (p[a + 3] * bcX + p[b + 3] * caX + p[c + 3] * abX) * scale;
+    out[1] = (p[a + 3] * bcY + p[b + 3] * caY + p[c + 3] * abY) * scale;
+    out[2] = (p[a + 3] * bcZ + p[b + 3] * caZ + p[c + 3] * abZ) * scale;
+    return !Float.isInfinite(out[0]) && !Float.isInfinite(out[1]) && !Float.isInfinite(out[2]);
+  }
+
+  private static float columnLength(float[] matrix, int offset) {
+    return (float)
+        Math.sqrt(
+            matrix[offset] * matrix[offset]
+                + matrix[offset + 1] * matrix[offset + 1]
+                + matrix[offset + 2] * matrix[offset + 2]);
+  }
+}
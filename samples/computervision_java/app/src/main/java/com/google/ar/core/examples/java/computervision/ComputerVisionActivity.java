@@ -42,6 +42,7 @@ import com.google.ar.core.Frame;
 import com.google.ar.core.Session;
 import com.google.ar.core.examples.java.common.helpers.CameraPermissionHelper;
 import com.google.ar.core.examples.java.common.helpers.FullScreenHelper;
+import com.google.ar.core.examples.java.common.helpers.LatencyRecorder;
 import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
 import com.google.ar.core.examples.java.common.helpers.TrackingStateHelper;
 import com.google.ar.core.exceptions.CameraNotAvailableException;
@@ -50,6 +51,7 @@ import com.google.ar.core.exceptions.UnavailableApkTooOldException;
 import com.google.ar.core.exceptions.UnavailableArcoreNotInstalledException;
 import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import com.google.ar.core.exceptions.UnavailableUserDeclinedInstallationException;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -67,8 +69,10 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
           + "\n\tPrincipal Point: (%.2f, %.2f)"
           + "\n\t%s Image Dimensions: (%d, %d)"
           + "\n\tUnrotated Field of View: (%.2f˚, %.2f˚)"
-          + "\n\tRender frame time: %.1f ms (%.0ffps)"
-          + "\n\tCPU image frame time: %.1f ms (%.0ffps)";
+          + "\n\tRender frame time: p50 %.1f ms, p99 %.1f ms (%.0ffps)"
+          + "\n\tCPU image frame time: p50 %.1f ms, p99 %.1f ms (%.0ffps)"
+          + "\n\tCPU image latency: p50 %.1f ms, p99 %.1f ms (%d dropped)"
+          + "\n\tSession update time: p50 %.1f ms, p99 %.1f ms";
   private static final float RADIANS_TO_DEGREES = (float) (180 / Math.PI);
 
   // This app demonstrates two approaches to obtaining image data accessible on CPU:
@@ -81,8 +85,10 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
     GPU_DOWNLOAD
   }
 
-  // Select the image acquisition path here.
-  private final ImageAcquisitionPath imageAcquisitionPath = ImageAcquisitionPath.CPU_DIRECT_ACCESS;
+  // Select the image acquisition path here. While the resolution is chosen automatically, the
+  // GL thread switches to GPU_DOWNLOAD if CPU images cannot be processed in time.
+  private volatile ImageAcquisitionPath imageAcquisitionPath =
+      ImageAcquisitionPath.CPU_DIRECT_ACCESS;
 
   // Multiple CPU image Resolution.
   private enum ImageResolution {
@@ -91,8 +97,8 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
     HIGH_RESOLUTION,
   }
 
-  // Default CPU image is low resolution.
-  private ImageResolution cpuResolution = ImageResolution.LOW_RESOLUTION;
+  // Default CPU image is low resolution. Only written on the UI thread.
+  private volatile ImageResolution cpuResolution = ImageResolution.LOW_RESOLUTION;
 
   // Session management and rendering.
   private GLSurfaceView surfaceView;
@@ -105,6 +111,23 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
   private final CpuImageRenderer cpuImageRenderer = new CpuImageRenderer();
   private final EdgeDetector edgeDetector = new EdgeDetector();
 
+  // Number of CPU images that may wait for edge detection while the worker is busy. With one, the
+  // worker always picks up the freshest image when it finishes the previous one.
+  private static final int CPU_IMAGE_QUEUE_DEPTH = 1;
+  private final CpuImageProcessor cpuImageProcessor =
+      new CpuImageProcessor(
+          edgeDetector, CPU_IMAGE_QUEUE_DEPTH, CpuImageProcessor.DropPolicy.DROP_OLDEST);
+
+  // Set to true to record the CPU images of the CPU_DIRECT_ACCESS path, with their intrinsics, into
+  // a new file in the app's external files directory on every resume. Recordings can be replayed
+  // with ReplayFrameSource, for example by CpuImageReplay on a desktop JVM.
+  private static final boolean RECORD_CPU_IMAGES = false;
+  private static final String CPU_IMAGE_RECORDING_PREFIX = "cpu_images_";
+  private static final String CPU_IMAGE_RECORDING_SUFFIX = ".arcf";
+  // Only accessed on the GL thread, and in onResume() and onPause() while it is paused.
+  private FrameRecorder frameRecorder;
+  private final RecordedFrame recordedFrame = new RecordedFrame();
+
   // This lock prevents changing resolution as the frame is being rendered. ARCore requires all
   // CPU images to be released before changing resolution.
   private final Object frameImageInUseLock = new Object();
@@ -114,7 +137,10 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
 
   // The fields below are used for the GPU_DOWNLOAD image acquisition path.
   private final TextureReader textureReader = new TextureReader();
-  private int gpuDownloadFrameBufferIndex = -1;
+
+  // Number of GPU readbacks that may be in flight. Each frame uses the most recent completed one,
+  // so the GPU has up to this many frames to finish a readback before the render thread skips it.
+  private static final int GPU_DOWNLOAD_BUFFER_COUNT = 3;
 
   // ARCore full resolution GL texture typically has a size of 1920 x 1080.
   private static final int TEXTURE_WIDTH = 1920;
@@ -124,6 +150,12 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
   private static final int IMAGE_WIDTH = 1280;
   private static final int IMAGE_HEIGHT = 720;
 
+  // The GPU_DOWNLOAD path is the fallback for devices that cannot process CPU images in time, so it
+  // has the GPU filter the image down one pyramid level, and detects edges on a quarter of the
+  // pixels.
+  private static final int GPU_DOWNLOAD_PYRAMID_LEVEL_COUNT = 2;
+  private static final int GPU_DOWNLOAD_PROCESSED_LEVEL = 1;
+
   // For Camera Configuration APIs usage.
   private CameraConfig cpuLowResolutionCameraConfig;
   private CameraConfig cpuMediumResolutionCameraConfig;
@@ -132,9 +164,19 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
   private Switch cvModeSwitch;
   private boolean isCVModeOn = true;
   private Switch focusModeSwitch;
+  private Switch autoResolutionSwitch;
+  private volatile boolean isAutoResolutionOn = true;
+
+  // Steps the CPU image resolution up and down with the measured processing load, while
+  // isAutoResolutionOn. Only accessed on the GL thread, and in onResume() while it is paused.
+  private ResolutionController resolutionController;
+  // Whether resolutionController was in charge on the previous frame.
+  private boolean wasResolutionControllerActive;
 
   private final FrameTimeHelper renderFrameTimeHelper = new FrameTimeHelper();
   private final FrameTimeHelper cpuImageFrameTimeHelper = new FrameTimeHelper();
+  // Time spent waiting in Session.update(), since the last resume.
+  private final LatencyRecorder sessionUpdateLatencyRecorder = new LatencyRecorder();
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -147,6 +189,8 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
     cvModeSwitch.setOnCheckedChangeListener(this::onCVModeChanged);
     focusModeSwitch = (Switch) findViewById(R.id.switch_focus_mode);
     focusModeSwitch.setOnCheckedChangeListener(this::onFocusModeChanged);
+    autoResolutionSwitch = (Switch) findViewById(R.id.switch_auto_resolution);
+    autoResolutionSwitch.setOnCheckedChangeListener(this::onAutoResolutionChanged);
 
     cpuImageDisplayRotationHelper = new CpuImageDisplayRotationHelper(/*context=*/ this);
 
@@ -160,6 +204,8 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
 
     getLifecycle().addObserver(renderFrameTimeHelper);
     getLifecycle().addObserver(cpuImageFrameTimeHelper);
+    resolutionController =
+        new ResolutionController(cpuImageProcessor.getProcessingTimeRecorder());
 
     installRequested = false;
   }
@@ -174,6 +220,7 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
       session.close();
       session = null;
     }
+    cpuImageProcessor.close();
 
     super.onDestroy();
   }
@@ -229,6 +276,7 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
 
     cvModeSwitch.setChecked(cpuImageRenderer.getSplitterPosition() < 0.5f);
     focusModeSwitch.setChecked(config.getFocusMode() != Config.FocusMode.FIXED);
+    autoResolutionSwitch.setChecked(isAutoResolutionOn);
 
     // Note that order matters - see the note in onPause(), the reverse applies here.
     try {
@@ -238,6 +286,13 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
       session = null;
       return;
     }
+    // Latencies of the previous run do not describe this one.
+    sessionUpdateLatencyRecorder.reset();
+    cpuImageProcessor.getLatencyRecorder().reset();
+    if (RECORD_CPU_IMAGES) {
+      startRecordingCpuImages();
+    }
+    cpuImageProcessor.resumeOutputs();
     surfaceView.onResume();
     cpuImageDisplayRotationHelper.onResume();
   }
@@ -245,6 +300,9 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
   @Override
   public void onPause() {
     super.onPause();
+    // Overlay buffers are mapped in the GL context, which may be destroyed when the GL thread
+    // pauses, so the worker must be done writing into them first.
+    cpuImageProcessor.suspendOutputs();
     if (session != null) {
       // Note that the order matters - GLSurfaceView is paused first so that it does not try
       // to query the session. If Session is paused before GLSurfaceView, GLSurfaceView may
@@ -253,6 +311,58 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
       surfaceView.onPause();
       session.pause();
     }
+    // The GL thread is paused, so it no longer records.
+    stopRecordingCpuImages();
+  }
+
+  private void startRecordingCpuImages() {
+    File file =
+        new File(
+            getExternalFilesDir(/* type= */ null),
+            CPU_IMAGE_RECORDING_PREFIX + System.currentTimeMillis() + CPU_IMAGE_RECORDING_SUFFIX);
+    try {
+      frameRecorder = new FrameRecorder(file);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to start recording CPU images", e);
+    }
+  }
+
+  private void stopRecordingCpuImages() {
+    if (frameRecorder == null) {
+      return;
+    }
+    try {
+      frameRecorder.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to finish recording CPU images", e);
+    }
+    frameRecorder = null;
+  }
+
+  /** Appends a CPU image to the recording, or stops recording if that fails. */
+  private void recordCpuImage(Frame frame, Image image) {
+    CameraIntrinsics intrinsics = frame.getCamera().getImageIntrinsics();
+    float[] focalLength = intrinsics.getFocalLength();
+    float[] principalPoint = intrinsics.getPrincipalPoint();
+    recordedFrame.timestampNanos = image.getTimestamp();
+    recordedFrame.width = image.getWidth();
+    recordedFrame.height = image.getHeight();
+    recordedFrame.focalLength[0] = focalLength[0];
+    recordedFrame.focalLength[1] = focalLength[1];
+    recordedFrame.principalPoint[0] = principalPoint[0];
+    recordedFrame.principalPoint[1] = principalPoint[1];
+    Image.Plane[] planes = image.getPlanes();
+    for (int plane = 0; plane < RecordedFrame.PLANE_COUNT; plane++) {
+      recordedFrame.planes[plane] = planes[plane].getBuffer();
+      recordedFrame.rowStrides[plane] = planes[plane].getRowStride();
+      recordedFrame.pixelStrides[plane] = planes[plane].getPixelStride();
+    }
+    try {
+      frameRecorder.record(recordedFrame);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to record CPU image, recording stopped", e);
+      stopRecordingCpuImages();
+    }
   }
 
   @Override
@@ -279,18 +389,27 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
   public void onSurfaceCreated(GL10 gl, EGLConfig config) {
     GLES20.glClearColor(0.1f, 0.1f, 0.1f, 1.0f);
 
+    // Overlay buffers mapped in a previous GL context are gone with it. Stop the worker from
+    // writing into them, and forget those it hands back, before the renderer maps new ones.
+    cpuImageProcessor.suspendOutputs();
+    cpuImageProcessor.discardUnusedOutputs();
+
     // Create the texture and pass it to ARCore session to be filled during update().
     try {
       cpuImageRenderer.createOnGlThread(/* context= */ this);
+      cpuImageProcessor.resumeOutputs();
 
       // The image format can be either IMAGE_FORMAT_RGBA or IMAGE_FORMAT_I8.
       // Set keepAspectRatio to false so that the output image covers the whole viewport.
+      textureReader.setPyramid(
+          GPU_DOWNLOAD_PYRAMID_LEVEL_COUNT, TextureReader.PyramidFilter.GAUSSIAN);
       textureReader.create(
           /* context= */ this,
           TextureReaderImage.IMAGE_FORMAT_I8,
           IMAGE_WIDTH,
           IMAGE_HEIGHT,
-          false);
+          false,
+          GPU_DOWNLOAD_BUFFER_COUNT);
 
     } catch (IOException e) {
       Log.e(TAG, "Failed to read an asset file", e);
@@ -320,13 +439,16 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
 
       try {
         session.setCameraTextureName(cpuImageRenderer.getTextureId());
+        sessionUpdateLatencyRecorder.start();
         final Frame frame = session.update();
+        sessionUpdateLatencyRecorder.stop();
         final Camera camera = frame.getCamera();
 
         // Keep the screen unlocked while tracking, but allow it to lock when tracking stops.
         trackingStateHelper.updateKeepScreenOnFlag(camera.getTrackingState());
 
         renderFrameTimeHelper.nextFrame();
+        updateResolutionController();
 
         switch (imageAcquisitionPath) {
           case CPU_DIRECT_ACCESS:
@@ -354,73 +476,136 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
             "Expected image in YUV_420_888 format, got format " + image.getFormat());
       }
 
-      ByteBuffer processedImageBytesGrayscale = null;
+      if (frameRecorder != null) {
+        recordCpuImage(frame, image);
+      }
+
       // Do not process the image with edge dectection algorithm if it is not being displayed.
+      // Otherwise copy it for the worker thread, so that the image is released right away and edge
+      // detection does not hold up rendering. The worker writes the edges straight into a buffer
+      // the overlay texture is uploaded from, when one is free.
       if (isCVModeOn) {
-        processedImageBytesGrayscale =
-            edgeDetector.detect(
-                image.getWidth(),
-                image.getHeight(),
-                image.getPlanes()[0].getRowStride(),
-                image.getPlanes()[0].getBuffer());
+        cpuImageProcessor.submit(image, acquireOverlayBuffer(image.getWidth(), image.getHeight()));
       }
-
-      cpuImageRenderer.drawWithCpuImage(
-          frame,
-          image.getWidth(),
-          image.getHeight(),
-          processedImageBytesGrayscale,
-          cpuImageDisplayRotationHelper.getViewportAspectRatio(),
-          cpuImageDisplayRotationHelper.getCameraToDisplayRotation());
-
-      // Measure frame time since last successful execution of drawWithCpuImage().
-      cpuImageFrameTimeHelper.nextFrame();
     } catch (NotYetAvailableException e) {
       // This exception will routinely happen during startup, and is expected. cpuImageRenderer
       // will handle null image properly, and will just render the background.
       cpuImageRenderer.drawWithoutCpuImage();
+      return;
+    }
+
+    // Draw the most recent result of the worker. If there is none yet, the overlay keeps showing
+    // the previous result.
+    CpuImageProcessor.Result result = isCVModeOn ? cpuImageProcessor.acquireLatestResult() : null;
+    cpuImageRenderer.drawWithCpuImage(
+        frame,
+        result == null ? 0 : result.width,
+        result == null ? 0 : result.height,
+        result == null ? null : result.edges,
+        cpuImageDisplayRotationHelper.getViewportAspectRatio(),
+        cpuImageDisplayRotationHelper.getCameraToDisplayRotation());
+
+    if (result != null) {
+      // The image has been uploaded to a texture, so its buffer can be reused.
+      cpuImageProcessor.onResultDisplayed(result);
+
+      // Measure frame time since last successful execution of drawWithCpuImage().
+      cpuImageFrameTimeHelper.nextFrame();
+    }
+  }
+
+  /**
+   * Returns an overlay buffer of cpuImageRenderer for the edges of a CPU image, reusing one of an
+   * image the worker dropped if possible, or null if none is free.
+   */
+  private ByteBuffer acquireOverlayBuffer(int width, int height) {
+    ByteBuffer output = null;
+    ByteBuffer unused;
+    while ((unused = cpuImageProcessor.pollUnusedOutput()) != null) {
+      // Buffers the renderer no longer has mapped, such as those of a previous GL context, are
+      // dropped.
+      if (!cpuImageRenderer.ownsMappedOverlayBuffer(unused)) {
+        continue;
+      }
+      if (output == null && unused.capacity() == width * height) {
+        output = unused;
+      } else {
+        cpuImageRenderer.releaseOverlayBuffer(unused);
+      }
     }
+    return output != null ? output : cpuImageRenderer.acquireOverlayBuffer(width, height);
   }
 
   /* Demonstrates how to access a CPU image using a download from GPU. */
   private void renderProcessedImageGpuDownload(Frame frame) {
-    // If there is a frame being requested previously, acquire the pixels and process it.
-    if (gpuDownloadFrameBufferIndex >= 0) {
-      TextureReaderImage image = textureReader.acquireFrame(gpuDownloadFrameBufferIndex);
+    // If a frame requested previously has been read by the GPU, acquire the pixels and process it.
+    // Frames still being read are left for later frames, so this never waits for the GPU.
+    int readyFrameBufferIndex = textureReader.pollLatestFrame();
+    if (readyFrameBufferIndex >= 0) {
+      TextureReaderImage image = textureReader.acquireFrame(readyFrameBufferIndex);
 
       if (image.format != TextureReaderImage.IMAGE_FORMAT_I8) {
         throw new IllegalArgumentException(
             "Expected image in I8 format, got format " + image.format);
       }
 
-      ByteBuffer processedImageBytesGrayscale =
-          edgeDetector.detect(image.width, image.height, /* stride= */ image.width, image.buffer);
+      // Write the edges straight into a buffer the overlay texture is uploaded from, if one is
+      // free.
+      int levelWidth = image.getLevelWidth(GPU_DOWNLOAD_PROCESSED_LEVEL);
+      int levelHeight = image.getLevelHeight(GPU_DOWNLOAD_PROCESSED_LEVEL);
+      ByteBuffer level = image.getLevel(GPU_DOWNLOAD_PROCESSED_LEVEL);
+      ByteBuffer overlayBuffer = cpuImageRenderer.acquireOverlayBuffer(levelWidth, levelHeight);
+      ByteBuffer processedImageBytesGrayscale;
+      if (overlayBuffer != null) {
+        edgeDetector.detect(
+            levelWidth, levelHeight, image.rowStride, /* pixelStride= */ 1, level, overlayBuffer);
+        processedImageBytesGrayscale = overlayBuffer;
+      } else {
+        processedImageBytesGrayscale =
+            edgeDetector.detect(levelWidth, levelHeight, image.rowStride, level);
+      }
 
       // You should always release frame buffer after using. Otherwise the next call to
       // submitFrame() may fail.
-      textureReader.releaseFrame(gpuDownloadFrameBufferIndex);
+      textureReader.releaseFrame(readyFrameBufferIndex);
 
       cpuImageRenderer.drawWithCpuImage(
           frame,
-          IMAGE_WIDTH,
-          IMAGE_HEIGHT,
+          levelWidth,
+          levelHeight,
           processedImageBytesGrayscale,
           cpuImageDisplayRotationHelper.getViewportAspectRatio(),
           cpuImageDisplayRotationHelper.getCameraToDisplayRotation());
+      // The image has been uploaded to a texture, so its buffer can be reused. Overlay buffers
+      // are reused by cpuImageRenderer once their upload completes.
+      if (overlayBuffer == null) {
+        edgeDetector.recycle(processedImageBytesGrayscale);
+      }
 
       // Measure frame time since last successful execution of drawWithCpuImage().
       cpuImageFrameTimeHelper.nextFrame();
     } else {
-      cpuImageRenderer.drawWithoutCpuImage();
+      // Keep showing the previous result.
+      cpuImageRenderer.drawWithCpuImage(
+          frame,
+          IMAGE_WIDTH,
+          IMAGE_HEIGHT,
+          /* processedImageBytesGrayscale= */ null,
+          cpuImageDisplayRotationHelper.getViewportAspectRatio(),
+          cpuImageDisplayRotationHelper.getCameraToDisplayRotation());
     }
 
-    // Submit request for the texture from the current frame.
-    gpuDownloadFrameBufferIndex =
-        textureReader.submitFrame(cpuImageRenderer.getTextureId(), TEXTURE_WIDTH, TEXTURE_HEIGHT);
+    // Submit request for the texture from the current frame. If every frame buffer is still busy,
+    // the frame is skipped; it is picked up by pollLatestFrame() otherwise.
+    textureReader.submitFrame(cpuImageRenderer.getTextureId(), TEXTURE_WIDTH, TEXTURE_HEIGHT);
   }
 
   public void onLowResolutionRadioButtonClicked(View view) {
     boolean checked = ((RadioButton) view).isChecked();
+    if (checked) {
+      // Choosing a resolution by hand turns off the automatic choice.
+      autoResolutionSwitch.setChecked(false);
+    }
     if (checked && cpuResolution != ImageResolution.LOW_RESOLUTION) {
       // Display low resolution.
       onCameraConfigChanged(cpuLowResolutionCameraConfig);
@@ -430,6 +615,9 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
 
   public void onMediumResolutionRadioButtonClicked(View view) {
     boolean checked = ((RadioButton) view).isChecked();
+    if (checked) {
+      autoResolutionSwitch.setChecked(false);
+    }
     if (checked && cpuResolution != ImageResolution.MEDIUM_RESOLUTION) {
       // Display medium resolution.
       onCameraConfigChanged(cpuMediumResolutionCameraConfig);
@@ -439,6 +627,9 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
 
   public void onHighResolutionRadioButtonClicked(View view) {
     boolean checked = ((RadioButton) view).isChecked();
+    if (checked) {
+      autoResolutionSwitch.setChecked(false);
+    }
     if (checked && cpuResolution != ImageResolution.HIGH_RESOLUTION) {
       // Display high resolution.
       onCameraConfigChanged(cpuHighResolutionCameraConfig);
@@ -446,6 +637,71 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
     }
   }
 
+  /**
+   * Runs on the GL thread once per frame. While the resolution is chosen automatically and images
+   * are processed, lets resolutionController pick the image acquisition path and resolution.
+   */
+  private void updateResolutionController() {
+    boolean active = isAutoResolutionOn && isCVModeOn;
+    if (active && !wasResolutionControllerActive) {
+      resolutionController.reset(cpuResolution.ordinal());
+    }
+    wasResolutionControllerActive = active;
+    if (!active
+        || !resolutionController.update(
+            System.nanoTime(),
+            renderFrameTimeHelper.getFrameTime(50),
+            cpuImageFrameTimeHelper.getFrameTime(50))) {
+      return;
+    }
+
+    boolean useGpuDownload = resolutionController.isUsingGpuDownload();
+    imageAcquisitionPath =
+        useGpuDownload ? ImageAcquisitionPath.GPU_DOWNLOAD : ImageAcquisitionPath.CPU_DIRECT_ACCESS;
+    ImageResolution resolution = ImageResolution.values()[resolutionController.getLevel()];
+    Log.i(
+        TAG,
+        "Automatically selected "
+            + (useGpuDownload ? "GPU download" : "CPU image resolution " + resolution));
+    // The camera config is changed on the UI thread, as for the radio buttons, since it waits for
+    // the frame being rendered.
+    runOnUiThread(() -> onAutomaticResolutionChanged(resolution));
+  }
+
+  private void onAutomaticResolutionChanged(ImageResolution resolution) {
+    if (!isAutoResolutionOn || resolution == cpuResolution) {
+      return;
+    }
+    CameraConfig cameraConfig;
+    int radioButtonId;
+    switch (resolution) {
+      case MEDIUM_RESOLUTION:
+        cameraConfig = cpuMediumResolutionCameraConfig;
+        radioButtonId = R.id.radio_medium_res;
+        break;
+      case HIGH_RESOLUTION:
+        cameraConfig = cpuHighResolutionCameraConfig;
+        radioButtonId = R.id.radio_high_res;
+        break;
+      case LOW_RESOLUTION:
+      default:
+        cameraConfig = cpuLowResolutionCameraConfig;
+        radioButtonId = R.id.radio_low_res;
+        break;
+    }
+    ((RadioGroup) findViewById(R.id.radio_camera_configs)).check(radioButtonId);
+    onCameraConfigChanged(cameraConfig);
+    cpuResolution = resolution;
+  }
+
+  private void onAutoResolutionChanged(CompoundButton unusedButton, boolean isChecked) {
+    isAutoResolutionOn = isChecked;
+    if (!isChecked) {
+      // Go back to CPU images, at the resolution selected by the radio buttons.
+      imageAcquisitionPath = ImageAcquisitionPath.CPU_DIRECT_ACCESS;
+    }
+  }
+
   private void onCVModeChanged(CompoundButton unusedButton, boolean isChecked) {
     cpuImageRenderer.setSplitterPosition(isChecked ? 0.0f : 1.0f);
     isCVModeOn = isChecked;
@@ -454,6 +710,7 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
     boolean show = (cpuImageRenderer.getSplitterPosition() < 0.5f);
     RadioGroup radioGroup = (RadioGroup) findViewById(R.id.radio_camera_configs);
     radioGroup.setVisibility(show ? View.VISIBLE : View.INVISIBLE);
+    autoResolutionSwitch.setVisibility(show ? View.VISIBLE : View.INVISIBLE);
   }
 
   private void onFocusModeChanged(CompoundButton unusedButton, boolean isChecked) {
@@ -525,6 +782,21 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
       updateRadioButtonText(
           R.id.radio_high_res, cpuHighResolutionCameraConfig, getString(R.string.label_high_res));
       cpuResolution = ImageResolution.LOW_RESOLUTION;
+      ((RadioGroup) findViewById(R.id.radio_camera_configs)).check(R.id.radio_low_res);
+
+      CameraConfig[] cameraConfigsByLevel = {
+        cpuLowResolutionCameraConfig, cpuMediumResolutionCameraConfig, cpuHighResolutionCameraConfig
+      };
+      long[] pixelCounts = new long[cameraConfigsByLevel.length];
+      int[] maxFrameRates = new int[cameraConfigsByLevel.length];
+      for (int i = 0; i < cameraConfigsByLevel.length; i++) {
+        Size size = cameraConfigsByLevel[i].getImageSize();
+        pixelCounts[i] = (long) size.getWidth() * size.getHeight();
+        maxFrameRates[i] = cameraConfigsByLevel[i].getFpsRange().getUpper();
+      }
+      resolutionController.setLevels(
+          pixelCounts, maxFrameRates, ImageResolution.LOW_RESOLUTION.ordinal());
+      imageAcquisitionPath = ImageAcquisitionPath.CPU_DIRECT_ACCESS;
     }
   }
 
@@ -592,9 +864,16 @@ public class ComputerVisionActivity extends AppCompatActivity implements GLSurfa
         imageSize[1],
         fovX,
         fovY,
-        renderFrameTimeHelper.getSmoothedFrameTime(),
-        renderFrameTimeHelper.getSmoothedFrameRate(),
-        cpuImageFrameTimeHelper.getSmoothedFrameTime(),
-        cpuImageFrameTimeHelper.getSmoothedFrameRate());
+        renderFrameTimeHelper.getFrameTime(50),
+        renderFrameTimeHelper.getFrameTime(99),
+        renderFrameTimeHelper.getFrameRate(),
+        cpuImageFrameTimeHelper.getFrameTime(50),
+        cpuImageFrameTimeHelper.getFrameTime(99),
+        cpuImageFrameTimeHelper.getFrameRate(),
+        cpuImageProcessor.getLatencyRecorder().getPercentileMillis(50),
+        cpuImageProcessor.getLatencyRecorder().getPercentileMillis(99),
+        cpuImageProcessor.getDroppedFrameCount(),
+        sessionUpdateLatencyRecorder.getPercentileMillis(50),
+        sessionUpdateLatencyRecorder.getPercentileMillis(99));
   }
 }
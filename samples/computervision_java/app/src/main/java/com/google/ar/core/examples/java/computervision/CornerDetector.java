@@ -0,0 +1,521 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Detects FAST-9 corners in grayscale images, such as the Y plane of a CPU image.
+ *
+ * <p>A pixel is a corner candidate if 9 contiguous pixels of the 16 on a circle of radius 3 around
+ * it are all brighter, or all darker, than it by more than a threshold. Candidates are scored with
+ * the Shi-Tomasi measure, the smaller eigenvalue of the structure tensor of Sobel gradients over a
+ * 3x3 window, and only those whose score is a maximum of their 3x3 neighbourhood are kept. The
+ * image is divided into a grid of square cells, and each cell keeps at most a fixed number of its
+ * strongest corners, so corners are spread over the image and their number is bounded.
+ *
+ * <p>As in {@link EdgeDetector}, the input is read in place, and the image is split into bands that
+ * are processed in parallel on a {@link ForkJoinPool}. Bands are whole rows of cells, so each cell
+ * is filled by one band only and bands need no synchronization.
+ *
+ * <p>This class is thread-safe, and concurrent calls to {@link #detect} run independently.
+ */
+public class CornerDetector {
+  /** Detected corners, ordered by grid cell, row by row. */
+  public static final class Corners {
+    private int count;
+    private int[] xs = new int[0];
+    private int[] ys = new int[0];
+    private float[] scores = new float[0];
+    // The number of corners each grid cell holds while detecting.
+    private int[] cellCounts = new int[0];
+
+    /** Returns the number of corners. */
+    public int size() {
+      return count;
+    }
+
+    /** Returns the column of corner {@code index}. */
+    public int getX(int index) {
+      return xs[index];
+    }
+
+    /** Returns the row of corner {@code index}. */
+    public int getY(int index) {
+      return ys[index];
+    }
+
+    /** Returns the Shi-Tomasi score of corner {@code index}; larger is stronger. */
+    public float getScore(int index) {
+      return scores[index];
+    }
+
+    private void ensure(int cellCount, int maxCornersPerCell) {
+      int capacity = cellCount * maxCornersPerCell;
+      if (xs.length < capacity) {
+        xs = new int[capacity];
+        ys = new int[capacity];
+        scores = new float[capacity];
+      }
+      if (cellCounts.length < cellCount) {
+        cellCounts = new int[cellCount];
+      }
+    }
+  }
+
+  /** The default difference to the centre pixel, in levels, for circle pixels to count. */
+  public static final int DEFAULT_THRESHOLD = 20;
+  /** The default width and height of grid cells, in pixels. */
+  public static final int DEFAULT_CELL_SIZE = 32;
+  /** The default number of corners each grid cell keeps. */
+  public static final int DEFAULT_MAX_CORNERS_PER_CELL = 4;
+
+  // The radius of the FAST circle, which is also the unprocessed border of the image.
+  private static final int BORDER = 3;
+  // The number of contiguous circle pixels that makes a corner.
+  private static final int ARC_LENGTH = 9;
+
+  // The circle of 16 pixels around a candidate, clockwise from the top.
+  private static final int[] CIRCLE_X = {0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3, -3, -3, -2, -1};
+  private static final int[] CIRCLE_Y = {-3, -3, -2, -1, 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3};
+
+  private final ForkJoinPool pool;
+  private final int threshold;
+  private final int cellSize;
+  private final int maxCornersPerCell;
+  // Reuse results to avoid allocations on every call.
+  private final ConcurrentLinkedQueue<Corners> cornersPool = new ConcurrentLinkedQueue<>();
+
+  /** Creates a corner detector with default parameters that runs on the common fork-join pool. */
+  public CornerDetector() {
+    this(
+        ForkJoinPool.commonPool(),
+        DEFAULT_THRESHOLD,
+        DEFAULT_CELL_SIZE,
+        DEFAULT_MAX_CORNERS_PER_CELL);
+  }
+
+  /**
+   * Creates a corner detector that runs on {@code pool}.
+   *
+   * @param threshold the difference to the centre pixel, in levels, for circle pixels to count.
+   * @param cellSize the width and height of grid cells, in pixels.
+   * @param maxCornersPerCell the number of corners each grid cell keeps, at least 1.
+   */
+  public CornerDetector(ForkJoinPool pool, int threshold, int cellSize, int maxCornersPerCell) {
+    if (cellSize < 1 || maxCornersPerCell < 1) {
+      throw new IllegalArgumentException("cellSize and maxCornersPerCell must be at least 1");
+    }
+    this.pool = pool;
+    this.threshold = threshold;
+    this.cellSize = cellSize;
+    this.maxCornersPerCell = maxCornersPerCell;
+  }
+
+  /**
+   * Detects corners in a grayscale image.
+   *
+   * @param width image width.
+   * @param height image height.
+   * @param stride image stride (number of bytes per row, equals to width if no row padding).
+   * @param input bytes of the image, assumed single channel grayscale of size [stride * height].
+   * @return the detected corners. They may be handed back with {@link #recycle} once they are no
+   *     longer used.
+   */
+  public Corners detect(int width, int height, int stride, ByteBuffer input) {
+    return detect(width, height, stride, /* pixelStride= */ 1, input);
+  }
+
+  /**
+   * Detects corners in a grayscale image plane, such as the Y plane of a YUV_420_888 image.
+   *
+   * @param rowStride number of bytes between the starts of consecutive rows.
+   * @param pixelStride number of bytes between consecutive pixels of a row.
+   * @return the detected corners. They may be handed back with {@link #recycle}.
+   */
+  public Corners detect(int width, int height, int rowStride, int pixelStride, ByteBuffer input) {
+    Corners corners = cornersPool.poll();
+    if (corners == null) {
+      corners = new Corners();
+    }
+    detect(width, height, rowStride, pixelStride, input, corners);
+    return corners;
+  }
+
+  /**
+   * Detects corners in a grayscale image plane, replacing the contents of {@code corners}.
+   *
+   * <p>The input is read from index 0 in place. Only width * pixelStride bytes of the last row are
+   * read, since on certain devices the memory allocated for the frame is not an exact multiple of
+   * the row stride.
+   */
+  public void detect(
+      int width,
+      int height,
+      int rowStride,
+      int pixelStride,
+      ByteBuffer input,
+      Corners corners) {
+    int cellsX = (width + cellSize - 1) / cellSize;
+    int cellRows = (height + cellSize - 1) / cellSize;
+    corners.ensure(cellsX * cellRows, maxCornersPerCell);
+    corners.count = 0;
+    if (width <= 2 * BORDER || height <= 2 * BORDER) {
+      return;
+    }
+
+    Job job =
+        new Job(
+            width,
+            height,
+            rowStride,
+            pixelStride,
+            input,
+            threshold,
+            cellSize,
+            cellsX,
+            maxCornersPerCell,
+            corners);
+    if (height <= ImageRows.MIN_ROWS_PER_TASK || cellRows == 1) {
+      detectCellRows(job, 0, cellRows);
+    } else {
+      pool.invoke(new BandTask(job, 0, cellRows));
+    }
+
+    // Gather the corners of all cells at the front of the arrays, in cell order.
+    int count = 0;
+    for (int cell = 0; cell < cellsX * cellRows; cell++) {
+      int first = cell * maxCornersPerCell;
+      for (int k = 0; k < corners.cellCounts[cell]; k++) {
+        corners.xs[count] = corners.xs[first + k];
+        corners.ys[count] = corners.ys[first + k];
+        corners.scores[count] = corners.scores[first + k];
+        count++;
+      }
+    }
+    corners.count = count;
+  }
+
+  /**
+   * Hands corners returned by {@link #detect} back for reuse. They must not be used afterwards.
+   */
+  public void recycle(Corners corners) {
+    if (corners != null) {
+      cornersPool.offer(corners);
+    }
+  }
+
+  /** The arguments of one detection, shared by all its bands. */
+  private static final class Job {
+    final int width;
+    final int height;
+    final int rowStride;
+    final int pixelStride;
+    final ByteBuffer input;
+    final int threshold;
+    final int cellSize;
+    final int cellsX;
+    final int maxCornersPerCell;
+    final Corners corners;
+
+    Job(
+        int width,
+        int height,
+        int rowStride,
+        int pixelStride,
+        ByteBuffer input,
+        int threshold,
+        int cellSize,
+        int cellsX,
+        int maxCornersPerCell,
+        Corners corners) {
+      this.width = width;
+      this.height = height;
+      this.rowStride = rowStride;
+      this.pixelStride = pixelStride;
+      this.input = input;
+      this.threshold = threshold;
+      this.cellSize = cellSize;
+      this.cellsX = cellsX;
+      this.maxCornersPerCell = maxCornersPerCell;
+      this.corners = corners;
+    }
+  }
+
+  /** Detects corners in a band of cell rows, splitting it in halves until it is small enough. */
+  @SuppressWarnings("serial") // Never serialized.
+  private static final class BandTask extends RecursiveAction {
+    private final Job job;
+    private final int startCellRow;
+    private final int endCellRow;
+
+    BandTask(Job job, int startCellRow, int endCellRow) {
+      this.job = job;
+      this.startCellRow = startCellRow;
+      this.endCellRow = endCellRow;
+    }
+
+    @Override
+    protected void compute() {
+      int cellRows = endCellRow - startCellRow;
+      if (cellRows == 1 || cellRows * job.cellSize <= ImageRows.MIN_ROWS_PER_TASK) {
+        detectCellRows(job, startCellRow, endCellRow);
+        return;
+      }
+      int middleCellRow = (startCellRow + endCellRow) >>> 1;
+      invokeAll(
+          new BandTask(job, startCellRow, middleCellRow),
+          new BandTask(job, middleCellRow, endCellRow));
+    }
+  }
+
+  /**
+   * Working memory of a thread: the band of input rows packed to one byte per pixel and their
+   * reader, the offsets of the circle in the band, and three rows of scores.
+   */
+  private static final class LineBuffers {
+    final ImageRows.Reader reader = new ImageRows.Reader();
+    byte[] band = new byte[0];
+    int[] circle = new int[CIRCLE_X.length];
+    int circleWidth = -1;
+    float[] scoresAbove = new float[0];
+    float[] scores = new float[0];
+    float[] scoresBelow = new float[0];
+
+    void ensure(int width, int bandRows) {
+      if (band.length < width * bandRows) {
+        band = new byte[width * bandRows];
+      }
+      if (circleWidth != width) {
+        for (int k = 0; k < CIRCLE_X.length; k++) {
+          circle[k] = CIRCLE_Y[k] * width + CIRCLE_X[k];
+        }
+        circleWidth = width;
+      }
+      if (scores.length < width) {
+        scoresAbove = new float[width];
+        scores = new float[width];
+        scoresBelow = new float[width];
+      }
+    }
+  }
+
+  private static final ThreadLocal<LineBuffers> lineBuffers = ImageRows.perThread(LineBuffers::new);
+
+  /**
+   * Detects the corners of cell rows [startCellRow, endCellRow).
+   *
+   * <p>The rows of the band, plus the rows the circle and the score window reach above and below
+   * it, are read into a packed line buffer once. Scores are computed a row ahead of the row being
+   * suppressed, in a rolling set of three score rows, so each candidate is scored once.
+   */
+  private static void detectCellRows(Job job, int startCellRow, int endCellRow) {
+    int width = job.width;
+    int cellsX = job.cellsX;
+    int maxCornersPerCell = job.maxCornersPerCell;
+    Corners corners = job.corners;
+    for (int cell = startCellRow * cellsX; cell < endCellRow * cellsX; cell++) {
+      corners.cellCounts[cell] = 0;
+    }
+
+    // Rows whose corners belong to this band.
+    int startRow = Math.max(startCellRow * job.cellSize, BORDER);
+    int endRow = Math.min(endCellRow * job.cellSize, job.height - BORDER);
+    if (startRow >= endRow) {
+      return;
+    }
+    // Scores are needed one row beyond, and each score reads BORDER rows beyond that.
+    int firstInputRow = Math.max(startRow - 1 - BORDER, 0);
+    int endInputRow = Math.min(endRow + 1 + BORDER, job.height);
+
+    LineBuffers buffers = lineBuffers.get();
+    buffers.ensure(width, endInputRow - firstInputRow);
+    byte[] band = buffers.band;
+    ByteBuffer source = job.input.duplicate();
+    for (int row = firstInputRow; row < endInputRow; row++) {
+      buffers.reader.read(
+          source, row * job.rowStride, width, job.pixelStride, band, (row - firstInputRow) * width);
+    }
+
+    float[] above = buffers.scoresAbove;
+    float[] center = buffers.scores;
+    float[] below = buffers.scoresBelow;
+    scoreRow(job, buffers, firstInputRow, startRow - 1, above);
+    scoreRow(job, buffers, firstInputRow, startRow, center);
+
+    for (int j = startRow; j < endRow; j++) {
+      scoreRow(job, buffers, firstInputRow, j + 1, below);
+
+      int cellRowStart = (j / job.cellSize) * cellsX;
+      for (int i = BORDER; i < width - BORDER; i++) {
+        float score = center[i];
+        if (score <= 0f) {
+          continue;
+        }
+        // Ties are broken towards the later pixel in scan order, so exactly one of two equal
+        // neighbours survives.
+        if (score <= above[i - 1]
+            || score <= above[i]
+            || score <= above[i + 1]
+            || score <= center[i - 1]
+            || score < center[i + 1]
+            || score < below[i - 1]
+            || score < below[i]
+            || score < below[i + 1]) {
+          continue;
+        }
+        offer(corners, cellRowStart + i / job.cellSize, maxCornersPerCell, i, j, score);
+      }
+
+      // Rotate the score rows up by one row.
+      float[] recycled = above;
+      above = center;
+      center = below;
+      below = recycled;
+    }
+  }
+
+  /**
+   * Scores the pixels of image row {@code row}: the Shi-Tomasi score of FAST corners, and 0 for
+   * other pixels and rows outside the processed area.
+   */
+  private static void scoreRow(
+      Job job, LineBuffers buffers, int firstInputRow, int row, float[] out) {
+    int width = job.width;
+    Arrays.fill(out, 0, width, 0f);
+    if (row < BORDER || row >= job.height - BORDER) {
+      return;
+    }
+    byte[] band = buffers.band;
+    int[] circle = buffers.circle;
+    int threshold = job.threshold;
+    int rowOffset = (row - firstInputRow) * width;
+    for (int i = BORDER; i < width - BORDER; i++) {
+      int p = rowOffset + i;
+      int brighter = (band[p] & 0xFF) + threshold;
+      int darker = (band[p] & 0xFF) - threshold;
+
+      // An arc of 9 covers at least two of the four compass pixels, which rejects most pixels
+      // after four reads.
+      int top = band[p + circle[0]] & 0xFF;
+      int right = band[p + circle[4]] & 0xFF;
+      int bottom = band[p + circle[8]] & 0xFF;
+      int left = band[p + circle[12]] & 0xFF;
+      int brighterCount =
+          (top > brighter ? 1 : 0)
+              + (right > brighter ? 1 : 0)
+              + (bottom > brighter ? 1 : 0)
+              + (left > brighter ? 1 : 0);
+      int darkerCount =
+          (top < darker ? 1 : 0)
+              + (right < darker ? 1 : 0)
+              + (bottom < darker ? 1 : 0)
+              + (left < darker ? 1 : 0);
+      if (brighterCount < 2 && darkerCount < 2) {
+        continue;
+      }
+
+      int brighterMask = 0;
+      int darkerMask = 0;
+      for (int k = 0; k < circle.length; k++) {
+        int value = band[p + circle[k]] & 0xFF;
+        if (value > brighter) {
+          brighterMask |= 1 << k;
+        } else if (value < darker) {
+          darkerMask |= 1 << k;
+        }
+      }
+      if (!hasArc(brighterMask) && !hasArc(darkerMask)) {
+        continue;
+      }
+      out[i] = shiTomasiScore(band, width, p);
+    }
+  }
+
+  /** Returns whether the 16-bit circle mask has {@link #ARC_LENGTH} contiguous set bits. */
+  private static boolean hasArc(int mask) {
+    if (Integer.bitCount(mask) < ARC_LENGTH) {
+      return false;
+    }
+    // Repeat the circle so that arcs wrapping around bit 0 are contiguous too.
+    int circular = mask | (mask << 16);
+    int arcs = circular;
+    for (int k = 1; k < ARC_LENGTH; k++) {
+      arcs &= circular >>> k;
+    }
+    return arcs != 0;
+  }
+
+  /**
+   * Returns the smaller eigenvalue of the structure tensor of the Sobel gradients in the 3x3 window
+   * around {@code p}.
+   */
+  private static float shiTomasiScore(byte[] band, int width, int p) {
+    float gxx = 0f;
+    float gyy = 0f;
+    float gxy = 0f;
+    for (int dy = -1; dy <= 1; dy++) {
+      for (int dx = -1; dx <= 1; dx++) {
+        int q = p + dy * width + dx;
+        int a00 = band[q - width - 1] & 0xFF;
+        int a01 = band[q - width] & 0xFF;
+        int a02 = band[q - width + 1] & 0xFF;
+        int a10 = band[q - 1] & 0xFF;
+        int a12 = band[q + 1] & 0xFF;
+        int a20 = band[q + width - 1] & 0xFF;
+        int a21 = band[q + width] & 0xFF;
+        int a22 = band[q + width + 1] & 0xFF;
+        int gx = -a00 - (2 * a10) - a20 + a02 + (2 * a12) + a22;
+        int gy = -a00 - (2 * a01) - a02 + a20 + (2 * a21) + a22;
+        gxx += gx * gx;
+        gyy += gy * gy;
+        gxy += gx * gy;
+      }
+    }
+    float halfTrace = (gxx + gyy) * 0.5f;
+    float halfDifference = (gxx - gyy) * 0.5f;
+    return halfTrace - (float) Math.sqrt(halfDifference * halfDifference + gxy * gxy);
+  }
+
+  /** Adds a corner to a cell, replacing its weakest corner if the cell is full. */
+  private static void offer(
+      Corners corners, int cell, int maxCornersPerCell, int x, int y, float score) {
+    int first = cell * maxCornersPerCell;
+    int count = corners.cellCounts[cell];
+    int slot;
+    if (count < maxCornersPerCell) {
+      slot = first + count;
+      corners.cellCounts[cell] = count + 1;
+    } else {
+      slot = first;
+      for (int k = first + 1; k < first + maxCornersPerCell; k++) {
+        if (corners.scores[k] < corners.scores[slot]) {
+          slot = k;
+        }
+      }
+      if (corners.scores[slot] >= score) {
+        return;
+      }
+    }
+    corners.xs[slot] = x;
+    corners.ys[slot] = y;
+    corners.scores[slot] = score;
+  }
+}
@@ -0,0 +1,397 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import android.media.Image;
+import com.google.ar.core.examples.java.common.helpers.LatencyRecorder;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs edge detection on CPU images on a worker thread, so that the render thread only pays for
+ * copying the image.
+ *
+ * <p>The render thread calls {@link #submit} with each acquired camera image, which copies its Y
+ * plane into a pooled buffer so that the image can be closed right away, and later picks up the
+ * most recent completed result with {@link #acquireLatestResult}. Up to a fixed number of copied
+ * images wait for the worker; when the queue is full, a {@link DropPolicy} decides which image is
+ * dropped. Results that are superseded before the render thread picks them up are dropped too.
+ *
+ * <p>Edges are written into pooled buffers, or into an output buffer passed to {@link #submit},
+ * such as a mapped buffer of {@link CpuImageRenderer#acquireOverlayBuffer}, so that they reach the
+ * overlay texture without another copy. Output buffers of dropped images are handed back through
+ * {@link #pollUnusedOutput}. Since such buffers only live as long as the GL context that mapped
+ * them, {@link #suspendOutputs} makes the worker stop writing into them before the context may go
+ * away.
+ *
+ * <p>The latency from submission of an image to display of its result is measured per frame and
+ * recorded into a {@link LatencyRecorder}, and so is the time the worker spends detecting edges.
+ */
+public class CpuImageProcessor implements Closeable {
+  /** Which image to drop when an image is submitted while the queue is full. */
+  public enum DropPolicy {
+    /** Drop the oldest queued image, so the worker always works on the freshest images. */
+    DROP_OLDEST,
+    /** Drop the submitted image, so every queued image is processed. */
+    DROP_NEWEST
+  }
+
+  /** The edges detected in an image. */
+  public static final class Result {
+    /** The image width. */
+    public final int width;
+    /** The image height. */
+    public final int height;
+    /** The edge strength of each pixel, width * height bytes, see {@link EdgeDetector#detect}. */
+    public final ByteBuffer edges;
+    /** The {@link System#nanoTime} at which the image was submitted. */
+    public final long submitTimeNanos;
+    // Whether edges is the output buffer passed to submit(), rather than a pooled one.
+    private final boolean isSubmittedOutput;
+
+    private Result(
+        int width, int height, ByteBuffer edges, long submitTimeNanos, boolean isSubmittedOutput) {
+      this.width = width;
+      this.height = height;
+      this.edges = edges;
+      this.submitTimeNanos = submitTimeNanos;
+      this.isSubmittedOutput = isSubmittedOutput;
+    }
+  }
+
+  /** A copied image waiting for the worker. */
+  private static final class Job {
+    final int width;
+    final int height;
+    final int rowStride;
+    final int pixelStride;
+    final ByteBuffer pixels;
+    // The buffer to write the edges into, or null to take a pooled one.
+    final ByteBuffer output;
+    final long submitTimeNanos;
+
+    Job(
+        int width,
+        int height,
+        int rowStride,
+        int pixelStride,
+        ByteBuffer pixels,
+        ByteBuffer output,
+        long submitTimeNanos) {
+      this.width = width;
+      this.height = height;
+      this.rowStride = rowStride;
+      this.pixelStride = pixelStride;
+      this.pixels = pixels;
+      this.output = output;
+      this.submitTimeNanos = submitTimeNanos;
+    }
+  }
+
+  private static final float NANOSECONDS_PER_MILLISECOND = 1e6f;
+  private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+  private final EdgeDetector edgeDetector;
+  private final int queueDepth;
+  private final DropPolicy dropPolicy;
+  private final ExecutorService worker =
+      Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "CpuImageProcessor"));
+
+  // Images waiting for the worker. Guarded by itself.
+  private final ArrayDeque<Job> queue = new ArrayDeque<>();
+  // Whether output buffers passed to submit() are handed back rather than written. Guarded by
+  // queue.
+  private boolean outputsSuspended;
+  // Held by the worker while it processes an image, so that suspendOutputs() can wait for it.
+  private final Object processingLock = new Object();
+  // Copies of the submitted planes, reused across images.
+  private final ImageRows.OutputPool pixelsPool = new ImageRows.OutputPool();
+  // Output buffers passed to submit() whose edges will not be displayed.
+  private final ConcurrentLinkedQueue<ByteBuffer> unusedOutputs = new ConcurrentLinkedQueue<>();
+  private final AtomicReference<Result> latestResult = new AtomicReference<>();
+  private final AtomicLong droppedFrameCount = new AtomicLong();
+  private final LatencyRecorder latencyRecorder = new LatencyRecorder();
+  private final LatencyRecorder processingTimeRecorder = new LatencyRecorder();
+
+  // Render thread only.
+  private float lastLatencyMillis;
+
+  /**
+   * Creates the processor and starts its worker thread.
+   *
+   * @param queueDepth the number of images that may wait while the worker is busy, at least 1.
+   */
+  public CpuImageProcessor(EdgeDetector edgeDetector, int queueDepth, DropPolicy dropPolicy) {
+    if (queueDepth < 1) {
+      throw new IllegalArgumentException("queueDepth must be at least 1");
+    }
+    this.edgeDetector = edgeDetector;
+    this.queueDepth = queueDepth;
+    this.dropPolicy = dropPolicy;
+  }
+
+  /**
+   * Copies the Y plane of a YUV_420_888 image and queues it for edge detection. The image may be
+   * closed as soon as this returns.
+   *
+   * @return false if an image was dropped because the queue was full.
+   */
+  public boolean submit(Image image) {
+    return submit(image, /* output= */ null);
+  }
+
+  /**
+   * Same as {@link #submit(Image)}, but writes the edges into {@code output}, which must hold at
+   * least width * height bytes, or into a pooled buffer if it is null.
+   */
+  public boolean submit(Image image, ByteBuffer output) {
+    Image.Plane plane = image.getPlanes()[0];
+    return submit(
+        image.getWidth(),
+        image.getHeight(),
+        plane.getRowStride(),
+        plane.getPixelStride(),
+        plane.getBuffer(),
+        output);
+  }
+
+  /**
+   * Copies a grayscale image plane and queues it for edge detection.
+   *
+   * @param plane bytes of the image, copied from index 0 to its capacity. Its position and limit
+   *     are not changed.
+   * @return false if an image was dropped because the queue was full.
+   */
+  public boolean submit(int width, int height, int rowStride, int pixelStride, ByteBuffer plane) {
+    return submit(width, height, rowStride, pixelStride, plane, /* output= */ null);
+  }
+
+  /**
+   * Same as {@link #submit(int, int, int, int, ByteBuffer)}, but writes the edges into {@code
+   * output}, which must hold at least width * height bytes, or into a pooled buffer if it is null.
+   * If the image is dropped, {@code output} is handed back by {@link #pollUnusedOutput}.
+   */
+  public boolean submit(
+      int width, int height, int rowStride, int pixelStride, ByteBuffer plane, ByteBuffer output) {
+    long submitTimeNanos = System.nanoTime();
+    Job dropped = null;
+    synchronized (queue) {
+      if (queue.size() == queueDepth) {
+        if (dropPolicy == DropPolicy.DROP_NEWEST) {
+          if (output != null) {
+            unusedOutputs.offer(output);
+          }
+          droppedFrameCount.incrementAndGet();
+          return false;
+        }
+        dropped = queue.removeFirst();
+      }
+    }
+
+    ByteBuffer pixels = pixelsPool.take(plane.capacity());
+    ByteBuffer source = plane.duplicate();
+    source.clear();
+    pixels.put(source);
+    pixels.flip();
+    synchronized (queue) {
+      if (outputsSuspended && output != null) {
+        unusedOutputs.offer(output);
+        output = null;
+      }
+      queue.addLast(
+          new Job(width, height, rowStride, pixelStride, pixels, output, submitTimeNanos));
+    }
+    worker.execute(this::processNext);
+
+    if (dropped != null) {
+      pixelsPool.recycle(dropped.pixels);
+      if (dropped.output != null) {
+        unusedOutputs.offer(dropped.output);
+      }
+      droppedFrameCount.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the most recent result not yet acquired, or null if there is none. The result must be
+   * handed back with {@link #onResultDisplayed} or {@link #release}.
+   */
+  public Result acquireLatestResult() {
+    return latestResult.getAndSet(null);
+  }
+
+  /**
+   * Records the latency of a result that has just been displayed, and releases it. An output
+   * buffer passed to {@link #submit} is left to the caller, who displayed it.
+   */
+  public void onResultDisplayed(Result result) {
+    long latencyNanos = System.nanoTime() - result.submitTimeNanos;
+    latencyRecorder.record(latencyNanos);
+    lastLatencyMillis = latencyNanos / NANOSECONDS_PER_MILLISECOND;
+    if (!result.isSubmittedOutput) {
+      edgeDetector.recycle(result.edges);
+    }
+  }
+
+  /**
+   * Hands the buffers of a result that will not be displayed back for reuse. An output buffer
+   * passed to {@link #submit} is handed back by {@link #pollUnusedOutput}. The result must not be
+   * used afterwards.
+   */
+  public void release(Result result) {
+    if (result.isSubmittedOutput) {
+      unusedOutputs.offer(result.edges);
+    } else {
+      edgeDetector.recycle(result.edges);
+    }
+  }
+
+  /**
+   * Returns an output buffer passed to {@link #submit} whose edges will not be displayed, because
+   * its image or result was dropped, or null if there is none.
+   */
+  public ByteBuffer pollUnusedOutput() {
+    return unusedOutputs.poll();
+  }
+
+  /**
+   * Stops writing edges into output buffers passed to {@link #submit}, for example before the GL
+   * context that mapped them may be destroyed. Waits for the worker to finish the image it is
+   * processing, if any, then drops the queued images and the latest result, handing their output
+   * buffers back through {@link #pollUnusedOutput}. Until {@link #resumeOutputs}, output buffers
+   * passed to {@link #submit} are handed back right away, and edges are written into pooled
+   * buffers instead.
+   */
+  public void suspendOutputs() {
+    synchronized (processingLock) {
+      synchronized (queue) {
+        outputsSuspended = true;
+        Job job;
+        while ((job = queue.pollFirst()) != null) {
+          pixelsPool.recycle(job.pixels);
+          if (job.output != null) {
+            unusedOutputs.offer(job.output);
+          }
+          droppedFrameCount.incrementAndGet();
+        }
+      }
+      Result result = latestResult.getAndSet(null);
+      if (result != null) {
+        release(result);
+      }
+    }
+  }
+
+  /** Writes edges into output buffers passed to {@link #submit} again. */
+  public void resumeOutputs() {
+    synchronized (queue) {
+      outputsSuspended = false;
+    }
+  }
+
+  /**
+   * Forgets the output buffers waiting to be handed back by {@link #pollUnusedOutput}, for example
+   * because the GL context that mapped them was destroyed.
+   */
+  public void discardUnusedOutputs() {
+    unusedOutputs.clear();
+  }
+
+  /** Returns the submission-to-display latency of the last displayed result, in milliseconds. */
+  public float getLastLatencyMillis() {
+    return lastLatencyMillis;
+  }
+
+  /** Returns the recorder of the submission-to-display latencies of displayed results. */
+  public LatencyRecorder getLatencyRecorder() {
+    return latencyRecorder;
+  }
+
+  /** Returns the recorder of the time the worker spends detecting the edges of each image. */
+  public LatencyRecorder getProcessingTimeRecorder() {
+    return processingTimeRecorder;
+  }
+
+  /**
+   * Returns the number of images dropped so far, because the queue was full or because their
+   * result was superseded before it was displayed.
+   */
+  public long getDroppedFrameCount() {
+    return droppedFrameCount.get();
+  }
+
+  /**
+   * Stops the worker thread, and waits for a bounded time for it to finish the image it is
+   * processing, if any. Queued images are discarded.
+   */
+  @Override
+  public void close() {
+    synchronized (queue) {
+      queue.clear();
+    }
+    worker.shutdownNow();
+    try {
+      worker.awaitTermination(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Runs on the worker thread, once per submitted image. */
+  private void processNext() {
+    // Held until the result is published, so that suspendOutputs() sees it.
+    synchronized (processingLock) {
+      Job job;
+      synchronized (queue) {
+        // The job this call was scheduled for may have been dropped already.
+        job = queue.pollFirst();
+      }
+      if (job == null) {
+        return;
+      }
+
+      processingTimeRecorder.start();
+      ByteBuffer edges;
+      if (job.output != null) {
+        edgeDetector.detect(
+            job.width, job.height, job.rowStride, job.pixelStride, job.pixels, job.output);
+        edges = job.output;
+      } else {
+        edges =
+            edgeDetector.detect(job.width, job.height, job.rowStride, job.pixelStride, job.pixels);
+      }
+      processingTimeRecorder.stop();
+      pixelsPool.recycle(job.pixels);
+
+      Result superseded =
+          latestResult.getAndSet(
+              new Result(job.width, job.height, edges, job.submitTimeNanos, job.output != null));
+      if (superseded != null) {
+        release(superseded);
+        droppedFrameCount.incrementAndGet();
+      }
+    }
+  }
+}
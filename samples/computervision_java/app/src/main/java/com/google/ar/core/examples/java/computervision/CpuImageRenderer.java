@@ -18,6 +18,7 @@ package com.google.ar.core.examples.java.computervision;
 import android.content.Context;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
 import android.opengl.GLSurfaceView;
 import com.google.ar.core.Coordinates2d;
 import com.google.ar.core.Frame;
@@ -33,6 +34,13 @@ import javax.microedition.khronos.opengles.GL10;
 /**
  * This class renders the screen with images from both GPU and CPU. The top half of the screen shows
  * the GPU image, while the bottom half of the screen shows the CPU image.
+ *
+ * <p>The storage of the CPU image overlay texture is only specified when the image resolution
+ * changes; every other frame replaces its contents. The contents are streamed through a ring of
+ * pixel unpack buffers: {@link #acquireOverlayBuffer} maps one, which the processing stage writes
+ * into directly, from any thread, and {@link #drawWithCpuImage} unmaps it and starts an
+ * asynchronous upload from it. A fence is inserted after each upload, and a buffer is only mapped
+ * again once its fence has signaled, so the render thread never waits for an upload.
  */
 public class CpuImageRenderer {
   private static final String TAG = CpuImageRenderer.class.getSimpleName();
@@ -55,6 +63,22 @@ public class CpuImageRenderer {
   private int overlayTextureId = -1;
   private float splitterPosition = 0.0f;
 
+  // Number of overlay buffers: one being written by the processing stage, one waiting for it, one
+  // waiting to be displayed and one being uploaded.
+  private static final int OVERLAY_BUFFER_COUNT = 4;
+
+  // State of each overlay buffer of the ring.
+  private static final int OVERLAY_BUFFER_FREE = 0;
+  private static final int OVERLAY_BUFFER_MAPPED = 1; // Handed out by acquireOverlayBuffer().
+  private static final int OVERLAY_BUFFER_UPLOADING = 2; // Its fence may not have signaled yet.
+  private final int[] overlayPbo = new int[OVERLAY_BUFFER_COUNT];
+  private final int[] overlayBufferState = new int[OVERLAY_BUFFER_COUNT];
+  private final int[] overlayBufferSize = new int[OVERLAY_BUFFER_COUNT];
+  private final long[] overlayFence = new long[OVERLAY_BUFFER_COUNT];
+  private final ByteBuffer[] overlayMappedBuffer = new ByteBuffer[OVERLAY_BUFFER_COUNT];
+  private int overlayTextureWidth = 0;
+  private int overlayTextureHeight = 0;
+
   public int getTextureId() {
     return backgroundTextureId;
   }
@@ -88,6 +112,20 @@ public class CpuImageRenderer {
     GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
     GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
     GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+    overlayTextureWidth = 0;
+    overlayTextureHeight = 0;
+    // Rows of the overlay are tightly packed, whatever the image width.
+    GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+
+    // Generate the buffers the overlay is uploaded from. Their storage is allocated when they are
+    // first mapped for a resolution.
+    GLES30.glGenBuffers(OVERLAY_BUFFER_COUNT, overlayPbo, 0);
+    for (int i = 0; i < OVERLAY_BUFFER_COUNT; i++) {
+      overlayBufferState[i] = OVERLAY_BUFFER_FREE;
+      overlayBufferSize[i] = 0;
+      overlayFence[i] = 0;
+      overlayMappedBuffer[i] = null;
+    }
 
     int numVertices = QUAD_COORDS.length / COORDS_PER_VERTEX;
     ByteBuffer bbCoords = ByteBuffer.allocateDirect(QUAD_COORDS.length * FLOAT_SIZE);
@@ -164,7 +202,8 @@ public class CpuImageRenderer {
    * @param imageWidth The processed image width.
    * @param imageHeight The processed image height.
    * @param processedImageBytesGrayscale the processed bytes of the image, grayscale par only. Can
-   *     be null.
+   *     be null. If it was returned by {@link #acquireOverlayBuffer}, it is unmapped and must not
+   *     be used afterwards; any other buffer is copied before this returns.
    * @param screenAspectRatio The aspect ratio of the screen.
    * @param cameraToDisplayRotation The rotation of camera with respect to the display. The value is
    *     one of android.view.Surface.ROTATION_#(0, 90, 180, 270).
@@ -181,16 +220,54 @@ public class CpuImageRenderer {
     if (processedImageBytesGrayscale != null) {
       GLES20.glActiveTexture(GLES20.GL_TEXTURE1);
       GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, overlayTextureId);
-      GLES20.glTexImage2D(
-          GLES20.GL_TEXTURE_2D,
-          0,
-          GLES20.GL_LUMINANCE,
-          imageWidth,
-          imageHeight,
-          0,
-          GLES20.GL_LUMINANCE,
-          GLES20.GL_UNSIGNED_BYTE,
-          processedImageBytesGrayscale);
+      if (imageWidth != overlayTextureWidth || imageHeight != overlayTextureHeight) {
+        GLES20.glTexImage2D(
+            GLES20.GL_TEXTURE_2D,
+            0,
+            GLES20.GL_LUMINANCE,
+            imageWidth,
+            imageHeight,
+            0,
+            GLES20.GL_LUMINANCE,
+            GLES20.GL_UNSIGNED_BYTE,
+            null);
+        overlayTextureWidth = imageWidth;
+        overlayTextureHeight = imageHeight;
+      }
+
+      int overlayBufferIndex = indexOfOverlayBuffer(processedImageBytesGrayscale);
+      if (overlayBufferIndex >= 0) {
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, overlayPbo[overlayBufferIndex]);
+        GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+        overlayMappedBuffer[overlayBufferIndex] = null;
+        // With a pixel unpack buffer bound, the upload reads from it at offset 0 and returns
+        // without waiting for the copy.
+        GLES30.glTexSubImage2D(
+            GLES30.GL_TEXTURE_2D,
+            0,
+            0,
+            0,
+            imageWidth,
+            imageHeight,
+            GLES30.GL_LUMINANCE,
+            GLES30.GL_UNSIGNED_BYTE,
+            /* offset= */ 0);
+        overlayFence[overlayBufferIndex] =
+            GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        overlayBufferState[overlayBufferIndex] = OVERLAY_BUFFER_UPLOADING;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+      } else {
+        GLES20.glTexSubImage2D(
+            GLES20.GL_TEXTURE_2D,
+            0,
+            0,
+            0,
+            imageWidth,
+            imageHeight,
+            GLES20.GL_LUMINANCE,
+            GLES20.GL_UNSIGNED_BYTE,
+            processedImageBytesGrayscale);
+      }
     }
 
     updateTextureCoordinates(frame);
@@ -199,6 +276,73 @@ public class CpuImageRenderer {
     drawWithoutCpuImage();
   }
 
+  /**
+   * Maps a buffer the CPU image overlay can be uploaded from, for the processing stage to write the
+   * next processed image into. The buffer may be written on any thread, and must then be passed to
+   * {@link #drawWithCpuImage} or {@link #releaseOverlayBuffer} on the OpenGL thread.
+   *
+   * @return a buffer of imageWidth * imageHeight bytes, or null if every buffer is mapped or still
+   *     being uploaded from, in which case the processed image should be written to an ordinary
+   *     buffer instead.
+   */
+  public ByteBuffer acquireOverlayBuffer(int imageWidth, int imageHeight) {
+    int size = imageWidth * imageHeight;
+    for (int i = 0; i < OVERLAY_BUFFER_COUNT; i++) {
+      if (!isOverlayBufferFree(i)) {
+        continue;
+      }
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, overlayPbo[i]);
+      if (overlayBufferSize[i] != size) {
+        GLES30.glBufferData(GLES30.GL_PIXEL_UNPACK_BUFFER, size, null, GLES30.GL_STREAM_DRAW);
+        overlayBufferSize[i] = size;
+      }
+      // The previous contents are not needed, which spares the driver from preserving them.
+      ByteBuffer buffer =
+          (ByteBuffer)
+              GLES30.glMapBufferRange(
+                  GLES30.GL_PIXEL_UNPACK_BUFFER,
+                  0,
+                  size,
+                  GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+      if (buffer == null) {
+        ShaderUtil.checkGLError(TAG, "Map overlay buffer");
+        return null;
+      }
+      overlayMappedBuffer[i] = buffer;
+      overlayBufferState[i] = OVERLAY_BUFFER_MAPPED;
+      return buffer;
+    }
+    return null;
+  }
+
+  /**
+   * Hands back a buffer returned by {@link #acquireOverlayBuffer} that will not be drawn, for
+   * example because the image written into it was dropped. Other buffers, and null, are ignored.
+   * Must be called on the OpenGL thread.
+   */
+  public void releaseOverlayBuffer(ByteBuffer buffer) {
+    int index = indexOfOverlayBuffer(buffer);
+    if (index < 0) {
+      return;
+    }
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, overlayPbo[index]);
+    GLES30.glUnmapBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER);
+    GLES30.glBindBuffer(GLES30.GL_PIXEL_UNPACK_BUFFER, 0);
+    overlayMappedBuffer[index] = null;
+    overlayBufferState[index] = OVERLAY_BUFFER_FREE;
+  }
+
+  /**
+   * Returns whether {@code buffer} was returned by {@link #acquireOverlayBuffer} and is still
+   * mapped, so that it may still be written and drawn. Buffers mapped before the last call to
+   * {@link #createOnGlThread} are not. Must be called on the OpenGL thread.
+   */
+  public boolean ownsMappedOverlayBuffer(ByteBuffer buffer) {
+    int index = indexOfOverlayBuffer(buffer);
+    return index >= 0 && overlayBufferState[index] == OVERLAY_BUFFER_MAPPED;
+  }
+
   /**
    * Same as above, but will not update the CPU image drawn. Should be used when a CPU image is
    * unavailable for any reason, and only background should be drawn.
@@ -248,6 +392,35 @@ public class CpuImageRenderer {
     ShaderUtil.checkGLError(TAG, "Draw");
   }
 
+  private int indexOfOverlayBuffer(ByteBuffer buffer) {
+    if (buffer == null) {
+      return -1;
+    }
+    for (int i = 0; i < OVERLAY_BUFFER_COUNT; i++) {
+      if (overlayMappedBuffer[i] == buffer) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns whether an overlay buffer can be mapped, polling its fence without waiting. */
+  private boolean isOverlayBufferFree(int index) {
+    if (overlayBufferState[index] != OVERLAY_BUFFER_UPLOADING) {
+      return overlayBufferState[index] == OVERLAY_BUFFER_FREE;
+    }
+    int status =
+        GLES30.glClientWaitSync(
+            overlayFence[index], GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, /* timeout= */ 0);
+    if (status != GLES30.GL_ALREADY_SIGNALED && status != GLES30.GL_CONDITION_SATISFIED) {
+      return false;
+    }
+    GLES30.glDeleteSync(overlayFence[index]);
+    overlayFence[index] = 0;
+    overlayBufferState[index] = OVERLAY_BUFFER_FREE;
+    return true;
+  }
+
   private void updateTextureCoordinates(Frame frame) {
     if (frame == null) {
       return;
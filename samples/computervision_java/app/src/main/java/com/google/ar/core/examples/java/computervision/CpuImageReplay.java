@@ -0,0 +1,172 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import com.google.ar.core.examples.java.common.helpers.LatencyRecorder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Runs the CPU image stages headless over a recording made by {@link FrameRecorder} on a desktop
+ * JVM, and prints how long they take.
+ *
+ * <p>Usage: {@code CpuImageReplay <recording> [--real-time]}. Every frame's Y plane is run through
+ * {@link EdgeDetector} and {@link OpticalFlowTracker}. Corners from {@link CornerDetector} are
+ * added to the tracker whenever fewer than half of the maximum number of points remain. Frames are
+ * replayed as fast as they are processed, or with {@code --real-time} at the pace they were
+ * recorded. Every frame is also converted to RGBA by {@link YuvConverter}.
+ *
+ * <p>Each frame is also run through an {@link ImagePipeline} doing the same Sobel threshold in one
+ * fused pass, and its edges are compared with those of {@link EdgeDetector} over the pixels both
+ * filter. The two do not match exactly, since the pipeline thresholds the L1 rather than the L2
+ * gradient magnitude, so the share of pixels they agree on is printed along with their timings.
+ */
+public final class CpuImageReplay {
+  private static final double NANOSECONDS_PER_MILLISECOND = 1e6;
+  // EdgeDetector's threshold of 128 on the L2 gradient magnitude, scaled by 4 / pi, the mean ratio
+  // of the L1 to the L2 norm of a gradient over all directions.
+  private static final int FUSED_EDGE_THRESHOLD = 163;
+
+  public static void main(String[] args) throws IOException {
+    boolean realTime = args.length == 2 && args[1].equals("--real-time");
+    if (args.length < 1 || args.length > 2 || (args.length == 2 && !realTime)) {
+      System.err.println("Usage: CpuImageReplay <recording> [--real-time]");
+      System.exit(1);
+    }
+
+    EdgeDetector edgeDetector = new EdgeDetector();
+    CornerDetector cornerDetector = new CornerDetector();
+    OpticalFlowTracker tracker = new OpticalFlowTracker();
+    YuvConverter yuvConverter = new YuvConverter();
+    ImagePipeline pipeline = new ImagePipeline().sobel().threshold(FUSED_EDGE_THRESHOLD);
+    ByteBuffer fusedEdges = ByteBuffer.allocate(0);
+    LatencyRecorder edgeLatency = new LatencyRecorder();
+    LatencyRecorder fusedEdgeLatency = new LatencyRecorder();
+    LatencyRecorder detectionLatency = new LatencyRecorder();
+    LatencyRecorder conversionLatency = new LatencyRecorder();
+    LatencyRecorder pyramidLatency = new LatencyRecorder();
+    LatencyRecorder trackingLatency = new LatencyRecorder();
+    RecordedFrame frame = new RecordedFrame();
+    long trackedPoints = 0;
+    long comparedPixels = 0;
+    long agreeingPixels = 0;
+    int frameCount = 0;
+    long startNanos = System.nanoTime();
+
+    try (ReplayFrameSource source = new ReplayFrameSource(new File(args[0]), realTime)) {
+      while (source.nextFrame(frame)) {
+        ByteBuffer luma = frame.planes[0];
+        int rowStride = frame.rowStrides[0];
+        int pixelStride = frame.pixelStrides[0];
+
+        edgeLatency.start();
+        ByteBuffer edges =
+            edgeDetector.detect(frame.width, frame.height, rowStride, pixelStride, luma);
+        edgeLatency.stop();
+
+        // The pipeline does not downsample, so its output has the size of the frame.
+        if (fusedEdges.capacity() < frame.width * frame.height) {
+          fusedEdges = ByteBuffer.allocateDirect(frame.width * frame.height);
+        }
+        fusedEdgeLatency.start();
+        pipeline.process(frame.width, frame.height, rowStride, pixelStride, luma, fusedEdges);
+        fusedEdgeLatency.stop();
+
+        // EdgeDetector leaves the outermost pixels unfiltered.
+        for (int y = 1; y < frame.height - 1; y++) {
+          for (int x = 1, offset = y * frame.width + 1; x < frame.width - 1; x++, offset++) {
+            if ((edges.get(offset) == (byte) 0xFF) == (fusedEdges.get(offset) != 0)) {
+              agreeingPixels++;
+            }
+          }
+          comparedPixels += Math.max(frame.width - 2, 0);
+        }
+        edgeDetector.recycle(edges);
+
+        conversionLatency.start();
+        ByteBuffer rgba =
+            yuvConverter.convert(
+                frame.width,
+                frame.height,
+                luma,
+                rowStride,
+                pixelStride,
+                frame.planes[1],
+                frame.planes[2],
+                frame.rowStrides[1],
+                frame.pixelStrides[1],
+                YuvConverter.OutputFormat.RGBA_8888);
+        conversionLatency.stop();
+        yuvConverter.recycle(rgba);
+
+        trackedPoints += tracker.track(frame.width, frame.height, rowStride, pixelStride, luma);
+        pyramidLatency.record(tracker.getLastPyramidNanos());
+        if (frameCount > 0) {
+          trackingLatency.record(tracker.getLastTrackingNanos());
+        }
+        if (tracker.getPointCount() < OpticalFlowTracker.DEFAULT_MAX_POINTS / 2) {
+          detectionLatency.start();
+          CornerDetector.Corners corners =
+              cornerDetector.detect(frame.width, frame.height, rowStride, pixelStride, luma);
+          detectionLatency.stop();
+          tracker.addPoints(corners);
+          cornerDetector.recycle(corners);
+        }
+        frameCount++;
+      }
+    }
+    double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%d frames of %dx%d in %.2f s (%.1f fps), %.1f points tracked per frame",
+            frameCount,
+            frame.width,
+            frame.height,
+            seconds,
+            frameCount / seconds,
+            frameCount == 0 ? 0.0 : (double) trackedPoints / frameCount));
+    print("Edge detection", edgeLatency);
+    print("Fused edge detection", fusedEdgeLatency);
+    System.out.println(
+        String.format(
+            Locale.US,
+            "Fused edges agree with EdgeDetector on %.2f%% of pixels",
+            comparedPixels == 0 ? 100.0 : 100.0 * agreeingPixels / comparedPixels));
+    print("Corner detection", detectionLatency);
+    print("RGBA conversion", conversionLatency);
+    print("Pyramid", pyramidLatency);
+    print("Tracking", trackingLatency);
+  }
+
+  private static void print(String label, LatencyRecorder recorder) {
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%s: %d runs, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+            label,
+            recorder.getCount(),
+            recorder.getPercentileMillis(50),
+            recorder.getPercentileMillis(90),
+            recorder.getPercentileMillis(99),
+            recorder.getMaxNanos() / NANOSECONDS_PER_MILLISECOND));
+  }
+
+  private CpuImageReplay() {}
+}
@@ -16,13 +16,36 @@
 package com.google.ar.core.examples.java.computervision;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-/** Detects edges from input YUV image. */
+/**
+ * Detects edges from input YUV image.
+ *
+ * <p>The input is read in place, honouring its row and pixel strides, and the result is written
+ * into a direct buffer that can be handed to GL without another copy. The image is split into
+ * bands of rows that are filtered in parallel on a {@link ForkJoinPool}. Each band reads one halo
+ * row above and below it from the input, and writes only its own rows of the output, so bands need
+ * no synchronization; all buffer accesses are absolute and leave positions and limits alone.
+ *
+ * <p>This class is thread-safe, and concurrent calls to {@link #detect} run independently.
+ */
 public class EdgeDetector {
-  private byte[] inputPixels = new byte[0]; // Reuse java byte array to avoid multiple allocations.
-
   private static final int SOBEL_EDGE_THRESHOLD = 128 * 128;
 
+  private final ForkJoinPool pool;
+  private final ImageRows.OutputPool outputPool = new ImageRows.OutputPool();
+
+  /** Creates an edge detector that runs on the common fork-join pool. */
+  public EdgeDetector() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /** Creates an edge detector that runs on {@code pool}. */
+  public EdgeDetector(ForkJoinPool pool) {
+    this.pool = pool;
+  }
+
   /**
    * Process a grayscale image using the Sobel edge detector.
    *
@@ -31,42 +54,191 @@ public class EdgeDetector {
    * @param stride image stride (number of bytes per row, equals to width if no row padding).
    * @param input bytes of the image, assumed single channel grayscale of size [stride * height].
    * @return bytes of the processed image, where the byte value is the strength of the edge at that
-   *     pixel. Number of bytes is width * height, row padding (if any) is removed.
+   *     pixel. Number of bytes is width * height, row padding (if any) is removed. The buffer may
+   *     be handed back with {@link #recycle} once it is no longer used.
    */
-  public synchronized ByteBuffer detect(int width, int height, int stride, ByteBuffer input) {
-    // Reallocate input byte array if its size is different from the required size.
-    if (stride * height > inputPixels.length) {
-      inputPixels = new byte[stride * height];
-    }
+  public ByteBuffer detect(int width, int height, int stride, ByteBuffer input) {
+    return detect(width, height, stride, /* pixelStride= */ 1, input);
+  }
 
-    // Allocate a new output byte array.
-    byte[] outputPixels = new byte[width * height];
+  /**
+   * Process a grayscale image plane, such as the Y plane of a YUV_420_888 image, using the Sobel
+   * edge detector.
+   *
+   * @param rowStride number of bytes between the starts of consecutive rows.
+   * @param pixelStride number of bytes between consecutive pixels of a row.
+   * @return a direct buffer of width * height bytes, see {@link #detect(int, int, int,
+   *     ByteBuffer)}. The buffer may be handed back with {@link #recycle}.
+   */
+  public ByteBuffer detect(
+      int width, int height, int rowStride, int pixelStride, ByteBuffer input) {
+    ByteBuffer output = outputPool.take(width * height);
+    detect(width, height, rowStride, pixelStride, input, output);
+    return output;
+  }
 
-    // Copy input buffer into a java array for ease of access. This is not the most optimal
-    // way to process an image, but used here for simplicity.
-    input.position(0);
+  /**
+   * Process a grayscale image plane using the Sobel edge detector, writing the result into {@code
+   * output}.
+   *
+   * <p>The input is read from index 0 in place. Only width * pixelStride bytes of the last row are
+   * read, since on certain devices the memory allocated for the frame is not an exact multiple of
+   * the row stride.
+   *
+   * @param output buffer receiving width * height bytes from index 0, which must be within its
+   *     limit; a direct buffer avoids a copy when it is later uploaded to GL. Its position and
+   *     limit are not changed.
+   */
+  public void detect(
+      int width, int height, int rowStride, int pixelStride, ByteBuffer input, ByteBuffer output) {
+    if (output.limit() < width * height) {
+      throw new IllegalArgumentException("Output buffer is smaller than width * height");
+    }
 
-    // Note: On certain devices with specific resolution where the stride is not equal to the width.
-    // In such situation the memory allocated for the frame may not be exact multiple of stride x
-    // height hence the capacity of the ByteBuffer could be less. To handle such situations it will
-    // be better to transfer the exact amount of image bytes to the destination bytes.
-    input.get(inputPixels, 0, input.capacity());
+    // The outermost pixels have no full neighbourhood and are not filtered. Reused buffers hold a
+    // previous image, so they are cleared explicitly.
+    if (height > 0) {
+      clearRow(output, 0, width);
+      clearRow(output, (height - 1) * width, width);
+    }
 
     // Detect edges.
-    for (int j = 1; j < height - 1; j++) {
+    if (height - 2 <= ImageRows.MIN_ROWS_PER_TASK) {
+      detectRows(width, rowStride, pixelStride, input, output, 1, height - 1);
+    } else {
+      pool.invoke(new BandTask(width, rowStride, pixelStride, input, output, 1, height - 1));
+    }
+  }
+
+  /**
+   * Hands an image returned by {@link #detect} back for reuse. The buffer must not be used
+   * afterwards.
+   */
+  public void recycle(ByteBuffer output) {
+    outputPool.recycle(output);
+  }
+
+  private static void clearRow(ByteBuffer output, int offset, int width) {
+    for (int i = 0; i < width; i++) {
+      output.put(offset + i, (byte) 0);
+    }
+  }
+
+  /** Filters a band of rows, splitting it in halves until it is small enough. */
+  @SuppressWarnings("serial") // Never serialized.
+  private static final class BandTask extends RecursiveAction {
+    private final int width;
+    private final int rowStride;
+    private final int pixelStride;
+    private final ByteBuffer input;
+    private final ByteBuffer output;
+    private final int startRow;
+    private final int endRow;
+
+    BandTask(
+        int width,
+        int rowStride,
+        int pixelStride,
+        ByteBuffer input,
+        ByteBuffer output,
+        int startRow,
+        int endRow) {
+      this.width = width;
+      this.rowStride = rowStride;
+      this.pixelStride = pixelStride;
+      this.input = input;
+      this.output = output;
+      this.startRow = startRow;
+      this.endRow = endRow;
+    }
+
+    @Override
+    protected void compute() {
+      if (endRow - startRow <= ImageRows.MIN_ROWS_PER_TASK) {
+        detectRows(width, rowStride, pixelStride, input, output, startRow, endRow);
+        return;
+      }
+      int middleRow = (startRow + endRow) >>> 1;
+      invokeAll(
+          new BandTask(width, rowStride, pixelStride, input, output, startRow, middleRow),
+          new BandTask(width, rowStride, pixelStride, input, output, middleRow, endRow));
+    }
+  }
+
+  /** Line buffers of a thread: three packed input rows, one output row, and their reader. */
+  private static final class LineBuffers {
+    final ImageRows.Reader reader = new ImageRows.Reader();
+    byte[] above = new byte[0];
+    byte[] center = new byte[0];
+    byte[] below = new byte[0];
+    byte[] result = new byte[0];
+
+    void ensure(int width) {
+      if (above.length < width) {
+        above = new byte[width];
+        center = new byte[width];
+        below = new byte[width];
+        result = new byte[width];
+      }
+    }
+  }
+
+  private static final ThreadLocal<LineBuffers> lineBuffers = ImageRows.perThread(LineBuffers::new);
+
+  /**
+   * Filters rows [startRow, endRow), reading rows startRow - 1 to endRow of the input.
+   *
+   * <p>Input rows are read into a rolling set of three line buffers, one bulk read per row, packed
+   * to one byte per pixel. Each output row is assembled in a line buffer and written with one bulk
+   * write. The working set stays in cache and the inner loop indexes dense arrays rather than
+   * buffers, whatever the strides of the input.
+   */
+  private static void detectRows(
+      int width,
+      int rowStride,
+      int pixelStride,
+      ByteBuffer input,
+      ByteBuffer output,
+      int startRow,
+      int endRow) {
+    if (startRow >= endRow) {
+      return;
+    }
+    if (width < 3) {
+      for (int j = startRow; j < endRow; j++) {
+        clearRow(output, j * width, width);
+      }
+      return;
+    }
+
+    ByteBuffer source = input.duplicate();
+    ByteBuffer destination = output.duplicate();
+    LineBuffers buffers = lineBuffers.get();
+    buffers.ensure(width);
+    ImageRows.Reader reader = buffers.reader;
+    byte[] above = buffers.above;
+    byte[] center = buffers.center;
+    byte[] below = buffers.below;
+    byte[] result = buffers.result;
+    reader.read(source, (startRow - 1) * rowStride, width, pixelStride, above, 0);
+    reader.read(source, startRow * rowStride, width, pixelStride, center, 0);
+
+    for (int j = startRow; j < endRow; j++) {
+      reader.read(source, (j + 1) * rowStride, width, pixelStride, below, 0);
+
+      // The 3x3 neighbourhood slides right one column per pixel, so only its right column is read
+      // for each pixel.
+      int a00 = above[0];
+      int a10 = center[0];
+      int a20 = below[0];
+      int a01 = above[1];
+      int a11 = center[1];
+      int a21 = below[1];
+
       for (int i = 1; i < width - 1; i++) {
-        // Offset of the pixel at [i, j] of the input image.
-        int offset = (j * stride) + i;
-
-        // Neighbour pixels around the pixel at [i, j].
-        int a00 = inputPixels[offset - stride - 1];
-        int a01 = inputPixels[offset - stride];
-        int a02 = inputPixels[offset - stride + 1];
-        int a10 = inputPixels[offset - 1];
-        int a12 = inputPixels[offset + 1];
-        int a20 = inputPixels[offset + stride - 1];
-        int a21 = inputPixels[offset + stride];
-        int a22 = inputPixels[offset + stride + 1];
+        int a02 = above[i + 1];
+        int a12 = center[i + 1];
+        int a22 = below[i + 1];
 
         // Sobel X filter:
         //   -1, 0, 1,
@@ -81,13 +253,28 @@ public class EdgeDetector {
         int ySum = a00 + (2 * a01) + a02 - a20 - (2 * a21) - a22;
 
         if ((xSum * xSum) + (ySum * ySum) > SOBEL_EDGE_THRESHOLD) {
-          outputPixels[(j * width) + i] = (byte) 0xFF;
+          result[i] = (byte) 0xFF;
         } else {
-          outputPixels[(j * width) + i] = (byte) 0x1F;
+          result[i] = (byte) 0x1F;
         }
+
+        a00 = a01;
+        a10 = a11;
+        a20 = a21;
+        a01 = a02;
+        a11 = a12;
+        a21 = a22;
       }
-    }
+      result[0] = 0;
+      result[width - 1] = 0;
+      destination.position(j * width);
+      destination.put(result, 0, width);
 
-    return ByteBuffer.wrap(outputPixels);
+      // Rotate the line buffers down by one row.
+      byte[] recycled = above;
+      above = center;
+      center = below;
+      below = recycled;
+    }
   }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records camera frames into a file, to be replayed with {@link ReplayFrameSource}.
+ *
+ * <p>Frames are appended into chunks of the file that are memory-mapped, so recording a frame
+ * copies its planes straight into the page cache, without system calls or intermediate buffers.
+ * A frame never spans two chunks; a frame larger than the chunk size gets a chunk of its own.
+ * Planes are stored verbatim with their strides, so the replayed planes have the same layout as
+ * the recorded ones.
+ *
+ * <p>The file starts with a header, followed by the chunks. Each frame is a header holding its
+ * timestamp, size, intrinsics and the strides and lengths of its planes, followed by the planes.
+ * {@link #close} appends an index of the chunks and of the frames, and a trailer pointing to the
+ * index. All values are little-endian.
+ *
+ * <p>This class has no Android dependencies. It is not thread-safe.
+ */
+public class FrameRecorder implements Closeable {
+  /** The default size of the memory-mapped chunks of the file. */
+  public static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+
+  // File layout, shared with ReplayFrameSource.
+  static final int FILE_MAGIC = 0x46435241; // "ARCF"
+  static final int VERSION = 1;
+  static final int FILE_HEADER_SIZE = 16;
+  static final int FRAME_MAGIC = 0x4D415246; // "FRAM"
+  static final int FRAME_HEADER_SIZE = 4 + 8 + 4 + 4 + 4 * 4 + RecordedFrame.PLANE_COUNT * 3 * 4;
+  static final int TRAILER_MAGIC = 0x58444E49; // "INDX"
+  static final int TRAILER_SIZE = 8 + 4 + 4;
+  static final int CHUNK_ENTRY_SIZE = 8 + 4;
+  static final int FRAME_ENTRY_SIZE = 4 + 4 + 8;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int chunkSize;
+
+  private final List<MappedByteBuffer> chunks = new ArrayList<>();
+  private int chunkCount;
+  private long[] chunkOffsets = new long[16];
+  private int[] chunkLengths = new int[16];
+  private MappedByteBuffer chunk;
+  // The end of the last chunk in the file.
+  private long chunksEnd = FILE_HEADER_SIZE;
+
+  private int frameCount;
+  private int[] frameChunks = new int[1024];
+  private int[] frameOffsets = new int[1024];
+  private long[] frameTimestamps = new long[1024];
+
+  /** Creates a recorder that writes to {@code file}, replacing its contents. */
+  public FrameRecorder(File file) throws IOException {
+    this(file, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * Creates a recorder that writes to {@code file}, replacing its contents.
+   *
+   * @param chunkSize the size of the memory-mapped chunks of the file. Larger chunks map the file
+   *     less often, and waste more space at the end of each chunk when frames do not fill it.
+   */
+  public FrameRecorder(File file, int chunkSize) throws IOException {
+    this.chunkSize = chunkSize;
+    this.file = new RandomAccessFile(file, "rw");
+    channel = this.file.getChannel();
+    channel.truncate(0);
+    ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(FILE_MAGIC).putInt(VERSION).putInt(chunkSize).putInt(0);
+    header.flip();
+    channel.write(header, 0);
+  }
+
+  /**
+   * Appends a frame. The bytes of each plane from index 0 to its limit are recorded; the positions
+   * and limits of the planes are not changed.
+   */
+  public void record(RecordedFrame frame) throws IOException {
+    int size = FRAME_HEADER_SIZE;
+    for (int plane = 0; plane < RecordedFrame.PLANE_COUNT; plane++) {
+      size += frame.planes[plane].limit();
+    }
+    if (chunk == null || chunk.remaining() < size) {
+      mapChunk(Math.max(chunkSize, size));
+    }
+
+    if (frameCount == frameOffsets.length) {
+      frameChunks = Arrays.copyOf(frameChunks, 2 * frameCount);
+      frameOffsets = Arrays.copyOf(frameOffsets, 2 * frameCount);
+      frameTimestamps = Arrays.copyOf(frameTimestamps, 2 * frameCount);
+    }
+    frameChunks[frameCount] = chunkCount - 1;
+    frameOffsets[frameCount] = chunk.position();
+    frameTimestamps[frameCount] = frame.timestampNanos;
+    frameCount++;
+
+    chunk
+        .putInt(FRAME_MAGIC)
+        .putLong(frame.timestampNanos)
+        .putInt(frame.width)
+        .putInt(frame.height)
+        .putFloat(frame.focalLength[0])
+        .putFloat(frame.focalLength[1])
+        .putFloat(frame.principalPoint[0])
+        .putFloat(frame.principalPoint[1]);
+    for (int plane = 0; plane < RecordedFrame.PLANE_COUNT; plane++) {
+      chunk
+          .putInt(frame.rowStrides[plane])
+          .putInt(frame.pixelStrides[plane])
+          .putInt(frame.planes[plane].limit());
+    }
+    for (int plane = 0; plane < RecordedFrame.PLANE_COUNT; plane++) {
+      // A duplicate leaves the position of the plane alone.
+      ByteBuffer source = frame.planes[plane].duplicate();
+      source.position(0);
+      chunk.put(source);
+    }
+  }
+
+  /** Returns the number of frames recorded so far. */
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  /** Writes the index, and closes the file. */
+  @Override
+  public void close() throws IOException {
+    try {
+      for (MappedByteBuffer mapped : chunks) {
+        mapped.force();
+      }
+      // The index follows the used part of the last chunk; the rest of it is cut off.
+      long indexOffset = FILE_HEADER_SIZE;
+      if (chunk != null) {
+        chunkLengths[chunkCount - 1] = chunk.position();
+        indexOffset = chunkOffsets[chunkCount - 1] + chunk.position();
+      }
+      chunk = null;
+      chunks.clear();
+
+      ByteBuffer index =
+          ByteBuffer.allocate(
+                  4 + chunkCount * CHUNK_ENTRY_SIZE + 4 + frameCount * FRAME_ENTRY_SIZE
+                      + TRAILER_SIZE)
+              .order(ByteOrder.LITTLE_ENDIAN);
+      index.putInt(chunkCount);
+      for (int i = 0; i < chunkCount; i++) {
+        index.putLong(chunkOffsets[i]).putInt(chunkLengths[i]);
+      }
+      index.putInt(frameCount);
+      for (int i = 0; i < frameCount; i++) {
+        index.putInt(frameChunks[i]).putInt(frameOffsets[i]).putLong(frameTimestamps[i]);
+      }
+      index.putLong(indexOffset).putInt(TRAILER_MAGIC).putInt(0);
+      index.flip();
+      long position = indexOffset;
+      while (index.hasRemaining()) {
+        position += channel.write(index, position);
+      }
+      channel.truncate(position);
+    } finally {
+      file.close();
+    }
+  }
+
+  private void mapChunk(int length) throws IOException {
+    if (chunkCount == chunkOffsets.length) {
+      chunkOffsets = Arrays.copyOf(chunkOffsets, 2 * chunkCount);
+      chunkLengths = Arrays.copyOf(chunkLengths, 2 * chunkCount);
+    }
+    // Mapping beyond the end of the file extends it.
+    chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunksEnd, length);
+    chunk.order(ByteOrder.LITTLE_ENDIAN);
+    chunks.add(chunk);
+    chunkOffsets[chunkCount] = chunksEnd;
+    chunkLengths[chunkCount] = length;
+    chunkCount++;
+    chunksEnd += length;
+  }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/** A sequence of camera frames, such as a recording replayed by {@link ReplayFrameSource}. */
+public interface FrameSource extends Closeable {
+  /**
+   * Fills {@code frame} with the next frame. Its plane buffers stay valid until the source is
+   * closed.
+   *
+   * @return false if there are no more frames.
+   */
+  boolean nextFrame(RecordedFrame frame) throws IOException;
+}
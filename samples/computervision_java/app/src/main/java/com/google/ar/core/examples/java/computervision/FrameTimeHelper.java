@@ -18,65 +18,84 @@ package com.google.ar.core.examples.java.computervision;
 import androidx.annotation.NonNull;
 import androidx.lifecycle.DefaultLifecycleObserver;
 import androidx.lifecycle.LifecycleOwner;
+import com.google.ar.core.examples.java.common.helpers.LatencyRecorder;
 
-/** Helper to measure frame-to-frame timing and frame rate. */
+/**
+ * Helper to measure frame-to-frame timing and frame rate.
+ *
+ * <p>Frame times are recorded into a {@link LatencyRecorder}. The reported percentiles cover the
+ * frames of the last completed one-second interval, so that they follow changes in load while
+ * still showing hitches that an average would hide.
+ */
 public class FrameTimeHelper implements DefaultLifecycleObserver {
 
   // Number of milliseconds in one second.
   private static final float MILLISECONDS_PER_SECOND = 1000f;
 
-  // Rate by which smoothed frame rate should approach momentary frame rate.
-  private static final float SMOOTHING_FACTOR = .03f;
+  // Length of the interval the reported percentiles cover.
+  private static final long REPORT_INTERVAL_NANOS = 1_000_000_000L;
+
+  private final LatencyRecorder recorder = new LatencyRecorder();
 
-  // System time of last frame, or zero if no time has been recorded.
-  private long previousFrameTime;
+  // Frame times of the last completed interval.
+  private final LatencyRecorder.Histogram lastInterval = new LatencyRecorder.Histogram();
 
-  // Smoothed frame time, or zero if frame time has not yet been recorded.
-  private float smoothedFrameTime;
+  // Monotonic time of last frame, or -1 if no time has been recorded.
+  private long previousFrameTimeNanos = -1;
+
+  // Monotonic time at which the current interval started.
+  private long intervalStartTimeNanos;
 
   @Override
   public void onResume(@NonNull LifecycleOwner owner) {
     // Reset timing data during initialization and after app pause.
-    previousFrameTime = 0;
-    smoothedFrameTime = 0f;
+    previousFrameTimeNanos = -1;
+    recorder.reset();
+    lastInterval.reset();
   }
 
-  /** Capture current frame timestamp and calculate smoothed frame-to-frame time. */
+  /** Capture current frame timestamp and record the frame-to-frame time. */
   public void nextFrame() {
-    long now = System.currentTimeMillis();
-
-    // Is nextFrame() being called for the first time?
-    if (previousFrameTime == 0) {
-      previousFrameTime = now;
+    long now = System.nanoTime();
 
-      // Unable to calculate frame time based on single timestamp.
-      smoothedFrameTime = 0f;
+    // Is nextFrame() being called for the first time? Unable to calculate frame time based on
+    // single timestamp.
+    if (previousFrameTimeNanos < 0) {
+      previousFrameTimeNanos = now;
+      intervalStartTimeNanos = now;
       return;
     }
 
-    // Determine momentary frame-to-frame time.
-    long frameTime = now - previousFrameTime;
+    recorder.record(now - previousFrameTimeNanos);
+    previousFrameTimeNanos = now;
 
-    // Use current frame time as previous frame time during next invocation.
-    previousFrameTime = now;
-
-    // Is nextFrame() being called for the second time, in which case we have only one measurement.
-    if (smoothedFrameTime == 0f) {
-      smoothedFrameTime = frameTime;
-      return;
+    if (now - intervalStartTimeNanos >= REPORT_INTERVAL_NANOS) {
+      recorder.takeIntervalSnapshot(lastInterval);
+      intervalStartTimeNanos = now;
     }
+  }
+
+  /**
+   * Determine a percentile of the frame-to-frame time over the last interval, in milliseconds, for
+   * example 99 for the p99 frame time. Returns zero if frame time cannot be determined.
+   */
+  public float getFrameTime(double percentile) {
+    return (float) lastInterval.getPercentileMillis(percentile);
+  }
 
-    // In all subsequent calls to nextFrame(), calculated a smoothed frame rate.
-    smoothedFrameTime += SMOOTHING_FACTOR * (frameTime - smoothedFrameTime);
+  /** Determine the longest frame-to-frame time over the last interval, in milliseconds. */
+  public float getMaxFrameTime() {
+    return getFrameTime(100);
   }
 
-  /** Determine smoothed frame-to-frame time. Returns zero if frame time cannot be determined. */
-  public float getSmoothedFrameTime() {
-    return smoothedFrameTime;
+  /** Determine the median frame rate. Returns zero if frame rate cannot be determined. */
+  public float getFrameRate() {
+    float medianFrameTime = getFrameTime(50);
+    return medianFrameTime == 0f ? 0f : MILLISECONDS_PER_SECOND / medianFrameTime;
   }
 
-  /** Determine smoothed frame rate. Returns zero if frame rate cannot be determined. */
-  public float getSmoothedFrameRate() {
-    return smoothedFrameTime == 0f ? 0f : MILLISECONDS_PER_SECOND / smoothedFrameTime;
+  /** Returns the recorder holding all frame times since the last resume, e.g. to dump them. */
+  public LatencyRecorder getRecorder() {
+    return recorder;
   }
 }
@@ -0,0 +1,563 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A chain of image-processing stages run over a single-channel image in one fused pass.
+ *
+ * <p>The pipeline always starts by extracting grayscale from the input; further stages are
+ * appended with the fluent methods, for example:
+ *
+ * <pre>
+ *   ImagePipeline pipeline = new ImagePipeline().gaussianBlur().sobel().nonMaximumSuppression()
+ *       .threshold(200);
+ * </pre>
+ *
+ * <p>Rather than making one full-frame pass per stage, the pipeline produces its output one row at
+ * a time, and each stage computes rows of its own output on demand from the few rows of its input
+ * that it needs. Every stage keeps only a small ring of its most recent rows, so intermediate rows
+ * are still in cache when the next stage reads them, and no full-frame intermediate image exists.
+ *
+ * <p>The time spent in each stage during the last call to {@link #process} is reported by {@link
+ * #getStageNanos}. This class has no Android dependencies, so it also runs on a desktop JVM, for
+ * example against recorded frames. It is not thread-safe.
+ */
+public class ImagePipeline {
+  /** A step of the pipeline, computing one output row at a time from rows of its input. */
+  private abstract static class Stage {
+    final String name;
+
+    Stage(String name) {
+      this.name = name;
+    }
+
+    int outputWidth(int inputWidth) {
+      return inputWidth;
+    }
+
+    int outputHeight(int inputHeight) {
+      return inputHeight;
+    }
+
+    /** Returns the number of input rows consumed per output row. */
+    int scale() {
+      return 1;
+    }
+
+    /** Returns the number of input rows needed above and below the consumed ones. */
+    int radius() {
+      return 0;
+    }
+
+    /** Returns whether the stage fills the gradient direction of each pixel. */
+    boolean producesDirections() {
+      return false;
+    }
+
+    /** Called before each image, with the dimensions of the stage's input. */
+    void prepare(int inputWidth, int inputHeight) {}
+
+    /**
+     * Computes output row {@code y}. {@code outDirections} is only non-null if {@link
+     * #producesDirections} returns true.
+     */
+    abstract void computeRow(int y, Level input, int[] out, byte[] outDirections);
+  }
+
+  /**
+   * The output of a stage: a ring of its most recent rows, computed on demand. Row requests out of
+   * the image are clamped to its edges.
+   */
+  private static final class Level {
+    final Stage stage;
+    final Level input;
+    int width;
+    int height;
+    int[][] rows = new int[0][];
+    byte[][] directions = new byte[0][];
+    int computedRows;
+    long nanos;
+
+    Level(Stage stage, Level input) {
+      this.stage = stage;
+      this.input = input;
+    }
+
+    void prepare(int width, int height, int ringSize) {
+      this.width = width;
+      this.height = height;
+      if (rows.length != ringSize || rows[0].length != width) {
+        rows = new int[ringSize][width];
+        if (stage.producesDirections()) {
+          directions = new byte[ringSize][width];
+        }
+      }
+      computedRows = 0;
+      nanos = 0;
+    }
+
+    int[] row(int y) {
+      y = clamp(y, height);
+      ensure(y);
+      return rows[y % rows.length];
+    }
+
+    byte[] directions(int y) {
+      y = clamp(y, height);
+      ensure(y);
+      return directions[y % directions.length];
+    }
+
+    void ensure(int y) {
+      while (computedRows <= y) {
+        int next = computedRows;
+        if (input != null) {
+          // Compute the input rows this row needs first, so that they are not timed as this stage.
+          int lastInputRow = next * stage.scale() + stage.scale() - 1 + stage.radius();
+          input.ensure(Math.min(lastInputRow, input.height - 1));
+        }
+        int slot = next % rows.length;
+        long start = System.nanoTime();
+        stage.computeRow(
+            next, input, rows[slot], stage.producesDirections() ? directions[slot] : null);
+        nanos += System.nanoTime() - start;
+        computedRows = next + 1;
+      }
+    }
+  }
+
+  private final GrayscaleStage grayscale = new GrayscaleStage();
+  private final List<Stage> stages = new ArrayList<>();
+  private final List<Level> levels = new ArrayList<>();
+  private byte[] outputRow = new byte[0];
+
+  /** Creates a pipeline that only extracts grayscale. */
+  public ImagePipeline() {
+    append(grayscale);
+  }
+
+  /** Appends a 5x5 Gaussian blur, with the binomial weights 1, 4, 6, 4, 1 in each direction. */
+  public ImagePipeline gaussianBlur() {
+    return append(new GaussianBlurStage());
+  }
+
+  /**
+   * Appends a Sobel filter, producing the L1 gradient magnitude |gx| + |gy| of each pixel, between
+   * 0 and 2040.
+   */
+  public ImagePipeline sobel() {
+    return append(new SobelStage());
+  }
+
+  /**
+   * Appends non-maximum suppression, which keeps the gradient magnitude of pixels that are a
+   * maximum along their gradient direction and zeroes the others. Must directly follow {@link
+   * #sobel}.
+   */
+  public ImagePipeline nonMaximumSuppression() {
+    if (!stages.get(stages.size() - 1).producesDirections()) {
+      throw new IllegalStateException("Non-maximum suppression must directly follow Sobel");
+    }
+    return append(new NonMaximumSuppressionStage());
+  }
+
+  /** Appends a threshold, mapping values above {@code threshold} to 255 and the others to 0. */
+  public ImagePipeline threshold(int threshold) {
+    return append(new ThresholdStage(threshold));
+  }
+
+  /** Appends a 2x2 box downsample, halving the width and height (rounded down, at least 1). */
+  public ImagePipeline downsample() {
+    return append(new DownsampleStage());
+  }
+
+  /** Returns the width of the output for an input of width {@code width}. */
+  public int getOutputWidth(int width) {
+    for (Stage stage : stages) {
+      width = stage.outputWidth(width);
+    }
+    return width;
+  }
+
+  /** Returns the height of the output for an input of height {@code height}. */
+  public int getOutputHeight(int height) {
+    for (Stage stage : stages) {
+      height = stage.outputHeight(height);
+    }
+    return height;
+  }
+
+  /**
+   * Runs the pipeline over an image.
+   *
+   * @param width image width.
+   * @param height image height.
+   * @param rowStride number of bytes between the starts of consecutive rows.
+   * @param pixelStride number of bytes between consecutive pixels of a row. With a pixel stride of
+   *     1 or 2, the first byte of each pixel is its gray level, as in the Y plane of a YUV_420_888
+   *     image. With 3 or more, the first three bytes are taken as RGB and converted to luma.
+   * @param input bytes of the image, read from index 0. Its position and limit are not changed.
+   * @param output buffer receiving {@link #getOutputWidth} * {@link #getOutputHeight} bytes from
+   *     index 0, which must be within its limit. Values are clamped to [0, 255]. Its position and
+   *     limit are not changed.
+   */
+  public void process(
+      int width, int height, int rowStride, int pixelStride, ByteBuffer input, ByteBuffer output) {
+    int outputWidth = getOutputWidth(width);
+    int outputHeight = getOutputHeight(height);
+    if (output.limit() < outputWidth * outputHeight) {
+      throw new IllegalArgumentException("Output buffer is smaller than the output image");
+    }
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+
+    grayscale.setInput(input, rowStride, pixelStride);
+    int levelWidth = width;
+    int levelHeight = height;
+    for (int i = 0; i < stages.size(); i++) {
+      Stage stage = stages.get(i);
+      stage.prepare(levelWidth, levelHeight);
+      levelWidth = stage.outputWidth(levelWidth);
+      levelHeight = stage.outputHeight(levelHeight);
+      // A ring only needs to hold the window of rows its consumer reads for one output row.
+      int ringSize = 1;
+      if (i + 1 < stages.size()) {
+        Stage consumer = stages.get(i + 1);
+        ringSize = consumer.scale() + 2 * consumer.radius();
+      }
+      levels.get(i).prepare(levelWidth, levelHeight, ringSize);
+    }
+
+    if (outputRow.length < outputWidth) {
+      outputRow = new byte[outputWidth];
+    }
+    ByteBuffer destination = output.duplicate();
+    Level last = levels.get(levels.size() - 1);
+    for (int y = 0; y < outputHeight; y++) {
+      int[] row = last.row(y);
+      for (int x = 0; x < outputWidth; x++) {
+        int value = row[x];
+        outputRow[x] = (byte) (value < 0 ? 0 : (value > 255 ? 255 : value));
+      }
+      destination.position(y * outputWidth);
+      destination.put(outputRow, 0, outputWidth);
+    }
+    grayscale.setInput(null, 0, 0);
+  }
+
+  /** Returns the number of stages, including the grayscale extraction. */
+  public int getStageCount() {
+    return stages.size();
+  }
+
+  /** Returns the name of stage {@code index}, for example "sobel". */
+  public String getStageName(int index) {
+    return stages.get(index).name;
+  }
+
+  /** Returns the time spent in stage {@code index} during the last call to {@link #process}. */
+  public long getStageNanos(int index) {
+    return levels.get(index).nanos;
+  }
+
+  private ImagePipeline append(Stage stage) {
+    Level input = levels.isEmpty() ? null : levels.get(levels.size() - 1);
+    stages.add(stage);
+    levels.add(new Level(stage, input));
+    return this;
+  }
+
+  private static int clamp(int index, int size) {
+    return index < 0 ? 0 : (index >= size ? size - 1 : index);
+  }
+
+  /** Reads rows of the input image and converts them to gray levels. */
+  private static final class GrayscaleStage extends Stage {
+    private ByteBuffer source;
+    private int rowStride;
+    private int pixelStride;
+    private int width;
+    private byte[] staging = new byte[0];
+
+    GrayscaleStage() {
+      super("grayscale");
+    }
+
+    void setInput(ByteBuffer input, int rowStride, int pixelStride) {
+      // A duplicate gives the pipeline its own position for bulk reads.
+      this.source = input == null ? null : input.duplicate();
+      this.rowStride = rowStride;
+      this.pixelStride = pixelStride;
+    }
+
+    @Override
+    void prepare(int inputWidth, int inputHeight) {
+      width = inputWidth;
+      if (staging.length < rowLength()) {
+        staging = new byte[rowLength()];
+      }
+    }
+
+    /**
+     * Returns the number of bytes read per row. Reading stops at the last pixel, since on certain
+     * devices the memory allocated for the frame is not an exact multiple of the row stride.
+     */
+    private int rowLength() {
+      return (width - 1) * pixelStride + (pixelStride >= 3 ? 3 : 1);
+    }
+
+    @Override
+    void computeRow(int y, Level input, int[] out, byte[] outDirections) {
+      source.position(y * rowStride);
+      source.get(staging, 0, rowLength());
+      if (pixelStride < 3) {
+        for (int x = 0; x < width; x++) {
+          out[x] = staging[x * pixelStride] & 0xFF;
+        }
+      } else {
+        for (int x = 0, offset = 0; x < width; x++, offset += pixelStride) {
+          int r = staging[offset] & 0xFF;
+          int g = staging[offset + 1] & 0xFF;
+          int b = staging[offset + 2] & 0xFF;
+          // BT.601 luma, in 8-bit fixed point.
+          out[x] = (77 * r + 150 * g + 29 * b) >> 8;
+        }
+      }
+    }
+  }
+
+  private static final class GaussianBlurStage extends Stage {
+    private int[] vertical = new int[0];
+
+    GaussianBlurStage() {
+      super("gaussianBlur");
+    }
+
+    @Override
+    int radius() {
+      return 2;
+    }
+
+    @Override
+    void prepare(int inputWidth, int inputHeight) {
+      if (vertical.length != inputWidth) {
+        vertical = new int[inputWidth];
+      }
+    }
+
+    @Override
+    void computeRow(int y, Level input, int[] out, byte[] outDirections) {
+      int[] r0 = input.row(y - 2);
+      int[] r1 = input.row(y - 1);
+      int[] r2 = input.row(y);
+      int[] r3 = input.row(y + 1);
+      int[] r4 = input.row(y + 2);
+      int width = input.width;
+      for (int x = 0; x < width; x++) {
+        vertical[x] = r0[x] + 4 * (r1[x] + r3[x]) + 6 * r2[x] + r4[x];
+      }
+      for (int x = 0; x < width; x++) {
+        int sum;
+        if (x >= 2 && x < width - 2) {
+          sum =
+              vertical[x - 2]
+                  + 4 * (vertical[x - 1] + vertical[x + 1])
+                  + 6 * vertical[x]
+                  + vertical[x + 2];
+        } else {
+          sum =
+              vertical[clamp(x - 2, width)]
+                  + 4 * (vertical[clamp(x - 1, width)] + vertical[clamp(x + 1, width)])
+                  + 6 * vertical[x]
+                  + vertical[clamp(x + 2, width)];
+        }
+        // The weights sum to 16 * 16.
+        out[x] = (sum + 128) >> 8;
+      }
+    }
+  }
+
+  /**
+   * Computes gradients. Directions are quantized to the neighbour pair the gradient points
+   * between: 0 for left and right, 1 for upper left and lower right, 2 for up and down, and 3 for
+   * upper right and lower left.
+   */
+  private static final class SobelStage extends Stage {
+    // tan(22.5 degrees), in fixed point with 10 fractional bits.
+    private static final int TAN_22_5 = 424;
+
+    // Per column: the vertical smoothing and the vertical difference of the three input rows, which
+    // the horizontal parts of both kernels combine.
+    private int[] smoothed = new int[0];
+    private int[] difference = new int[0];
+
+    SobelStage() {
+      super("sobel");
+    }
+
+    @Override
+    int radius() {
+      return 1;
+    }
+
+    @Override
+    boolean producesDirections() {
+      return true;
+    }
+
+    @Override
+    void prepare(int inputWidth, int inputHeight) {
+      if (smoothed.length != inputWidth) {
+        smoothed = new int[inputWidth];
+        difference = new int[inputWidth];
+      }
+    }
+
+    @Override
+    void computeRow(int y, Level input, int[] out, byte[] outDirections) {
+      int[] above = input.row(y - 1);
+      int[] center = input.row(y);
+      int[] below = input.row(y + 1);
+      int width = input.width;
+      for (int x = 0; x < width; x++) {
+        smoothed[x] = above[x] + 2 * center[x] + below[x];
+        difference[x] = below[x] - above[x];
+      }
+      for (int x = 0; x < width; x++) {
+        int left = x == 0 ? 0 : x - 1;
+        int right = x == width - 1 ? x : x + 1;
+        int gx = smoothed[right] - smoothed[left];
+        int gy = difference[left] + 2 * difference[x] + difference[right];
+        int absX = Math.abs(gx);
+        int absY = Math.abs(gy);
+        out[x] = absX + absY;
+
+        byte direction;
+        if ((absY << 10) <= TAN_22_5 * absX) {
+          direction = 0;
+        } else if ((absX << 10) <= TAN_22_5 * absY) {
+          direction = 2;
+        } else {
+          // Image rows grow downwards, so equal signs point towards the lower right.
+          direction = (gx ^ gy) >= 0 ? (byte) 1 : (byte) 3;
+        }
+        outDirections[x] = direction;
+      }
+    }
+  }
+
+  private static final class NonMaximumSuppressionStage extends Stage {
+    NonMaximumSuppressionStage() {
+      super("nonMaximumSuppression");
+    }
+
+    @Override
+    int radius() {
+      return 1;
+    }
+
+    @Override
+    void computeRow(int y, Level input, int[] out, byte[] outDirections) {
+      int[] above = input.row(y - 1);
+      int[] center = input.row(y);
+      int[] below = input.row(y + 1);
+      byte[] directions = input.directions(y);
+      int width = input.width;
+      for (int x = 0; x < width; x++) {
+        int left = clamp(x - 1, width);
+        int right = clamp(x + 1, width);
+        int first;
+        int second;
+        switch (directions[x]) {
+          case 0:
+            first = center[left];
+            second = center[right];
+            break;
+          case 1:
+            first = above[left];
+            second = below[right];
+            break;
+          case 2:
+            first = above[x];
+            second = below[x];
+            break;
+          default:
+            first = above[right];
+            second = below[left];
+            break;
+        }
+        int magnitude = center[x];
+        out[x] = magnitude >= first && magnitude >= second ? magnitude : 0;
+      }
+    }
+  }
+
+  private static final class ThresholdStage extends Stage {
+    private final int threshold;
+
+    ThresholdStage(int threshold) {
+      super("threshold");
+      this.threshold = threshold;
+    }
+
+    @Override
+    void computeRow(int y, Level input, int[] out, byte[] outDirections) {
+      int[] row = input.row(y);
+      for (int x = 0; x < input.width; x++) {
+        out[x] = row[x] > threshold ? 255 : 0;
+      }
+    }
+  }
+
+  private static final class DownsampleStage extends Stage {
+    DownsampleStage() {
+      super("downsample");
+    }
+
+    @Override
+    int outputWidth(int inputWidth) {
+      return Math.max(1, inputWidth / 2);
+    }
+
+    @Override
+    int outputHeight(int inputHeight) {
+      return Math.max(1, inputHeight / 2);
+    }
+
+    @Override
+    int scale() {
+      return 2;
+    }
+
+    @Override
+    void computeRow(int y, Level input, int[] out, byte[] outDirections) {
+      int[] top = input.row(2 * y);
+      int[] bottom = input.row(2 * y + 1);
+      int width = input.width;
+      int outputWidth = outputWidth(width);
+      for (int x = 0; x < outputWidth; x++) {
+        int left = 2 * x;
+        int right = clamp(left + 1, width);
+        out[x] = (top[left] + top[right] + bottom[left] + bottom[right] + 2) >> 2;
+      }
+    }
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Building blocks shared by the CPU image stages that split images into bands of rows processed in
+ * parallel on a {@link java.util.concurrent.ForkJoinPool}: the band size, per-thread line buffers,
+ * a reader packing rows of a plane into them, and a pool of output buffers.
+ *
+ * <p>Input planes are read in place with bulk transfers, which move the position of the buffer.
+ * Each band therefore reads through its own {@link ByteBuffer#duplicate}, so that bands need no
+ * synchronization and the caller's buffer keeps its position and limit.
+ */
+final class ImageRows {
+  /**
+   * Bands are split until they are at most this many rows. Smaller bands cost more in task
+   * overhead than they gain in load balancing.
+   */
+  static final int MIN_ROWS_PER_TASK = 32;
+
+  /**
+   * Returns a thread-local holding one instance of {@code factory} per thread, for working memory
+   * that is reused across the bands a pool thread runs.
+   */
+  static <T> ThreadLocal<T> perThread(Supplier<T> factory) {
+    return new ThreadLocal<T>() {
+      @Override
+      protected T initialValue() {
+        return factory.get();
+      }
+    };
+  }
+
+  /**
+   * Reads rows of a plane packed to one byte per pixel, whatever its pixel stride. Each thread
+   * should have its own reader, typically as part of its line buffers.
+   */
+  static final class Reader {
+    // Whole rows of planes with a pixel stride, read with one bulk transfer before packing.
+    private byte[] staging = new byte[0];
+
+    /**
+     * Reads the row at {@code offset} of {@code source} into {@code row} at {@code rowOffset}.
+     * Only the bytes up to the last pixel of the row are read, since on certain devices the memory
+     * allocated for a plane is not an exact multiple of its row stride.
+     */
+    void read(
+        ByteBuffer source, int offset, int width, int pixelStride, byte[] row, int rowOffset) {
+      source.position(offset);
+      if (pixelStride == 1) {
+        source.get(row, rowOffset, width);
+        return;
+      }
+      int rowLength = (width - 1) * pixelStride + 1;
+      if (staging.length < rowLength) {
+        staging = new byte[rowLength];
+      }
+      source.get(staging, 0, rowLength);
+      for (int i = 0; i < width; i++) {
+        row[rowOffset + i] = staging[i * pixelStride];
+      }
+    }
+  }
+
+  /**
+   * Direct output buffers handed back by callers, reused to avoid allocations on every call. This
+   * class is thread-safe.
+   */
+  static final class OutputPool {
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    /** Returns a direct buffer with {@code size} bytes between index 0 and its limit. */
+    ByteBuffer take(int size) {
+      ByteBuffer buffer = buffers.poll();
+      // Buffers too small for this resolution are dropped, so that the pool follows resolution
+      // changes.
+      if (buffer == null || buffer.capacity() < size) {
+        return ByteBuffer.allocateDirect(size);
+      }
+      buffer.clear();
+      buffer.limit(size);
+      return buffer;
+    }
+
+    /** Hands a buffer back for reuse. Null is ignored. */
+    void recycle(ByteBuffer buffer) {
+      if (buffer != null) {
+        buffers.offer(buffer);
+      }
+    }
+  }
+
+  private ImageRows() {}
+}
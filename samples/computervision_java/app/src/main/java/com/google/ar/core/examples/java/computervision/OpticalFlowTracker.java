@@ -0,0 +1,635 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Tracks a bounded set of points between consecutive grayscale images, such as the Y planes of
+ * CPU images, with pyramidal Lucas-Kanade optical flow.
+ *
+ * <p>Each call to {@link #track} builds an image pyramid for the new image, with Scharr gradients
+ * stored as 16-bit fixed-point values, and moves every point from the previous image to the new
+ * one, coarsest level first. Window samples are interpolated with integer bilinear weights and
+ * accumulated in integer arithmetic; only the 2x2 solve of each iteration is floating point. The
+ * pyramid of the new image is kept as the previous pyramid of the next call, so each image is
+ * downsampled and differentiated once, and pyramid memory is reused from frame to frame.
+ *
+ * <p>Pyramid levels are built in bands of rows, and points are tracked in chunks, in parallel on a
+ * {@link ForkJoinPool}. Points that leave the image, lose texture, or whose windows no longer
+ * match are dropped; each point keeps the id it was added with, so callers can follow it across
+ * frames. From {@link ComputerVisionActivity}, the Y plane of each CPU image can be passed to
+ * {@link #track}, and points refilled from {@link CornerDetector} as they are lost.
+ *
+ * <p>This class has no Android dependencies, so it also runs on a desktop JVM, see {@link
+ * CpuImageReplay}. It is not thread-safe.
+ */
+public class OpticalFlowTracker {
+  /** The default number of pyramid levels, including the full resolution image. */
+  public static final int DEFAULT_LEVEL_COUNT = 4;
+  /** The default half size of the tracking window; windows are 2 * radius + 1 pixels wide. */
+  public static final int DEFAULT_WINDOW_RADIUS = 7;
+  /** The default maximum number of tracked points. */
+  public static final int DEFAULT_MAX_POINTS = 256;
+
+  // Bilinear weights are fixed point with this many fractional bits.
+  private static final int WEIGHT_BITS = 14;
+  // Interpolated intensities keep this many fractional bits, matching the scale of Scharr
+  // gradients, which are 32 times the derivative.
+  private static final int INTENSITY_BITS = 5;
+  private static final float GRADIENT_SCALE = 32f;
+
+  private static final int MAX_ITERATIONS = 10;
+  // Iterations stop once a step is shorter than this, in pixels.
+  private static final float MIN_STEP = 0.01f;
+  // Windows whose structure tensor has a smaller eigenvalue than this, per pixel in squared levels
+  // per pixel, have too little texture to track.
+  private static final float MIN_EIGENVALUE = 0.01f;
+  // Points whose windows still differ by more than this, in mean levels per pixel, after
+  // converging have not found their match.
+  private static final float MAX_RESIDUAL = 8f;
+
+  // Chunks of points are split until they are at most this many points, each of which iterates over
+  // a whole window on every pyramid level.
+  private static final int MIN_POINTS_PER_TASK = 16;
+
+  /** An image pyramid, with the gradients of each level. */
+  private static final class Pyramid {
+    int levelCount;
+    final int[] widths;
+    final int[] heights;
+    final byte[][] pixels;
+    final short[][] gradientsX;
+    final short[][] gradientsY;
+
+    Pyramid(int maxLevelCount) {
+      widths = new int[maxLevelCount];
+      heights = new int[maxLevelCount];
+      pixels = new byte[maxLevelCount][];
+      gradientsX = new short[maxLevelCount][];
+      gradientsY = new short[maxLevelCount][];
+    }
+
+    void ensure(int width, int height, int levelCount) {
+      this.levelCount = levelCount;
+      for (int level = 0; level < levelCount; level++) {
+        widths[level] = width;
+        heights[level] = height;
+        int size = width * height;
+        if (pixels[level] == null || pixels[level].length < size) {
+          pixels[level] = new byte[size];
+          gradientsX[level] = new short[size];
+          gradientsY[level] = new short[size];
+        }
+        width = (width + 1) / 2;
+        height = (height + 1) / 2;
+      }
+    }
+  }
+
+  private final ForkJoinPool pool;
+  private final int windowRadius;
+  private final int maxPoints;
+
+  private Pyramid previous;
+  private Pyramid current;
+  private boolean hasPrevious;
+  // Packs the rows of each input image into level 0, reusing its staging row across frames.
+  private final ImageRows.Reader reader = new ImageRows.Reader();
+
+  private int pointCount;
+  private int nextId;
+  private final float[] xs;
+  private final float[] ys;
+  private final int[] ids;
+  private final boolean[] tracked;
+
+  private long lastPyramidNanos;
+  private long lastTrackingNanos;
+
+  /** Creates a tracker with default parameters that runs on the common fork-join pool. */
+  public OpticalFlowTracker() {
+    this(ForkJoinPool.commonPool(), DEFAULT_LEVEL_COUNT, DEFAULT_WINDOW_RADIUS, DEFAULT_MAX_POINTS);
+  }
+
+  /**
+   * Creates a tracker that runs on {@code pool}.
+   *
+   * @param levelCount the number of pyramid levels, at least 1. Each level allows about twice the
+   *     motion of the one below. Fewer levels are used for images too small to hold them.
+   * @param windowRadius the half size of the tracking window, at least 1.
+   * @param maxPoints the maximum number of tracked points.
+   */
+  public OpticalFlowTracker(ForkJoinPool pool, int levelCount, int windowRadius, int maxPoints) {
+    if (levelCount < 1 || windowRadius < 1 || maxPoints < 1) {
+      throw new IllegalArgumentException(
+          "levelCount, windowRadius and maxPoints must be at least 1");
+    }
+    this.pool = pool;
+    this.windowRadius = windowRadius;
+    this.maxPoints = maxPoints;
+    previous = new Pyramid(levelCount);
+    current = new Pyramid(levelCount);
+    xs = new float[maxPoints];
+    ys = new float[maxPoints];
+    ids = new int[maxPoints];
+    tracked = new boolean[maxPoints];
+  }
+
+  /**
+   * Adds a point to track from the image of the last call to {@link #track}.
+   *
+   * @return the id of the point, or -1 if the tracker already holds its maximum number of points.
+   */
+  public int addPoint(float x, float y) {
+    if (pointCount == maxPoints) {
+      return -1;
+    }
+    xs[pointCount] = x;
+    ys[pointCount] = y;
+    ids[pointCount] = nextId;
+    pointCount++;
+    return nextId++;
+  }
+
+  /**
+   * Adds corners of the image of the last call to {@link #track} as points to track, up to the
+   * maximum number of points. When there are more corners than room, corners are picked evenly
+   * across them, and so across the grid cells of the detector.
+   *
+   * @return the number of points added.
+   */
+  public int addPoints(CornerDetector.Corners corners) {
+    int room = maxPoints - pointCount;
+    int count = Math.min(room, corners.size());
+    for (int k = 0; k < count; k++) {
+      int index = (int) ((long) k * corners.size() / count);
+      addPoint(corners.getX(index), corners.getY(index));
+    }
+    return count;
+  }
+
+  /** Removes all points. */
+  public void clearPoints() {
+    pointCount = 0;
+  }
+
+  /** Returns the number of tracked points. */
+  public int getPointCount() {
+    return pointCount;
+  }
+
+  /** Returns the column of point {@code index} in the image of the last call to {@link #track}. */
+  public float getX(int index) {
+    return xs[index];
+  }
+
+  /** Returns the row of point {@code index} in the image of the last call to {@link #track}. */
+  public float getY(int index) {
+    return ys[index];
+  }
+
+  /** Returns the id that point {@code index} was given by {@link #addPoint}. */
+  public int getId(int index) {
+    return ids[index];
+  }
+
+  /** Returns the time the last call to {@link #track} spent building the pyramid. */
+  public long getLastPyramidNanos() {
+    return lastPyramidNanos;
+  }
+
+  /** Returns the time the last call to {@link #track} spent tracking points. */
+  public long getLastTrackingNanos() {
+    return lastTrackingNanos;
+  }
+
+  /** Forgets the previous image, for example after a pause, and removes all points. */
+  public void reset() {
+    hasPrevious = false;
+    pointCount = 0;
+  }
+
+  /**
+   * Tracks the points into a new grayscale image plane, such as the Y plane of a YUV_420_888
+   * image. Points that cannot be tracked are removed; the others are moved to their position in
+   * the new image. Without a previous image of the same size, points are kept where they are.
+   *
+   * <p>The input is read from index 0 in place. Only width * pixelStride bytes of the last row are
+   * read, since on certain devices the memory allocated for the frame is not an exact multiple of
+   * the row stride.
+   *
+   * @return the number of points still tracked.
+   */
+  public int track(int width, int height, int rowStride, int pixelStride, ByteBuffer input) {
+    long startNanos = System.nanoTime();
+    buildPyramid(width, height, rowStride, pixelStride, input);
+    long pyramidNanos = System.nanoTime();
+    lastPyramidNanos = pyramidNanos - startNanos;
+
+    boolean sameSize =
+        hasPrevious && previous.widths[0] == width && previous.heights[0] == height;
+    if (sameSize && pointCount > 0) {
+      if (pointCount <= MIN_POINTS_PER_TASK) {
+        trackPoints(0, pointCount);
+      } else {
+        pool.invoke(new PointTask(0, pointCount));
+      }
+      // Drop lost points, keeping the order of the others.
+      int kept = 0;
+      for (int index = 0; index < pointCount; index++) {
+        if (tracked[index]) {
+          xs[kept] = xs[index];
+          ys[kept] = ys[index];
+          ids[kept] = ids[index];
+          kept++;
+        }
+      }
+      pointCount = kept;
+    }
+    lastTrackingNanos = System.nanoTime() - pyramidNanos;
+
+    Pyramid recycled = previous;
+    previous = current;
+    current = recycled;
+    hasPrevious = true;
+    return pointCount;
+  }
+
+  private void buildPyramid(
+      int width, int height, int rowStride, int pixelStride, ByteBuffer input) {
+    // Coarse levels must still hold a window.
+    int levelCount = 1;
+    while (levelCount < previous.pixels.length
+        && Math.min(width, height) >> levelCount > 2 * windowRadius + 2) {
+      levelCount++;
+    }
+    current.ensure(width, height, levelCount);
+
+    readImage(width, height, rowStride, pixelStride, input, current.pixels[0]);
+    for (int level = 0; level < levelCount; level++) {
+      int rows = current.heights[level];
+      if (level > 0) {
+        invokeRows(new LevelTask(current, level, /* gradients= */ false, 0, rows));
+      }
+      invokeRows(new LevelTask(current, level, /* gradients= */ true, 0, rows));
+    }
+  }
+
+  private void invokeRows(LevelTask task) {
+    if (task.endRow - task.startRow <= ImageRows.MIN_ROWS_PER_TASK) {
+      task.compute();
+    } else {
+      pool.invoke(task);
+    }
+  }
+
+  private void readImage(
+      int width, int height, int rowStride, int pixelStride, ByteBuffer input, byte[] output) {
+    ByteBuffer source = input.duplicate();
+    for (int j = 0; j < height; j++) {
+      reader.read(source, j * rowStride, width, pixelStride, output, j * width);
+    }
+  }
+
+  /**
+   * Computes a band of rows of a pyramid level: either its pixels, by averaging 2x2 blocks of the
+   * level below, or its Scharr gradients, splitting the band in halves until it is small enough.
+   */
+  @SuppressWarnings("serial") // Never serialized.
+  private static final class LevelTask extends RecursiveAction {
+    private final Pyramid pyramid;
+    private final int level;
+    private final boolean gradients;
+    private final int startRow;
+    private final int endRow;
+
+    LevelTask(Pyramid pyramid, int level, boolean gradients, int startRow, int endRow) {
+      this.pyramid = pyramid;
+      this.level = level;
+      this.gradients = gradients;
+      this.startRow = startRow;
+      this.endRow = endRow;
+    }
+
+    @Override
+    protected void compute() {
+      if (endRow - startRow <= ImageRows.MIN_ROWS_PER_TASK) {
+        if (gradients) {
+          computeGradients(pyramid, level, startRow, endRow);
+        } else {
+          downsample(pyramid, level, startRow, endRow);
+        }
+        return;
+      }
+      int middleRow = (startRow + endRow) >>> 1;
+      invokeAll(
+          new LevelTask(pyramid, level, gradients, startRow, middleRow),
+          new LevelTask(pyramid, level, gradients, middleRow, endRow));
+    }
+  }
+
+  /** Computes rows [startRow, endRow) of {@code level} from the level below. */
+  private static void downsample(Pyramid pyramid, int level, int startRow, int endRow) {
+    byte[] source = pyramid.pixels[level - 1];
+    int sourceWidth = pyramid.widths[level - 1];
+    int sourceHeight = pyramid.heights[level - 1];
+    byte[] output = pyramid.pixels[level];
+    int width = pyramid.widths[level];
+    for (int j = startRow; j < endRow; j++) {
+      // Odd sizes repeat the last row and column.
+      int row0 = 2 * j * sourceWidth;
+      int row1 = Math.min(2 * j + 1, sourceHeight - 1) * sourceWidth;
+      for (int i = 0; i < width; i++) {
+        int column0 = 2 * i;
+        int column1 = Math.min(2 * i + 1, sourceWidth - 1);
+        int sum =
+            (source[row0 + column0] & 0xFF)
+                + (source[row0 + column1] & 0xFF)
+                + (source[row1 + column0] & 0xFF)
+                + (source[row1 + column1] & 0xFF);
+        output[j * width + i] = (byte) ((sum + 2) >> 2);
+      }
+    }
+  }
+
+  /**
+   * Computes the Scharr gradients of rows [startRow, endRow) of {@code level}, 32 times the
+   * derivative. The outermost pixels get zero gradients.
+   */
+  private static void computeGradients(Pyramid pyramid, int level, int startRow, int endRow) {
+    byte[] pixels = pyramid.pixels[level];
+    short[] gradientsX = pyramid.gradientsX[level];
+    short[] gradientsY = pyramid.gradientsY[level];
+    int width = pyramid.widths[level];
+    int height = pyramid.heights[level];
+    for (int j = startRow; j < endRow; j++) {
+      int row = j * width;
+      if (j == 0 || j == height - 1 || width < 3) {
+        for (int i = 0; i < width; i++) {
+          gradientsX[row + i] = 0;
+          gradientsY[row + i] = 0;
+        }
+        continue;
+      }
+      gradientsX[row] = 0;
+      gradientsY[row] = 0;
+      gradientsX[row + width - 1] = 0;
+      gradientsY[row + width - 1] = 0;
+      for (int i = 1; i < width - 1; i++) {
+        int p = row + i;
+        int a00 = pixels[p - width - 1] & 0xFF;
+        int a01 = pixels[p - width] & 0xFF;
+        int a02 = pixels[p - width + 1] & 0xFF;
+        int a10 = pixels[p - 1] & 0xFF;
+        int a12 = pixels[p + 1] & 0xFF;
+        int a20 = pixels[p + width - 1] & 0xFF;
+        int a21 = pixels[p + width] & 0xFF;
+        int a22 = pixels[p + width + 1] & 0xFF;
+        // Scharr filters:
+        //   -3, 0, 3,       -3, -10, -3,
+        //  -10, 0, 10,       0,   0,  0,
+        //   -3, 0, 3         3,  10,  3
+        gradientsX[p] = (short) (3 * (a02 + a22 - a00 - a20) + 10 * (a12 - a10));
+        gradientsY[p] = (short) (3 * (a20 + a22 - a00 - a02) + 10 * (a21 - a01));
+      }
+    }
+  }
+
+  /** Tracks a chunk of points, splitting it in halves until it is small enough. */
+  @SuppressWarnings("serial") // Never serialized.
+  private final class PointTask extends RecursiveAction {
+    private final int start;
+    private final int end;
+
+    PointTask(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    protected void compute() {
+      if (end - start <= MIN_POINTS_PER_TASK) {
+        trackPoints(start, end);
+        return;
+      }
+      int middle = (start + end) >>> 1;
+      invokeAll(new PointTask(start, middle), new PointTask(middle, end));
+    }
+  }
+
+  /**
+   * Working memory of a thread: the window samples of the previous image, intensities and
+   * gradients, the bilinear weights of the previous and current image, and the point being tracked.
+   */
+  private static final class Window {
+    // The flow of the point, in pixels of the level being refined.
+    float flowX;
+    float flowY;
+    // The mean absolute difference between the windows in the two images, in levels, as of the
+    // last iteration.
+    float residual;
+    final int[] weights = new int[4];
+    final int[] nextWeights = new int[4];
+    int[] intensities = new int[0];
+    int[] gradientsX = new int[0];
+    int[] gradientsY = new int[0];
+
+    void ensure(int size) {
+      if (intensities.length < size) {
+        intensities = new int[size];
+        gradientsX = new int[size];
+        gradientsY = new int[size];
+      }
+    }
+  }
+
+  private static final ThreadLocal<Window> windows = ImageRows.perThread(Window::new);
+
+  /** Tracks points [start, end), setting {@link #tracked} and moving the tracked ones. */
+  private void trackPoints(int start, int end) {
+    int windowSize = 2 * windowRadius + 1;
+    Window window = windows.get();
+    window.ensure(windowSize * windowSize);
+    for (int index = start; index < end; index++) {
+      tracked[index] = trackPoint(index, window);
+    }
+  }
+
+  /**
+   * Tracks one point from the coarsest level down, refining the flow found at each level on the
+   * next finer one. Coarse levels only guide the finer ones, so a point is not lost because its
+   * window leaves a coarse level or lacks texture there, but only if it cannot be tracked at full
+   * resolution, or does not match there.
+   */
+  private boolean trackPoint(int index, Window window) {
+    window.flowX = 0f;
+    window.flowY = 0f;
+    for (int level = previous.levelCount - 1; level > 0; level--) {
+      refineLevel(index, level, window);
+      window.flowX *= 2f;
+      window.flowY *= 2f;
+    }
+    if (!refineLevel(index, 0, window) || window.residual > MAX_RESIDUAL) {
+      return false;
+    }
+    xs[index] += window.flowX;
+    ys[index] += window.flowY;
+    return true;
+  }
+
+  /**
+   * Refines the flow of a point at one level, starting from the flow of the window, in pixels of
+   * that level.
+   *
+   * @return false if the window leaves the level or has too little texture, leaving the flow as
+   *     far as it got.
+   */
+  private boolean refineLevel(int index, int level, Window window) {
+    int radius = windowRadius;
+    int windowSize = 2 * radius + 1;
+    int sampleCount = windowSize * windowSize;
+    float levelScale = 1f / (1 << level);
+    float x = xs[index] * levelScale;
+    float y = ys[index] * levelScale;
+    int width = previous.widths[level];
+    int height = previous.heights[level];
+
+    // Sample the window in the previous image, and its structure tensor.
+    int x0 = floor(x);
+    int y0 = floor(y);
+    if (!windowInside(x0, y0, radius, width, height)) {
+      return false;
+    }
+    int[] weights = bilinearWeights(x - x0, y - y0, window.weights);
+    byte[] pixels = previous.pixels[level];
+    short[] gradientsX = previous.gradientsX[level];
+    short[] gradientsY = previous.gradientsY[level];
+    long gxx = 0;
+    long gxy = 0;
+    long gyy = 0;
+    int sample = 0;
+    for (int dy = -radius; dy <= radius; dy++) {
+      int p = (y0 + dy) * width + x0 - radius;
+      for (int dx = 0; dx < windowSize; dx++, p++, sample++) {
+        int intensity = interpolate(pixels, p, width, weights);
+        int gradientX = interpolate(gradientsX, p, width, weights);
+        int gradientY = interpolate(gradientsY, p, width, weights);
+        window.intensities[sample] = intensity;
+        window.gradientsX[sample] = gradientX;
+        window.gradientsY[sample] = gradientY;
+        gxx += (long) gradientX * gradientX;
+        gxy += (long) gradientX * gradientY;
+        gyy += (long) gradientY * gradientY;
+      }
+    }
+
+    float a = gxx;
+    float b = gxy;
+    float c = gyy;
+    float determinant = a * c - b * b;
+    float minEigenvalue =
+        ((a + c) - (float) Math.sqrt((a - c) * (a - c) + 4f * b * b))
+            / (2f * sampleCount * GRADIENT_SCALE * GRADIENT_SCALE);
+    if (minEigenvalue < MIN_EIGENVALUE || determinant == 0f) {
+      return false;
+    }
+    float inverseDeterminant = 1f / determinant;
+
+    // Iterate the flow on the current image until the step is negligible.
+    byte[] nextPixels = current.pixels[level];
+    for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+      float nextX = x + window.flowX;
+      float nextY = y + window.flowY;
+      int nextX0 = floor(nextX);
+      int nextY0 = floor(nextY);
+      if (!windowInside(nextX0, nextY0, radius, width, height)) {
+        return false;
+      }
+      int[] nextWeights = bilinearWeights(nextX - nextX0, nextY - nextY0, window.nextWeights);
+      long bx = 0;
+      long by = 0;
+      long absoluteDifferences = 0;
+      sample = 0;
+      for (int dy = -radius; dy <= radius; dy++) {
+        int p = (nextY0 + dy) * width + nextX0 - radius;
+        for (int dx = 0; dx < windowSize; dx++, p++, sample++) {
+          int difference =
+              window.intensities[sample] - interpolate(nextPixels, p, width, nextWeights);
+          bx += (long) difference * window.gradientsX[sample];
+          by += (long) difference * window.gradientsY[sample];
+          absoluteDifferences += Math.abs(difference);
+        }
+      }
+      window.residual = absoluteDifferences / (sampleCount * (float) (1 << INTENSITY_BITS));
+
+      float stepX = (c * bx - b * by) * inverseDeterminant;
+      float stepY = (a * by - b * bx) * inverseDeterminant;
+      window.flowX += stepX;
+      window.flowY += stepY;
+      if (stepX * stepX + stepY * stepY < MIN_STEP * MIN_STEP) {
+        break;
+      }
+    }
+    return true;
+  }
+
+  private static int floor(float value) {
+    return (int) Math.floor(value);
+  }
+
+  /** Returns whether the window and the extra column and row bilinear sampling reads fit. */
+  private static boolean windowInside(int x0, int y0, int radius, int width, int height) {
+    return x0 - radius >= 0 && y0 - radius >= 0 && x0 + radius + 1 < width
+        && y0 + radius + 1 < height;
+  }
+
+  /**
+   * Returns the fixed-point bilinear weights of the four pixels around a point, given its
+   * fractional offsets from the top left one, in {@code weights}. The weights sum to exactly 1 <<
+   * WEIGHT_BITS.
+   */
+  private static int[] bilinearWeights(float fractionX, float fractionY, int[] weights) {
+    weights[0] = Math.round((1f - fractionX) * (1f - fractionY) * (1 << WEIGHT_BITS));
+    weights[1] = Math.round(fractionX * (1f - fractionY) * (1 << WEIGHT_BITS));
+    weights[2] = Math.round((1f - fractionX) * fractionY * (1 << WEIGHT_BITS));
+    weights[3] = (1 << WEIGHT_BITS) - weights[0] - weights[1] - weights[2];
+    return weights;
+  }
+
+  /** Returns the intensity at {@code p}, interpolated, with INTENSITY_BITS fractional bits. */
+  private static int interpolate(byte[] pixels, int p, int width, int[] weights) {
+    int sum =
+        weights[0] * (pixels[p] & 0xFF)
+            + weights[1] * (pixels[p + 1] & 0xFF)
+            + weights[2] * (pixels[p + width] & 0xFF)
+            + weights[3] * (pixels[p + width + 1] & 0xFF);
+    int shift = WEIGHT_BITS - INTENSITY_BITS;
+    return (sum + (1 << (shift - 1))) >> shift;
+  }
+
+  /** Returns the gradient at {@code p}, interpolated, at the scale of the stored gradients. */
+  private static int interpolate(short[] gradients, int p, int width, int[] weights) {
+    int sum =
+        weights[0] * gradients[p]
+            + weights[1] * gradients[p + 1]
+            + weights[2] * gradients[p + width]
+            + weights[3] * gradients[p + width + 1];
+    return (sum + (1 << (WEIGHT_BITS - 1))) >> WEIGHT_BITS;
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A YUV_420_888 camera frame as written by {@link FrameRecorder} and read by a {@link
+ * FrameSource}: its planes with their strides, its timestamp and the camera intrinsics.
+ *
+ * <p>Frames are mutable so that one instance can be refilled for every frame without allocating.
+ * This class has no Android dependencies, so that recordings can be replayed on a desktop JVM.
+ */
+public final class RecordedFrame {
+  /** The number of planes: Y, U and V. */
+  public static final int PLANE_COUNT = 3;
+
+  /** The camera timestamp, in nanoseconds. */
+  public long timestampNanos;
+  /** The image width. */
+  public int width;
+  /** The image height. */
+  public int height;
+  /** The focal length of the image, in pixels, x then y. */
+  public final float[] focalLength = new float[2];
+  /** The principal point of the image, in pixels, x then y. */
+  public final float[] principalPoint = new float[2];
+  /**
+   * The Y, U and V planes. Each plane holds the bytes from its index 0 to its limit, as the planes
+   * of an {@link android.media.Image} do.
+   */
+  public final ByteBuffer[] planes = new ByteBuffer[PLANE_COUNT];
+  /** The number of bytes between the starts of consecutive rows of each plane. */
+  public final int[] rowStrides = new int[PLANE_COUNT];
+  /** The number of bytes between consecutive pixels of a row of each plane. */
+  public final int[] pixelStrides = new int[PLANE_COUNT];
+}
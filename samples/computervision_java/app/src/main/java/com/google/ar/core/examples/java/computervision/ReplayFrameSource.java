@@ -0,0 +1,212 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays frames recorded by {@link FrameRecorder}, either as fast as they are consumed or at the
+ * pace they were recorded.
+ *
+ * <p>The chunks of the recording are memory-mapped read-only, and the planes of replayed frames
+ * are views of the mapped file, so replaying a frame copies nothing; the operating system pages
+ * frames in as they are read. Frames can also be read in any order with {@link #readFrame}.
+ *
+ * <p>This class has no Android dependencies, so recordings made on a phone can be replayed on a
+ * desktop JVM, for example to benchmark {@link EdgeDetector}. It is not thread-safe.
+ */
+public class ReplayFrameSource implements FrameSource {
+  private static final long NANOSECONDS_PER_MILLISECOND = 1_000_000L;
+
+  private final RandomAccessFile file;
+  private final boolean realTime;
+  private final long[] chunkOffsets;
+  private final int[] chunkLengths;
+  // Mapped lazily, on the first frame read from each chunk.
+  private final MappedByteBuffer[] chunks;
+  private final int[] frameChunks;
+  private final int[] frameOffsets;
+  private final long[] frameTimestamps;
+  private final int[] planeLengths = new int[RecordedFrame.PLANE_COUNT];
+
+  private int nextFrameIndex;
+  // System.nanoTime() and the timestamp of the first frame replayed in real time, or -1 before it.
+  private long replayStartNanos = -1;
+  private long replayStartTimestampNanos;
+
+  /**
+   * Opens a recording.
+   *
+   * @param realTime if true, {@link #nextFrame} waits until as much time has passed since the
+   *     first frame as passed between them when they were recorded. Otherwise frames are returned
+   *     as fast as they are requested.
+   */
+  public ReplayFrameSource(File recording, boolean realTime) throws IOException {
+    this.realTime = realTime;
+    file = new RandomAccessFile(recording, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      ByteBuffer header = read(channel, 0, FrameRecorder.FILE_HEADER_SIZE);
+      if (header.getInt() != FrameRecorder.FILE_MAGIC) {
+        throw new IOException("Not a frame recording: " + recording);
+      }
+      if (header.getInt() != FrameRecorder.VERSION) {
+        throw new IOException("Unsupported frame recording version: " + recording);
+      }
+
+      long size = channel.size();
+      ByteBuffer trailer =
+          read(channel, size - FrameRecorder.TRAILER_SIZE, FrameRecorder.TRAILER_SIZE);
+      long indexOffset = trailer.getLong();
+      if (trailer.getInt() != FrameRecorder.TRAILER_MAGIC) {
+        throw new IOException("Frame recording has no index, it was not closed: " + recording);
+      }
+      ByteBuffer index = read(channel, indexOffset, (int) (size - indexOffset));
+
+      int chunkCount = index.getInt();
+      chunkOffsets = new long[chunkCount];
+      chunkLengths = new int[chunkCount];
+      chunks = new MappedByteBuffer[chunkCount];
+      for (int i = 0; i < chunkCount; i++) {
+        chunkOffsets[i] = index.getLong();
+        chunkLengths[i] = index.getInt();
+      }
+      int frameCount = index.getInt();
+      frameChunks = new int[frameCount];
+      frameOffsets = new int[frameCount];
+      frameTimestamps = new long[frameCount];
+      for (int i = 0; i < frameCount; i++) {
+        frameChunks[i] = index.getInt();
+        frameOffsets[i] = index.getInt();
+        frameTimestamps[i] = index.getLong();
+      }
+    } catch (IOException | RuntimeException e) {
+      file.close();
+      throw e;
+    }
+  }
+
+  /** Returns the number of recorded frames. */
+  public int getFrameCount() {
+    return frameTimestamps.length;
+  }
+
+  /** Returns the camera timestamp of a frame, in nanoseconds, without reading the frame. */
+  public long getFrameTimestampNanos(int index) {
+    return frameTimestamps[index];
+  }
+
+  @Override
+  public boolean nextFrame(RecordedFrame frame) throws IOException {
+    if (nextFrameIndex == frameTimestamps.length) {
+      return false;
+    }
+    if (realTime) {
+      waitForFrame(nextFrameIndex);
+    }
+    readFrame(nextFrameIndex++, frame);
+    return true;
+  }
+
+  /** Starts replaying from the first frame again. */
+  public void rewind() {
+    nextFrameIndex = 0;
+    replayStartNanos = -1;
+  }
+
+  /** Fills {@code frame} with frame {@code index}, without waiting in real-time replays. */
+  public void readFrame(int index, RecordedFrame frame) throws IOException {
+    ByteBuffer chunk = mapChunk(frameChunks[index]).duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    chunk.position(frameOffsets[index]);
+    if (chunk.getInt() != FrameRecorder.FRAME_MAGIC) {
+      throw new IOException("Corrupt frame " + index);
+    }
+    frame.timestampNanos = chunk.getLong();
+    frame.width = chunk.getInt();
+    frame.height = chunk.getInt();
+    frame.focalLength[0] = chunk.getFloat();
+    frame.focalLength[1] = chunk.getFloat();
+    frame.principalPoint[0] = chunk.getFloat();
+    frame.principalPoint[1] = chunk.getFloat();
+    for (int plane = 0; plane < RecordedFrame.PLANE_COUNT; plane++) {
+      frame.rowStrides[plane] = chunk.getInt();
+      frame.pixelStrides[plane] = chunk.getInt();
+      planeLengths[plane] = chunk.getInt();
+    }
+    for (int plane = 0; plane < RecordedFrame.PLANE_COUNT; plane++) {
+      chunk.limit(chunk.position() + planeLengths[plane]);
+      frame.planes[plane] = chunk.slice();
+      chunk.position(chunk.limit());
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    file.close();
+  }
+
+  private MappedByteBuffer mapChunk(int index) throws IOException {
+    if (chunks[index] == null) {
+      chunks[index] =
+          file.getChannel()
+              .map(FileChannel.MapMode.READ_ONLY, chunkOffsets[index], chunkLengths[index]);
+    }
+    return chunks[index];
+  }
+
+  private void waitForFrame(int index) throws InterruptedIOException {
+    long now = System.nanoTime();
+    if (replayStartNanos < 0) {
+      replayStartNanos = now;
+      replayStartTimestampNanos = frameTimestamps[index];
+      return;
+    }
+    long waitNanos =
+        replayStartNanos + (frameTimestamps[index] - replayStartTimestampNanos) - now;
+    if (waitNanos <= 0) {
+      return;
+    }
+    try {
+      Thread.sleep(
+          waitNanos / NANOSECONDS_PER_MILLISECOND, (int) (waitNanos % NANOSECONDS_PER_MILLISECOND));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for frame " + index);
+    }
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length)
+      throws IOException {
+    if (position < 0 || length < 0) {
+      throw new IOException("Corrupt frame recording");
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Truncated frame recording");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import com.google.ar.core.examples.java.common.helpers.LatencyRecorder;
+
+/**
+ * Picks the highest CPU image resolution whose images are processed as fast as the camera
+ * delivers them.
+ *
+ * <p>The resolutions are levels, from the lowest to the highest. Once per second, the controller
+ * compares the median render and processed frame times and the p90 processing time against the
+ * camera frame time of the current level:
+ *
+ * <ul>
+ *   <li>If frames are processed late or dropped, the device is overloaded, and after {@link
+ *       #OVERLOADED_EVALUATION_COUNT} overloaded seconds in a row the controller steps down a
+ *       level. Below the lowest level, it tries downloading images from the GPU instead, and goes
+ *       back to CPU images for good if that does not keep up either.
+ *   <li>If the processing time, scaled by the pixel count of the next level, would still leave
+ *       headroom, the controller steps up a level after {@link #HEADROOM_EVALUATION_COUNT} such
+ *       seconds in a row. Each time a level turns out to be overloaded, twice as many are needed
+ *       to step up to it again.
+ * </ul>
+ *
+ * <p>The gap between the overload and headroom thresholds keeps the controller from going back
+ * and forth between two levels, and measurements are ignored for a cool-down period after every
+ * change, while the camera restarts. This class has no Android dependencies. It is not
+ * thread-safe.
+ */
+public class ResolutionController {
+  /** The number of overloaded evaluations in a row after which the controller steps down. */
+  public static final int OVERLOADED_EVALUATION_COUNT = 2;
+
+  /** The number of evaluations with headroom in a row after which the controller steps up. */
+  public static final int HEADROOM_EVALUATION_COUNT = 3;
+
+  private static final long EVALUATION_INTERVAL_NANOS = 1_000_000_000L;
+  private static final long COOL_DOWN_NANOS = 3_000_000_000L;
+  private static final float MILLISECONDS_PER_SECOND = 1000f;
+
+  // Frame times above this fraction of the camera frame time mean frames are late or dropped.
+  private static final float OVERLOADED_FRAME_TIME_FRACTION = 1.25f;
+  // Frame times up to this fraction of the camera frame time mean every frame is processed.
+  private static final float HEADROOM_FRAME_TIME_FRACTION = 1.1f;
+  // Processing times above this fraction of the camera frame time leave no time to spare.
+  private static final float OVERLOADED_PROCESSING_FRACTION = 0.9f;
+  // Processing times predicted for the next level must stay below this fraction to step up.
+  private static final float HEADROOM_PROCESSING_FRACTION = 0.6f;
+  private static final double PROCESSING_TIME_PERCENTILE = 90;
+  // Stepping up to a level that failed this many times needs 2^MAX_BACKOFF_SHIFT times as long.
+  private static final int MAX_BACKOFF_SHIFT = 5;
+
+  private final LatencyRecorder processingTimeRecorder;
+  private final LatencyRecorder.Histogram processingTimes = new LatencyRecorder.Histogram();
+
+  private long[] pixelCounts = new long[0];
+  private float[] cameraFrameTimesMillis = new float[0];
+  // The number of times each level was stepped down from.
+  private int[] failureCounts = new int[0];
+
+  private int level;
+  private boolean usingGpuDownload;
+  private boolean gpuDownloadFailed;
+  private int overloadedEvaluations;
+  private int headroomEvaluations;
+  // System.nanoTime() of the next evaluation, or -1 before the first update after a reset.
+  private long nextEvaluationNanos = -1;
+
+  /**
+   * Creates a controller without levels, see {@link #setLevels}.
+   *
+   * @param processingTimeRecorder the recorder of the time taken to process each CPU image.
+   */
+  public ResolutionController(LatencyRecorder processingTimeRecorder) {
+    this.processingTimeRecorder = processingTimeRecorder;
+  }
+
+  /**
+   * Sets the levels to choose from, and starts over at {@code level} with CPU images.
+   *
+   * @param pixelCounts the number of pixels of the images of each level, in ascending order.
+   * @param maxFrameRates the highest frame rate of the camera at each level.
+   */
+  public void setLevels(long[] pixelCounts, int[] maxFrameRates, int level) {
+    if (pixelCounts.length != maxFrameRates.length) {
+      throw new IllegalArgumentException("Expected one frame rate per level");
+    }
+    this.pixelCounts = pixelCounts.clone();
+    cameraFrameTimesMillis = new float[maxFrameRates.length];
+    for (int i = 0; i < maxFrameRates.length; i++) {
+      cameraFrameTimesMillis[i] = MILLISECONDS_PER_SECOND / maxFrameRates[i];
+    }
+    failureCounts = new int[pixelCounts.length];
+    gpuDownloadFailed = false;
+    reset(level);
+  }
+
+  /**
+   * Starts over at {@code level} with CPU images, for example after the level was chosen by hand.
+   * Levels that failed before are still stepped up to more slowly.
+   */
+  public void reset(int level) {
+    this.level = level;
+    usingGpuDownload = false;
+    overloadedEvaluations = 0;
+    headroomEvaluations = 0;
+    nextEvaluationNanos = -1;
+  }
+
+  /** Returns the current level. */
+  public int getLevel() {
+    return level;
+  }
+
+  /** Returns whether images should be downloaded from the GPU rather than read from the CPU. */
+  public boolean isUsingGpuDownload() {
+    return usingGpuDownload;
+  }
+
+  /**
+   * Evaluates the latest measurements if an evaluation is due. Call this once per rendered frame
+   * while images are being processed.
+   *
+   * @param renderFrameTimeMillis the median render frame time of the last second.
+   * @param processedFrameTimeMillis the median time between processed frames of the last second,
+   *     or 0 if it is not known yet.
+   * @return true if the level or the image acquisition path changed, in which case the caller
+   *     should apply {@link #getLevel} and {@link #isUsingGpuDownload}.
+   */
+  public boolean update(
+      long nowNanos, float renderFrameTimeMillis, float processedFrameTimeMillis) {
+    if (pixelCounts.length == 0) {
+      return false;
+    }
+    if (nextEvaluationNanos < 0) {
+      startCoolDown(nowNanos);
+      return false;
+    }
+    if (nowNanos < nextEvaluationNanos) {
+      return false;
+    }
+    processingTimeRecorder.takeIntervalSnapshot(processingTimes);
+    nextEvaluationNanos = nowNanos + EVALUATION_INTERVAL_NANOS;
+    if (processedFrameTimeMillis == 0) {
+      return false;
+    }
+
+    float cameraFrameTimeMillis = cameraFrameTimesMillis[usingGpuDownload ? 0 : level];
+    float frameTimeMillis = Math.max(renderFrameTimeMillis, processedFrameTimeMillis);
+    // The GPU download path processes images on the render thread, which its frame times include.
+    float processingTimeMillis =
+        usingGpuDownload
+            ? 0
+            : (float) processingTimes.getPercentileMillis(PROCESSING_TIME_PERCENTILE);
+
+    if (frameTimeMillis > cameraFrameTimeMillis * OVERLOADED_FRAME_TIME_FRACTION
+        || processingTimeMillis > cameraFrameTimeMillis * OVERLOADED_PROCESSING_FRACTION) {
+      headroomEvaluations = 0;
+      if (++overloadedEvaluations >= OVERLOADED_EVALUATION_COUNT) {
+        return stepDown(nowNanos);
+      }
+    } else if (frameTimeMillis <= cameraFrameTimeMillis * HEADROOM_FRAME_TIME_FRACTION
+        && hasHeadroom(processingTimeMillis)) {
+      overloadedEvaluations = 0;
+      int nextLevel = level + 1;
+      int backoffShift = Math.min(failureCounts[nextLevel], MAX_BACKOFF_SHIFT);
+      if (++headroomEvaluations >= HEADROOM_EVALUATION_COUNT << backoffShift) {
+        level = nextLevel;
+        startCoolDown(nowNanos);
+        return true;
+      }
+    } else {
+      overloadedEvaluations = 0;
+      headroomEvaluations = 0;
+    }
+    return false;
+  }
+
+  /** Returns whether the next level would be processed in time, judging by its pixel count. */
+  private boolean hasHeadroom(float processingTimeMillis) {
+    if (usingGpuDownload || level + 1 == pixelCounts.length) {
+      return false;
+    }
+    float predictedMillis = processingTimeMillis * pixelCounts[level + 1] / pixelCounts[level];
+    return predictedMillis <= cameraFrameTimesMillis[level + 1] * HEADROOM_PROCESSING_FRACTION;
+  }
+
+  private boolean stepDown(long nowNanos) {
+    if (usingGpuDownload) {
+      usingGpuDownload = false;
+      gpuDownloadFailed = true;
+    } else if (level > 0) {
+      failureCounts[level]++;
+      level--;
+    } else if (!gpuDownloadFailed) {
+      usingGpuDownload = true;
+    } else {
+      // Already as low as it goes.
+      overloadedEvaluations = 0;
+      return false;
+    }
+    startCoolDown(nowNanos);
+    return true;
+  }
+
+  private void startCoolDown(long nowNanos) {
+    overloadedEvaluations = 0;
+    headroomEvaluations = 0;
+    nextEvaluationNanos = nowNanos + COOL_DOWN_NANOS;
+    // Processing times from before the change do not describe the new level.
+    processingTimeRecorder.takeIntervalSnapshot(processingTimes);
+  }
+}
@@ -25,7 +25,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 
 /**
  * Helper class for ARCore apps to read camera image from an OpenGL OES texture.
@@ -57,6 +56,16 @@ import java.nio.IntBuffer;
  *
  * <p>releaseFrame(bufferIndex);
  *
+ * <p>The frame buffers form a ring whose depth is set in create(). A fence is inserted after each
+ * reading request, and acquireFrame() only maps a buffer once its fence has signaled, returning
+ * null otherwise, so the caller never stalls waiting for the GPU. pollLatestFrame() returns the
+ * most recent completed request and skips older ones. When every buffer is busy, submitFrame()
+ * skips the frame and returns -1 instead of throwing.
+ *
+ * <p>The reader can also produce an image pyramid on the GPU, see setPyramid(). The levels are
+ * packed into one atlas, read back with a single transfer, and exposed by TextureReaderImage as
+ * views of one buffer.
+ *
  * <p>Note: To use any of the above two methods, you need to call create() routine to initialize the
  * reader before calling any of the reading routine. You will also need to call destroy() method to
  * release the internal resource when you are done with the reader.
@@ -66,15 +75,65 @@ public class TextureReader {
 
   // By default, we create only two internal buffers. So you can only hold more than one buffer
   // index in your app without releasing it. If you need to hold more than one buffers, you can
-  // increase the bufferCount member.
-  private final int bufferCount = 2;
+  // pass a larger buffer count to create().
+  private static final int DEFAULT_BUFFER_COUNT = 2;
+  private int bufferCount = DEFAULT_BUFFER_COUNT;
   private int[] frameBuffer;
   private int[] texture;
   private int[] pbo;
-  private Boolean[] bufferUsed;
   private int frontIndex = -1;
   private int backIndex = -1;
 
+  // State of each buffer of the ring.
+  private static final int BUFFER_FREE = 0;
+  private static final int BUFFER_PENDING = 1; // Submitted, its fence may not have signaled yet.
+  private static final int BUFFER_READY = 2; // Its fence has signaled.
+  private static final int BUFFER_ACQUIRED = 3; // Mapped by acquireFrame().
+  private int[] bufferState;
+  private long[] fence;
+  private long[] submitSequence;
+  private long[] submitTimeNanos;
+  private long nextSubmitSequence = 0;
+
+  // Statistics.
+  private long skippedFrameCount = 0;
+  private long notReadyCount = 0;
+  private float lastReadbackLatencyMillis = 0f;
+
+  // Reused to avoid allocations on every frame.
+  private final int[] viewport = new int[4];
+  private final float[] aspectTexCoords = new float[8];
+
+  /** The filter used to compute each level of an image pyramid from the previous one. */
+  public enum PyramidFilter {
+    /** Averages each 2x2 block. */
+    BOX,
+    /** Weights the 4x4 neighbourhood of each 2x2 block binomially, approximating a Gaussian. */
+    GAUSSIAN
+  }
+
+  // Tap offsets of the downsampling shader for each filter, see gpu_download_downsample.frag.
+  private static final float BOX_TAP_OFFSET = 0f;
+  private static final float GAUSSIAN_TAP_OFFSET = 0.75f;
+
+  // Image pyramid. Level 0 is the image itself, at the left of the atlas; the other levels are
+  // stacked in a column to its right. Without a pyramid, the atlas is just the image.
+  private int pyramidLevelCount = 1;
+  private PyramidFilter pyramidFilter = PyramidFilter.GAUSSIAN;
+  private int atlasWidth = 0;
+  private int atlasHeight = 0;
+  private int[] levelWidth;
+  private int[] levelHeight;
+  private int[] levelOffset; // In bytes, from the start of the read back atlas.
+  private int[] levelFrameBuffer;
+  private int[] levelTexture;
+  private int downsampleProgram;
+  private int downsamplePositionAttrib;
+  private int downsampleTexCoordAttrib;
+  private int downsampleSourceTexelSizeUniform;
+  private int downsampleTapOffsetUniform;
+  private FloatBuffer fullTexCoord;
+
   // By default, the output image format is set to RGBA. You can also set it to IMAGE_FORMAT_I8.
   private int imageFormat = TextureReaderImage.IMAGE_FORMAT_RGBA;
   private int imageWidth = 0;
@@ -108,6 +167,21 @@ public class TextureReader {
         1.0f, 1.0f,
       };
 
+  /**
+   * Makes the reader produce an image pyramid of {@code levelCount} levels, each half the width
+   * and height of the previous one (rounded down, at least 1). Must be called before create().
+   *
+   * @param levelCount the number of levels including the image itself; 1 disables the pyramid.
+   * @param filter the filter used to compute each level from the previous one.
+   */
+  public void setPyramid(int levelCount, PyramidFilter filter) {
+    if (levelCount < 1) {
+      throw new IllegalArgumentException("levelCount must be at least 1");
+    }
+    pyramidLevelCount = levelCount;
+    pyramidFilter = filter;
+  }
+
   /**
    * Creates the texture reader. This function needs to be called from the OpenGL rendering thread.
    *
@@ -121,6 +195,28 @@ public class TextureReader {
    */
   public void create(Context context, int format, int width, int height, Boolean keepAspectRatio)
       throws IOException {
+    create(context, format, width, height, keepAspectRatio, DEFAULT_BUFFER_COUNT);
+  }
+
+  /**
+   * Creates the texture reader with a ring of {@code bufferCount} frame buffers. This function
+   * needs to be called from the OpenGL rendering thread.
+   *
+   * @param bufferCount the number of reading requests that may be in flight or acquired at once. A
+   *     deeper ring gives the GPU more frames to complete a request before its buffer is needed.
+   * @see #create(Context, int, int, int, Boolean)
+   */
+  public void create(
+      Context context,
+      int format,
+      int width,
+      int height,
+      Boolean keepAspectRatio,
+      int bufferCount)
+      throws IOException {
+    if (bufferCount < 1) {
+      throw new IllegalArgumentException("bufferCount must be at least 1");
+    }
     if (format != TextureReaderImage.IMAGE_FORMAT_RGBA
         && format != TextureReaderImage.IMAGE_FORMAT_I8) {
       throw new RuntimeException("Image format not supported.");
@@ -132,54 +228,30 @@ public class TextureReader {
     imageHeight = height;
     frontIndex = -1;
     backIndex = -1;
+    this.bufferCount = bufferCount;
 
-    if (imageFormat == TextureReaderImage.IMAGE_FORMAT_RGBA) {
-      pixelBufferSize = imageWidth * imageHeight * 4;
-    } else if (imageFormat == TextureReaderImage.IMAGE_FORMAT_I8) {
-      pixelBufferSize = imageWidth * imageHeight;
-    }
+    computePyramidLayout();
+    pixelBufferSize = atlasWidth * atlasHeight * bytesPerPixel();
 
     // Create framebuffers and PBOs.
     pbo = new int[bufferCount];
     frameBuffer = new int[bufferCount];
     texture = new int[bufferCount];
-    bufferUsed = new Boolean[bufferCount];
+    bufferState = new int[bufferCount];
+    fence = new long[bufferCount];
+    submitSequence = new long[bufferCount];
+    submitTimeNanos = new long[bufferCount];
     GLES30.glGenBuffers(bufferCount, pbo, 0);
     GLES20.glGenFramebuffers(bufferCount, frameBuffer, 0);
     GLES20.glGenTextures(bufferCount, texture, 0);
 
     for (int i = 0; i < bufferCount; i++) {
-      bufferUsed[i] = false;
-      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer[i]);
-
-      GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture[i]);
-      GLES30.glTexImage2D(
-          GLES30.GL_TEXTURE_2D,
-          0,
-          imageFormat == TextureReaderImage.IMAGE_FORMAT_I8 ? GLES30.GL_R8 : GLES30.GL_RGBA,
-          imageWidth,
-          imageHeight,
-          0,
-          imageFormat == TextureReaderImage.IMAGE_FORMAT_I8 ? GLES30.GL_RED : GLES30.GL_RGBA,
-          GLES30.GL_UNSIGNED_BYTE,
-          null);
-      GLES20.glTexParameteri(
-          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
-      GLES20.glTexParameteri(
-          GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
-      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-      GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
-      GLES20.glFramebufferTexture2D(
-          GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, texture[i], 0);
-
-      int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
-      if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
-        throw new RuntimeException(
-            this
-                + ": Failed to set up render buffer with status "
-                + status
-                + " and error "
-                + GLES20.glGetError());
+      bufferState[i] = BUFFER_FREE;
+      createRenderTarget(frameBuffer[i], texture[i], atlasWidth, atlasHeight);
+      if (pyramidLevelCount > 1) {
+        // The atlas has areas no level covers; give them defined contents.
+        GLES20.glClearColor(0, 0, 0, 0);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
       }
 
       // Setup PBOs
@@ -189,6 +261,19 @@ public class TextureReader {
       GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
     }
 
+    // Levels are rendered into textures of their own, since the atlas cannot be sampled while it is
+    // rendered to, and then copied into the atlas.
+    if (pyramidLevelCount > 1) {
+      levelFrameBuffer = new int[pyramidLevelCount];
+      levelTexture = new int[pyramidLevelCount];
+      GLES20.glGenFramebuffers(pyramidLevelCount, levelFrameBuffer, 0);
+      GLES20.glGenTextures(pyramidLevelCount, levelTexture, 0);
+      for (int level = 0; level < pyramidLevelCount; level++) {
+        createRenderTarget(
+            levelFrameBuffer[level], levelTexture[level], levelWidth[level], levelHeight[level]);
+      }
+    }
+
     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
 
     // Load shader program.
@@ -210,6 +295,13 @@ public class TextureReader {
     quadTexCoord.put(QUAD_TEXCOORDS);
     quadTexCoord.position(0);
 
+    ByteBuffer bbFullTexCoords =
+        ByteBuffer.allocateDirect(numVertices * TEXCOORDS_PER_VERTEX * FLOAT_SIZE);
+    bbFullTexCoords.order(ByteOrder.nativeOrder());
+    fullTexCoord = bbFullTexCoords.asFloatBuffer();
+    fullTexCoord.put(QUAD_TEXCOORDS);
+    fullTexCoord.position(0);
+
     int vertexShader =
         ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, "shaders/gpu_download.vert");
     int fragmentShader =
@@ -231,10 +323,101 @@ public class TextureReader {
     quadTexCoordAttrib = GLES20.glGetAttribLocation(quadProgram, "a_TexCoord");
     int texLoc = GLES20.glGetUniformLocation(quadProgram, "sTexture");
     GLES20.glUniform1i(texLoc, 0);
+
+    if (pyramidLevelCount > 1) {
+      int downsampleShader =
+          ShaderUtil.loadGLShader(
+              TAG, context, GLES20.GL_FRAGMENT_SHADER, "shaders/gpu_download_downsample.frag");
+      downsampleProgram = GLES20.glCreateProgram();
+      GLES20.glAttachShader(downsampleProgram, vertexShader);
+      GLES20.glAttachShader(downsampleProgram, downsampleShader);
+      GLES20.glLinkProgram(downsampleProgram);
+      GLES20.glUseProgram(downsampleProgram);
+
+      downsamplePositionAttrib = GLES20.glGetAttribLocation(downsampleProgram, "a_Position");
+      downsampleTexCoordAttrib = GLES20.glGetAttribLocation(downsampleProgram, "a_TexCoord");
+      downsampleSourceTexelSizeUniform =
+          GLES20.glGetUniformLocation(downsampleProgram, "u_SourceTexelSize");
+      downsampleTapOffsetUniform = GLES20.glGetUniformLocation(downsampleProgram, "u_TapOffset");
+      GLES20.glUniform1i(GLES20.glGetUniformLocation(downsampleProgram, "u_Texture"), 0);
+      GLES20.glUniform1f(
+          downsampleTapOffsetUniform,
+          pyramidFilter == PyramidFilter.GAUSSIAN ? GAUSSIAN_TAP_OFFSET : BOX_TAP_OFFSET);
+    }
+  }
+
+  private int bytesPerPixel() {
+    return imageFormat == TextureReaderImage.IMAGE_FORMAT_I8 ? 1 : 4;
+  }
+
+  /** Places the pyramid levels in the atlas. */
+  private void computePyramidLayout() {
+    levelWidth = new int[pyramidLevelCount];
+    levelHeight = new int[pyramidLevelCount];
+    levelOffset = new int[pyramidLevelCount];
+    levelWidth[0] = imageWidth;
+    levelHeight[0] = imageHeight;
+    for (int level = 1; level < pyramidLevelCount; level++) {
+      levelWidth[level] = Math.max(1, levelWidth[level - 1] / 2);
+      levelHeight[level] = Math.max(1, levelHeight[level - 1] / 2);
+    }
+
+    atlasWidth = imageWidth + (pyramidLevelCount > 1 ? levelWidth[1] : 0);
+    int columnHeight = 0;
+    for (int level = 1; level < pyramidLevelCount; level++) {
+      columnHeight += levelHeight[level];
+    }
+    atlasHeight = Math.max(imageHeight, columnHeight);
+
+    // Rows are read back tightly packed, see submitFrame().
+    int rowStride = atlasWidth * bytesPerPixel();
+    int y = 0;
+    for (int level = 1; level < pyramidLevelCount; level++) {
+      levelOffset[level] = y * rowStride + imageWidth * bytesPerPixel();
+      y += levelHeight[level];
+    }
+  }
+
+  /** Attaches a new texture of the output format to a framebuffer. */
+  private void createRenderTarget(int frameBufferId, int textureId, int width, int height) {
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBufferId);
+
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+    GLES30.glTexImage2D(
+        GLES30.GL_TEXTURE_2D,
+        0,
+        imageFormat == TextureReaderImage.IMAGE_FORMAT_I8 ? GLES30.GL_R8 : GLES30.GL_RGBA,
+        width,
+        height,
+        0,
+        imageFormat == TextureReaderImage.IMAGE_FORMAT_I8 ? GLES30.GL_RED : GLES30.GL_RGBA,
+        GLES30.GL_UNSIGNED_BYTE,
+        null);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+    GLES20.glFramebufferTexture2D(
+        GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0, GLES20.GL_TEXTURE_2D, textureId, 0);
+
+    int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+    if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+      throw new RuntimeException(
+          this
+              + ": Failed to set up render buffer with status "
+              + status
+              + " and error "
+              + GLES20.glGetError());
+    }
   }
 
   /** Destroy the texture reader. */
   public void destroy() {
+    if (fence != null) {
+      for (int i = 0; i < bufferCount; i++) {
+        deleteFence(i);
+      }
+    }
     if (frameBuffer != null) {
       GLES20.glDeleteFramebuffers(bufferCount, frameBuffer, 0);
       frameBuffer = null;
@@ -247,6 +430,14 @@ public class TextureReader {
       GLES30.glDeleteBuffers(bufferCount, pbo, 0);
       pbo = null;
     }
+    if (levelFrameBuffer != null) {
+      GLES20.glDeleteFramebuffers(pyramidLevelCount, levelFrameBuffer, 0);
+      levelFrameBuffer = null;
+    }
+    if (levelTexture != null) {
+      GLES20.glDeleteTextures(pyramidLevelCount, levelTexture, 0);
+      levelTexture = null;
+    }
   }
 
   /**
@@ -254,76 +445,135 @@ public class TextureReader {
    * immediately. Instead, it returns a frame buffer index, which can be used to acquire the frame
    * buffer later through acquireFrame().
    *
-   * <p>If there is no enough frame buffer available, an exception will be thrown.
+   * <p>If there is no frame buffer available, the frame is skipped and -1 is returned.
    *
    * @param textureId the id of the input OpenGL texture.
    * @param textureWidth width of the texture in pixels.
    * @param textureHeight height of the texture in pixels.
-   * @return the index to the frame buffer this request is associated to. You should use this index
-   *     to acquire the frame using acquireFrame(); and you should release the frame buffer using
-   *     releaseBuffer() routine after using of the frame.
+   * @return the index to the frame buffer this request is associated to, or -1 if the frame was
+   *     skipped. You should use this index to acquire the frame using acquireFrame(); and you
+   *     should release the frame buffer using releaseFrame() routine after using of the frame.
    */
   public int submitFrame(int textureId, int textureWidth, int textureHeight) {
     // Find next buffer.
     int bufferIndex = -1;
     for (int i = 0; i < bufferCount; i++) {
-      if (!bufferUsed[i]) {
+      if (bufferState[i] == BUFFER_FREE) {
         bufferIndex = i;
         break;
       }
     }
     if (bufferIndex == -1) {
-      throw new RuntimeException("No buffer available.");
+      ++skippedFrameCount;
+      return -1;
     }
 
-    // Bind both read and write to framebuffer.
-    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer[bufferIndex]);
+    // Save viewport
+    GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, viewport, 0);
 
-    // Save and setup viewport
-    IntBuffer viewport = IntBuffer.allocate(4);
-    GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, viewport);
-    GLES20.glViewport(0, 0, imageWidth, imageHeight);
+    if (pyramidLevelCount > 1) {
+      drawPyramid(frameBuffer[bufferIndex], textureId, textureWidth, textureHeight);
+    } else {
+      // Bind both read and write to framebuffer.
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer[bufferIndex]);
+      GLES20.glViewport(0, 0, imageWidth, imageHeight);
 
-    // Draw texture to framebuffer.
-    drawTexture(textureId, textureWidth, textureHeight);
+      // Draw texture to framebuffer.
+      drawTexture(textureId, textureWidth, textureHeight);
+    }
 
-    // Start reading into PBO
+    // Start reading into PBO, in a single transfer even for a pyramid.
     GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo[bufferIndex]);
     GLES30.glReadBuffer(GLES30.GL_COLOR_ATTACHMENT0);
 
+    // Pack rows tightly, whatever the width of the atlas.
+    GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 1);
     GLES30.glReadPixels(
         0,
         0,
-        imageWidth,
-        imageHeight,
+        atlasWidth,
+        atlasHeight,
         imageFormat == TextureReaderImage.IMAGE_FORMAT_I8 ? GLES30.GL_RED : GLES20.GL_RGBA,
         GLES20.GL_UNSIGNED_BYTE,
         0);
+    GLES20.glPixelStorei(GLES20.GL_PACK_ALIGNMENT, 4);
+
+    // Signals once the GPU has written the pixels into the PBO.
+    fence[bufferIndex] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
 
     // Restore viewport.
-    GLES20.glViewport(viewport.get(0), viewport.get(1), viewport.get(2), viewport.get(3));
+    GLES20.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
 
     GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
     GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
 
-    bufferUsed[bufferIndex] = true;
+    bufferState[bufferIndex] = BUFFER_PENDING;
+    submitSequence[bufferIndex] = nextSubmitSequence++;
+    submitTimeNanos[bufferIndex] = System.nanoTime();
     return bufferIndex;
   }
 
+  /**
+   * Returns the frame buffer of the most recent reading request that has completed, or -1 if none
+   * has. Completed requests older than the returned one are released, since their frames are
+   * superseded, and counted as skipped. Requests already acquired are left alone.
+   */
+  public int pollLatestFrame() {
+    int latest = -1;
+    boolean newestPending = false;
+    long newestSequence = -1;
+    for (int i = 0; i < bufferCount; i++) {
+      if (bufferState[i] == BUFFER_FREE || bufferState[i] == BUFFER_ACQUIRED) {
+        continue;
+      }
+      boolean ready = isReady(i);
+      if (submitSequence[i] > newestSequence) {
+        newestSequence = submitSequence[i];
+        newestPending = !ready;
+      }
+      if (ready && (latest == -1 || submitSequence[i] > submitSequence[latest])) {
+        latest = i;
+      }
+    }
+    if (newestPending) {
+      // Mapping the newest request now would have stalled the GPU pipeline.
+      ++notReadyCount;
+    }
+    if (latest == -1) {
+      return -1;
+    }
+    for (int i = 0; i < bufferCount; i++) {
+      if (bufferState[i] == BUFFER_READY && submitSequence[i] < submitSequence[latest]) {
+        releaseFrame(i);
+        ++skippedFrameCount;
+      }
+    }
+    return latest;
+  }
+
   /**
    * Acquires the frame requested earlier. This routine returns a TextureReaderImage object that
    * contains the pixels mapped to the frame buffer requested previously through submitFrame().
    *
-   * <p>If input buffer index is invalid, an exception will be thrown.
+   * <p>If input buffer index is invalid, an exception will be thrown. If the GPU has not finished
+   * reading the frame yet, null is returned rather than waiting for it, and the frame may be
+   * acquired again later.
    *
    * @param bufferIndex the index to the frame buffer to be acquired. It has to be a frame index
    *     returned from submitFrame().
    * @return a TextureReaderImage object if succeed. Null otherwise.
    */
   public TextureReaderImage acquireFrame(int bufferIndex) {
-    if (bufferIndex < 0 || bufferIndex >= bufferCount || !bufferUsed[bufferIndex]) {
+    if (bufferIndex < 0
+        || bufferIndex >= bufferCount
+        || bufferState[bufferIndex] == BUFFER_FREE
+        || bufferState[bufferIndex] == BUFFER_ACQUIRED) {
       throw new RuntimeException("Invalid buffer index.");
     }
+    if (!isReady(bufferIndex)) {
+      ++notReadyCount;
+      return null;
+    }
 
     // Bind the current PB and acquire the pixel buffer.
     GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo[bufferIndex]);
@@ -331,10 +581,19 @@ public class TextureReader {
         (ByteBuffer)
             GLES30.glMapBufferRange(
                 GLES30.GL_PIXEL_PACK_BUFFER, 0, pixelBufferSize, GLES30.GL_MAP_READ_BIT);
+    bufferState[bufferIndex] = BUFFER_ACQUIRED;
 
     // Wrap the mapped buffer into TextureReaderImage object.
     TextureReaderImage buffer =
-        new TextureReaderImage(imageWidth, imageHeight, imageFormat, mapped);
+        new TextureReaderImage(
+            imageWidth,
+            imageHeight,
+            imageFormat,
+            mapped,
+            atlasWidth * bytesPerPixel(),
+            levelWidth,
+            levelHeight,
+            levelOffset);
 
     return buffer;
   }
@@ -347,18 +606,70 @@ public class TextureReader {
    *     returned from submitFrame().
    */
   public void releaseFrame(int bufferIndex) {
-    if (bufferIndex < 0 || bufferIndex >= bufferCount || !bufferUsed[bufferIndex]) {
+    if (bufferIndex < 0 || bufferIndex >= bufferCount || bufferState[bufferIndex] == BUFFER_FREE) {
       throw new RuntimeException("Invalid buffer index.");
     }
-    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo[bufferIndex]);
-    GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
-    GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
-    bufferUsed[bufferIndex] = false;
+    if (bufferState[bufferIndex] == BUFFER_ACQUIRED) {
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo[bufferIndex]);
+      GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+      GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+    deleteFence(bufferIndex);
+    bufferState[bufferIndex] = BUFFER_FREE;
+  }
+
+  /**
+   * Returns the number of frames skipped so far, because every frame buffer was busy when they
+   * were submitted, or because a more recent frame completed before they were acquired.
+   */
+  public long getSkippedFrameCount() {
+    return skippedFrameCount;
+  }
+
+  /**
+   * Returns the number of times a frame was not read by the GPU yet when polled or acquired. Each
+   * of these would have stalled the calling thread had the buffer been mapped right away.
+   */
+  public long getNotReadyCount() {
+    return notReadyCount;
+  }
+
+  /**
+   * Returns the time from the submission of the most recently completed frame to when its
+   * completion was observed, in milliseconds.
+   */
+  public float getLastReadbackLatencyMillis() {
+    return lastReadbackLatencyMillis;
+  }
+
+  /** Returns whether the GPU has finished reading the frame, polling its fence without waiting. */
+  private boolean isReady(int bufferIndex) {
+    if (bufferState[bufferIndex] != BUFFER_PENDING) {
+      return bufferState[bufferIndex] != BUFFER_FREE;
+    }
+    int status =
+        GLES30.glClientWaitSync(
+            fence[bufferIndex], GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, /* timeout= */ 0);
+    if (status != GLES30.GL_ALREADY_SIGNALED && status != GLES30.GL_CONDITION_SATISFIED) {
+      return false;
+    }
+    deleteFence(bufferIndex);
+    bufferState[bufferIndex] = BUFFER_READY;
+    lastReadbackLatencyMillis = (System.nanoTime() - submitTimeNanos[bufferIndex]) / 1e6f;
+    return true;
+  }
+
+  private void deleteFence(int bufferIndex) {
+    if (fence[bufferIndex] != 0) {
+      GLES30.glDeleteSync(fence[bufferIndex]);
+      fence[bufferIndex] = 0;
+    }
   }
 
   /**
    * Reads pixels using dual buffers. This function sends the reading request to GPU and returns the
-   * result from the previous call. Thus, the first call always returns null. The pixelBuffer member
+   * result from the previous call. Thus, the first call always returns null, and so does a call
+   * whose previous request the GPU has not finished yet. The pixelBuffer member
    * in the returned object maps to the internal buffer. This buffer cannot be overrode, and it
    * becomes invalid after next call to submitAndAcquire().
    *
@@ -387,6 +698,68 @@ public class TextureReader {
     return null;
   }
 
+  /**
+   * Renders the pyramid levels, each from the previous one, and copies them into the atlas bound to
+   * {@code atlasFrameBuffer}, which is left bound.
+   */
+  private void drawPyramid(
+      int atlasFrameBuffer, int textureId, int textureWidth, int textureHeight) {
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, levelFrameBuffer[0]);
+    GLES20.glViewport(0, 0, imageWidth, imageHeight);
+    drawTexture(textureId, textureWidth, textureHeight);
+
+    for (int level = 1; level < pyramidLevelCount; level++) {
+      GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, levelFrameBuffer[level]);
+      GLES20.glViewport(0, 0, levelWidth[level], levelHeight[level]);
+      drawDownsampled(levelTexture[level - 1], levelWidth[level - 1], levelHeight[level - 1]);
+    }
+
+    GLES30.glBindFramebuffer(GLES30.GL_DRAW_FRAMEBUFFER, atlasFrameBuffer);
+    int y = 0;
+    for (int level = 0; level < pyramidLevelCount; level++) {
+      int x = level == 0 ? 0 : imageWidth;
+      int width = levelWidth[level];
+      int height = levelHeight[level];
+      GLES30.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, levelFrameBuffer[level]);
+      GLES30.glBlitFramebuffer(
+          0,
+          0,
+          width,
+          height,
+          x,
+          level == 0 ? 0 : y,
+          x + width,
+          (level == 0 ? 0 : y) + height,
+          GLES20.GL_COLOR_BUFFER_BIT,
+          GLES20.GL_NEAREST);
+      if (level > 0) {
+        y += height;
+      }
+    }
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, atlasFrameBuffer);
+  }
+
+  /** Draws a pyramid level, at half the size of {@code sourceTexture}, to the current viewport. */
+  private void drawDownsampled(int sourceTexture, int sourceWidth, int sourceHeight) {
+    GLES20.glUseProgram(downsampleProgram);
+    GLES20.glUniform2f(downsampleSourceTexelSizeUniform, 1f / sourceWidth, 1f / sourceHeight);
+
+    GLES20.glVertexAttribPointer(
+        downsamplePositionAttrib, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadVertices);
+    GLES20.glVertexAttribPointer(
+        downsampleTexCoordAttrib, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, fullTexCoord);
+    GLES20.glEnableVertexAttribArray(downsamplePositionAttrib);
+    GLES20.glEnableVertexAttribArray(downsampleTexCoordAttrib);
+
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, sourceTexture);
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    GLES20.glDisableVertexAttribArray(downsamplePositionAttrib);
+    GLES20.glDisableVertexAttribArray(downsampleTexCoordAttrib);
+  }
+
   /** Draws texture to full screen. */
   private void drawTexture(int textureId, int textureWidth, int textureHeight) {
     // Disable features that we don't use.
@@ -424,10 +797,15 @@ public class TextureReader {
       float offsetU = (float) (renderWidth - imageWidth) / renderWidth / 2;
       float offsetV = (float) (renderHeight - imageHeight) / renderHeight / 2;
 
-      float[] texCoords =
-          new float[] {
-            offsetU, offsetV, offsetU, 1 - offsetV, 1 - offsetU, offsetV, 1 - offsetU, 1 - offsetV
-          };
+      float[] texCoords = aspectTexCoords;
+      texCoords[0] = offsetU;
+      texCoords[1] = offsetV;
+      texCoords[2] = offsetU;
+      texCoords[3] = 1 - offsetV;
+      texCoords[4] = 1 - offsetU;
+      texCoords[5] = offsetV;
+      texCoords[6] = 1 - offsetU;
+      texCoords[7] = 1 - offsetV;
 
       quadTexCoord.put(texCoords);
       quadTexCoord.position(0);
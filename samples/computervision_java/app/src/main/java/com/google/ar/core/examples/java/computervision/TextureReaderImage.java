@@ -37,12 +37,22 @@ public class TextureReaderImage {
   /** Pixel format. Can be either IMAGE_FORMAT_RGBA or IMAGE_FORMAT_I8. */
   public int format;
 
+  /** The number of bytes between the starts of consecutive rows of the buffer. */
+  public int rowStride;
+
+  // Pyramid levels, level 0 being the image itself. Offsets are in bytes, within the buffer.
+  private int[] levelWidths;
+  private int[] levelHeights;
+  private int[] levelOffsets;
+
   /** Default constructor. */
   public TextureReaderImage() {
     width = 1;
     height = 1;
     format = IMAGE_FORMAT_RGBA;
     buffer = ByteBuffer.allocateDirect(4);
+    rowStride = 4;
+    setSingleLevel();
   }
 
   /**
@@ -70,5 +80,70 @@ public class TextureReaderImage {
     height = imgHeight;
     format = imgFormat;
     buffer = imgBuffer;
+    rowStride = imgWidth * (imgFormat == IMAGE_FORMAT_I8 ? 1 : 4);
+    setSingleLevel();
+  }
+
+  /**
+   * Constructor for an image pyramid packed into one buffer.
+   *
+   * @param imgWidth the width of the image (level 0), in pixels.
+   * @param imgHeight the height of the image (level 0), in pixels.
+   * @param imgFormat the format of the image.
+   * @param imgBuffer the buffer holding the pixels of all levels.
+   * @param imgRowStride the number of bytes between the starts of consecutive rows of the buffer.
+   * @param levelWidths the width of each level, in pixels.
+   * @param levelHeights the height of each level, in pixels.
+   * @param levelOffsets the offset of the first pixel of each level within the buffer, in bytes.
+   */
+  public TextureReaderImage(
+      int imgWidth,
+      int imgHeight,
+      int imgFormat,
+      ByteBuffer imgBuffer,
+      int imgRowStride,
+      int[] levelWidths,
+      int[] levelHeights,
+      int[] levelOffsets) {
+    this(imgWidth, imgHeight, imgFormat, imgBuffer);
+    if (levelWidths.length != levelHeights.length || levelWidths.length != levelOffsets.length) {
+      throw new RuntimeException("Inconsistent pyramid levels.");
+    }
+    rowStride = imgRowStride;
+    this.levelWidths = levelWidths;
+    this.levelHeights = levelHeights;
+    this.levelOffsets = levelOffsets;
+  }
+
+  /** Returns the number of pyramid levels, 1 if the image is not a pyramid. */
+  public int getLevelCount() {
+    return levelWidths.length;
+  }
+
+  /** Returns the width of a pyramid level, in pixels. */
+  public int getLevelWidth(int level) {
+    return levelWidths[level];
+  }
+
+  /** Returns the height of a pyramid level, in pixels. */
+  public int getLevelHeight(int level) {
+    return levelHeights[level];
+  }
+
+  /**
+   * Returns a view of a pyramid level, starting at its first pixel, with rows {@link #rowStride}
+   * bytes apart. The view shares the image buffer, so it is only valid as long as the image.
+   */
+  public ByteBuffer getLevel(int level) {
+    ByteBuffer view = buffer.duplicate();
+    view.clear();
+    view.position(levelOffsets[level]);
+    return view.slice();
+  }
+
+  private void setSingleLevel() {
+    levelWidths = new int[] {width};
+    levelHeights = new int[] {height};
+    levelOffsets = new int[] {0};
   }
 }
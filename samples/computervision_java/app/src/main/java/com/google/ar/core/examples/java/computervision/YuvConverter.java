@@ -0,0 +1,413 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import android.media.Image;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts YUV_420_888 images, such as ARCore CPU images, to RGBA8 or RGB565.
+ *
+ * <p>The planes are read in place, honouring their row and pixel strides, so planar (I420), and
+ * semi-planar (NV12 and NV21) layouts with interleaved chroma are all handled. Colours are
+ * converted with full range BT.601, as produced by camera YUV_420_888 images, using either
+ * floating point or 16-bit fixed-point integer math, see {@link Precision}.
+ *
+ * <p>As in {@link EdgeDetector}, the image is split into bands of rows that are converted in
+ * parallel on a {@link ForkJoinPool}, each row is assembled in a line buffer and written with one
+ * bulk write, and the result is written into a pooled direct buffer that can be handed to GL
+ * without another copy.
+ *
+ * <p>This class is thread-safe, and concurrent calls to {@link #convert} run independently.
+ */
+public class YuvConverter {
+  /** The pixel format of converted images. */
+  public enum OutputFormat {
+    /** Four bytes per pixel in R, G, B, A order, for GL_RGBA and GL_UNSIGNED_BYTE. */
+    RGBA_8888(4),
+    /** One native-order short per pixel, for GL_RGB and GL_UNSIGNED_SHORT_5_6_5. */
+    RGB_565(2);
+
+    /** The number of bytes per pixel. */
+    public final int bytesPerPixel;
+
+    OutputFormat(int bytesPerPixel) {
+      this.bytesPerPixel = bytesPerPixel;
+    }
+  }
+
+  /** The arithmetic used to convert colours. */
+  public enum Precision {
+    /** Floating point math, rounded to the nearest integer. */
+    FLOAT,
+    /**
+     * 16-bit fixed-point integer math. Results differ from {@link #FLOAT} by at most one level,
+     * and it avoids float conversions on cores with slow floating point units.
+     */
+    FIXED_POINT
+  }
+
+  // Full range BT.601 coefficients.
+  private static final float R_FROM_V = 1.402f;
+  private static final float G_FROM_U = 0.344136f;
+  private static final float G_FROM_V = 0.714136f;
+  private static final float B_FROM_U = 1.772f;
+
+  // The same coefficients in 16.16 fixed point.
+  private static final int FIXED_POINT_BITS = 16;
+  private static final int FIXED_POINT_HALF = 1 << (FIXED_POINT_BITS - 1);
+  private static final int R_FROM_V_FIXED = Math.round(R_FROM_V * (1 << FIXED_POINT_BITS));
+  private static final int G_FROM_U_FIXED = Math.round(G_FROM_U * (1 << FIXED_POINT_BITS));
+  private static final int G_FROM_V_FIXED = Math.round(G_FROM_V * (1 << FIXED_POINT_BITS));
+  private static final int B_FROM_U_FIXED = Math.round(B_FROM_U * (1 << FIXED_POINT_BITS));
+
+  private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+  private final ForkJoinPool pool;
+  private final Precision precision;
+  private final ImageRows.OutputPool outputPool = new ImageRows.OutputPool();
+
+  /** Creates a fixed-point converter that runs on the common fork-join pool. */
+  public YuvConverter() {
+    this(ForkJoinPool.commonPool(), Precision.FIXED_POINT);
+  }
+
+  /** Creates a converter that runs on {@code pool}. */
+  public YuvConverter(ForkJoinPool pool, Precision precision) {
+    this.pool = pool;
+    this.precision = precision;
+  }
+
+  /**
+   * Converts a YUV_420_888 image.
+   *
+   * @return a direct buffer of width * height * {@link OutputFormat#bytesPerPixel} bytes, see
+   *     {@link #convert(int, int, ByteBuffer, int, int, ByteBuffer, ByteBuffer, int, int,
+   *     OutputFormat, ByteBuffer)}. The buffer may be handed back with {@link #recycle}.
+   */
+  public ByteBuffer convert(Image image, OutputFormat format) {
+    Image.Plane[] planes = image.getPlanes();
+    return convert(
+        image.getWidth(),
+        image.getHeight(),
+        planes[0].getBuffer(),
+        planes[0].getRowStride(),
+        planes[0].getPixelStride(),
+        planes[1].getBuffer(),
+        planes[2].getBuffer(),
+        planes[1].getRowStride(),
+        planes[1].getPixelStride(),
+        format);
+  }
+
+  /**
+   * Converts the planes of a YUV 4:2:0 image.
+   *
+   * @return a direct buffer of width * height * {@link OutputFormat#bytesPerPixel} bytes, see
+   *     {@link #convert(int, int, ByteBuffer, int, int, ByteBuffer, ByteBuffer, int, int,
+   *     OutputFormat, ByteBuffer)}. The buffer may be handed back with {@link #recycle}.
+   */
+  public ByteBuffer convert(
+      int width,
+      int height,
+      ByteBuffer y,
+      int yRowStride,
+      int yPixelStride,
+      ByteBuffer u,
+      ByteBuffer v,
+      int uvRowStride,
+      int uvPixelStride,
+      OutputFormat format) {
+    ByteBuffer output = outputPool.take(width * height * format.bytesPerPixel);
+    convert(
+        width,
+        height,
+        y,
+        yRowStride,
+        yPixelStride,
+        u,
+        v,
+        uvRowStride,
+        uvPixelStride,
+        format,
+        output);
+    return output;
+  }
+
+  /**
+   * Converts the planes of a YUV 4:2:0 image, writing the result into {@code output}.
+   *
+   * <p>The chroma planes have half the resolution of the luma plane, rounded up, and share their
+   * strides, as in YUV_420_888. All planes are read from index 0 in place, and only up to the last
+   * pixel of each row, since on certain devices the memory allocated for a plane is not an exact
+   * multiple of its row stride.
+   *
+   * @param u the U (Cb) plane. For semi-planar images it overlaps {@code v}, one byte apart.
+   * @param v the V (Cr) plane.
+   * @param output buffer receiving width * height * {@link OutputFormat#bytesPerPixel} bytes from
+   *     index 0, without row padding, which must be within its limit. Its position and limit are
+   *     not changed.
+   */
+  public void convert(
+      int width,
+      int height,
+      ByteBuffer y,
+      int yRowStride,
+      int yPixelStride,
+      ByteBuffer u,
+      ByteBuffer v,
+      int uvRowStride,
+      int uvPixelStride,
+      OutputFormat format,
+      ByteBuffer output) {
+    if (output.limit() < width * height * format.bytesPerPixel) {
+      throw new IllegalArgumentException("Output buffer is smaller than the converted image");
+    }
+    if (width <= 0 || height <= 0) {
+      return;
+    }
+
+    Planes planes =
+        new Planes(
+            width,
+            y,
+            yRowStride,
+            yPixelStride,
+            u,
+            v,
+            uvRowStride,
+            uvPixelStride,
+            format,
+            precision,
+            output);
+    if (height <= ImageRows.MIN_ROWS_PER_TASK) {
+      convertRows(planes, 0, height);
+    } else {
+      pool.invoke(new BandTask(planes, 0, height));
+    }
+  }
+
+  /**
+   * Hands an image returned by {@link #convert} back for reuse. The buffer must not be used
+   * afterwards.
+   */
+  public void recycle(ByteBuffer output) {
+    outputPool.recycle(output);
+  }
+
+  /** The arguments of one conversion, shared by all its bands. */
+  private static final class Planes {
+    final int width;
+    final ByteBuffer y;
+    final int yRowStride;
+    final int yPixelStride;
+    final ByteBuffer u;
+    final ByteBuffer v;
+    final int uvRowStride;
+    final int uvPixelStride;
+    final OutputFormat format;
+    final Precision precision;
+    final ByteBuffer output;
+
+    Planes(
+        int width,
+        ByteBuffer y,
+        int yRowStride,
+        int yPixelStride,
+        ByteBuffer u,
+        ByteBuffer v,
+        int uvRowStride,
+        int uvPixelStride,
+        OutputFormat format,
+        Precision precision,
+        ByteBuffer output) {
+      this.width = width;
+      this.y = y;
+      this.yRowStride = yRowStride;
+      this.yPixelStride = yPixelStride;
+      this.u = u;
+      this.v = v;
+      this.uvRowStride = uvRowStride;
+      this.uvPixelStride = uvPixelStride;
+      this.format = format;
+      this.precision = precision;
+      this.output = output;
+    }
+  }
+
+  /** Converts a band of rows, splitting it in halves until it is small enough. */
+  @SuppressWarnings("serial") // Never serialized.
+  private static final class BandTask extends RecursiveAction {
+    private final Planes planes;
+    private final int startRow;
+    private final int endRow;
+
+    BandTask(Planes planes, int startRow, int endRow) {
+      this.planes = planes;
+      this.startRow = startRow;
+      this.endRow = endRow;
+    }
+
+    @Override
+    protected void compute() {
+      if (endRow - startRow <= ImageRows.MIN_ROWS_PER_TASK) {
+        convertRows(planes, startRow, endRow);
+        return;
+      }
+      // Split on an even row, so that both luma rows of a chroma row fall into the same band.
+      int middleRow = ((startRow + endRow) >>> 1) & ~1;
+      invokeAll(new BandTask(planes, startRow, middleRow), new BandTask(planes, middleRow, endRow));
+    }
+  }
+
+  /**
+   * Line buffers of a thread: packed luma and chroma rows and their reader, the colour offsets of a
+   * chroma row, and the output row.
+   */
+  private static final class LineBuffers {
+    final ImageRows.Reader reader = new ImageRows.Reader();
+    byte[] luma = new byte[0];
+    byte[] cb = new byte[0];
+    byte[] cr = new byte[0];
+    int[] redOffset = new int[0];
+    int[] greenOffset = new int[0];
+    int[] blueOffset = new int[0];
+    byte[] result = new byte[0];
+
+    void ensure(int width, int chromaWidth, int resultLength) {
+      if (luma.length < width) {
+        luma = new byte[width];
+      }
+      if (cb.length < chromaWidth) {
+        cb = new byte[chromaWidth];
+        cr = new byte[chromaWidth];
+        redOffset = new int[chromaWidth];
+        greenOffset = new int[chromaWidth];
+        blueOffset = new int[chromaWidth];
+      }
+      if (result.length < resultLength) {
+        result = new byte[resultLength];
+      }
+    }
+  }
+
+  private static final ThreadLocal<LineBuffers> lineBuffers = ImageRows.perThread(LineBuffers::new);
+
+  /**
+   * Converts rows [startRow, endRow).
+   *
+   * <p>The colour offsets of a chroma row are computed once and shared by the two luma rows it
+   * covers, so the per-pixel work is only adding them to the luma and packing the result.
+   */
+  private static void convertRows(Planes planes, int startRow, int endRow) {
+    int width = planes.width;
+    int chromaWidth = (width + 1) / 2;
+    int resultLength = width * planes.format.bytesPerPixel;
+    LineBuffers buffers = lineBuffers.get();
+    buffers.ensure(width, chromaWidth, resultLength);
+    ImageRows.Reader reader = buffers.reader;
+
+    ByteBuffer y = planes.y.duplicate();
+    ByteBuffer u = planes.u.duplicate();
+    ByteBuffer v = planes.v.duplicate();
+    ByteBuffer destination = planes.output.duplicate();
+
+    int chromaRow = -1;
+    for (int j = startRow; j < endRow; j++) {
+      if (j / 2 != chromaRow) {
+        chromaRow = j / 2;
+        int chromaOffset = chromaRow * planes.uvRowStride;
+        reader.read(u, chromaOffset, chromaWidth, planes.uvPixelStride, buffers.cb, 0);
+        reader.read(v, chromaOffset, chromaWidth, planes.uvPixelStride, buffers.cr, 0);
+        if (planes.precision == Precision.FIXED_POINT) {
+          computeOffsetsFixedPoint(chromaWidth, buffers);
+        } else {
+          computeOffsetsFloat(chromaWidth, buffers);
+        }
+      }
+      reader.read(y, j * planes.yRowStride, width, planes.yPixelStride, buffers.luma, 0);
+
+      if (planes.format == OutputFormat.RGBA_8888) {
+        packRgba8888(width, buffers);
+      } else {
+        packRgb565(width, buffers);
+      }
+      destination.position(j * resultLength);
+      destination.put(buffers.result, 0, resultLength);
+    }
+  }
+
+  private static void computeOffsetsFloat(int chromaWidth, LineBuffers buffers) {
+    for (int c = 0; c < chromaWidth; c++) {
+      int cb = (buffers.cb[c] & 0xFF) - 128;
+      int cr = (buffers.cr[c] & 0xFF) - 128;
+      buffers.redOffset[c] = Math.round(R_FROM_V * cr);
+      buffers.greenOffset[c] = Math.round(-G_FROM_U * cb - G_FROM_V * cr);
+      buffers.blueOffset[c] = Math.round(B_FROM_U * cb);
+    }
+  }
+
+  private static void computeOffsetsFixedPoint(int chromaWidth, LineBuffers buffers) {
+    for (int c = 0; c < chromaWidth; c++) {
+      int cb = (buffers.cb[c] & 0xFF) - 128;
+      int cr = (buffers.cr[c] & 0xFF) - 128;
+      buffers.redOffset[c] = (R_FROM_V_FIXED * cr + FIXED_POINT_HALF) >> FIXED_POINT_BITS;
+      buffers.greenOffset[c] =
+          (-G_FROM_U_FIXED * cb - G_FROM_V_FIXED * cr + FIXED_POINT_HALF) >> FIXED_POINT_BITS;
+      buffers.blueOffset[c] = (B_FROM_U_FIXED * cb + FIXED_POINT_HALF) >> FIXED_POINT_BITS;
+    }
+  }
+
+  private static void packRgba8888(int width, LineBuffers buffers) {
+    byte[] luma = buffers.luma;
+    byte[] result = buffers.result;
+    for (int i = 0, o = 0; i < width; i++, o += 4) {
+      int c = i >> 1;
+      int l = luma[i] & 0xFF;
+      result[o] = (byte) clamp(l + buffers.redOffset[c]);
+      result[o + 1] = (byte) clamp(l + buffers.greenOffset[c]);
+      result[o + 2] = (byte) clamp(l + buffers.blueOffset[c]);
+      result[o + 3] = (byte) 0xFF;
+    }
+  }
+
+  private static void packRgb565(int width, LineBuffers buffers) {
+    byte[] luma = buffers.luma;
+    byte[] result = buffers.result;
+    for (int i = 0, o = 0; i < width; i++, o += 2) {
+      int c = i >> 1;
+      int l = luma[i] & 0xFF;
+      int r = clamp(l + buffers.redOffset[c]);
+      int g = clamp(l + buffers.greenOffset[c]);
+      int b = clamp(l + buffers.blueOffset[c]);
+      int pixel = ((r >> 3) << 11) | ((g >> 2) << 5) | (b >> 3);
+      if (LITTLE_ENDIAN) {
+        result[o] = (byte) pixel;
+        result[o + 1] = (byte) (pixel >> 8);
+      } else {
+        result[o] = (byte) (pixel >> 8);
+        result[o + 1] = (byte) pixel;
+      }
+    }
+  }
+
+  private static int clamp(int value) {
+    return value < 0 ? 0 : (value > 255 ? 255 : value);
+  }
+}
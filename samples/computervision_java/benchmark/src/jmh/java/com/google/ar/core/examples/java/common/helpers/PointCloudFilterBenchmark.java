@@ -0,0 +1,100 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.helpers;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link PointCloudFilter#filter(FloatBuffer, IntBuffer)} on a sequence of synthetic point
+ * clouds, laid out in direct buffers as ARCore returns them.
+ *
+ * <p>From one cloud to the next, most points keep their ID and the rest are replaced by points
+ * with new IDs, so that the temporal filter keeps some points and drops others, as it does on
+ * device. Confidences are uniform, so about 70% of the points pass the default threshold.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointCloudFilterBenchmark {
+  private static final int CLOUD_COUNT = 32;
+  private static final float NEW_POINT_FRACTION = 0.2f;
+
+  @Param({"500", "2000", "8000"})
+  public int pointCount;
+
+  private final FloatBuffer[] points = new FloatBuffer[CLOUD_COUNT];
+  private final IntBuffer[] ids = new IntBuffer[CLOUD_COUNT];
+  private PointCloudFilter filter;
+  private int next;
+
+  @Setup
+  public void setUp() {
+    Random random = new Random(42);
+    int[] cloudIds = new int[pointCount];
+    int nextId = 0;
+    for (int i = 0; i < pointCount; ++i) {
+      cloudIds[i] = nextId++;
+    }
+    for (int cloud = 0; cloud < CLOUD_COUNT; ++cloud) {
+      points[cloud] =
+          ByteBuffer.allocateDirect(4 * 4 * pointCount)
+              .order(ByteOrder.nativeOrder())
+              .asFloatBuffer();
+      ids[cloud] =
+          ByteBuffer.allocateDirect(4 * pointCount).order(ByteOrder.nativeOrder()).asIntBuffer();
+      for (int i = 0; i < pointCount; ++i) {
+        if (cloud > 0 && random.nextFloat() < NEW_POINT_FRACTION) {
+          cloudIds[i] = nextId++;
+        }
+        points[cloud].put(random.nextFloat() * 4.0f - 2.0f);
+        points[cloud].put(random.nextFloat() * 2.0f - 1.0f);
+        points[cloud].put(random.nextFloat() * -4.0f);
+        points[cloud].put(random.nextFloat());
+        ids[cloud].put(cloudIds[i]);
+      }
+      points[cloud].flip();
+      ids[cloud].flip();
+    }
+    filter = new PointCloudFilter();
+    next = 0;
+  }
+
+  @Benchmark
+  public FloatBuffer filter() {
+    int cloud = next;
+    next = (cloud + 1) % CLOUD_COUNT;
+    return filter.filter(points[cloud], ids[cloud]);
+  }
+}
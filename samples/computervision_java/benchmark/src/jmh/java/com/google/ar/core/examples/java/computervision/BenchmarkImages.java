@@ -0,0 +1,90 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/** Synthetic camera planes for the benchmarks of the CPU image stages. */
+final class BenchmarkImages {
+  // Camera planes commonly have rows padded to a multiple of this many bytes.
+  private static final int ROW_ALIGNMENT = 64;
+
+  /** Returns the row stride of a plane {@code width} bytes wide, padded as camera planes are. */
+  static int paddedRowStride(int width) {
+    return (width + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+  }
+
+  /**
+   * Returns a direct buffer holding a Y plane of {@code width} x {@code height} pixels: smooth
+   * gradients with scattered blocks of contrasting brightness and some noise, so that edge and
+   * corner detectors take both of their branches. The last row is not padded, as on devices whose
+   * planes are not an exact multiple of the row stride.
+   */
+  static ByteBuffer createLumaPlane(int width, int height, int rowStride) {
+    return createLumaPlane(width, height, rowStride, /* shift= */ 0);
+  }
+
+  /**
+   * Returns the Y plane of {@link #createLumaPlane(int, int, int)} with its blocks moved {@code
+   * shift} pixels right and down, as if the camera moved between frames.
+   */
+  static ByteBuffer createLumaPlane(int width, int height, int rowStride, int shift) {
+    Random random = new Random(42 + shift);
+    byte[] pixels = new byte[(height - 1) * rowStride + width];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int value = (x * 255 / width + y * 255 / height) / 2;
+        // The pattern repeats every 120 pixels, which are added to keep the coordinates positive.
+        int blockX = x + 120 - shift % 120;
+        int blockY = y + 120 - shift % 120;
+        if (((blockX / 40) + (blockY / 40)) % 3 == 0 && (blockX % 40) > 10 && (blockY % 40) > 10) {
+          value = 255 - value;
+        }
+        value += random.nextInt(16) - 8;
+        pixels[y * rowStride + x] = (byte) Math.max(0, Math.min(255, value));
+      }
+    }
+    ByteBuffer plane = ByteBuffer.allocateDirect(pixels.length);
+    plane.put(pixels);
+    plane.clear();
+    return plane;
+  }
+
+  /**
+   * Returns a direct buffer holding the interleaved chroma samples of a semi-planar (NV21) image
+   * whose chroma planes are {@code chromaWidth} x {@code chromaHeight}, V first, as camera
+   * YUV_420_888 images commonly are. The V plane starts at index 0 and the U plane at index 1, both
+   * with a pixel stride of 2.
+   */
+  static ByteBuffer createInterleavedChromaPlanes(
+      int chromaWidth, int chromaHeight, int rowStride) {
+    Random random = new Random(43);
+    byte[] samples = new byte[(chromaHeight - 1) * rowStride + 2 * chromaWidth];
+    for (int y = 0; y < chromaHeight; y++) {
+      for (int x = 0; x < chromaWidth; x++) {
+        samples[y * rowStride + 2 * x] = (byte) (128 + (x * 96 / chromaWidth) - 48);
+        samples[y * rowStride + 2 * x + 1] = (byte) (128 + random.nextInt(64) - 32);
+      }
+    }
+    ByteBuffer planes = ByteBuffer.allocateDirect(samples.length);
+    planes.put(samples);
+    planes.clear();
+    return planes;
+  }
+
+  private BenchmarkImages() {}
+}
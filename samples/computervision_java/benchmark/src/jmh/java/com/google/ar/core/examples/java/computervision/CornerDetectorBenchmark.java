@@ -0,0 +1,132 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link CornerDetector} on the Y planes of recorded frames, replayed by a {@link
+ * ReplayFrameSource} as fast as they are consumed and looped over.
+ *
+ * <p>Recordings made on a device with {@link FrameRecorder} are passed with {@code -p
+ * recording=<path>}. Without one, a synthetic recording of a moving pattern is written to a
+ * temporary file first, so that the benchmark runs anywhere.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CornerDetectorBenchmark {
+  private static final int SYNTHETIC_WIDTH = 640;
+  private static final int SYNTHETIC_HEIGHT = 480;
+  private static final int SYNTHETIC_FRAME_COUNT = 60;
+  private static final long SYNTHETIC_FRAME_INTERVAL_NANOS = 33_333_333L;
+
+  /** The path of a recording, or empty for a synthetic one. */
+  @Param({""})
+  public String recording;
+
+  private File syntheticRecording;
+  private ReplayFrameSource source;
+  private final RecordedFrame frame = new RecordedFrame();
+  private CornerDetector cornerDetector;
+
+  @Setup
+  public void setUp() throws IOException {
+    File file;
+    if (recording.isEmpty()) {
+      syntheticRecording = File.createTempFile("corner_detector_benchmark", ".bin");
+      writeSyntheticRecording(syntheticRecording);
+      file = syntheticRecording;
+    } else {
+      file = new File(recording);
+    }
+    source = new ReplayFrameSource(file, /* realTime= */ false);
+    if (source.getFrameCount() == 0) {
+      throw new IOException("Recording has no frames: " + file);
+    }
+    cornerDetector = new CornerDetector();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    source.close();
+    if (syntheticRecording != null && !syntheticRecording.delete()) {
+      syntheticRecording.deleteOnExit();
+    }
+  }
+
+  @Benchmark
+  public CornerDetector.Corners detect() throws IOException {
+    if (!source.nextFrame(frame)) {
+      source.rewind();
+      source.nextFrame(frame);
+    }
+    CornerDetector.Corners corners =
+        cornerDetector.detect(
+            frame.width, frame.height, frame.rowStrides[0], frame.pixelStrides[0], frame.planes[0]);
+    cornerDetector.recycle(corners);
+    return corners;
+  }
+
+  private static void writeSyntheticRecording(File file) throws IOException {
+    int yRowStride = BenchmarkImages.paddedRowStride(SYNTHETIC_WIDTH);
+    int chromaWidth = (SYNTHETIC_WIDTH + 1) / 2;
+    int chromaHeight = (SYNTHETIC_HEIGHT + 1) / 2;
+    int uvRowStride = BenchmarkImages.paddedRowStride(2 * chromaWidth);
+    ByteBuffer v =
+        BenchmarkImages.createInterleavedChromaPlanes(chromaWidth, chromaHeight, uvRowStride);
+    ByteBuffer uStart = v.duplicate();
+    uStart.position(1);
+
+    RecordedFrame syntheticFrame = new RecordedFrame();
+    syntheticFrame.width = SYNTHETIC_WIDTH;
+    syntheticFrame.height = SYNTHETIC_HEIGHT;
+    syntheticFrame.planes[1] = uStart.slice();
+    syntheticFrame.planes[2] = v;
+    syntheticFrame.rowStrides[0] = yRowStride;
+    syntheticFrame.pixelStrides[0] = 1;
+    for (int plane = 1; plane < RecordedFrame.PLANE_COUNT; plane++) {
+      syntheticFrame.rowStrides[plane] = uvRowStride;
+      syntheticFrame.pixelStrides[plane] = 2;
+    }
+    try (FrameRecorder recorder = new FrameRecorder(file)) {
+      for (int i = 0; i < SYNTHETIC_FRAME_COUNT; i++) {
+        syntheticFrame.timestampNanos = i * SYNTHETIC_FRAME_INTERVAL_NANOS;
+        syntheticFrame.planes[0] =
+            BenchmarkImages.createLumaPlane(SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT, yRowStride, 2 * i);
+        recorder.record(syntheticFrame);
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.computervision;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link YuvConverter} with each {@link YuvConverter.Precision} and {@link
+ * YuvConverter.OutputFormat}, on semi-planar images laid out as camera YUV_420_888 images commonly
+ * are. Results are recycled once used, as in the app.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvConverterBenchmark {
+  @Param({"640x480", "1920x1080"})
+  public String resolution;
+
+  @Param({"FLOAT", "FIXED_POINT"})
+  public YuvConverter.Precision precision;
+
+  @Param({"RGBA_8888", "RGB_565"})
+  public YuvConverter.OutputFormat format;
+
+  private int width;
+  private int height;
+  private int yRowStride;
+  private int uvRowStride;
+  private ByteBuffer y;
+  private ByteBuffer u;
+  private ByteBuffer v;
+  private YuvConverter converter;
+
+  @Setup
+  public void setUp() {
+    String[] size = resolution.split("x");
+    width = Integer.parseInt(size[0]);
+    height = Integer.parseInt(size[1]);
+    yRowStride = BenchmarkImages.paddedRowStride(width);
+    y = BenchmarkImages.createLumaPlane(width, height, yRowStride);
+    int chromaWidth = (width + 1) / 2;
+    int chromaHeight = (height + 1) / 2;
+    uvRowStride = BenchmarkImages.paddedRowStride(2 * chromaWidth);
+    v = BenchmarkImages.createInterleavedChromaPlanes(chromaWidth, chromaHeight, uvRowStride);
+    ByteBuffer uStart = v.duplicate();
+    uStart.position(1);
+    u = uStart.slice();
+    converter = new YuvConverter(ForkJoinPool.commonPool(), precision);
+  }
+
+  @Benchmark
+  public ByteBuffer convert() {
+    ByteBuffer output =
+        converter.convert(
+            width,
+            height,
+            y,
+            yRowStride,
+            /* yPixelStride= */ 1,
+            u,
+            v,
+            uvRowStride,
+            /* uvPixelStride= */ 2,
+            format);
+    converter.recycle(output);
+    return output;
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.helpers;
+
+import android.app.Activity;
+import android.view.Choreographer;
+import android.view.WindowManager;
+import java.util.Objects;
+
+/**
+ * Carries UI state decided on the render thread (the status message, whether to keep the screen
+ * on, and a fatal error) to the UI thread.
+ *
+ * <p>The render thread sets the desired state every frame and calls {@link #publish}. Only when the
+ * desired state differs from what the UI shows is an update scheduled, as a {@link Choreographer}
+ * frame callback, so at most one update reaches the UI thread per display frame and none while the
+ * state is unchanged. The update applies the latest desired state, skipping any intermediate ones.
+ */
+public final class UiStatePublisher {
+  private final Activity activity;
+  private final SnackbarHelper snackbarHelper;
+  private final Choreographer choreographer;
+  private final Choreographer.FrameCallback applyCallback = frameTimeNanos -> apply();
+
+  // Desired state, written by the render thread.
+  private String message;
+  private boolean keepScreenOn;
+  private String error;
+
+  // State shown by the UI, written by the UI thread. Guarded by this, like the desired state.
+  private String shownMessage;
+  private boolean shownKeepScreenOn;
+  private String shownError;
+  private boolean updateScheduled = false;
+
+  /**
+   * Creates the publisher. Must be called on the UI thread.
+   *
+   * @param snackbarHelper The helper used to show messages and errors.
+   */
+  public UiStatePublisher(Activity activity, SnackbarHelper snackbarHelper) {
+    this.activity = activity;
+    this.snackbarHelper = snackbarHelper;
+    this.choreographer = Choreographer.getInstance();
+  }
+
+  /** Sets the message to show, or null to hide it. */
+  public synchronized void setMessage(String message) {
+    this.message = message;
+  }
+
+  /** Sets whether the screen should be kept unlocked, typically while tracking. */
+  public synchronized void setKeepScreenOn(boolean keepScreenOn) {
+    this.keepScreenOn = keepScreenOn;
+  }
+
+  /**
+   * Sets an error to show. When dismissed, the error finishes the activity, and no further
+   * messages are shown.
+   */
+  public synchronized void setError(String error) {
+    this.error = error;
+  }
+
+  /** Schedules an update of the UI if the desired state differs from what it shows. */
+  public synchronized void publish() {
+    if (updateScheduled || isShown()) {
+      return;
+    }
+    updateScheduled = true;
+    // Frame callbacks may be posted from any thread; they run on the UI thread's next vsync.
+    choreographer.postFrameCallback(applyCallback);
+  }
+
+  private boolean isShown() {
+    return Objects.equals(message, shownMessage)
+        && keepScreenOn == shownKeepScreenOn
+        && Objects.equals(error, shownError);
+  }
+
+  private void apply() {
+    String newMessage;
+    boolean newKeepScreenOn;
+    String newError;
+    boolean messageChanged;
+    boolean keepScreenOnChanged;
+    boolean errorChanged;
+    synchronized (this) {
+      updateScheduled = false;
+      newMessage = message;
+      newKeepScreenOn = keepScreenOn;
+      newError = error;
+      messageChanged = !Objects.equals(message, shownMessage);
+      keepScreenOnChanged = keepScreenOn != shownKeepScreenOn;
+      errorChanged = !Objects.equals(error, shownError);
+      shownMessage = message;
+      shownKeepScreenOn = keepScreenOn;
+      shownError = error;
+    }
+
+    if (keepScreenOnChanged) {
+      if (newKeepScreenOn) {
+        activity.getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+      } else {
+        activity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+      }
+    }
+    if (newError != null) {
+      // An error replaces any message, and stays until the user dismisses it.
+      if (errorChanged) {
+        snackbarHelper.showError(activity, newError);
+      }
+    } else if (messageChanged) {
+      if (newMessage == null) {
+        snackbarHelper.hide(activity);
+      } else {
+        snackbarHelper.showMessage(activity, newMessage);
+      }
+    }
+  }
+}
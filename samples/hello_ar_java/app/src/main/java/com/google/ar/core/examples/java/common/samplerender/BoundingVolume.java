@@ -0,0 +1,93 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.nio.FloatBuffer;
+
+/**
+ * The axis-aligned bounding box and bounding sphere of a set of vertices, in the local coordinates
+ * of the model they were loaded from.
+ *
+ * <p>The arrays returned by the getters are owned by this object and must not be modified.
+ */
+public final class BoundingVolume {
+  private final float[] min;
+  private final float[] max;
+  private final float[] center;
+  private final float radius;
+
+  private BoundingVolume(float[] min, float[] max, float[] center, float radius) {
+    this.min = min;
+    this.max = max;
+    this.center = center;
+    this.radius = radius;
+  }
+
+  /**
+   * Computes the bounds of the vertices in {@code positions}, which holds three floats (x, y, z)
+   * per vertex. The buffer's position is left unchanged.
+   */
+  public static BoundingVolume fromVertices(FloatBuffer positions) {
+    int numberOfVertices = positions.limit() / 3;
+    if (numberOfVertices == 0) {
+      return new BoundingVolume(new float[3], new float[3], new float[3], 0.0f);
+    }
+
+    float[] min = {Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE};
+    float[] max = {-Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE};
+    for (int i = 0; i < numberOfVertices * 3; i += 3) {
+      for (int axis = 0; axis < 3; ++axis) {
+        float value = positions.get(i + axis);
+        min[axis] = Math.min(min[axis], value);
+        max[axis] = Math.max(max[axis], value);
+      }
+    }
+
+    // Center the sphere on the box, and size it to the farthest vertex rather than to the box
+    // corners, which gives a noticeably tighter sphere for rounded models.
+    float[] center = {
+      (min[0] + max[0]) * 0.5f, (min[1] + max[1]) * 0.5f, (min[2] + max[2]) * 0.5f
+    };
+    float radiusSquared = 0.0f;
+    for (int i = 0; i < numberOfVertices * 3; i += 3) {
+      float dx = positions.get(i) - center[0];
+      float dy = positions.get(i + 1) - center[1];
+      float dz = positions.get(i + 2) - center[2];
+      radiusSquared = Math.max(radiusSquared, dx * dx + dy * dy + dz * dz);
+    }
+    return new BoundingVolume(min, max, center, (float) Math.sqrt(radiusSquared));
+  }
+
+  /** Returns the minimum corner of the bounding box. */
+  public float[] getMin() {
+    return min;
+  }
+
+  /** Returns the maximum corner of the bounding box. */
+  public float[] getMax() {
+    return max;
+  }
+
+  /** Returns the center of the bounding sphere. */
+  public float[] getCenter() {
+    return center;
+  }
+
+  /** Returns the radius of the bounding sphere. */
+  public float getRadius() {
+    return radius;
+  }
+}
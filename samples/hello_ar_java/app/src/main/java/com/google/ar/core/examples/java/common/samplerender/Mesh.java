@@ -63,6 +63,8 @@ public class Mesh implements Closeable {
   private final PrimitiveMode primitiveMode;
   private final IndexBuffer indexBuffer;
   private final VertexBuffer[] vertexBuffers;
+  private BoundingVolume boundingVolume;
+  private MeshBvh bvh;
 
   /**
    * Construct a {@link Mesh}.
@@ -126,8 +128,21 @@ public class Mesh implements Closeable {
    * <p>The {@link Mesh} will be constructed with three attributes, indexed in the order of local
    * coordinates (location 0, vec3), texture coordinates (location 1, vec2), and vertex normals
    * (location 2, vec3).
+   *
+   * <p>The bounds of the local coordinates and a {@link MeshBvh} of the triangles are computed
+   * while loading, and are available through {@link #getBoundingVolume()} and {@link #getBvh()}.
    */
   public static Mesh createFromAsset(SampleRender render, String assetFileName) throws IOException {
+    return createFromAsset(render, assetFileName, /*computeBounds=*/ true);
+  }
+
+  /**
+   * Like {@link #createFromAsset(SampleRender, String)}, but only computes the bounds and the
+   * {@link MeshBvh} if {@code computeBounds} is true. Otherwise {@link #getBoundingVolume()} and
+   * {@link #getBvh()} return null.
+   */
+  public static Mesh createFromAsset(
+      SampleRender render, String assetFileName, boolean computeBounds) throws IOException {
     try (InputStream inputStream = render.getAssets().open(assetFileName)) {
       Obj obj = ObjUtils.convertToRenderable(ObjReader.read(inputStream));
 
@@ -145,10 +160,31 @@ public class Mesh implements Closeable {
 
       IndexBuffer indexBuffer = new IndexBuffer(render, vertexIndices);
 
-      return new Mesh(render, Mesh.PrimitiveMode.TRIANGLES, indexBuffer, vertexBuffers);
+      Mesh mesh = new Mesh(render, Mesh.PrimitiveMode.TRIANGLES, indexBuffer, vertexBuffers);
+      if (computeBounds) {
+        mesh.boundingVolume = BoundingVolume.fromVertices(localCoordinates);
+        mesh.bvh = MeshBvh.build(localCoordinates, vertexIndices);
+      }
+      return mesh;
     }
   }
 
+  /**
+   * Returns the bounds of the mesh's local coordinates, or null if they were not computed by
+   * {@link #createFromAsset}.
+   */
+  public BoundingVolume getBoundingVolume() {
+    return boundingVolume;
+  }
+
+  /**
+   * Returns the bounding volume hierarchy of the mesh's triangles, for ray picking on the CPU, or
+   * null if it was not computed by {@link #createFromAsset}.
+   */
+  public MeshBvh getBvh() {
+    return bvh;
+  }
+
   @Override
   public void close() {
     if (vertexArrayId[0] != 0) {
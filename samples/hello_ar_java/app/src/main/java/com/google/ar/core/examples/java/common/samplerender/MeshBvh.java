@@ -0,0 +1,505 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A bounding volume hierarchy over the triangles of a mesh, for intersecting rays with the mesh on
+ * the CPU.
+ *
+ * <p>The hierarchy is built with the surface area heuristic, evaluated over a fixed number of bins
+ * per axis, and is stored flattened in depth-first order: the left child of an inner node directly
+ * follows it, and the triangles of each leaf are contiguous. Coordinates are in the local space of
+ * the mesh.
+ *
+ * <p>Instances are immutable once built. Queries reuse a traversal stack owned by the instance so
+ * that they do not allocate, so an instance must only be queried from one thread at a time.
+ */
+public final class MeshBvh {
+  private static final int NUMBER_OF_BINS = 12;
+  // Leaves with at most this many triangles are not split further, whatever their cost.
+  private static final int MIN_LEAF_SIZE = 2;
+  // Leaves are split whenever they have more triangles than this, even when the heuristic prefers
+  // not to, which bounds the worst-case cost of a leaf.
+  private static final int MAX_LEAF_SIZE = 8;
+  // The cost of visiting an inner node, relative to intersecting one triangle.
+  private static final float TRAVERSAL_COST = 1.0f;
+  // Bounds the depth of the tree, and therefore the traversal stack.
+  private static final int MAX_DEPTH = 48;
+
+  // Six floats per node: min x, y, z, then max x, y, z.
+  private final float[] nodeBounds;
+  // Two ints per node. For a leaf, the first triangle and the (positive) number of triangles. For
+  // an inner node, the index of the right child and zero.
+  private final int[] nodeData;
+  // Nine floats per triangle, in leaf order.
+  private final float[] triangles;
+  // The index of each triangle in the original index buffer, in leaf order.
+  private final int[] triangleIndices;
+  // The right children left to visit during a traversal.
+  private final int[] stack = new int[MAX_DEPTH + 2];
+
+  private MeshBvh(float[] nodeBounds, int[] nodeData, float[] triangles, int[] triangleIndices) {
+    this.nodeBounds = nodeBounds;
+    this.nodeData = nodeData;
+    this.triangles = triangles;
+    this.triangleIndices = triangleIndices;
+  }
+
+  /**
+   * Builds the hierarchy of a triangle mesh. The positions and indices of the buffers are left
+   * unchanged.
+   *
+   * @param positions Three floats (x, y, z) per vertex.
+   * @param indices Three vertex indices per triangle.
+   */
+  public static MeshBvh build(FloatBuffer positions, IntBuffer indices) {
+    return new Builder(positions, indices).build();
+  }
+
+  public int getNumberOfTriangles() {
+    return triangleIndices.length;
+  }
+
+  public int getNumberOfNodes() {
+    return nodeData.length / 2;
+  }
+
+  /**
+   * Intersects a ray with the mesh, treating triangles as two-sided.
+   *
+   * <p>The ray is {@code origin + t * direction} for {@code t >= 0}. The direction does not need
+   * to be normalized, so a ray transformed into the mesh's local space by an affine matrix yields
+   * the same {@code t} as the untransformed ray does in world space.
+   *
+   * @param maxDistance Hits with a larger {@code t} are ignored.
+   * @return The smallest {@code t} of a hit, or {@link Float#POSITIVE_INFINITY} if there is none.
+   */
+  public float intersect(float[] origin, float[] direction, float maxDistance) {
+    int hit = traverse(origin, direction, maxDistance);
+    return hit < 0 ? Float.POSITIVE_INFINITY : distanceTo(hit, origin, direction);
+  }
+
+  /**
+   * Like {@link #intersect}, but returns the index of the hit triangle in the mesh's index buffer,
+   * or -1 if there is no hit. If {@code outDistance} is not null, the hit's {@code t} is written
+   * to {@code outDistance[0]}.
+   */
+  public int intersectTriangle(
+      float[] origin, float[] direction, float maxDistance, float[] outDistance) {
+    int hit = traverse(origin, direction, maxDistance);
+    if (hit < 0) {
+      return -1;
+    }
+    if (outDistance != null) {
+      outDistance[0] = distanceTo(hit, origin, direction);
+    }
+    return triangleIndices[hit];
+  }
+
+  /** Returns the position in leaf order of the nearest triangle hit, or -1. */
+  private int traverse(float[] origin, float[] direction, float maxDistance) {
+    if (triangleIndices.length == 0) {
+      return -1;
+    }
+    float ox = origin[0];
+    float oy = origin[1];
+    float oz = origin[2];
+    float dx = direction[0];
+    float dy = direction[1];
+    float dz = direction[2];
+    float inverseDx = 1.0f / dx;
+    float inverseDy = 1.0f / dy;
+    float inverseDz = 1.0f / dz;
+
+    int stackSize = 0;
+    int node = 0;
+    float nearest = maxDistance;
+    int nearestTriangle = -1;
+    while (true) {
+      if (intersectBox(
+          nodeBounds, 6 * node, ox, oy, oz, inverseDx, inverseDy, inverseDz, nearest)) {
+        int count = nodeData[2 * node + 1];
+        if (count > 0) {
+          int first = nodeData[2 * node];
+          for (int i = first; i < first + count; ++i) {
+            float t = intersectTriangle(triangles, 9 * i, ox, oy, oz, dx, dy, dz);
+            if (t >= 0.0f && t < nearest) {
+              nearest = t;
+              nearestTriangle = i;
+            }
+          }
+        } else {
+          // Visit the left child next and come back to the right one.
+          stack[stackSize++] = nodeData[2 * node];
+          node = node + 1;
+          continue;
+        }
+      }
+      if (stackSize == 0) {
+        break;
+      }
+      node = stack[--stackSize];
+    }
+    return nearestTriangle;
+  }
+
+  private float distanceTo(int hit, float[] origin, float[] direction) {
+    return intersectTriangle(
+        triangles,
+        9 * hit,
+        origin[0],
+        origin[1],
+        origin[2],
+        direction[0],
+        direction[1],
+        direction[2]);
+  }
+
+  /**
+   * Returns true if the ray enters the box at {@code offset} in {@code bounds} before {@code
+   * maxDistance}. Uses the slab method; divisions by zero are harmless because the comparisons
+   * ignore the resulting NaNs.
+   */
+  static boolean intersectBox(
+      float[] bounds,
+      int offset,
+      float ox,
+      float oy,
+      float oz,
+      float inverseDx,
+      float inverseDy,
+      float inverseDz,
+      float maxDistance) {
+    float near = 0.0f;
+    float far = maxDistance;
+
+    float t0 = (bounds[offset] - ox) * inverseDx;
+    float t1 = (bounds[offset + 3] - ox) * inverseDx;
+    if (t0 > t1) {
+      float swap = t0;
+      t0 = t1;
+      t1 = swap;
+    }
+    if (t0 > near) {
+      near = t0;
+    }
+    if (t1 < far) {
+      far = t1;
+    }
+
+    t0 = (bounds[offset + 1] - oy) * inverseDy;
+    t1 = (bounds[offset + 4] - oy) * inverseDy;
+    if (t0 > t1) {
+      float swap = t0;
+      t0 = t1;
+      t1 = swap;
+    }
+    if (t0 > near) {
+      near = t0;
+    }
+    if (t1 < far) {
+      far = t1;
+    }
+
+    t0 = (bounds[offset + 2] - oz) * inverseDz;
+    t1 = (bounds[offset + 5] - oz) * inverseDz;
+    if (t0 > t1) {
+      float swap = t0;
+      t0 = t1;
+      t1 = swap;
+    }
+    if (t0 > near) {
+      near = t0;
+    }
+    if (t1 < far) {
+      far = t1;
+    }
+    return near <= far;
+  }
+
+  /** Moller-Trumbore intersection; returns the ray's {@code t}, or -1 if there is no hit. */
+  private static float intersectTriangle(
+      float[] triangles, int offset, float ox, float oy, float oz, float dx, float dy, float dz) {
+    float ax = triangles[offset];
+    float ay = triangles[offset + 1];
+    float az = triangles[offset + 2];
+    float e1x = triangles[offset + 3] - ax;
+    float e1y = triangles[offset + 4] - ay;
+    float e1z = triangles[offset + 5] - az;
+    float e2x = triangles[offset + 6] - ax;
+    float e2y = triangles[offset + 7] - ay;
+    float e2z = triangles[offset + 8] - az;
+
+    float px = dy * e2z - dz * e2y;
+    float py = dz * e2x - dx * e2z;
+    float pz = dx * e2y - dy * e2x;
+    float determinant = e1x * px + e1y * py + e1z * pz;
+    if (determinant == 0.0f) {
+      return -1.0f;
+    }
+    float inverseDeterminant = 1.0f / determinant;
+
+    float sx = ox - ax;
+    float sy = oy - ay;
+    float sz = oz - az;
+    float u = (sx * px + sy * py + sz * pz) * inverseDeterminant;
+    if (u < 0.0f || u > 1.0f) {
+      return -1.0f;
+    }
+
+    float qx = sy * e1z - sz * e1y;
+    float qy = sz * e1x - sx * e1z;
+    float qz = sx * e1y - sy * e1x;
+    float v = (dx * qx + dy * qy + dz * qz) * inverseDeterminant;
+    if (v < 0.0f || u + v > 1.0f) {
+      return -1.0f;
+    }
+    return (e2x * qx + e2y * qy + e2z * qz) * inverseDeterminant;
+  }
+
+  /** Recursive binned SAH construction. */
+  private static final class Builder {
+    private final int numberOfTriangles;
+    // Per triangle, in original order: the bounds (six floats) and the centroid (three floats).
+    private final float[] triangleBounds;
+    private final float[] centroids;
+    private final float[] vertices;
+    // Triangle indices, partitioned in place as nodes are split.
+    private final int[] order;
+
+    private float[] nodeBounds;
+    private int[] nodeData;
+    private int numberOfNodes = 0;
+
+    // Scratch space for the bins of one axis.
+    private final int[] binCounts = new int[NUMBER_OF_BINS];
+    private final float[] binBounds = new float[6 * NUMBER_OF_BINS];
+    private final float[] rightAreas = new float[NUMBER_OF_BINS];
+    private final int[] rightCounts = new int[NUMBER_OF_BINS];
+    private final float[] centroidBounds = new float[6];
+    private final float[] sweepBounds = new float[6];
+
+    Builder(FloatBuffer positions, IntBuffer indices) {
+      numberOfTriangles = indices.limit() / 3;
+      triangleBounds = new float[6 * numberOfTriangles];
+      centroids = new float[3 * numberOfTriangles];
+      vertices = new float[9 * numberOfTriangles];
+      order = new int[numberOfTriangles];
+      for (int i = 0; i < numberOfTriangles; ++i) {
+        order[i] = i;
+        emptyBounds(triangleBounds, 6 * i);
+        for (int corner = 0; corner < 3; ++corner) {
+          int vertex = indices.get(3 * i + corner);
+          for (int axis = 0; axis < 3; ++axis) {
+            float value = positions.get(3 * vertex + axis);
+            vertices[9 * i + 3 * corner + axis] = value;
+            growBounds(triangleBounds, 6 * i, axis, value);
+          }
+        }
+        for (int axis = 0; axis < 3; ++axis) {
+          centroids[3 * i + axis] =
+              (triangleBounds[6 * i + axis] + triangleBounds[6 * i + 3 + axis]) * 0.5f;
+        }
+      }
+      int maxNodes = Math.max(1, 2 * numberOfTriangles - 1);
+      nodeBounds = new float[6 * maxNodes];
+      nodeData = new int[2 * maxNodes];
+    }
+
+    MeshBvh build() {
+      if (numberOfTriangles == 0) {
+        return new MeshBvh(new float[6], new int[] {0, 0}, new float[0], new int[0]);
+      }
+      buildNode(0, numberOfTriangles, 0);
+
+      float[] sortedVertices = new float[9 * numberOfTriangles];
+      for (int i = 0; i < numberOfTriangles; ++i) {
+        System.arraycopy(vertices, 9 * order[i], sortedVertices, 9 * i, 9);
+      }
+      return new MeshBvh(
+          Arrays.copyOf(nodeBounds, 6 * numberOfNodes),
+          Arrays.copyOf(nodeData, 2 * numberOfNodes),
+          sortedVertices,
+          order);
+    }
+
+    private void buildNode(int start, int end, int depth) {
+      int node = numberOfNodes++;
+      int count = end - start;
+
+      // Bounds of the triangles, and of their centroids, which determine the bins.
+      emptyBounds(nodeBounds, 6 * node);
+      emptyBounds(centroidBounds, 0);
+      for (int i = start; i < end; ++i) {
+        int triangle = order[i];
+        for (int axis = 0; axis < 3; ++axis) {
+          growBounds(nodeBounds, 6 * node, axis, triangleBounds[6 * triangle + axis]);
+          growBounds(nodeBounds, 6 * node, axis, triangleBounds[6 * triangle + 3 + axis]);
+          growBounds(centroidBounds, 0, axis, centroids[3 * triangle + axis]);
+        }
+      }
+
+      if (count <= MIN_LEAF_SIZE || depth >= MAX_DEPTH) {
+        makeLeaf(node, start, count);
+        return;
+      }
+
+      // Find the cheapest split among the bin boundaries of all three axes.
+      float bestCost = Float.POSITIVE_INFINITY;
+      int bestAxis = -1;
+      int bestSplit = 0;
+      float bestMin = 0.0f;
+      float bestScale = 0.0f;
+      for (int axis = 0; axis < 3; ++axis) {
+        float min = centroidBounds[axis];
+        float extent = centroidBounds[3 + axis] - min;
+        if (extent <= 0.0f) {
+          continue;
+        }
+        float scale = NUMBER_OF_BINS / extent;
+        Arrays.fill(binCounts, 0);
+        for (int bin = 0; bin < NUMBER_OF_BINS; ++bin) {
+          emptyBounds(binBounds, 6 * bin);
+        }
+        for (int i = start; i < end; ++i) {
+          int triangle = order[i];
+          int bin = binIndex(centroids[3 * triangle + axis], min, scale);
+          ++binCounts[bin];
+          for (int a = 0; a < 3; ++a) {
+            growBounds(binBounds, 6 * bin, a, triangleBounds[6 * triangle + a]);
+            growBounds(binBounds, 6 * bin, a, triangleBounds[6 * triangle + 3 + a]);
+          }
+        }
+
+        // Sweep from the right to get the area and count right of each boundary, then from the
+        // left to evaluate each boundary.
+        float[] sweep = sweepBounds;
+        emptyBounds(sweep, 0);
+        int sweepCount = 0;
+        for (int bin = NUMBER_OF_BINS - 1; bin > 0; --bin) {
+          unionBounds(sweep, binBounds, 6 * bin);
+          sweepCount += binCounts[bin];
+          rightAreas[bin] = surfaceArea(sweep, 0);
+          rightCounts[bin] = sweepCount;
+        }
+        emptyBounds(sweep, 0);
+        sweepCount = 0;
+        for (int bin = 1; bin < NUMBER_OF_BINS; ++bin) {
+          unionBounds(sweep, binBounds, 6 * (bin - 1));
+          sweepCount += binCounts[bin - 1];
+          if (sweepCount == 0 || rightCounts[bin] == 0) {
+            continue;
+          }
+          float cost = surfaceArea(sweep, 0) * sweepCount + rightAreas[bin] * rightCounts[bin];
+          if (cost < bestCost) {
+            bestCost = cost;
+            bestAxis = axis;
+            bestSplit = bin;
+            bestMin = min;
+            bestScale = scale;
+          }
+        }
+      }
+
+      int middle;
+      if (bestAxis < 0) {
+        // All centroids coincide: no split separates them, so cut the range in half.
+        if (count <= MAX_LEAF_SIZE) {
+          makeLeaf(node, start, count);
+          return;
+        }
+        middle = start + count / 2;
+      } else {
+        float leafCost = count * surfaceArea(nodeBounds, 6 * node);
+        float splitCost = TRAVERSAL_COST * surfaceArea(nodeBounds, 6 * node) + bestCost;
+        if (splitCost >= leafCost && count <= MAX_LEAF_SIZE) {
+          makeLeaf(node, start, count);
+          return;
+        }
+        middle = partition(start, end, bestAxis, bestMin, bestScale, bestSplit);
+      }
+
+      buildNode(start, middle, depth + 1);
+      nodeData[2 * node] = numberOfNodes;
+      nodeData[2 * node + 1] = 0;
+      buildNode(middle, end, depth + 1);
+    }
+
+    private void makeLeaf(int node, int start, int count) {
+      nodeData[2 * node] = start;
+      nodeData[2 * node + 1] = count;
+    }
+
+    /** Moves the triangles whose centroid falls left of {@code split} before the others. */
+    private int partition(int start, int end, int axis, float min, float scale, int split) {
+      int left = start;
+      int right = end - 1;
+      while (left <= right) {
+        if (binIndex(centroids[3 * order[left] + axis], min, scale) < split) {
+          ++left;
+        } else {
+          int swap = order[left];
+          order[left] = order[right];
+          order[right] = swap;
+          --right;
+        }
+      }
+      return left;
+    }
+
+    private static int binIndex(float value, float min, float scale) {
+      int bin = (int) ((value - min) * scale);
+      return Math.min(Math.max(bin, 0), NUMBER_OF_BINS - 1);
+    }
+  }
+
+  private static void emptyBounds(float[] bounds, int offset) {
+    for (int axis = 0; axis < 3; ++axis) {
+      bounds[offset + axis] = Float.POSITIVE_INFINITY;
+      bounds[offset + 3 + axis] = Float.NEGATIVE_INFINITY;
+    }
+  }
+
+  private static void growBounds(float[] bounds, int offset, int axis, float value) {
+    if (value < bounds[offset + axis]) {
+      bounds[offset + axis] = value;
+    }
+    if (value > bounds[offset + 3 + axis]) {
+      bounds[offset + 3 + axis] = value;
+    }
+  }
+
+  private static void unionBounds(float[] bounds, float[] other, int otherOffset) {
+    for (int axis = 0; axis < 3; ++axis) {
+      growBounds(bounds, 0, axis, other[otherOffset + axis]);
+      growBounds(bounds, 0, axis, other[otherOffset + 3 + axis]);
+    }
+  }
+
+  private static float surfaceArea(float[] bounds, int offset) {
+    float x = bounds[offset + 3] - bounds[offset];
+    float y = bounds[offset + 4] - bounds[offset + 1];
+    float z = bounds[offset + 5] - bounds[offset + 2];
+    if (x < 0.0f || y < 0.0f || z < 0.0f) {
+      return 0.0f;
+    }
+    return 2.0f * (x * y + y * z + z * x);
+  }
+}
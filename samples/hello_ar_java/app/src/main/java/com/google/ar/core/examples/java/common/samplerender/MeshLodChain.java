@@ -0,0 +1,150 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A sequence of {@link Mesh}es of the same model at decreasing levels of detail, and the logic to
+ * pick one based on how large the model appears on screen.
+ *
+ * <p>Level 0 is the full-detail model. The coarser levels are typically generated offline with
+ * {@code tools/simplify_obj.py}.
+ */
+public class MeshLodChain implements Closeable {
+  private final Mesh[] meshes;
+  private final float[] minimumScreenSizes;
+  private final float hysteresis;
+
+  /**
+   * Constructs a {@link MeshLodChain}.
+   *
+   * @param meshes The meshes, from the most to the least detailed.
+   * @param minimumScreenSizes For each level except the last, the screen size (as returned by
+   *     {@link #computeScreenSize}) below which the next, coarser level should be used. Must be
+   *     decreasing.
+   * @param hysteresis The fraction by which the screen size must cross a threshold before the level
+   *     changes, so that objects near a threshold do not switch back and forth every frame.
+   */
+  public MeshLodChain(Mesh[] meshes, float[] minimumScreenSizes, float hysteresis) {
+    if (meshes.length == 0 || minimumScreenSizes.length != meshes.length - 1) {
+      throw new IllegalArgumentException(
+          "Must pass at least one mesh and one screen size per mesh except the last");
+    }
+    for (int i = 1; i < minimumScreenSizes.length; ++i) {
+      if (minimumScreenSizes[i] >= minimumScreenSizes[i - 1]) {
+        throw new IllegalArgumentException("Screen sizes must be decreasing");
+      }
+    }
+    this.meshes = meshes;
+    this.minimumScreenSizes = minimumScreenSizes;
+    this.hysteresis = hysteresis;
+  }
+
+  /**
+   * Constructs a {@link MeshLodChain} from Wavefront OBJ files, from the most to the least
+   * detailed. See {@link Mesh#createFromAsset}. Bounds and a hierarchy for picking are only
+   * computed for the full-detail mesh, which is the only one they are used for.
+   */
+  public static MeshLodChain createFromAssets(
+      SampleRender render, String[] assetFileNames, float[] minimumScreenSizes, float hysteresis)
+      throws IOException {
+    Mesh[] meshes = new Mesh[assetFileNames.length];
+    try {
+      for (int i = 0; i < assetFileNames.length; ++i) {
+        meshes[i] = Mesh.createFromAsset(render, assetFileNames[i], /*computeBounds=*/ i == 0);
+      }
+    } catch (Throwable t) {
+      for (Mesh mesh : meshes) {
+        if (mesh != null) {
+          mesh.close();
+        }
+      }
+      throw t;
+    }
+    return new MeshLodChain(meshes, minimumScreenSizes, hysteresis);
+  }
+
+  @Override
+  public void close() {
+    for (Mesh mesh : meshes) {
+      mesh.close();
+    }
+  }
+
+  public int getNumberOfLevels() {
+    return meshes.length;
+  }
+
+  public Mesh getMesh(int level) {
+    return meshes[level];
+  }
+
+  /** Returns the bounds of the full-detail mesh, which also contain all coarser levels. */
+  public BoundingVolume getBoundingVolume() {
+    return meshes[0].getBoundingVolume();
+  }
+
+  /**
+   * Returns the bounding volume hierarchy of the full-detail mesh, so that picking does not depend
+   * on the level of detail being drawn.
+   */
+  public MeshBvh getBvh() {
+    return meshes[0].getBvh();
+  }
+
+  /**
+   * Returns the fraction of the viewport height covered by the bounding sphere of the full-detail
+   * mesh, or {@link Float#MAX_VALUE} if the camera is inside the sphere.
+   *
+   * @param modelViewMatrix The model-view matrix of the object, at {@code offset}.
+   * @param projectionMatrix The projection matrix of the camera.
+   */
+  public float computeScreenSize(float[] modelViewMatrix, int offset, float[] projectionMatrix) {
+    BoundingVolume bounds = getBoundingVolume();
+    float[] center = bounds.getCenter();
+    float depth =
+        -(modelViewMatrix[offset + 2] * center[0]
+            + modelViewMatrix[offset + 6] * center[1]
+            + modelViewMatrix[offset + 10] * center[2]
+            + modelViewMatrix[offset + 14]);
+    if (depth <= bounds.getRadius()) {
+      return Float.MAX_VALUE;
+    }
+    // projectionMatrix[5] is cot(fovy / 2), which maps a view-space height at unit depth to half of
+    // the viewport height.
+    return bounds.getRadius() * projectionMatrix[5] / depth;
+  }
+
+  /**
+   * Returns the level of detail to use for an object with the given screen size.
+   *
+   * @param screenSize The screen size of the object, as returned by {@link #computeScreenSize}.
+   * @param previousLevel The level used for the same object in the previous frame.
+   */
+  public int selectLevel(float screenSize, int previousLevel) {
+    int level = Math.max(0, Math.min(previousLevel, meshes.length - 1));
+    while (level < meshes.length - 1
+        && screenSize < minimumScreenSizes[level] * (1.0f - hysteresis)) {
+      ++level;
+    }
+    while (level > 0 && screenSize > minimumScreenSizes[level - 1] * (1.0f + hysteresis)) {
+      --level;
+    }
+    return level;
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.samplerender;
+
+import android.opengl.Matrix;
+
+/**
+ * Finds the nearest of several mesh instances hit by a ray, in two levels.
+ *
+ * <p>A scene-level structure (for example a spatial grid of instances) uses {@link #isBoxHit} to
+ * discard instances whose world-space bounds the ray misses, or that lie beyond the nearest hit
+ * found so far. Each remaining instance is passed to {@link #pickInstance}, which transforms the
+ * ray into the instance's local space and intersects it with the instance's {@link MeshBvh}, so
+ * the mesh itself is never transformed.
+ *
+ * <p>Instances allocate nothing after construction and are not thread-safe.
+ */
+public final class RayPicker {
+  private final float[] origin = new float[4];
+  private final float[] direction = new float[4];
+  private final float[] inverseDirection = new float[3];
+  private float hitDistance = Float.POSITIVE_INFINITY;
+
+  private final float[] inverseViewProjectionMatrix = new float[16];
+  private final float[] inverseModelMatrix = new float[16];
+  private final float[] localOrigin = new float[4];
+  private final float[] localDirection = new float[4];
+  private final float[] nearPoint = new float[4];
+  private final float[] farPoint = new float[4];
+  private final float[] boxBounds = new float[6];
+
+  /**
+   * Starts a new pick with a world-space ray through a point of the viewport.
+   *
+   * @param x The horizontal position of the point, in pixels from the left of the viewport.
+   * @param y The vertical position of the point, in pixels from the top of the viewport.
+   * @param viewProjectionMatrix The camera's projection x view matrix.
+   */
+  public void setRayFromViewport(
+      float x, float y, int viewportWidth, int viewportHeight, float[] viewProjectionMatrix) {
+    Matrix.invertM(inverseViewProjectionMatrix, 0, viewProjectionMatrix, 0);
+    float ndcX = 2.0f * x / viewportWidth - 1.0f;
+    float ndcY = 1.0f - 2.0f * y / viewportHeight;
+    unproject(ndcX, ndcY, -1.0f, nearPoint);
+    unproject(ndcX, ndcY, 1.0f, farPoint);
+    direction[0] = farPoint[0] - nearPoint[0];
+    direction[1] = farPoint[1] - nearPoint[1];
+    direction[2] = farPoint[2] - nearPoint[2];
+    float length =
+        (float)
+            Math.sqrt(
+                direction[0] * direction[0]
+                    + direction[1] * direction[1]
+                    + direction[2] * direction[2]);
+    direction[0] /= length;
+    direction[1] /= length;
+    direction[2] /= length;
+    setRay(nearPoint, direction);
+  }
+
+  /**
+   * Starts a new pick with a world-space ray. Hit distances are in units of {@code
+   * rayDirection}'s length.
+   */
+  public void setRay(float[] rayOrigin, float[] rayDirection) {
+    for (int i = 0; i < 3; ++i) {
+      origin[i] = rayOrigin[i];
+      direction[i] = rayDirection[i];
+      inverseDirection[i] = 1.0f / rayDirection[i];
+    }
+    origin[3] = 1.0f;
+    direction[3] = 0.0f;
+    hitDistance = Float.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Returns true if the ray enters the world-space box before the nearest hit so far. Matches
+   * {@code SpatialHashGrid.BoxTest}, so it can be used as {@code rayPicker::isBoxHit}.
+   */
+  public boolean isBoxHit(float[] min, float[] max) {
+    System.arraycopy(min, 0, boxBounds, 0, 3);
+    System.arraycopy(max, 0, boxBounds, 3, 3);
+    return MeshBvh.intersectBox(
+        boxBounds,
+        0,
+        origin[0],
+        origin[1],
+        origin[2],
+        inverseDirection[0],
+        inverseDirection[1],
+        inverseDirection[2],
+        hitDistance);
+  }
+
+  /**
+   * Intersects the ray with an instance of a mesh, and returns true if the instance is hit closer
+   * than any instance passed since the last call to {@link #setRay}.
+   *
+   * @param modelMatrix The instance's model matrix, at {@code offset}.
+   * @param bvh The hierarchy of the instance's mesh, in its local coordinates.
+   */
+  public boolean pickInstance(float[] modelMatrix, int offset, MeshBvh bvh) {
+    if (!Matrix.invertM(inverseModelMatrix, 0, modelMatrix, offset)) {
+      return false;
+    }
+    // The model matrix is affine, so t along the transformed ray equals t along the world ray.
+    Matrix.multiplyMV(localOrigin, 0, inverseModelMatrix, 0, origin, 0);
+    Matrix.multiplyMV(localDirection, 0, inverseModelMatrix, 0, direction, 0);
+    float distance = bvh.intersect(localOrigin, localDirection, hitDistance);
+    if (distance < hitDistance) {
+      hitDistance = distance;
+      return true;
+    }
+    return false;
+  }
+
+  /** Returns true if any instance was hit since the last call to {@link #setRay}. */
+  public boolean hasHit() {
+    return hitDistance != Float.POSITIVE_INFINITY;
+  }
+
+  /** Returns the distance along the ray of the nearest hit, or infinity if there is none. */
+  public float getHitDistance() {
+    return hitDistance;
+  }
+
+  /** Returns the ray's world-space origin, as a homogeneous point. */
+  public float[] getOrigin() {
+    return origin;
+  }
+
+  /** Returns the ray's world-space direction. */
+  public float[] getDirection() {
+    return direction;
+  }
+
+  private void unproject(float ndcX, float ndcY, float ndcZ, float[] out) {
+    float[] clip = localOrigin; // Scratch; only used by pickInstance otherwise.
+    clip[0] = ndcX;
+    clip[1] = ndcY;
+    clip[2] = ndcZ;
+    clip[3] = 1.0f;
+    Matrix.multiplyMV(out, 0, inverseViewProjectionMatrix, 0, clip, 0);
+    out[0] /= out[3];
+    out[1] /= out[3];
+    out[2] /= out[3];
+    out[3] = 1.0f;
+  }
+}
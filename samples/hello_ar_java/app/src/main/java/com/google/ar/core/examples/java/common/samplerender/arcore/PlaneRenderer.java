@@ -224,9 +224,22 @@ public class PlaneRenderer {
    */
   public void drawPlanes(
       SampleRender render, Collection<Plane> allPlanes, Pose cameraPose, float[] cameraProjection) {
-    // Planes must be sorted by distance from camera so that we draw closer planes first, and
-    // they occlude the farther planes.
-    List<SortablePlane> sortedPlanes = new ArrayList<>();
+    List<Plane> sortedPlanes = new ArrayList<>();
+    sortPlanes(allPlanes, cameraPose, sortedPlanes);
+    drawSortedPlanes(render, sortedPlanes, cameraPose, cameraProjection);
+  }
+
+  /**
+   * Collects the tracked, front-facing planes of {@code allPlanes} into {@code sortedPlanes},
+   * ordered by distance from the camera so that closer planes are drawn first and occlude the
+   * farther ones.
+   *
+   * <p>This method does not touch any GL state, but it reads the state of each plane, so it must be
+   * called on the thread that updates the session, like any other use of ARCore objects.
+   */
+  public static void sortPlanes(
+      Collection<Plane> allPlanes, Pose cameraPose, List<Plane> sortedPlanes) {
+    List<SortablePlane> sortablePlanes = new ArrayList<>();
 
     for (Plane plane : allPlanes) {
       if (plane.getTrackingState() != TrackingState.TRACKING || plane.getSubsumedBy() != null) {
@@ -237,10 +250,10 @@ public class PlaneRenderer {
       if (distance < 0) { // Plane is back-facing.
         continue;
       }
-      sortedPlanes.add(new SortablePlane(distance, plane));
+      sortablePlanes.add(new SortablePlane(distance, plane));
     }
     Collections.sort(
-        sortedPlanes,
+        sortablePlanes,
         new Comparator<SortablePlane>() {
           @Override
           public int compare(SortablePlane a, SortablePlane b) {
@@ -248,10 +261,25 @@ public class PlaneRenderer {
           }
         });
 
+    sortedPlanes.clear();
+    for (SortablePlane sortablePlane : sortablePlanes) {
+      sortedPlanes.add(sortablePlane.plane);
+    }
+  }
+
+  /**
+   * Draws planes that have already been ordered by {@link #sortPlanes}.
+   *
+   * @param sortedPlanes The planes to draw, in the order produced by {@link #sortPlanes}.
+   * @param cameraPose The pose of the camera, as returned by {@link Camera#getPose()}
+   * @param cameraProjection The projection matrix, as returned by {@link
+   *     Camera#getProjectionMatrix(float[], int, float, float)}
+   */
+  public void drawSortedPlanes(
+      SampleRender render, List<Plane> sortedPlanes, Pose cameraPose, float[] cameraProjection) {
     cameraPose.inverse().toMatrix(viewMatrix, 0);
 
-    for (SortablePlane sortedPlane : sortedPlanes) {
-      Plane plane = sortedPlane.plane;
+    for (Plane plane : sortedPlanes) {
       float[] planeMatrix = new float[16];
       plane.getCenterPose().toMatrix(planeMatrix, 0);
 
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.helloar;
+
+import com.google.ar.core.Plane;
+import com.google.ar.core.Pose;
+import com.google.ar.core.TrackingState;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The per-frame state that {@link HelloArActivity} needs in order to submit draw calls, for a
+ * single {@link com.google.ar.core.Frame}.
+ *
+ * <p>What is queried from the frame is gathered into the packet first, and the rest is computed
+ * from it, so that drawing only reads the packet. All arrays are allocated once and reused for
+ * subsequent frames.
+ */
+final class FramePacket {
+  private static final int INITIAL_ANCHOR_CAPACITY = 16;
+
+  // Camera state.
+  TrackingState trackingState = TrackingState.STOPPED;
+  Pose cameraDisplayOrientedPose;
+  final float[] viewMatrix = new float[16];
+  final float[] projectionMatrix = new float[16];
+  final float[] viewProjectionMatrix = new float[16]; // projection x view
+
+  // Planes, ordered by distance from the camera.
+  final List<Plane> sortedPlanes = new ArrayList<>();
+
+  // Gathered from the frame: the model matrix of each tracked anchor in a grid cell that
+  // intersects the view frustum, 16 floats apiece, and the level of detail it was last drawn with.
+  int candidateCount;
+  float[] candidateModelMatrices = new float[16 * INITIAL_ANCHOR_CAPACITY];
+  int[] candidateLodLevels = new int[INITIAL_ANCHOR_CAPACITY];
+
+  // Model-view and model-view-projection matrices of each visible anchor, 16 floats apiece,
+  // and the level of detail to draw it with.
+  int anchorCount;
+  float[] anchorModelViewMatrices = new float[16 * INITIAL_ANCHOR_CAPACITY];
+  float[] anchorModelViewProjectionMatrices = new float[16 * INITIAL_ANCHOR_CAPACITY];
+  int[] anchorLodLevels = new int[INITIAL_ANCHOR_CAPACITY];
+
+  // Light estimation, as gathered from the frame.
+  boolean lightEstimateIsValid;
+  final float[] worldLightDirection = new float[4]; // w is 0.
+  final float[] ambientSphericalHarmonics = new float[9 * 3];
+
+  // Light estimation uniforms.
+  final float[] viewInverseMatrix = new float[16];
+  final float[] viewLightDirection = new float[4];
+  final float[] lightIntensity = new float[3];
+  final float[] sphericalHarmonicsCoefficients = new float[9 * 3];
+
+  // Message to show to the user, or null to hide the message.
+  String message;
+
+  /** Resets the per-frame contents of this packet so that it can be filled again. */
+  void reset() {
+    trackingState = TrackingState.STOPPED;
+    cameraDisplayOrientedPose = null;
+    sortedPlanes.clear();
+    candidateCount = 0;
+    anchorCount = 0;
+    lightEstimateIsValid = false;
+    message = null;
+  }
+
+  /**
+   * Reserves room for one more candidate anchor and returns the offset at which its model matrix
+   * should be written in {@link #candidateModelMatrices}. Its level of detail goes in {@link
+   * #candidateLodLevels} at {@code offset / 16}.
+   */
+  int addCandidate() {
+    int offset = 16 * candidateCount;
+    if (offset + 16 > candidateModelMatrices.length) {
+      candidateModelMatrices = Arrays.copyOf(candidateModelMatrices, 2 * (offset + 16));
+      candidateLodLevels = Arrays.copyOf(candidateLodLevels, candidateModelMatrices.length / 16);
+    }
+    ++candidateCount;
+    return offset;
+  }
+
+  /**
+   * Reserves room for one more anchor and returns the offset at which its matrices should be
+   * written in {@link #anchorModelViewMatrices} and {@link #anchorModelViewProjectionMatrices}.
+   * The anchor's level of detail goes in {@link #anchorLodLevels} at {@code offset / 16}.
+   */
+  int addAnchor() {
+    int offset = 16 * anchorCount;
+    if (offset + 16 > anchorModelViewMatrices.length) {
+      anchorModelViewMatrices = Arrays.copyOf(anchorModelViewMatrices, 2 * (offset + 16));
+      anchorModelViewProjectionMatrices =
+          Arrays.copyOf(anchorModelViewProjectionMatrices, 2 * (offset + 16));
+      anchorLodLevels = Arrays.copyOf(anchorLodLevels, anchorModelViewMatrices.length / 16);
+    }
+    ++anchorCount;
+    return offset;
+  }
+}
@@ -25,7 +25,6 @@ import android.opengl.Matrix;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.MenuItem;
-import android.view.MotionEvent;
 import android.view.View;
 import android.widget.ImageButton;
 import android.widget.PopupMenu;
@@ -45,6 +44,7 @@ import com.google.ar.core.Plane;
 import com.google.ar.core.Point;
 import com.google.ar.core.Point.OrientationMode;
 import com.google.ar.core.PointCloud;
+import com.google.ar.core.Pose;
 import com.google.ar.core.Session;
 import com.google.ar.core.Trackable;
 import com.google.ar.core.TrackingFailureReason;
@@ -53,13 +53,20 @@ import com.google.ar.core.examples.java.common.helpers.CameraPermissionHelper;
 import com.google.ar.core.examples.java.common.helpers.DepthSettings;
 import com.google.ar.core.examples.java.common.helpers.DisplayRotationHelper;
 import com.google.ar.core.examples.java.common.helpers.FullScreenHelper;
+import com.google.ar.core.examples.java.common.helpers.LatencyRecorder;
 import com.google.ar.core.examples.java.common.helpers.InstantPlacementSettings;
+import com.google.ar.core.examples.java.common.helpers.PointCloudFilter;
 import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
+import com.google.ar.core.examples.java.common.helpers.SpatialHashGrid;
 import com.google.ar.core.examples.java.common.helpers.TapHelper;
 import com.google.ar.core.examples.java.common.helpers.TrackingStateHelper;
+import com.google.ar.core.examples.java.common.helpers.UiStatePublisher;
 import com.google.ar.core.examples.java.common.samplerender.Framebuffer;
+import com.google.ar.core.examples.java.common.samplerender.FrustumCuller;
 import com.google.ar.core.examples.java.common.samplerender.GLError;
 import com.google.ar.core.examples.java.common.samplerender.Mesh;
+import com.google.ar.core.examples.java.common.samplerender.MeshLodChain;
+import com.google.ar.core.examples.java.common.samplerender.RayPicker;
 import com.google.ar.core.examples.java.common.samplerender.SampleRender;
 import com.google.ar.core.examples.java.common.samplerender.Shader;
 import com.google.ar.core.examples.java.common.samplerender.Texture;
@@ -80,6 +87,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * This is a simple example that shows how to create an augmented reality (AR) application using the
@@ -110,6 +118,22 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   private static final float Z_NEAR = 0.1f;
   private static final float Z_FAR = 100f;
 
+  // Levels of detail of the virtual object, from most to least detailed, and the fraction of the
+  // viewport height below which the next level is used.
+  private static final String[] VIRTUAL_OBJECT_LOD_ASSETS = {
+    "models/pawn.obj", "models/pawn_lod1.obj", "models/pawn_lod2.obj"
+  };
+  private static final float[] VIRTUAL_OBJECT_LOD_SCREEN_SIZES = {0.1f, 0.04f};
+  private static final float VIRTUAL_OBJECT_LOD_HYSTERESIS = 0.15f;
+
+  // Placed objects are indexed in a grid of cells of this size. Cells are enlarged by the margin
+  // for visibility tests, which covers the size of the pawn plus some drift of its anchor.
+  private static final float PLACED_OBJECT_CELL_SIZE_METERS = 1.0f;
+  private static final float PLACED_OBJECT_CELL_MARGIN_METERS = 0.5f;
+  // Number of off-screen objects whose anchor pose is re-read per frame, so that refinements of
+  // anchor poses by ARCore eventually reach the grid even for objects that are not drawn.
+  private static final int PLACED_OBJECT_POSITION_REFRESH_BATCH = 32;
+
   private static final int CUBEMAP_RESOLUTION = 16;
   private static final int CUBEMAP_NUMBER_OF_IMPORTANCE_SAMPLES = 32;
 
@@ -121,8 +145,10 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   private Session session;
   private final SnackbarHelper messageSnackbarHelper = new SnackbarHelper();
   private DisplayRotationHelper displayRotationHelper;
-  private final TrackingStateHelper trackingStateHelper = new TrackingStateHelper(this);
+  // Carries the snackbar message and keep-screen-on state from the render thread to the UI thread.
+  private UiStatePublisher uiStatePublisher;
   private TapHelper tapHelper;
+  private final TapHelper.Event tapEvent = new TapHelper.Event();
   private SampleRender render;
 
   private PlaneRenderer planeRenderer;
@@ -151,26 +177,52 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   // Keep track of the last point cloud rendered to avoid updating the VBO if point cloud
   // was not changed.  Do this using the timestamp since we can't compare PointCloud objects.
   private long lastPointCloudTimestamp = 0;
+  // Drops low-confidence and short-lived points before they are uploaded.
+  private final PointCloudFilter pointCloudFilter = new PointCloudFilter();
 
   // Virtual object (ARCore pawn)
-  private Mesh virtualObjectMesh;
+  private MeshLodChain virtualObjectLods;
   private Shader virtualObjectShader;
-  private final ArrayList<Anchor> anchors = new ArrayList<>();
+  // Only accessed on the GL thread.
+  private final SpatialHashGrid<PlacedObject> placedObjects =
+      new SpatialHashGrid<>(PLACED_OBJECT_CELL_SIZE_METERS, PLACED_OBJECT_CELL_MARGIN_METERS);
+  private final ArrayList<SpatialHashGrid.Entry<PlacedObject>> visibleObjects = new ArrayList<>();
+  // The placed object of each candidate anchor of the current packet. GL thread only.
+  private final ArrayList<PlacedObject> candidateObjects = new ArrayList<>();
+
+  // The per-frame state, reused for every frame. GL thread only.
+  private final FramePacket framePacket = new FramePacket();
+
+  // Time between consecutive frames, and time spent waiting in Session.update(), since the last
+  // resume. Logged when the activity is paused.
+  private final LatencyRecorder renderFrameLatencyRecorder = new LatencyRecorder();
+  private final LatencyRecorder sessionUpdateLatencyRecorder = new LatencyRecorder();
 
   // Environmental HDR
   private Texture dfgTexture;
   private SpecularCubemapFilter cubemapFilter;
 
-  // Temporary matrix allocated here to reduce number of allocations for each frame.
+  // Temporary matrices allocated here to reduce number of allocations for each frame. They are
+  // only used on the GL thread.
   private final float[] modelMatrix = new float[16];
-  private final float[] viewMatrix = new float[16];
-  private final float[] projectionMatrix = new float[16];
   private final float[] modelViewMatrix = new float[16]; // view x model
   private final float[] modelViewProjectionMatrix = new float[16]; // projection x view x model
-  private final float[] sphericalHarmonicsCoefficients = new float[9 * 3];
-  private final float[] viewInverseMatrix = new float[16];
-  private final float[] worldLightDirection = {0.0f, 0.0f, 0.0f, 0.0f};
-  private final float[] viewLightDirection = new float[4]; // view x world light direction
+  private final FrustumCuller frustumCuller = new FrustumCuller();
+  private final SpatialHashGrid.BoxTest frustumBoxTest = frustumCuller::isBoxVisible;
+  private final float[] frustumMin = new float[3];
+  private final float[] frustumMax = new float[3];
+  private final SpatialHashGrid.PositionSource<PlacedObject> anchorPositionSource =
+      HelloArActivity::getAnchorPosition;
+
+  // Picking of placed objects by tapping them, on the GL thread only.
+  private final RayPicker rayPicker = new RayPicker();
+  private final SpatialHashGrid.BoxTest rayBoxTest = rayPicker::isBoxHit;
+  private final ArrayList<SpatialHashGrid.Entry<PlacedObject>> pickCandidates = new ArrayList<>();
+  private final float[] pickViewMatrix = new float[16];
+  private final float[] pickProjectionMatrix = new float[16];
+  private final float[] pickViewProjectionMatrix = new float[16];
+  private volatile int surfaceWidth;
+  private volatile int surfaceHeight;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -178,6 +230,7 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     setContentView(R.layout.activity_main);
     surfaceView = findViewById(R.id.surfaceview);
     displayRotationHelper = new DisplayRotationHelper(/*context=*/ this);
+    uiStatePublisher = new UiStatePublisher(/*activity=*/ this, messageSnackbarHelper);
 
     // Set up touch listener.
     tapHelper = new TapHelper(/*context=*/ this);
@@ -294,6 +347,9 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
       session = null;
       return;
     }
+    // Latencies of the previous run do not describe this one.
+    renderFrameLatencyRecorder.reset();
+    sessionUpdateLatencyRecorder.reset();
 
     surfaceView.onResume();
     displayRotationHelper.onResume();
@@ -309,7 +365,23 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
       displayRotationHelper.onPause();
       surfaceView.onPause();
       session.pause();
+      logLatencies();
+    }
+  }
+
+  private void logLatencies() {
+    if (renderFrameLatencyRecorder.getCount() == 0) {
+      return;
     }
+    Log.i(
+        TAG,
+        String.format(
+            Locale.US,
+            "Frame time p50 %.1f ms, p99 %.1f ms. Session.update() p50 %.1f ms, p99 %.1f ms.",
+            renderFrameLatencyRecorder.getPercentileMillis(50),
+            renderFrameLatencyRecorder.getPercentileMillis(99),
+            sessionUpdateLatencyRecorder.getPercentileMillis(50),
+            sessionUpdateLatencyRecorder.getPercentileMillis(99)));
   }
 
   @Override
@@ -405,7 +477,12 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
               "models/pawn_roughness_metallic_ao.png",
               Texture.WrapMode.CLAMP_TO_EDGE,
               Texture.ColorFormat.LINEAR);
-      virtualObjectMesh = Mesh.createFromAsset(render, "models/pawn.obj");
+      virtualObjectLods =
+          MeshLodChain.createFromAssets(
+              render,
+              VIRTUAL_OBJECT_LOD_ASSETS,
+              VIRTUAL_OBJECT_LOD_SCREEN_SIZES,
+              VIRTUAL_OBJECT_LOD_HYSTERESIS);
       virtualObjectShader =
           Shader.createFromAssets(
                   render,
@@ -432,6 +509,8 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
   public void onSurfaceChanged(SampleRender render, int width, int height) {
     displayRotationHelper.onSurfaceChanged(width, height);
     virtualSceneFramebuffer.resize(width, height);
+    surfaceWidth = width;
+    surfaceHeight = height;
   }
 
   @Override
@@ -458,12 +537,18 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     // Obtain the current frame from ARSession. When the configuration is set to
     // UpdateMode.BLOCKING (it is by default), this will throttle the rendering to the
     // camera framerate.
+    // The time since the previous frame started, which the first frame after a resume has none of.
+    renderFrameLatencyRecorder.stop();
+    renderFrameLatencyRecorder.start();
     Frame frame;
     try {
+      sessionUpdateLatencyRecorder.start();
       frame = session.update();
+      sessionUpdateLatencyRecorder.stop();
     } catch (CameraNotAvailableException e) {
       Log.e(TAG, "Camera not available during onDrawFrame", e);
-      messageSnackbarHelper.showError(this, "Camera not available. Try restarting the app.");
+      uiStatePublisher.setError("Camera not available. Try restarting the app.");
+      uiStatePublisher.publish();
       return;
     }
     Camera camera = frame.getCamera();
@@ -475,9 +560,18 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
       backgroundRenderer.setUseOcclusion(render, depthSettings.useDepthForOcclusion());
     } catch (IOException e) {
       Log.e(TAG, "Failed to read a required asset file", e);
-      messageSnackbarHelper.showError(this, "Failed to read a required asset file: " + e);
+      uiStatePublisher.setError("Failed to read a required asset file: " + e);
+      uiStatePublisher.publish();
       return;
     }
+
+    // Query the frame and handle taps, then compute the rest of the CPU side of this frame
+    // (matrices, culling, levels of detail and light estimation) from what was queried.
+    FramePacket packet = framePacket;
+    packet.reset();
+    gatherFramePacket(frame, packet);
+    computeFramePacket(packet);
+
     // BackgroundRenderer.updateDisplayGeometry must be called every frame to update the coordinates
     // used to draw the background camera image.
     backgroundRenderer.updateDisplayGeometry(frame);
@@ -493,34 +587,6 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
       }
     }
 
-    // Handle one tap per frame.
-    handleTap(frame, camera);
-
-    // Keep the screen unlocked while tracking, but allow it to lock when tracking stops.
-    trackingStateHelper.updateKeepScreenOnFlag(camera.getTrackingState());
-
-    // Show a message based on whether tracking has failed, if planes are detected, and if the user
-    // has placed any objects.
-    String message = null;
-    if (camera.getTrackingState() == TrackingState.PAUSED) {
-      if (camera.getTrackingFailureReason() == TrackingFailureReason.NONE) {
-        message = SEARCHING_PLANE_MESSAGE;
-      } else {
-        message = TrackingStateHelper.getTrackingFailureReasonString(camera);
-      }
-    } else if (hasTrackingPlane()) {
-      if (anchors.isEmpty()) {
-        message = WAITING_FOR_TAP_MESSAGE;
-      }
-    } else {
-      message = SEARCHING_PLANE_MESSAGE;
-    }
-    if (message == null) {
-      messageSnackbarHelper.hide(this);
-    } else {
-      messageSnackbarHelper.showMessage(this, message);
-    }
-
     // -- Draw background
 
     if (frame.getTimestamp() != 0) {
@@ -529,111 +595,275 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
       backgroundRenderer.drawBackground(render);
     }
 
+    // Keep the screen unlocked while tracking, but allow it to lock when tracking stops. The UI is
+    // only touched when this state or the message changes, at most once per display frame.
+    uiStatePublisher.setKeepScreenOn(packet.trackingState == TrackingState.TRACKING);
+    uiStatePublisher.setMessage(packet.message);
+    uiStatePublisher.publish();
+
     // If not tracking, don't draw 3D objects.
-    if (camera.getTrackingState() == TrackingState.PAUSED) {
+    if (packet.trackingState == TrackingState.PAUSED) {
       return;
     }
 
     // -- Draw non-occluded virtual objects (planes, point cloud)
 
-    // Get projection matrix.
-    camera.getProjectionMatrix(projectionMatrix, 0, Z_NEAR, Z_FAR);
-
-    // Get camera matrix and draw.
-    camera.getViewMatrix(viewMatrix, 0);
-
     // Visualize tracked points.
     // Use try-with-resources to automatically release the point cloud.
     try (PointCloud pointCloud = frame.acquirePointCloud()) {
       if (pointCloud.getTimestamp() > lastPointCloudTimestamp) {
-        pointCloudVertexBuffer.set(pointCloud.getPoints());
+        pointCloudVertexBuffer.set(pointCloudFilter.filter(pointCloud));
         lastPointCloudTimestamp = pointCloud.getTimestamp();
       }
-      Matrix.multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
-      pointCloudShader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
+      pointCloudShader.setMat4("u_ModelViewProjection", packet.viewProjectionMatrix);
       render.draw(pointCloudMesh, pointCloudShader);
     }
 
     // Visualize planes.
-    planeRenderer.drawPlanes(
-        render,
-        session.getAllTrackables(Plane.class),
-        camera.getDisplayOrientedPose(),
-        projectionMatrix);
+    planeRenderer.drawSortedPlanes(
+        render, packet.sortedPlanes, packet.cameraDisplayOrientedPose, packet.projectionMatrix);
 
     // -- Draw occluded virtual objects
 
     // Update lighting parameters in the shader
-    updateLightEstimation(frame.getLightEstimate(), viewMatrix);
+    updateLightEstimation(frame.getLightEstimate(), packet);
 
     // Visualize anchors created by touch.
     render.clear(virtualSceneFramebuffer, 0f, 0f, 0f, 0f);
-    for (Anchor anchor : anchors) {
+    for (int i = 0; i < packet.anchorCount; ++i) {
+      System.arraycopy(packet.anchorModelViewMatrices, 16 * i, modelViewMatrix, 0, 16);
+      System.arraycopy(
+          packet.anchorModelViewProjectionMatrices, 16 * i, modelViewProjectionMatrix, 0, 16);
+
+      // Update shader properties and draw
+      virtualObjectShader.setMat4("u_ModelView", modelViewMatrix);
+      virtualObjectShader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
+      render.draw(
+          virtualObjectLods.getMesh(packet.anchorLodLevels[i]),
+          virtualObjectShader,
+          virtualSceneFramebuffer);
+    }
+
+    // Compose the virtual scene with the background.
+    backgroundRenderer.drawVirtualScene(render, virtualSceneFramebuffer, Z_NEAR, Z_FAR);
+  }
+
+  /**
+   * Fills {@code packet} with what {@link #computeFramePacket} needs from {@code frame}, and
+   * handles taps.
+   */
+  private void gatherFramePacket(Frame frame, FramePacket packet) {
+    Camera camera = frame.getCamera();
+    packet.trackingState = camera.getTrackingState();
+
+    // Handle all taps queued since the previous frame.
+    handleTaps(frame, camera);
+
+    // Show a message based on whether tracking has failed, if planes are detected, and if the user
+    // has placed any objects.
+    if (camera.getTrackingState() == TrackingState.PAUSED) {
+      if (camera.getTrackingFailureReason() == TrackingFailureReason.NONE) {
+        packet.message = SEARCHING_PLANE_MESSAGE;
+      } else {
+        packet.message = TrackingStateHelper.getTrackingFailureReasonString(camera);
+      }
+    } else if (hasTrackingPlane()) {
+      if (placedObjects.isEmpty()) {
+        packet.message = WAITING_FOR_TAP_MESSAGE;
+      }
+    } else {
+      packet.message = SEARCHING_PLANE_MESSAGE;
+    }
+
+    // If not tracking, 3D objects are not drawn.
+    if (camera.getTrackingState() == TrackingState.PAUSED) {
+      return;
+    }
+
+    // Get projection matrix.
+    camera.getProjectionMatrix(packet.projectionMatrix, 0, Z_NEAR, Z_FAR);
+
+    // Get camera matrix.
+    camera.getViewMatrix(packet.viewMatrix, 0);
+    Matrix.multiplyMM(
+        packet.viewProjectionMatrix, 0, packet.projectionMatrix, 0, packet.viewMatrix, 0);
+
+    // Planes must be sorted by distance from camera so that closer planes occlude farther ones.
+    packet.cameraDisplayOrientedPose = camera.getDisplayOrientedPose();
+    PlaneRenderer.sortPlanes(
+        session.getAllTrackables(Plane.class),
+        packet.cameraDisplayOrientedPose,
+        packet.sortedPlanes);
+
+    gatherLightEstimation(frame.getLightEstimate(), packet);
+
+    // Only anchors in grid cells that intersect the view frustum become candidates, so objects
+    // elsewhere are not even visited, except for a small batch whose positions are refreshed.
+    // computeFramePacket then tests each candidate's model against the frustum, so the number of
+    // draw calls scales with what is visible rather than with what has been placed.
+    frustumCuller.setFromMatrix(packet.viewProjectionMatrix);
+    frustumCuller.getBounds(frustumMin, frustumMax);
+    placedObjects.refreshPositions(anchorPositionSource, PLACED_OBJECT_POSITION_REFRESH_BATCH);
+    visibleObjects.clear();
+    candidateObjects.clear();
+    placedObjects.queryVisible(frustumMin, frustumMax, frustumBoxTest, visibleObjects);
+    for (int i = 0; i < visibleObjects.size(); ++i) {
+      SpatialHashGrid.Entry<PlacedObject> entry = visibleObjects.get(i);
+      PlacedObject placedObject = entry.getItem();
+      Anchor anchor = placedObject.anchor;
       if (anchor.getTrackingState() != TrackingState.TRACKING) {
         continue;
       }
 
       // Get the current pose of an Anchor in world space. The Anchor pose is updated
       // during calls to session.update() as ARCore refines its estimate of the world.
-      anchor.getPose().toMatrix(modelMatrix, 0);
+      int offset = packet.addCandidate();
+      anchor.getPose().toMatrix(packet.candidateModelMatrices, offset);
+      placedObjects.move(
+          entry,
+          packet.candidateModelMatrices[offset + 12],
+          packet.candidateModelMatrices[offset + 13],
+          packet.candidateModelMatrices[offset + 14]);
+      packet.candidateLodLevels[offset / 16] = placedObject.lodLevel;
+      candidateObjects.add(placedObject);
+    }
+  }
 
-      // Calculate model/view/projection matrices
-      Matrix.multiplyMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
-      Matrix.multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, modelViewMatrix, 0);
+  /**
+   * Completes {@code packet} from the state gathered by {@link #gatherFramePacket}, and records
+   * the level of detail chosen for each visible object.
+   */
+  private void computeFramePacket(FramePacket packet) {
+    // If not tracking, 3D objects are not drawn.
+    if (packet.trackingState == TrackingState.PAUSED) {
+      return;
+    }
 
-      // Update shader properties and draw
-      virtualObjectShader.setMat4("u_ModelView", modelViewMatrix);
-      virtualObjectShader.setMat4("u_ModelViewProjection", modelViewProjectionMatrix);
-      render.draw(virtualObjectMesh, virtualObjectShader, virtualSceneFramebuffer);
+    // Compute lighting parameters for the shader.
+    computeLightEstimation(packet);
+
+    for (int i = 0; i < packet.candidateCount; ++i) {
+      int candidateOffset = 16 * i;
+      if (!frustumCuller.isVisible(
+          packet.candidateModelMatrices, candidateOffset, virtualObjectLods.getBoundingVolume())) {
+        continue;
+      }
+
+      // Calculate model/view/projection matrices
+      int offset = packet.addAnchor();
+      Matrix.multiplyMM(
+          packet.anchorModelViewMatrices,
+          offset,
+          packet.viewMatrix,
+          0,
+          packet.candidateModelMatrices,
+          candidateOffset);
+      Matrix.multiplyMM(
+          packet.anchorModelViewProjectionMatrices,
+          offset,
+          packet.projectionMatrix,
+          0,
+          packet.anchorModelViewMatrices,
+          offset);
+
+      // Pick the level of detail from how much of the screen the object covers.
+      float screenSize =
+          virtualObjectLods.computeScreenSize(
+              packet.anchorModelViewMatrices, offset, packet.projectionMatrix);
+      int lodLevel = virtualObjectLods.selectLevel(screenSize, packet.candidateLodLevels[i]);
+      packet.anchorLodLevels[offset / 16] = lodLevel;
+      candidateObjects.get(i).lodLevel = lodLevel;
     }
+  }
 
-    // Compose the virtual scene with the background.
-    backgroundRenderer.drawVirtualScene(render, virtualSceneFramebuffer, Z_NEAR, Z_FAR);
+  // Handle all taps queued since the previous frame. Drags are not used by this sample.
+  private void handleTaps(Frame frame, Camera camera) {
+    while (tapHelper.poll(tapEvent)) {
+      if (tapEvent.action == TapHelper.ACTION_TAP
+          && camera.getTrackingState() == TrackingState.TRACKING) {
+        handleTap(frame, camera, tapEvent.x, tapEvent.y);
+      }
+    }
   }
 
-  // Handle only one tap per frame, as taps are usually low frequency compared to frame rate.
-  private void handleTap(Frame frame, Camera camera) {
-    MotionEvent tap = tapHelper.poll();
-    if (tap != null && camera.getTrackingState() == TrackingState.TRACKING) {
-      List<HitResult> hitResultList;
-      if (instantPlacementSettings.isInstantPlacementEnabled()) {
-        hitResultList =
-            frame.hitTestInstantPlacement(tap.getX(), tap.getY(), APPROXIMATE_DISTANCE_METERS);
-      } else {
-        hitResultList = frame.hitTest(tap);
+  private void handleTap(Frame frame, Camera camera, float tapX, float tapY) {
+    // Tapping a placed object removes it, rather than placing another one in front of it.
+    if (removeTappedObject(camera, tapX, tapY)) {
+      return;
+    }
+    List<HitResult> hitResultList;
+    if (instantPlacementSettings.isInstantPlacementEnabled()) {
+      hitResultList = frame.hitTestInstantPlacement(tapX, tapY, APPROXIMATE_DISTANCE_METERS);
+    } else {
+      hitResultList = frame.hitTest(tapX, tapY);
+    }
+    for (HitResult hit : hitResultList) {
+      // If any plane, Oriented Point, or Instant Placement Point was hit, create an anchor.
+      Trackable trackable = hit.getTrackable();
+      // If a plane was hit, check that it was hit inside the plane polygon.
+      if ((trackable instanceof Plane
+              && ((Plane) trackable).isPoseInPolygon(hit.getHitPose())
+              && (PlaneRenderer.calculateDistanceToPlane(hit.getHitPose(), camera.getPose()) > 0))
+          || (trackable instanceof Point
+              && ((Point) trackable).getOrientationMode()
+                  == OrientationMode.ESTIMATED_SURFACE_NORMAL)
+          || (trackable instanceof InstantPlacementPoint)) {
+        // Adding an Anchor tells ARCore that it should track this position in
+        // space. This anchor is created on the Plane to place the 3D model
+        // in the correct position relative both to the world and to the plane.
+        Anchor anchor = hit.createAnchor();
+        Pose anchorPose = anchor.getPose();
+        placedObjects.insert(
+            new PlacedObject(anchor), anchorPose.tx(), anchorPose.ty(), anchorPose.tz());
+        // For devices that support the Depth API, shows a dialog to suggest enabling
+        // depth-based occlusion. This dialog needs to be spawned on the UI thread.
+        this.runOnUiThread(this::showOcclusionDialogIfNeeded);
+
+        // Hits are sorted by depth. Consider only closest hit on a plane, Oriented Point, or
+        // Instant Placement Point.
+        break;
       }
-      for (HitResult hit : hitResultList) {
-        // If any plane, Oriented Point, or Instant Placement Point was hit, create an anchor.
-        Trackable trackable = hit.getTrackable();
-        // If a plane was hit, check that it was hit inside the plane polygon.
-        if ((trackable instanceof Plane
-                && ((Plane) trackable).isPoseInPolygon(hit.getHitPose())
-                && (PlaneRenderer.calculateDistanceToPlane(hit.getHitPose(), camera.getPose()) > 0))
-            || (trackable instanceof Point
-                && ((Point) trackable).getOrientationMode()
-                    == OrientationMode.ESTIMATED_SURFACE_NORMAL)
-            || (trackable instanceof InstantPlacementPoint)) {
-          // Cap the number of objects created. This avoids overloading both the
-          // rendering system and ARCore.
-          if (anchors.size() >= 20) {
-            anchors.get(0).detach();
-            anchors.remove(0);
-          }
+    }
+  }
 
-          // Adding an Anchor tells ARCore that it should track this position in
-          // space. This anchor is created on the Plane to place the 3D model
-          // in the correct position relative both to the world and to the plane.
-          anchors.add(hit.createAnchor());
-          // For devices that support the Depth API, shows a dialog to suggest enabling
-          // depth-based occlusion. This dialog needs to be spawned on the UI thread.
-          this.runOnUiThread(this::showOcclusionDialogIfNeeded);
-
-          // Hits are sorted by depth. Consider only closest hit on a plane, Oriented Point, or
-          // Instant Placement Point.
-          break;
-        }
+  /**
+   * Casts a ray through the tapped point and removes the nearest placed object it hits, if any.
+   *
+   * <p>The placed object grid narrows the search down to the cells that the ray passes through
+   * before anything closer was hit, and each candidate is then tested exactly against the
+   * hierarchy of the full-detail mesh.
+   *
+   * @return true if an object was removed.
+   */
+  private boolean removeTappedObject(Camera camera, float tapX, float tapY) {
+    if (placedObjects.isEmpty() || surfaceWidth == 0 || surfaceHeight == 0) {
+      return false;
+    }
+    camera.getProjectionMatrix(pickProjectionMatrix, 0, Z_NEAR, Z_FAR);
+    camera.getViewMatrix(pickViewMatrix, 0);
+    Matrix.multiplyMM(pickViewProjectionMatrix, 0, pickProjectionMatrix, 0, pickViewMatrix, 0);
+    rayPicker.setRayFromViewport(tapX, tapY, surfaceWidth, surfaceHeight, pickViewProjectionMatrix);
+
+    pickCandidates.clear();
+    placedObjects.queryVisible(rayBoxTest, pickCandidates);
+    SpatialHashGrid.Entry<PlacedObject> picked = null;
+    for (int i = 0; i < pickCandidates.size(); ++i) {
+      SpatialHashGrid.Entry<PlacedObject> entry = pickCandidates.get(i);
+      Anchor anchor = entry.getItem().anchor;
+      if (anchor.getTrackingState() != TrackingState.TRACKING) {
+        continue;
+      }
+      anchor.getPose().toMatrix(modelMatrix, 0);
+      if (rayPicker.pickInstance(modelMatrix, 0, virtualObjectLods.getBvh())) {
+        picked = entry;
       }
     }
+    if (picked == null) {
+      return false;
+    }
+    picked.getItem().anchor.detach();
+    placedObjects.remove(picked);
+    return true;
   }
 
   /**
@@ -741,37 +971,58 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     return false;
   }
 
-  /** Update state based on the current frame's light estimation. */
-  private void updateLightEstimation(LightEstimate lightEstimate, float[] viewMatrix) {
+  /** Copies the current frame's light estimation into the packet. Called on the GL thread. */
+  private static void gatherLightEstimation(LightEstimate lightEstimate, FramePacket packet) {
     if (lightEstimate.getState() != LightEstimate.State.VALID) {
-      virtualObjectShader.setBool("u_LightEstimateIsValid", false);
+      packet.lightEstimateIsValid = false;
       return;
     }
-    virtualObjectShader.setBool("u_LightEstimateIsValid", true);
+    packet.lightEstimateIsValid = true;
 
-    Matrix.invertM(viewInverseMatrix, 0, viewMatrix, 0);
-    virtualObjectShader.setMat4("u_ViewInverse", viewInverseMatrix);
+    float[] direction = lightEstimate.getEnvironmentalHdrMainLightDirection();
+    // We need the direction in a vec4 with 0.0 as the final component to transform it to view space
+    packet.worldLightDirection[0] = direction[0];
+    packet.worldLightDirection[1] = direction[1];
+    packet.worldLightDirection[2] = direction[2];
+    packet.worldLightDirection[3] = 0.0f;
+    System.arraycopy(
+        lightEstimate.getEnvironmentalHdrMainLightIntensity(), 0, packet.lightIntensity, 0, 3);
+
+    float[] coefficients = lightEstimate.getEnvironmentalHdrAmbientSphericalHarmonics();
+    if (coefficients.length != 9 * 3) {
+      throw new IllegalArgumentException(
+          "The given coefficients array must be of length 27 (3 components per 9 coefficients");
+    }
+    System.arraycopy(coefficients, 0, packet.ambientSphericalHarmonics, 0, 9 * 3);
+  }
 
-    updateMainLight(
-        lightEstimate.getEnvironmentalHdrMainLightDirection(),
-        lightEstimate.getEnvironmentalHdrMainLightIntensity(),
-        viewMatrix);
-    updateSphericalHarmonicsCoefficients(
-        lightEstimate.getEnvironmentalHdrAmbientSphericalHarmonics());
-    cubemapFilter.update(lightEstimate.acquireEnvironmentalHdrCubeMap());
+  /** Computes the light estimation uniforms for the current frame. */
+  private void computeLightEstimation(FramePacket packet) {
+    if (!packet.lightEstimateIsValid) {
+      return;
+    }
+    Matrix.invertM(packet.viewInverseMatrix, 0, packet.viewMatrix, 0);
+    Matrix.multiplyMV(
+        packet.viewLightDirection, 0, packet.viewMatrix, 0, packet.worldLightDirection, 0);
+    computeSphericalHarmonicsCoefficients(packet.ambientSphericalHarmonics, packet);
   }
 
-  private void updateMainLight(float[] direction, float[] intensity, float[] viewMatrix) {
-    // We need the direction in a vec4 with 0.0 as the final component to transform it to view space
-    worldLightDirection[0] = direction[0];
-    worldLightDirection[1] = direction[1];
-    worldLightDirection[2] = direction[2];
-    Matrix.multiplyMV(viewLightDirection, 0, viewMatrix, 0, worldLightDirection, 0);
-    virtualObjectShader.setVec4("u_ViewLightDirection", viewLightDirection);
-    virtualObjectShader.setVec3("u_LightIntensity", intensity);
+  /** Update state based on the current frame's light estimation. */
+  private void updateLightEstimation(LightEstimate lightEstimate, FramePacket packet) {
+    if (!packet.lightEstimateIsValid) {
+      virtualObjectShader.setBool("u_LightEstimateIsValid", false);
+      return;
+    }
+    virtualObjectShader.setBool("u_LightEstimateIsValid", true);
+    virtualObjectShader.setMat4("u_ViewInverse", packet.viewInverseMatrix);
+    virtualObjectShader.setVec4("u_ViewLightDirection", packet.viewLightDirection);
+    virtualObjectShader.setVec3("u_LightIntensity", packet.lightIntensity);
+    virtualObjectShader.setVec3Array(
+        "u_SphericalHarmonicsCoefficients", packet.sphericalHarmonicsCoefficients);
+    cubemapFilter.update(lightEstimate.acquireEnvironmentalHdrCubeMap());
   }
 
-  private void updateSphericalHarmonicsCoefficients(float[] coefficients) {
+  private void computeSphericalHarmonicsCoefficients(float[] coefficients, FramePacket packet) {
     // Pre-multiply the spherical harmonics coefficients before passing them to the shader. The
     // constants in sphericalHarmonicFactors were derived from three terms:
     //
@@ -786,17 +1037,32 @@ public class HelloArActivity extends AppCompatActivity implements SampleRender.R
     // You can read more details about the math here:
     // https://google.github.io/filament/Filament.html#annex/sphericalharmonics
 
-    if (coefficients.length != 9 * 3) {
-      throw new IllegalArgumentException(
-          "The given coefficients array must be of length 27 (3 components per 9 coefficients");
-    }
-
     // Apply each factor to every component of each coefficient
     for (int i = 0; i < 9 * 3; ++i) {
-      sphericalHarmonicsCoefficients[i] = coefficients[i] * sphericalHarmonicFactors[i / 3];
+      packet.sphericalHarmonicsCoefficients[i] = coefficients[i] * sphericalHarmonicFactors[i / 3];
     }
-    virtualObjectShader.setVec3Array(
-        "u_SphericalHarmonicsCoefficients", sphericalHarmonicsCoefficients);
+  }
+
+  /** An anchor created by the user, and the state used to draw the virtual object on it. */
+  private static class PlacedObject {
+    final Anchor anchor;
+    // Level of detail used in the previous frame, for hysteresis.
+    int lodLevel;
+
+    PlacedObject(Anchor anchor) {
+      this.anchor = anchor;
+    }
+  }
+
+  private static boolean getAnchorPosition(PlacedObject placedObject, float[] outPosition) {
+    if (placedObject.anchor.getTrackingState() != TrackingState.TRACKING) {
+      return false;
+    }
+    Pose pose = placedObject.anchor.getPose();
+    outPosition[0] = pose.tx();
+    outPosition[1] = pose.ty();
+    outPosition[2] = pose.tz();
+    return true;
   }
 
   /** Configures the session with feature settings. */
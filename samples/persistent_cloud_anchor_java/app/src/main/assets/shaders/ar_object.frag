@@ -32,7 +32,14 @@ varying vec3 v_ViewPosition;
 varying vec3 v_ViewNormal;
 varying vec2 v_TexCoord;
 varying vec3 v_ScreenSpacePosition;
+#ifdef USE_INSTANCE_COLOR
+// Per-instance color, from ar_object_instanced.vert.
+varying vec4 v_ObjColor;
+#define OBJ_COLOR v_ObjColor
+#else
 uniform vec4 u_ObjColor;
+#define OBJ_COLOR u_ObjColor
+#endif // USE_INSTANCE_COLOR
 
 #if USE_DEPTH_FOR_OCCLUSION
 
@@ -157,10 +164,10 @@ void main() {
     // Flip the y-texture coordinate to address the texture from top-left.
     vec4 objectColor = texture2D(u_Texture, vec2(v_TexCoord.x, 1.0 - v_TexCoord.y));
 
-    // Apply color to grayscale image only if the alpha of u_ObjColor is
+    // Apply color to grayscale image only if the alpha of the object color is
     // greater and equal to 255.0.
-    objectColor.rgb *= mix(vec3(1.0), u_ObjColor.rgb / 255.0,
-                           step(255.0, u_ObjColor.a));
+    objectColor.rgb *= mix(vec3(1.0), OBJ_COLOR.rgb / 255.0,
+                           step(255.0, OBJ_COLOR.a));
 
     // Apply inverse SRGB gamma to the texture before making lighting calculations.
     objectColor.rgb = pow(objectColor.rgb, vec3(kInverseGamma));
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Variant of ar_object.vert for InstancedObjectRenderer. The model-view matrices place the group
+// of instances, and each instance is placed within the group by its own model matrix.
+uniform mat4 u_ModelView;
+uniform mat4 u_ModelViewProjection;
+
+attribute vec4 a_Position;
+attribute vec3 a_Normal;
+attribute vec2 a_TexCoord;
+
+// Per-instance attributes.
+attribute mat4 a_InstanceModel;
+attribute vec4 a_InstanceColor;
+
+varying vec3 v_ViewPosition;
+varying vec3 v_ViewNormal;
+varying vec2 v_TexCoord;
+varying vec3 v_ScreenSpacePosition;
+varying vec4 v_ObjColor;
+
+void main() {
+    vec4 groupPosition = a_InstanceModel * a_Position;
+    vec4 groupNormal = a_InstanceModel * vec4(a_Normal, 0.0);
+    v_ViewPosition = (u_ModelView * groupPosition).xyz;
+    v_ViewNormal = normalize((u_ModelView * groupNormal).xyz);
+    v_TexCoord = a_TexCoord;
+    v_ObjColor = a_InstanceColor;
+    gl_Position = u_ModelViewProjection * groupPosition;
+    v_ScreenSpacePosition = gl_Position.xyz / gl_Position.w;
+}
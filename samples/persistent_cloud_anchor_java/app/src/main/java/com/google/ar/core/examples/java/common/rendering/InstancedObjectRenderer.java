@@ -0,0 +1,421 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.rendering;
+
+import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Renders a group of instances of an object loaded from an OBJ file, each with its own model matrix
+ * and color, in a single draw call.
+ *
+ * <p>Instances are placed relative to a common group matrix passed to {@link #draw}, so a group
+ * that moves as a whole does not need its instances updated. Instance data is kept in a GPU buffer
+ * that is only written when {@link #setInstance} changed it since the last draw.
+ *
+ * <p>On GLES2 contexts, which have no instanced draws, the same shader is used with one draw per
+ * instance, and the instance data is passed as constant vertex attributes.
+ */
+public class InstancedObjectRenderer {
+  private static final String TAG = InstancedObjectRenderer.class.getSimpleName();
+
+  // Shader names.
+  private static final String VERTEX_SHADER_NAME = "shaders/ar_object_instanced.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/ar_object.frag";
+
+  private static final int COORDS_PER_VERTEX = 3;
+
+  // Instance layout: a 4x4 model matrix in column-major order, then an RGBA color.
+  private static final int FLOATS_PER_INSTANCE = 16 + 4;
+  private static final int BYTES_PER_INSTANCE = 4 * FLOATS_PER_INSTANCE;
+  private static final int COLOR_OFFSET = 16;
+
+  // Note: the last component must be zero to avoid applying the translational part of the matrix.
+  private static final float[] LIGHT_DIRECTION = new float[] {0.250f, 0.866f, 0.433f, 0.0f};
+  private final float[] viewLightDirection = new float[4];
+
+  // Object vertex and index buffers, and diffuse texture, shared through GlAssetCache.
+  private GlAssetCache.Geometry geometry;
+  private GlAssetCache.Texture texture;
+
+  // Instance data, on the CPU and in a vertex buffer. Instances in [dirtyStart, dirtyEnd) have
+  // changed since they were last uploaded.
+  private int maxInstances;
+  private int instanceCount;
+  private float[] instanceData = new float[0];
+  private FloatBuffer instanceUploadBuffer;
+  private final int[] instanceBuffer = {0};
+  private int dirtyStart;
+  private int dirtyEnd;
+
+  // Vertex array object recording the model and instance attributes, or 0 on GLES2 contexts.
+  private final int[] vertexArray = {0};
+
+  // The context the instance buffer and the vertex array were created in. Their names are only
+  // deleted in that context; after it is lost they are forgotten, since it took them with it.
+  private EGLContext glContext = EGL14.EGL_NO_CONTEXT;
+
+  private int program;
+
+  // Shader location: model view projection matrix of the group.
+  private int modelViewUniform;
+  private int modelViewProjectionUniform;
+
+  // Shader location: object attributes.
+  private int positionAttribute;
+  private int normalAttribute;
+  private int texCoordAttribute;
+
+  // Shader location: instance attributes. The model matrix takes four consecutive locations.
+  private int instanceModelAttribute;
+  private int instanceColorAttribute;
+
+  // Shader location: texture sampler.
+  private int textureUniform;
+
+  // Shader location: environment, material and color correction properties.
+  private int lightingParametersUniform;
+  private int materialParametersUniform;
+  private int colorCorrectionParameterUniform;
+
+  // Temporary matrices allocated here to reduce number of allocations for each frame.
+  private final float[] modelViewMatrix = new float[16];
+  private final float[] modelViewProjectionMatrix = new float[16];
+
+  // Set some default material properties to use for lighting.
+  private float ambient = 0.3f;
+  private float diffuse = 1.0f;
+  private float specular = 1.0f;
+  private float specularPower = 6.0f;
+
+  /**
+   * Creates and initializes OpenGL resources needed for rendering the instances.
+   *
+   * @param context Context for loading the shader and below-named model and texture assets.
+   * @param objAssetName Name of the OBJ file containing the model geometry.
+   * @param diffuseTextureAssetName Name of the PNG file containing the diffuse texture map.
+   * @param maxInstances The largest number of instances that will be drawn together.
+   */
+  public void createOnGlThread(
+      Context context, String objAssetName, String diffuseTextureAssetName, int maxInstances)
+      throws IOException {
+    compileAndLoadShaderProgram(context);
+
+    // Gives up the previous objects and assets, or only forgets them in a new context.
+    release();
+    texture = GlAssetCache.acquireTexture(context, diffuseTextureAssetName);
+    geometry = GlAssetCache.acquireGeometry(context, objAssetName);
+
+    if (instanceData.length < maxInstances * FLOATS_PER_INSTANCE) {
+      instanceData = Arrays.copyOf(instanceData, maxInstances * FLOATS_PER_INSTANCE);
+    }
+    this.maxInstances = maxInstances;
+    instanceCount = Math.min(instanceCount, maxInstances);
+    instanceUploadBuffer =
+        ByteBuffer.allocateDirect(maxInstances * BYTES_PER_INSTANCE)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+
+    if (ShaderUtil.isVertexArraySupported()) {
+      GLES20.glGenBuffers(1, instanceBuffer, 0);
+      glContext = EGL14.eglGetCurrentContext();
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, instanceBuffer[0]);
+      GLES20.glBufferData(
+          GLES20.GL_ARRAY_BUFFER, maxInstances * BYTES_PER_INSTANCE, null, GLES20.GL_DYNAMIC_DRAW);
+      GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+      createVertexArray();
+    }
+    // Instances set before creation, or in a previous context, are uploaded on the next draw.
+    dirtyStart = 0;
+    dirtyEnd = instanceCount;
+  }
+
+  /**
+   * Releases this renderer's GPU resources and its references to its model and texture. Resources
+   * of a context that no longer exists are forgotten rather than deleted. Must be called on the GL
+   * thread.
+   */
+  public void release() {
+    if (EGL14.eglGetCurrentContext().equals(glContext)) {
+      if (vertexArray[0] != 0) {
+        GLES30.glDeleteVertexArrays(1, vertexArray, 0);
+      }
+      if (instanceBuffer[0] != 0) {
+        GLES20.glDeleteBuffers(1, instanceBuffer, 0);
+      }
+    }
+    vertexArray[0] = 0;
+    instanceBuffer[0] = 0;
+    glContext = EGL14.EGL_NO_CONTEXT;
+    if (geometry != null) {
+      GlAssetCache.releaseGeometry(geometry);
+      geometry = null;
+    }
+    if (texture != null) {
+      GlAssetCache.releaseTexture(texture);
+      texture = null;
+    }
+  }
+
+  /** Sets the number of instances to draw, which must not exceed the maximum. */
+  public void setInstanceCount(int instanceCount) {
+    if (instanceCount < 0 || instanceCount > maxInstances) {
+      throw new IllegalArgumentException(
+          "Instance count " + instanceCount + " out of range [0, " + maxInstances + "]");
+    }
+    this.instanceCount = instanceCount;
+  }
+
+  /**
+   * Sets the placement and color of an instance. The data is uploaded on the next draw.
+   *
+   * @param index The index of the instance, below the instance count.
+   * @param modelMatrix A 4x4 instance-to-group transformation matrix, in column-major order.
+   * @param color The color of the instance, as for {@link ObjectRenderer#draw(float[], float[],
+   *     float[], float[])}.
+   */
+  public void setInstance(int index, float[] modelMatrix, float[] color) {
+    int offset = checkInstanceIndex(index);
+    System.arraycopy(modelMatrix, 0, instanceData, offset, 16);
+    setColor(index, offset, color);
+  }
+
+  /** Sets the color of an instance, leaving its placement unchanged. */
+  public void setInstanceColor(int index, float[] color) {
+    setColor(index, checkInstanceIndex(index), color);
+  }
+
+  /**
+   * Sets the surface characteristics of the rendered model.
+   *
+   * @see ObjectRenderer#setMaterialProperties(float, float, float, float)
+   */
+  public void setMaterialProperties(
+      float ambient, float diffuse, float specular, float specularPower) {
+    this.ambient = ambient;
+    this.diffuse = diffuse;
+    this.specular = specular;
+    this.specularPower = specularPower;
+  }
+
+  /**
+   * Draws all instances.
+   *
+   * @param groupMatrix A 4x4 group-to-world transformation matrix, in column-major order.
+   * @param cameraView A 4x4 view matrix, in column-major order.
+   * @param cameraPerspective A 4x4 projection matrix, in column-major order.
+   * @param colorCorrectionRgba Illumination intensity. Combined with diffuse and specular material
+   *     properties.
+   */
+  public void draw(
+      float[] groupMatrix,
+      float[] cameraView,
+      float[] cameraPerspective,
+      float[] colorCorrectionRgba) {
+    if (instanceCount == 0) {
+      return;
+    }
+    ShaderUtil.checkGLError(TAG, "Before draw");
+
+    Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, groupMatrix, 0);
+    Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
+
+    GLES20.glUseProgram(program);
+
+    // Set the lighting environment properties.
+    Matrix.multiplyMV(viewLightDirection, 0, modelViewMatrix, 0, LIGHT_DIRECTION, 0);
+    normalizeVec3(viewLightDirection);
+    GLES20.glUniform4f(
+        lightingParametersUniform,
+        viewLightDirection[0],
+        viewLightDirection[1],
+        viewLightDirection[2],
+        1.f);
+    GLES20.glUniform4fv(colorCorrectionParameterUniform, 1, colorCorrectionRgba, 0);
+    GLES20.glUniform4f(materialParametersUniform, ambient, diffuse, specular, specularPower);
+
+    // Attach the object texture.
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture.textureId);
+    GLES20.glUniform1i(textureUniform, 0);
+
+    GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, modelViewMatrix, 0);
+    GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
+
+    if (vertexArray[0] != 0) {
+      uploadDirtyInstances();
+      GLES30.glBindVertexArray(vertexArray[0]);
+      GLES30.glDrawElementsInstanced(
+          GLES20.GL_TRIANGLES, geometry.indexCount, GLES20.GL_UNSIGNED_SHORT, 0, instanceCount);
+      GLES30.glBindVertexArray(0);
+    } else {
+      drawWithConstantAttributes();
+    }
+
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+
+    ShaderUtil.checkGLError(TAG, "After draw");
+  }
+
+  /** Draws the instances one at a time, passing each one's data as constant vertex attributes. */
+  private void drawWithConstantAttributes() {
+    enableVertexAttributes();
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, geometry.indexBufferId);
+    for (int i = 0; i < instanceCount; ++i) {
+      int offset = i * FLOATS_PER_INSTANCE;
+      for (int column = 0; column < 4; ++column) {
+        GLES20.glVertexAttrib4fv(
+            instanceModelAttribute + column, instanceData, offset + 4 * column);
+      }
+      GLES20.glVertexAttrib4fv(instanceColorAttribute, instanceData, offset + COLOR_OFFSET);
+      GLES20.glDrawElements(GLES20.GL_TRIANGLES, geometry.indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+    }
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    GLES20.glDisableVertexAttribArray(positionAttribute);
+    GLES20.glDisableVertexAttribArray(normalAttribute);
+    GLES20.glDisableVertexAttribArray(texCoordAttribute);
+  }
+
+  private void uploadDirtyInstances() {
+    if (dirtyStart >= dirtyEnd) {
+      return;
+    }
+    int floatOffset = dirtyStart * FLOATS_PER_INSTANCE;
+    int floatCount = (dirtyEnd - dirtyStart) * FLOATS_PER_INSTANCE;
+    instanceUploadBuffer.clear();
+    instanceUploadBuffer.put(instanceData, floatOffset, floatCount);
+    instanceUploadBuffer.flip();
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, instanceBuffer[0]);
+    GLES20.glBufferSubData(
+        GLES20.GL_ARRAY_BUFFER, 4 * floatOffset, 4 * floatCount, instanceUploadBuffer);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    dirtyStart = maxInstances;
+    dirtyEnd = 0;
+  }
+
+  private int checkInstanceIndex(int index) {
+    if (index < 0 || index >= instanceCount) {
+      throw new IndexOutOfBoundsException(
+          "Instance " + index + " out of range [0, " + instanceCount + ")");
+    }
+    return index * FLOATS_PER_INSTANCE;
+  }
+
+  private void setColor(int index, int offset, float[] color) {
+    System.arraycopy(color, 0, instanceData, offset + COLOR_OFFSET, 4);
+    dirtyStart = Math.min(dirtyStart, index);
+    dirtyEnd = Math.max(dirtyEnd, index + 1);
+  }
+
+  /**
+   * Records the model's vertex attributes, the instance attributes and the index buffer in a vertex
+   * array object.
+   */
+  private void createVertexArray() {
+    GLES30.glGenVertexArrays(1, vertexArray, 0);
+    GLES30.glBindVertexArray(vertexArray[0]);
+    enableVertexAttributes();
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, instanceBuffer[0]);
+    for (int column = 0; column < 4; ++column) {
+      int attribute = instanceModelAttribute + column;
+      GLES20.glVertexAttribPointer(
+          attribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_INSTANCE, 4 * 4 * column);
+      GLES20.glEnableVertexAttribArray(attribute);
+      GLES30.glVertexAttribDivisor(attribute, 1);
+    }
+    GLES20.glVertexAttribPointer(
+        instanceColorAttribute, 4, GLES20.GL_FLOAT, false, BYTES_PER_INSTANCE, 4 * COLOR_OFFSET);
+    GLES20.glEnableVertexAttribArray(instanceColorAttribute);
+    GLES30.glVertexAttribDivisor(instanceColorAttribute, 1);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, geometry.indexBufferId);
+    GLES30.glBindVertexArray(0);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    ShaderUtil.checkGLError(TAG, "Vertex array creation");
+  }
+
+  /** Points the shader's attributes at the model's vertex buffer, and enables them. */
+  private void enableVertexAttributes() {
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, geometry.vertexBufferId);
+    GLES20.glVertexAttribPointer(
+        positionAttribute,
+        COORDS_PER_VERTEX,
+        GLES20.GL_FLOAT,
+        false,
+        0,
+        geometry.verticesBaseAddress);
+    GLES20.glVertexAttribPointer(
+        normalAttribute, 3, GLES20.GL_FLOAT, false, 0, geometry.normalsBaseAddress);
+    GLES20.glVertexAttribPointer(
+        texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, geometry.texCoordsBaseAddress);
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    GLES20.glEnableVertexAttribArray(positionAttribute);
+    GLES20.glEnableVertexAttribArray(normalAttribute);
+    GLES20.glEnableVertexAttribArray(texCoordAttribute);
+  }
+
+  private void compileAndLoadShaderProgram(Context context) throws IOException {
+    Map<String, Integer> defineValuesMap = new TreeMap<>();
+    defineValuesMap.put("USE_DEPTH_FOR_OCCLUSION", 0);
+    defineValuesMap.put("USE_INSTANCE_COLOR", 1);
+
+    program =
+        ShaderUtil.loadGLProgram(
+            TAG, context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, defineValuesMap);
+    GLES20.glUseProgram(program);
+
+    ShaderUtil.checkGLError(TAG, "Program creation");
+
+    modelViewUniform = GLES20.glGetUniformLocation(program, "u_ModelView");
+    modelViewProjectionUniform = GLES20.glGetUniformLocation(program, "u_ModelViewProjection");
+
+    positionAttribute = GLES20.glGetAttribLocation(program, "a_Position");
+    normalAttribute = GLES20.glGetAttribLocation(program, "a_Normal");
+    texCoordAttribute = GLES20.glGetAttribLocation(program, "a_TexCoord");
+    instanceModelAttribute = GLES20.glGetAttribLocation(program, "a_InstanceModel");
+    instanceColorAttribute = GLES20.glGetAttribLocation(program, "a_InstanceColor");
+
+    textureUniform = GLES20.glGetUniformLocation(program, "u_Texture");
+
+    lightingParametersUniform = GLES20.glGetUniformLocation(program, "u_LightingParameters");
+    materialParametersUniform = GLES20.glGetUniformLocation(program, "u_MaterialParameters");
+    colorCorrectionParameterUniform =
+        GLES20.glGetUniformLocation(program, "u_ColorCorrectionParameters");
+
+    ShaderUtil.checkGLError(TAG, "Program parameters");
+  }
+
+  private static void normalizeVec3(float[] v) {
+    float reciprocalLength = 1.0f / (float) Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+    v[0] *= reciprocalLength;
+    v[1] *= reciprocalLength;
+    v[2] *= reciprocalLength;
+  }
+}
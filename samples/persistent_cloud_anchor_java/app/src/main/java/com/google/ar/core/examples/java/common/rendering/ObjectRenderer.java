@@ -16,22 +16,12 @@
 package com.google.ar.core.examples.java.common.rendering;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
 import android.opengl.GLES20;
-import android.opengl.GLUtils;
+import android.opengl.GLES30;
 import android.opengl.Matrix;
-import de.javagl.obj.Obj;
-import de.javagl.obj.ObjData;
-import de.javagl.obj.ObjReader;
-import de.javagl.obj.ObjUtils;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.nio.ShortBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -62,16 +52,18 @@ public class ObjectRenderer {
   private static final float[] LIGHT_DIRECTION = new float[] {0.250f, 0.866f, 0.433f, 0.0f};
   private final float[] viewLightDirection = new float[4];
 
-  // Object vertex buffer variables.
-  private int vertexBufferId;
-  private int verticesBaseAddress;
-  private int texCoordsBaseAddress;
-  private int normalsBaseAddress;
-  private int indexBufferId;
-  private int indexCount;
+  // Object vertex and index buffers, and diffuse texture, shared through GlAssetCache with other
+  // renderers that use the same assets.
+  private GlAssetCache.Geometry geometry;
+  private GlAssetCache.Texture texture;
+
+  // Vertex array object recording the attribute setup of the model, or 0 on GLES2 contexts, in
+  // which case the attributes are set up on every draw. Only valid in the context it was created
+  // in: after the context is lost, the name is forgotten rather than deleted.
+  private final int[] vertexArray = {0};
+  private EGLContext vertexArrayContext = EGL14.EGL_NO_CONTEXT;
 
   private int program;
-  private final int[] textures = new int[1];
 
   // Shader location: model view projection matrix.
   private int modelViewUniform;
@@ -113,6 +105,10 @@ public class ObjectRenderer {
   private final float[] modelViewMatrix = new float[16];
   private final float[] modelViewProjectionMatrix = new float[16];
 
+  // Bounds of the model in its local coordinates, used to skip drawing it when off-screen.
+  private BoundingVolume boundingVolume;
+  private final FrustumCuller frustumCuller = new FrustumCuller();
+
   // Set some default material properties to use for lighting.
   private float ambient = 0.3f;
   private float diffuse = 1.0f;
@@ -138,87 +134,34 @@ public class ObjectRenderer {
     // Compiles and loads the shader based on the current configuration.
     compileAndLoadShaderProgram(context);
 
-    // Read the texture.
-    Bitmap textureBitmap =
-        BitmapFactory.decodeStream(context.getAssets().open(diffuseTextureAssetName));
+    // Load the model and texture, or share them with renderers that already loaded them. A renderer
+    // that is created again gives up its previous assets first. If this is a new context, for
+    // example after the surface was recreated, the previous objects went with the old context and
+    // their names are only forgotten.
+    release();
+    texture = GlAssetCache.acquireTexture(context, diffuseTextureAssetName);
+    geometry = GlAssetCache.acquireGeometry(context, objAssetName);
+    boundingVolume = geometry.boundingVolume;
+    createVertexArray();
 
-    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glGenTextures(textures.length, textures, 0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
-
-    GLES20.glTexParameteri(
-        GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR_MIPMAP_LINEAR);
-    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
-    GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, textureBitmap, 0);
-    GLES20.glGenerateMipmap(GLES20.GL_TEXTURE_2D);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    Matrix.setIdentityM(modelMatrix, 0);
+  }
 
-    textureBitmap.recycle();
-
-    ShaderUtil.checkGLError(TAG, "Texture loading");
-
-    // Read the obj file.
-    InputStream objInputStream = context.getAssets().open(objAssetName);
-    Obj obj = ObjReader.read(objInputStream);
-
-    // Prepare the Obj so that its structure is suitable for
-    // rendering with OpenGL:
-    // 1. Triangulate it
-    // 2. Make sure that texture coordinates are not ambiguous
-    // 3. Make sure that normals are not ambiguous
-    // 4. Convert it to single-indexed data
-    obj = ObjUtils.convertToRenderable(obj);
-
-    // OpenGL does not use Java arrays. ByteBuffers are used instead to provide data in a format
-    // that OpenGL understands.
-
-    // Obtain the data from the OBJ, as direct buffers:
-    IntBuffer wideIndices = ObjData.getFaceVertexIndices(obj, 3);
-    FloatBuffer vertices = ObjData.getVertices(obj);
-    FloatBuffer texCoords = ObjData.getTexCoords(obj, 2);
-    FloatBuffer normals = ObjData.getNormals(obj);
-
-    // Convert int indices to shorts for GL ES 2.0 compatibility
-    ShortBuffer indices =
-        ByteBuffer.allocateDirect(2 * wideIndices.limit())
-            .order(ByteOrder.nativeOrder())
-            .asShortBuffer();
-    while (wideIndices.hasRemaining()) {
-      indices.put((short) wideIndices.get());
+  /**
+   * Releases this renderer's references to its model and texture. The GPU resources are deleted
+   * once no other renderer uses them, unless they belong to a context that no longer exists. Must
+   * be called on the GL thread.
+   */
+  public void release() {
+    deleteVertexArray();
+    if (geometry != null) {
+      GlAssetCache.releaseGeometry(geometry);
+      geometry = null;
+    }
+    if (texture != null) {
+      GlAssetCache.releaseTexture(texture);
+      texture = null;
     }
-    indices.rewind();
-
-    int[] buffers = new int[2];
-    GLES20.glGenBuffers(2, buffers, 0);
-    vertexBufferId = buffers[0];
-    indexBufferId = buffers[1];
-
-    // Load vertex buffer
-    verticesBaseAddress = 0;
-    texCoordsBaseAddress = verticesBaseAddress + 4 * vertices.limit();
-    normalsBaseAddress = texCoordsBaseAddress + 4 * texCoords.limit();
-    final int totalBytes = normalsBaseAddress + 4 * normals.limit();
-
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
-    GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, totalBytes, null, GLES20.GL_STATIC_DRAW);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, verticesBaseAddress, 4 * vertices.limit(), vertices);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, texCoordsBaseAddress, 4 * texCoords.limit(), texCoords);
-    GLES20.glBufferSubData(
-        GLES20.GL_ARRAY_BUFFER, normalsBaseAddress, 4 * normals.limit(), normals);
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-
-    // Load index buffer
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
-    indexCount = indices.limit();
-    GLES20.glBufferData(
-        GLES20.GL_ELEMENT_ARRAY_BUFFER, 2 * indexCount, indices, GLES20.GL_STATIC_DRAW);
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
-
-    ShaderUtil.checkGLError(TAG, "OBJ buffer load");
-
-    Matrix.setIdentityM(modelMatrix, 0);
   }
 
   /**
@@ -235,9 +178,9 @@ public class ObjectRenderer {
    * from real-world geometry.
    *
    * <p>This function is a no-op if the value provided is the same as what is already set. If the
-   * value changes, this function will recompile and reload the shader program to either
-   * enable/disable depth-based occlusion. NOTE: recompilation of the shader is inefficient. This
-   * code could be optimized to precompile both versions of the shader.
+   * value changes, this function will switch to the shader program that either enables or disables
+   * depth-based occlusion. Both programs are compiled when the renderer is created, and shared
+   * with other renderers through {@link ShaderUtil#loadGLProgram}, so switching compiles nothing.
    *
    * @param context Context for loading the shader.
    * @param useDepthForOcclusion Specifies whether to use the depth texture to perform occlusion
@@ -249,26 +192,77 @@ public class ObjectRenderer {
       return; // No change, does nothing.
     }
 
-    // Toggles the occlusion rendering mode and recompiles the shader.
+    // Toggles the occlusion rendering mode and switches programs. The attribute locations of the
+    // new program may differ, so the vertex array is recorded again.
     this.useDepthForOcclusion = useDepthForOcclusion;
     compileAndLoadShaderProgram(context);
+    if (geometry != null) {
+      createVertexArray();
+    }
+  }
+
+  /**
+   * Records the vertex attribute and index buffer setup of the model in a vertex array object, if
+   * the context supports them.
+   */
+  private void createVertexArray() {
+    deleteVertexArray();
+    if (!ShaderUtil.isVertexArraySupported()) {
+      return;
+    }
+    GLES30.glGenVertexArrays(1, vertexArray, 0);
+    vertexArrayContext = EGL14.eglGetCurrentContext();
+    GLES30.glBindVertexArray(vertexArray[0]);
+    enableVertexAttributes();
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, geometry.indexBufferId);
+    GLES30.glBindVertexArray(0);
+    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    ShaderUtil.checkGLError(TAG, "Vertex array creation");
+  }
+
+  private void deleteVertexArray() {
+    if (vertexArray[0] != 0 && EGL14.eglGetCurrentContext().equals(vertexArrayContext)) {
+      GLES30.glDeleteVertexArrays(1, vertexArray, 0);
+    }
+    vertexArray[0] = 0;
+    vertexArrayContext = EGL14.EGL_NO_CONTEXT;
+  }
+
+  /** Points the shader's attributes at the model's vertex buffer, and enables them. */
+  private void enableVertexAttributes() {
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, geometry.vertexBufferId);
+
+    GLES20.glVertexAttribPointer(
+        positionAttribute,
+        COORDS_PER_VERTEX,
+        GLES20.GL_FLOAT,
+        false,
+        0,
+        geometry.verticesBaseAddress);
+    GLES20.glVertexAttribPointer(
+        normalAttribute, 3, GLES20.GL_FLOAT, false, 0, geometry.normalsBaseAddress);
+    GLES20.glVertexAttribPointer(
+        texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, geometry.texCoordsBaseAddress);
+
+    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+    GLES20.glEnableVertexAttribArray(positionAttribute);
+    GLES20.glEnableVertexAttribArray(normalAttribute);
+    GLES20.glEnableVertexAttribArray(texCoordAttribute);
   }
 
   private void compileAndLoadShaderProgram(Context context) throws IOException {
-    // Compiles and loads the shader program based on the selected mode.
+    // Starts compiling the program of the other mode, so that it is ready when the mode is
+    // toggled, then loads the program of the selected mode.
     Map<String, Integer> defineValuesMap = new TreeMap<>();
-    defineValuesMap.put(USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG, useDepthForOcclusion ? 1 : 0);
-
-    final int vertexShader =
-        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
-    final int fragmentShader =
-        ShaderUtil.loadGLShader(
-            TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME, defineValuesMap);
+    defineValuesMap.put(USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG, useDepthForOcclusion ? 0 : 1);
+    ShaderUtil.prefetchGLProgram(
+        context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, defineValuesMap);
 
-    program = GLES20.glCreateProgram();
-    GLES20.glAttachShader(program, vertexShader);
-    GLES20.glAttachShader(program, fragmentShader);
-    GLES20.glLinkProgram(program);
+    defineValuesMap.put(USE_DEPTH_FOR_OCCLUSION_SHADER_FLAG, useDepthForOcclusion ? 1 : 0);
+    program =
+        ShaderUtil.loadGLProgram(
+            TAG, context, VERTEX_SHADER_NAME, FRAGMENT_SHADER_NAME, defineValuesMap);
     GLES20.glUseProgram(program);
 
     ShaderUtil.checkGLError(TAG, "Program creation");
@@ -314,6 +308,13 @@ public class ObjectRenderer {
     Matrix.multiplyMM(this.modelMatrix, 0, modelMatrix, 0, scaleMatrix, 0);
   }
 
+  /**
+   * Returns the bounds of the model in its local coordinates, before the model matrix is applied.
+   */
+  public BoundingVolume getBoundingVolume() {
+    return boundingVolume;
+  }
+
   /**
    * Sets the surface characteristics of the rendered model.
    *
@@ -360,6 +361,13 @@ public class ObjectRenderer {
     Matrix.multiplyMM(modelViewMatrix, 0, cameraView, 0, modelMatrix, 0);
     Matrix.multiplyMM(modelViewProjectionMatrix, 0, cameraPerspective, 0, modelViewMatrix, 0);
 
+    // Skip the draw if the model's bounding box is entirely outside of the view frustum. The
+    // planes are taken from the model-view-projection matrix, so the box is tested in model space.
+    frustumCuller.setFromMatrix(modelViewProjectionMatrix);
+    if (!frustumCuller.isBoxVisible(boundingVolume.getMin(), boundingVolume.getMax())) {
+      return;
+    }
+
     GLES20.glUseProgram(program);
 
     // Set the lighting environment properties.
@@ -381,7 +389,7 @@ public class ObjectRenderer {
 
     // Attach the object texture.
     GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture.textureId);
     GLES20.glUniform1i(textureUniform, 0);
 
     // Occlusion parameters.
@@ -396,25 +404,17 @@ public class ObjectRenderer {
       GLES20.glUniform1f(depthAspectRatioUniform, depthAspectRatio);
     }
 
-    // Set the vertex attributes.
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, vertexBufferId);
-
-    GLES20.glVertexAttribPointer(
-        positionAttribute, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, verticesBaseAddress);
-    GLES20.glVertexAttribPointer(normalAttribute, 3, GLES20.GL_FLOAT, false, 0, normalsBaseAddress);
-    GLES20.glVertexAttribPointer(
-        texCoordAttribute, 2, GLES20.GL_FLOAT, false, 0, texCoordsBaseAddress);
-
-    GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
-
     // Set the ModelViewProjection matrix in the shader.
     GLES20.glUniformMatrix4fv(modelViewUniform, 1, false, modelViewMatrix, 0);
     GLES20.glUniformMatrix4fv(modelViewProjectionUniform, 1, false, modelViewProjectionMatrix, 0);
 
-    // Enable vertex arrays
-    GLES20.glEnableVertexAttribArray(positionAttribute);
-    GLES20.glEnableVertexAttribArray(normalAttribute);
-    GLES20.glEnableVertexAttribArray(texCoordAttribute);
+    // Set the vertex attributes, in one call if they were recorded in a vertex array.
+    if (vertexArray[0] != 0) {
+      GLES30.glBindVertexArray(vertexArray[0]);
+    } else {
+      enableVertexAttributes();
+      GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, geometry.indexBufferId);
+    }
 
     if (blendMode != null) {
       GLES20.glEnable(GLES20.GL_BLEND);
@@ -436,9 +436,7 @@ public class ObjectRenderer {
       }
     }
 
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, indexBufferId);
-    GLES20.glDrawElements(GLES20.GL_TRIANGLES, indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
-    GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    GLES20.glDrawElements(GLES20.GL_TRIANGLES, geometry.indexCount, GLES20.GL_UNSIGNED_SHORT, 0);
 
     if (blendMode != null) {
       GLES20.glDisable(GLES20.GL_BLEND);
@@ -446,9 +444,14 @@ public class ObjectRenderer {
     }
 
     // Disable vertex arrays
-    GLES20.glDisableVertexAttribArray(positionAttribute);
-    GLES20.glDisableVertexAttribArray(normalAttribute);
-    GLES20.glDisableVertexAttribArray(texCoordAttribute);
+    if (vertexArray[0] != 0) {
+      GLES30.glBindVertexArray(0);
+    } else {
+      GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+      GLES20.glDisableVertexAttribArray(positionAttribute);
+      GLES20.glDisableVertexAttribArray(normalAttribute);
+      GLES20.glDisableVertexAttribArray(texCoordAttribute);
+    }
 
     GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
 
@@ -16,59 +16,191 @@
 package com.google.ar.core.examples.java.common.rendering;
 
 import android.content.Context;
+import android.opengl.EGL14;
+import android.opengl.EGLContext;
 import android.opengl.GLES20;
 import android.util.Log;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
 
-/** Shader helper functions. */
+/**
+ * Shader helper functions.
+ *
+ * <p>Compiled shaders and linked programs are kept in a registry keyed by asset names and #define
+ * values, so renderers asking for the same shader or program share a single GL object, and
+ * switching between variants of a program does not compile anything. The objects are shared, so
+ * callers must not delete them. Like {@link GlAssetCache}, the registry forgets the objects of a
+ * previous EGL context when used from a new one.
+ */
 public class ShaderUtil {
+  /** A compiled shader or linked program, whose status has not been queried yet if unverified. */
+  private static final class GlObject {
+    final int id;
+    boolean verified = false;
+
+    GlObject(int id) {
+      this.id = id;
+    }
+  }
+
+  private static final Map<String, String> sources = new HashMap<>();
+  private static final Map<String, GlObject> shaders = new HashMap<>();
+  private static final Map<String, GlObject> programs = new HashMap<>();
+  private static EGLContext owner = EGL14.EGL_NO_CONTEXT;
+
   /**
-   * Converts a raw text file, saved as a resource, into an OpenGL ES shader.
+   * Converts a raw text file, saved as a resource, into an OpenGL ES shader. The shader is shared
+   * with other callers asking for the same file and #define values.
    *
    * @param type The type of shader we will be creating.
    * @param filename The filename of the asset file about to be turned into a shader.
    * @param defineValuesMap The #define values to add to the top of the shader source code.
    * @return The shader object handler.
    */
-  public static int loadGLShader(
+  public static synchronized int loadGLShader(
       String tag, Context context, int type, String filename, Map<String, Integer> defineValuesMap)
       throws IOException {
-    // Load shader source code.
-    String code = readShaderFileFromAssets(context, filename);
+    checkContext();
+    GlObject shader = compileShader(context, type, filename, defineValuesMap);
+    verifyShader(tag, shader);
+    return shader.id;
+  }
 
-    // Prepend any #define values specified during this run.
-    String defines = "";
-    for (Map.Entry<String, Integer> entry : defineValuesMap.entrySet()) {
-      defines += "#define " + entry.getKey() + " " + entry.getValue() + "\n";
+  /**
+   * Returns the program linked from a vertex and a fragment shader asset, both compiled with the
+   * given #define values. The program is shared with other callers asking for the same shaders and
+   * #define values, and compiled and linked on the first request, unless it was prefetched.
+   */
+  public static synchronized int loadGLProgram(
+      String tag,
+      Context context,
+      String vertexShaderFilename,
+      String fragmentShaderFilename,
+      Map<String, Integer> defineValuesMap)
+      throws IOException {
+    checkContext();
+    GlObject program =
+        linkProgram(context, vertexShaderFilename, fragmentShaderFilename, defineValuesMap);
+    if (!program.verified) {
+      final int[] linkStatus = new int[1];
+      GLES20.glGetProgramiv(program.id, GLES20.GL_LINK_STATUS, linkStatus, 0);
+      if (linkStatus[0] == 0) {
+        // Report the compilation error of a shader first, if there is one.
+        verifyShader(
+            tag,
+            compileShader(context, GLES20.GL_VERTEX_SHADER, vertexShaderFilename, defineValuesMap));
+        verifyShader(
+            tag,
+            compileShader(
+                context, GLES20.GL_FRAGMENT_SHADER, fragmentShaderFilename, defineValuesMap));
+        Log.e(tag, "Error linking program: " + GLES20.glGetProgramInfoLog(program.id));
+        throw new RuntimeException("Error creating program.");
+      }
+      program.verified = true;
     }
-    code = defines + code;
+    return program.id;
+  }
+
+  /**
+   * Starts compiling and linking a program that is likely to be needed later, without waiting for
+   * the result. Drivers may compile in the background until the program is first requested with
+   * {@link #loadGLProgram}, which then returns immediately.
+   */
+  public static synchronized void prefetchGLProgram(
+      Context context,
+      String vertexShaderFilename,
+      String fragmentShaderFilename,
+      Map<String, Integer> defineValuesMap)
+      throws IOException {
+    checkContext();
+    linkProgram(context, vertexShaderFilename, fragmentShaderFilename, defineValuesMap);
+  }
 
-    // Compiles shader code.
-    int shader = GLES20.glCreateShader(type);
-    GLES20.glShaderSource(shader, code);
-    GLES20.glCompileShader(shader);
+  private static GlObject linkProgram(
+      Context context,
+      String vertexShaderFilename,
+      String fragmentShaderFilename,
+      Map<String, Integer> defineValuesMap)
+      throws IOException {
+    String key =
+        vertexShaderFilename + "|" + fragmentShaderFilename + "|" + definesKey(defineValuesMap);
+    GlObject program = programs.get(key);
+    if (program == null) {
+      GlObject vertexShader =
+          compileShader(context, GLES20.GL_VERTEX_SHADER, vertexShaderFilename, defineValuesMap);
+      GlObject fragmentShader =
+          compileShader(
+              context, GLES20.GL_FRAGMENT_SHADER, fragmentShaderFilename, defineValuesMap);
+      program = new GlObject(GLES20.glCreateProgram());
+      GLES20.glAttachShader(program.id, vertexShader.id);
+      GLES20.glAttachShader(program.id, fragmentShader.id);
+      GLES20.glLinkProgram(program.id);
+      programs.put(key, program);
+    }
+    return program;
+  }
 
+  private static GlObject compileShader(
+      Context context, int type, String filename, Map<String, Integer> defineValuesMap)
+      throws IOException {
+    String defines = definesKey(defineValuesMap);
+    String key = type + "|" + filename + "|" + defines;
+    GlObject shader = shaders.get(key);
+    if (shader == null) {
+      // Load shader source code, once per asset.
+      String code = sources.get(filename);
+      if (code == null) {
+        code = readShaderFileFromAssets(context, filename);
+        sources.put(filename, code);
+      }
+
+      // Compiles shader code, with any #define values specified during this run prepended.
+      shader = new GlObject(GLES20.glCreateShader(type));
+      GLES20.glShaderSource(shader.id, defines + code);
+      GLES20.glCompileShader(shader.id);
+      shaders.put(key, shader);
+    }
+    return shader;
+  }
+
+  private static void verifyShader(String tag, GlObject shader) {
+    if (shader.verified) {
+      return;
+    }
     // Get the compilation status.
     final int[] compileStatus = new int[1];
-    GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
-
-    // If the compilation failed, delete the shader.
+    GLES20.glGetShaderiv(shader.id, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
     if (compileStatus[0] == 0) {
-      Log.e(tag, "Error compiling shader: " + GLES20.glGetShaderInfoLog(shader));
-      GLES20.glDeleteShader(shader);
-      shader = 0;
+      // Keep the failed shader, so that it is not compiled again on every request.
+      Log.e(tag, "Error compiling shader: " + GLES20.glGetShaderInfoLog(shader.id));
+      throw new RuntimeException("Error creating shader.");
     }
+    shader.verified = true;
+  }
 
-    if (shader == 0) {
-      throw new RuntimeException("Error creating shader.");
+  /** Returns the #define lines for {@code defineValuesMap}, in a canonical order. */
+  private static String definesKey(Map<String, Integer> defineValuesMap) {
+    StringBuilder defines = new StringBuilder();
+    for (Map.Entry<String, Integer> entry : new TreeMap<>(defineValuesMap).entrySet()) {
+      defines.append("#define ").append(entry.getKey()).append(' ');
+      defines.append(entry.getValue()).append('\n');
     }
+    return defines.toString();
+  }
 
-    return shader;
+  private static void checkContext() {
+    EGLContext current = EGL14.eglGetCurrentContext();
+    if (!current.equals(owner)) {
+      // The objects went away with their context.
+      shaders.clear();
+      programs.clear();
+      owner = current;
+    }
   }
 
   /** Overload of loadGLShader that assumes no additional #define values to add. */
@@ -97,6 +229,22 @@ public class ShaderUtil {
     }
   }
 
+  /**
+   * Returns true if the current context supports vertex array objects, i.e. is an OpenGL ES 3.0 or
+   * later context. Contexts requested with {@code setEGLContextClientVersion(2)} are usually of the
+   * highest version the device supports, so this is true on most devices even for GLES2 samples.
+   * Must be called on the GL thread.
+   */
+  public static boolean isVertexArraySupported() {
+    // The version string is "OpenGL ES <major>.<minor> <vendor-specific information>".
+    String version = GLES20.glGetString(GLES20.GL_VERSION);
+    String prefix = "OpenGL ES ";
+    if (version == null || !version.startsWith(prefix) || version.length() <= prefix.length()) {
+      return false;
+    }
+    return Character.digit(version.charAt(prefix.length()), 10) >= 3;
+  }
+
   /**
    * Converts a raw shader file into a string.
    *
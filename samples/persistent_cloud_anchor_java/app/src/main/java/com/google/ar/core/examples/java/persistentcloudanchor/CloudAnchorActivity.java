@@ -21,6 +21,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.opengl.Matrix;
 import android.os.Bundle;
 import android.os.SystemClock;
 import android.util.Log;
@@ -53,6 +54,8 @@ import com.google.ar.core.examples.java.common.helpers.DisplayRotationHelper;
 import com.google.ar.core.examples.java.common.helpers.FullScreenHelper;
 import com.google.ar.core.examples.java.common.helpers.TrackingStateHelper;
 import com.google.ar.core.examples.java.common.rendering.BackgroundRenderer;
+import com.google.ar.core.examples.java.common.rendering.FrustumCuller;
+import com.google.ar.core.examples.java.common.rendering.InstancedObjectRenderer;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer;
 import com.google.ar.core.examples.java.common.rendering.PlaneRenderer;
 import com.google.ar.core.examples.java.common.rendering.PointCloudRenderer;
@@ -113,7 +116,7 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
   private GLSurfaceView surfaceView;
   private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
   private final ObjectRenderer anchorObject = new ObjectRenderer();
-  private final ObjectRenderer featureMapQualityBarObject = new ObjectRenderer();
+  private final InstancedObjectRenderer featureMapQualityBarObject = new InstancedObjectRenderer();
   private final PlaneRenderer planeRenderer = new PlaneRenderer();
   private final PointCloudRenderer pointCloudRenderer = new PointCloudRenderer();
 
@@ -124,6 +127,8 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
   private final float[] viewMatrix = new float[16];
   private final float[] projectionMatrix = new float[16];
   private final float[] anchorTranslation = new float[4];
+  private final float[] viewProjectionMatrix = new float[16];
+  private final FrustumCuller viewFrustumCuller = new FrustumCuller();
 
   // Locks needed for synchronization
   private final Object singleTapLock = new Object();
@@ -438,7 +443,10 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
       anchorObject.setMaterialProperties(0.0f, 0.75f, 0.1f, 0.5f);
 
       featureMapQualityBarObject.createOnGlThread(
-          this, "models/map_quality_bar.obj", "models/map_quality_bar.png");
+          this,
+          "models/map_quality_bar.obj",
+          "models/map_quality_bar.png",
+          FeatureMapQualityUi.getBarCount());
       featureMapQualityBarObject.setMaterialProperties(0.0f, 2.0f, 0.02f, 0.5f);
 
     } catch (IOException ex) {
@@ -494,6 +502,8 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
       // Get camera and projection matrices.
       camera.getViewMatrix(viewMatrix, 0);
       camera.getProjectionMatrix(projectionMatrix, 0, 0.1f, 100.0f);
+      Matrix.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+      viewFrustumCuller.setFromMatrix(viewProjectionMatrix);
 
       // Visualize tracked points.
       // Use try-with-resources to automatically release the point cloud.
@@ -575,7 +585,7 @@ public class CloudAnchorActivity extends AppCompatActivity implements GLSurfaceV
         // quality bar) using the vector going from the phone to the anchor. If the person is
         // looking away from the anchor and we would incorrectly update the intersected angle with
         // the FeatureMapQuality from their current view. So we check isAnchorInView() here.
-        && FeatureMapQualityUi.isAnchorInView(anchorTranslation, viewMatrix, projectionMatrix)) {
+        && FeatureMapQualityUi.isAnchorInView(anchorTranslation, viewFrustumCuller)) {
       lastEstimateTimestampMillis = now;
       // Update the FeatureMapQuality for the current camera viewpoint. Can pass in ANY valid camera
       // pose to estimateFeatureMapQualityForHosting(). Ideally, the pose should represent users’
@@ -18,9 +18,15 @@ package com.google.ar.core.examples.java.persistentcloudanchor;
 import android.opengl.Matrix;
 import com.google.ar.core.Pose;
 import com.google.ar.core.Session.FeatureMapQuality;
-import com.google.ar.core.examples.java.common.rendering.ObjectRenderer;
+import com.google.ar.core.examples.java.common.rendering.FrustumCuller;
+import com.google.ar.core.examples.java.common.rendering.InstancedObjectRenderer;
 
-/** Helper class to display the Feature Map Quality UI for the Persistent Cloud Anchor Sample. */
+/**
+ * Helper class to display the Feature Map Quality UI for the Persistent Cloud Anchor Sample.
+ *
+ * <p>The bars are instances of an {@link InstancedObjectRenderer}, placed relative to the UI frame,
+ * so the whole ring is drawn in one call and instance data only changes with a bar's quality.
+ */
 class FeatureMapQualityUi {
   private static final String TAG = FeatureMapQualityUi.class.getSimpleName();
   private static final float[] ROTATION_QUATERNION_180_Y =
@@ -55,9 +61,12 @@ class FeatureMapQualityUi {
   final double arcEndRad;
   final int numBars;
   final float radius;
-  ObjectRenderer objectRenderer;
+  InstancedObjectRenderer barRenderer;
   final QualityBar[] bars;
-  Pose featureMapQualityUIPose;
+  // UI-to-anchor and UI-to-world transforms, and a scratch matrix for the anchor pose.
+  private final float[] uiTransformMatrix = new float[16];
+  private final float[] uiMatrix = new float[16];
+  private final float[] anchorMatrix = new float[16];
 
   enum Quality {
     UNKNOWN,
@@ -67,14 +76,16 @@ class FeatureMapQualityUi {
   }
 
   class QualityBar {
-    private final Pose localPose;
-    private final float[] modelMatrix;
+    private final int index;
     private Quality quality;
 
-    public QualityBar(double rad) {
-      modelMatrix = new float[16];
-      localPose = computeLocalPose(rad);
+    public QualityBar(int index, double rad) {
+      this.index = index;
       quality = Quality.UNKNOWN;
+      float[] modelMatrix = new float[16];
+      computeLocalPose(rad).toMatrix(modelMatrix, 0);
+      Matrix.scaleM(modelMatrix, 0, BAR_SCALE, BAR_SCALE, BAR_SCALE);
+      barRenderer.setInstance(index, modelMatrix, BAR_COLOR_UNKNOWN_QUALITY);
     }
 
     private Pose computeLocalPose(double rad) {
@@ -86,72 +97,72 @@ class FeatureMapQualityUi {
     }
 
     public void updateQuality(FeatureMapQuality quality) {
+      Quality newQuality;
+      float[] color;
       if (quality == FeatureMapQuality.INSUFFICIENT) {
-        this.quality = Quality.INSUFFICIENT;
+        newQuality = Quality.INSUFFICIENT;
+        color = BAR_COLOR_LOW_QUALITY;
       } else if (quality == FeatureMapQuality.SUFFICIENT) {
-        this.quality = Quality.SUFFICIENT;
+        newQuality = Quality.SUFFICIENT;
+        color = BAR_COLOR_MEDIUM_QUALITY;
       } else {
-        this.quality = Quality.GOOD;
+        newQuality = Quality.GOOD;
+        color = BAR_COLOR_HIGH_QUALITY;
       }
-    }
-
-    public void draw(
-        Pose uiPose, float[] viewMatrix, float[] projectionMatrix, float[] colorCorrectionRgba) {
-      uiPose.compose(localPose).toMatrix(modelMatrix, 0);
-      objectRenderer.updateModelMatrix(modelMatrix, BAR_SCALE);
-      if (this.quality == Quality.UNKNOWN) {
-        objectRenderer.draw(
-            viewMatrix, projectionMatrix, colorCorrectionRgba, BAR_COLOR_UNKNOWN_QUALITY);
-      } else if (this.quality == Quality.INSUFFICIENT) {
-        objectRenderer.draw(
-            viewMatrix, projectionMatrix, colorCorrectionRgba, BAR_COLOR_LOW_QUALITY);
-      } else if (this.quality == Quality.SUFFICIENT) {
-        objectRenderer.draw(
-            viewMatrix, projectionMatrix, colorCorrectionRgba, BAR_COLOR_MEDIUM_QUALITY);
-      } else {
-        objectRenderer.draw(
-            viewMatrix, projectionMatrix, colorCorrectionRgba, BAR_COLOR_HIGH_QUALITY);
+      // Only a change of quality touches the renderer's instance data.
+      if (newQuality != this.quality) {
+        this.quality = newQuality;
+        barRenderer.setInstanceColor(index, color);
       }
     }
   }
 
   /**
-   * Returns true if the anchor (specified by anchorTranslationWorld is visible in the camera view (
-   * specified by viewMatrix and projectionMatrix); otherwise false.
+   * Returns true if the anchor (specified by anchorTranslationWorld) is visible in the camera view
+   * (specified by a frustum culler set from the view-projection matrix); otherwise false.
    */
   public static boolean isAnchorInView(
-      float[] anchorTranslationWorld, float[] viewMatrix, float[] projectionMatrix) {
-    float[] viewProjectionMatrix = new float[16];
-    final float[] anchorTranslationNDC = new float[4];
-    // Project point to Normalized Device Coordinates and check if in bounds.
-    Matrix.multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
-    Matrix.multiplyMV(anchorTranslationNDC, 0, viewProjectionMatrix, 0, anchorTranslationWorld, 0);
-    float ndcX = anchorTranslationNDC[0] / anchorTranslationNDC[3];
-    float ndcY = anchorTranslationNDC[1] / anchorTranslationNDC[3];
-    return !(ndcX < -1 || ndcX > 1 || ndcY < -1 || ndcY > 1);
+      float[] anchorTranslationWorld, FrustumCuller viewFrustumCuller) {
+    return viewFrustumCuller.isPointVisible(
+        anchorTranslationWorld[0], anchorTranslationWorld[1], anchorTranslationWorld[2]);
+  }
+
+  /** Returns the number of bars in a UI, for sizing the bar renderer. */
+  public static int getBarCount() {
+    return (int) Math.round(Math.PI / MAPPING_UI_SPACING_RADIANS);
   }
 
+  /**
+   * Creates a UI for an anchor on a horizontal plane. The UI takes over the instances of {@code
+   * barRenderer}, which must be able to hold {@link #getBarCount} of them.
+   */
   public static FeatureMapQualityUi createHorizontalFeatureMapQualityUi(
-      ObjectRenderer objectRenderer) {
-    return new FeatureMapQualityUi(true, objectRenderer);
+      InstancedObjectRenderer barRenderer) {
+    return new FeatureMapQualityUi(true, barRenderer);
   }
 
+  /**
+   * Creates a UI for an anchor on a vertical plane. See {@link
+   * #createHorizontalFeatureMapQualityUi}.
+   */
   public static FeatureMapQualityUi createVerticalFeatureMapQualityUi(
-      ObjectRenderer objectRenderer) {
-    return new FeatureMapQualityUi(false, objectRenderer);
+      InstancedObjectRenderer barRenderer) {
+    return new FeatureMapQualityUi(false, barRenderer);
   }
 
-  private FeatureMapQualityUi(boolean isHorizontal, ObjectRenderer objectRenderer) {
+  private FeatureMapQualityUi(boolean isHorizontal, InstancedObjectRenderer barRenderer) {
     this.isHorizontal = isHorizontal;
     this.radius = MAPPING_UI_RADIUS;
-    this.objectRenderer = objectRenderer;
+    this.barRenderer = barRenderer;
     arcStartRad = 0;
     arcEndRad = Math.PI;
-    numBars = (int) Math.round(Math.PI / MAPPING_UI_SPACING_RADIANS);
+    numBars = getBarCount();
+    getUiTransform().toMatrix(uiTransformMatrix, 0);
 
+    barRenderer.setInstanceCount(numBars);
     bars = new QualityBar[numBars];
     for (int i = 0; i < numBars; ++i) {
-      bars[i] = new QualityBar(Math.PI / (double) numBars * i);
+      bars[i] = new QualityBar(i, Math.PI / (double) numBars * i);
     }
   }
 
@@ -187,14 +198,9 @@ class FeatureMapQualityUi {
 
   public void drawUi(
       Pose anchorPose, float[] viewMatrix, float[] projectionMatrix, float[] colorCorrectionRgba) {
-    if (isHorizontal) {
-      featureMapQualityUIPose = anchorPose.compose(HORIZONTAL_UI_TRANSFORM);
-    } else {
-      featureMapQualityUIPose = anchorPose.compose(VERTICAL_UI_TRANSFORM);
-    }
-    for (QualityBar bar : bars) {
-      bar.draw(featureMapQualityUIPose, viewMatrix, projectionMatrix, colorCorrectionRgba);
-    }
+    anchorPose.toMatrix(anchorMatrix, 0);
+    Matrix.multiplyMM(uiMatrix, 0, anchorMatrix, 0, uiTransformMatrix, 0);
+    barRenderer.draw(uiMatrix, viewMatrix, projectionMatrix, colorCorrectionRgba);
   }
 
   private static int computeBarIndex(float[] viewRay) {
@@ -0,0 +1,420 @@
+/*
+ * Copyright 2021 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.core.examples.java.common.helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A container of placed items (typically anchors and their content) indexed by a hashed uniform
+ * grid over their world positions.
+ *
+ * <p>Only occupied cells are stored, so the grid is unbounded. Visibility queries test whole cells,
+ * which are enlarged by a margin covering the extent of the items, against a caller-supplied box
+ * test such as a view frustum. Given the bounding box of the test, only the cells it covers within
+ * the occupied range are visited, so per-frame work is proportional to the smaller of that number
+ * of cells and the number of occupied cells, plus the number of items in visible cells, rather than
+ * to the total number of items.
+ *
+ * <p>Positions are not tracked automatically. Callers update the positions of items they touch
+ * anyway (for example the visible ones, whose poses are read for drawing) with {@link #move}, and
+ * can keep the rest fresh in bounded batches with {@link #refreshPositions}.
+ *
+ * <p>This class is not thread-safe.
+ */
+public final class SpatialHashGrid<T> {
+  /** Tests an axis-aligned box, for example against a view frustum. */
+  public interface BoxTest {
+    boolean test(float[] min, float[] max);
+  }
+
+  /** Supplies the current position of an item. */
+  public interface PositionSource<T> {
+    /**
+     * Writes the world position of {@code item} into {@code outPosition} (x, y, z), and returns
+     * false if the position is currently unknown, in which case the item is not moved.
+     */
+    boolean getPosition(T item, float[] outPosition);
+  }
+
+  /** An item in the grid, with the position it was last indexed at. */
+  public static final class Entry<T> {
+    private final T item;
+    private float x;
+    private float y;
+    private float z;
+    private Cell<T> cell;
+    private int indexInCell;
+    private int indexInEntries;
+
+    private Entry(T item) {
+      this.item = item;
+    }
+
+    public T getItem() {
+      return item;
+    }
+
+    public float getX() {
+      return x;
+    }
+
+    public float getY() {
+      return y;
+    }
+
+    public float getZ() {
+      return z;
+    }
+  }
+
+  private static final class Cell<T> {
+    final long key;
+    final float[] min = new float[3];
+    final float[] max = new float[3];
+    final ArrayList<Entry<T>> entries = new ArrayList<>();
+    int indexInOccupiedCells;
+
+    Cell(long key) {
+      this.key = key;
+    }
+  }
+
+  // Cell coordinates are packed into a long with this many bits per axis.
+  private static final int BITS_PER_AXIS = 21;
+  private static final long AXIS_MASK = (1L << BITS_PER_AXIS) - 1;
+  private static final int AXIS_OFFSET = 1 << (BITS_PER_AXIS - 1);
+
+  private final float cellSize;
+  private final float margin;
+  private final Map<Long, Cell<T>> cells = new HashMap<>();
+  // All cells, for iteration without going through the map's iterator.
+  private final ArrayList<Cell<T>> occupiedCells = new ArrayList<>();
+  // Cell coordinates (x, y, z) bounding all occupied cells. Grown as cells are added, and only
+  // reset once the grid is empty, so they may be larger than needed after removals.
+  private final int[] occupiedMin = new int[3];
+  private final int[] occupiedMax = new int[3];
+  // All entries, for bounded round-robin position refreshes.
+  private final ArrayList<Entry<T>> entries = new ArrayList<>();
+  private int nextRefreshIndex = 0;
+  private final float[] position = new float[3];
+
+  /**
+   * Creates an empty grid.
+   *
+   * @param cellSize The edge length of a cell, in meters.
+   * @param margin The distance by which cells are enlarged for visibility queries. Should cover the
+   *     radius of the largest item, plus how far an item may drift before its position is updated.
+   */
+  public SpatialHashGrid(float cellSize, float margin) {
+    if (cellSize <= 0.0f || margin < 0.0f) {
+      throw new IllegalArgumentException("Cell size must be positive and margin non-negative");
+    }
+    this.cellSize = cellSize;
+    this.margin = margin;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /** Adds {@code item} at the given world position and returns its entry. */
+  public Entry<T> insert(T item, float x, float y, float z) {
+    Entry<T> entry = new Entry<>(item);
+    entry.indexInEntries = entries.size();
+    entries.add(entry);
+    place(entry, x, y, z);
+    return entry;
+  }
+
+  /** Removes {@code entry} from the grid. Runs in constant time. */
+  public void remove(Entry<T> entry) {
+    if (entry.cell == null) {
+      return;
+    }
+    unplace(entry);
+    Entry<T> last = entries.remove(entries.size() - 1);
+    if (last != entry) {
+      last.indexInEntries = entry.indexInEntries;
+      entries.set(entry.indexInEntries, last);
+    }
+  }
+
+  /** Removes all entries. */
+  public void clear() {
+    for (Entry<T> entry : entries) {
+      entry.cell = null;
+    }
+    entries.clear();
+    cells.clear();
+    occupiedCells.clear();
+    nextRefreshIndex = 0;
+  }
+
+  /** Updates the position of {@code entry}, moving it to another cell if needed. */
+  public void move(Entry<T> entry, float x, float y, float z) {
+    if (entry.cell == null) {
+      throw new IllegalArgumentException("Entry is not in this grid");
+    }
+    if (entry.cell.key == cellKey(x, y, z)) {
+      entry.x = x;
+      entry.y = y;
+      entry.z = z;
+      return;
+    }
+    unplace(entry);
+    place(entry, x, y, z);
+  }
+
+  /**
+   * Re-reads the positions of up to {@code maxCount} entries from {@code source}, continuing where
+   * the previous call stopped, so that all entries are refreshed over several frames.
+   *
+   * @return The number of entries refreshed.
+   */
+  public int refreshPositions(PositionSource<T> source, int maxCount) {
+    int count = Math.min(maxCount, entries.size());
+    for (int i = 0; i < count; ++i) {
+      if (nextRefreshIndex >= entries.size()) {
+        nextRefreshIndex = 0;
+      }
+      Entry<T> entry = entries.get(nextRefreshIndex++);
+      if (source.getPosition(entry.item, position)) {
+        move(entry, position[0], position[1], position[2]);
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Adds to {@code out} the entries of all cells that pass {@code cellTest}. The result is
+   * conservative: callers should still test each entry's own bounds.
+   *
+   * <p>Every occupied cell is tested. When the bounding box of {@code cellTest} is known, prefer
+   * {@link #queryVisible(float[], float[], BoxTest, List)}.
+   */
+  public void queryVisible(BoxTest cellTest, List<Entry<T>> out) {
+    for (int i = 0; i < occupiedCells.size(); ++i) {
+      addEntriesIfVisible(occupiedCells.get(i), cellTest, out);
+    }
+  }
+
+  /**
+   * Adds to {@code out} the entries of all cells that pass {@code cellTest} and intersect the
+   * axis-aligned box from {@code boundsMin} to {@code boundsMax} (x, y, z), typically the bounding
+   * box of the view frustum that {@code cellTest} tests against. The result is conservative:
+   * callers should still test each entry's own bounds.
+   *
+   * <p>Only the cells covered by the bounds and within the occupied range are visited, or the
+   * occupied cells if there are fewer of them.
+   */
+  public void queryVisible(
+      float[] boundsMin, float[] boundsMax, BoxTest cellTest, List<Entry<T>> out) {
+    if (occupiedCells.isEmpty()) {
+      return;
+    }
+    // Cells are enlarged by the margin, so those up to a margin outside the bounds may pass.
+    int minX = Math.max(cellCoordinate(boundsMin[0] - margin), occupiedMin[0]);
+    int minY = Math.max(cellCoordinate(boundsMin[1] - margin), occupiedMin[1]);
+    int minZ = Math.max(cellCoordinate(boundsMin[2] - margin), occupiedMin[2]);
+    int maxX = Math.min(cellCoordinate(boundsMax[0] + margin), occupiedMax[0]);
+    int maxY = Math.min(cellCoordinate(boundsMax[1] + margin), occupiedMax[1]);
+    int maxZ = Math.min(cellCoordinate(boundsMax[2] + margin), occupiedMax[2]);
+    if (minX > maxX || minY > maxY || minZ > maxZ) {
+      return;
+    }
+    long numberOfCells = (long) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+    if (numberOfCells > occupiedCells.size()) {
+      // Large bounds: cheaper to walk the occupied cells than to probe empty ones.
+      for (int i = 0; i < occupiedCells.size(); ++i) {
+        Cell<T> cell = occupiedCells.get(i);
+        if (intersects(cell, boundsMin, boundsMax)) {
+          addEntriesIfVisible(cell, cellTest, out);
+        }
+      }
+      return;
+    }
+    for (int cx = minX; cx <= maxX; ++cx) {
+      for (int cy = minY; cy <= maxY; ++cy) {
+        for (int cz = minZ; cz <= maxZ; ++cz) {
+          Cell<T> cell = cells.get(packKey(cx, cy, cz));
+          if (cell != null) {
+            addEntriesIfVisible(cell, cellTest, out);
+          }
+        }
+      }
+    }
+  }
+
+  /** Adds to {@code out} the entries within {@code radius} of the given world position. */
+  public void queryRadius(float x, float y, float z, float radius, List<Entry<T>> out) {
+    int minX = cellCoordinate(x - radius);
+    int maxX = cellCoordinate(x + radius);
+    int minY = cellCoordinate(y - radius);
+    int maxY = cellCoordinate(y + radius);
+    int minZ = cellCoordinate(z - radius);
+    int maxZ = cellCoordinate(z + radius);
+    long numberOfCells = (long) (maxX - minX + 1) * (maxY - minY + 1) * (maxZ - minZ + 1);
+    float radiusSquared = radius * radius;
+    if (numberOfCells > occupiedCells.size()) {
+      // Large radius: cheaper to walk the occupied cells than to probe empty ones.
+      for (int i = 0; i < occupiedCells.size(); ++i) {
+        addEntriesInRadius(occupiedCells.get(i), x, y, z, radiusSquared, out);
+      }
+      return;
+    }
+    for (int cx = minX; cx <= maxX; ++cx) {
+      for (int cy = minY; cy <= maxY; ++cy) {
+        for (int cz = minZ; cz <= maxZ; ++cz) {
+          Cell<T> cell = cells.get(packKey(cx, cy, cz));
+          if (cell != null) {
+            addEntriesInRadius(cell, x, y, z, radiusSquared, out);
+          }
+        }
+      }
+    }
+  }
+
+  /** Returns the entry closest to the given world position within {@code radius}, or null. */
+  public Entry<T> findNearest(float x, float y, float z, float radius) {
+    List<Entry<T>> candidates = new ArrayList<>();
+    queryRadius(x, y, z, radius, candidates);
+    Entry<T> nearest = null;
+    float nearestDistanceSquared = Float.MAX_VALUE;
+    for (Entry<T> entry : candidates) {
+      float distanceSquared = distanceSquared(entry, x, y, z);
+      if (distanceSquared < nearestDistanceSquared) {
+        nearest = entry;
+        nearestDistanceSquared = distanceSquared;
+      }
+    }
+    return nearest;
+  }
+
+  private static <T> void addEntriesIfVisible(Cell<T> cell, BoxTest cellTest, List<Entry<T>> out) {
+    if (cellTest.test(cell.min, cell.max)) {
+      for (int i = 0; i < cell.entries.size(); ++i) {
+        out.add(cell.entries.get(i));
+      }
+    }
+  }
+
+  private static boolean intersects(Cell<?> cell, float[] min, float[] max) {
+    return cell.min[0] <= max[0]
+        && cell.max[0] >= min[0]
+        && cell.min[1] <= max[1]
+        && cell.max[1] >= min[1]
+        && cell.min[2] <= max[2]
+        && cell.max[2] >= min[2];
+  }
+
+  private void addEntriesInRadius(
+      Cell<T> cell, float x, float y, float z, float radiusSquared, List<Entry<T>> out) {
+    for (int i = 0; i < cell.entries.size(); ++i) {
+      Entry<T> entry = cell.entries.get(i);
+      if (distanceSquared(entry, x, y, z) <= radiusSquared) {
+        out.add(entry);
+      }
+    }
+  }
+
+  private void place(Entry<T> entry, float x, float y, float z) {
+    entry.x = x;
+    entry.y = y;
+    entry.z = z;
+    long key = cellKey(x, y, z);
+    Cell<T> cell = cells.get(key);
+    if (cell == null) {
+      cell = new Cell<>(key);
+      int cx = cellCoordinate(x);
+      int cy = cellCoordinate(y);
+      int cz = cellCoordinate(z);
+      cell.min[0] = cx * cellSize - margin;
+      cell.min[1] = cy * cellSize - margin;
+      cell.min[2] = cz * cellSize - margin;
+      cell.max[0] = (cx + 1) * cellSize + margin;
+      cell.max[1] = (cy + 1) * cellSize + margin;
+      cell.max[2] = (cz + 1) * cellSize + margin;
+      cells.put(key, cell);
+      growOccupiedRange(cx, cy, cz);
+      cell.indexInOccupiedCells = occupiedCells.size();
+      occupiedCells.add(cell);
+    }
+    entry.cell = cell;
+    entry.indexInCell = cell.entries.size();
+    cell.entries.add(entry);
+  }
+
+  private void growOccupiedRange(int cx, int cy, int cz) {
+    if (occupiedCells.isEmpty()) {
+      occupiedMin[0] = occupiedMax[0] = cx;
+      occupiedMin[1] = occupiedMax[1] = cy;
+      occupiedMin[2] = occupiedMax[2] = cz;
+      return;
+    }
+    occupiedMin[0] = Math.min(occupiedMin[0], cx);
+    occupiedMin[1] = Math.min(occupiedMin[1], cy);
+    occupiedMin[2] = Math.min(occupiedMin[2], cz);
+    occupiedMax[0] = Math.max(occupiedMax[0], cx);
+    occupiedMax[1] = Math.max(occupiedMax[1], cy);
+    occupiedMax[2] = Math.max(occupiedMax[2], cz);
+  }
+
+  private void unplace(Entry<T> entry) {
+    Cell<T> cell = entry.cell;
+    Entry<T> last = cell.entries.remove(cell.entries.size() - 1);
+    if (last != entry) {
+      last.indexInCell = entry.indexInCell;
+      cell.entries.set(entry.indexInCell, last);
+    }
+    entry.cell = null;
+    if (cell.entries.isEmpty()) {
+      cells.remove(cell.key);
+      Cell<T> lastCell = occupiedCells.remove(occupiedCells.size() - 1);
+      if (lastCell != cell) {
+        lastCell.indexInOccupiedCells = cell.indexInOccupiedCells;
+        occupiedCells.set(cell.indexInOccupiedCells, lastCell);
+      }
+    }
+  }
+
+  private int cellCoordinate(float value) {
+    return (int) Math.floor(value / cellSize);
+  }
+
+  private long cellKey(float x, float y, float z) {
+    return packKey(cellCoordinate(x), cellCoordinate(y), cellCoordinate(z));
+  }
+
+  private static long packKey(int cx, int cy, int cz) {
+    return (((cx + AXIS_OFFSET) & AXIS_MASK) << (2 * BITS_PER_AXIS))
+        | (((cy + AXIS_OFFSET) & AXIS_MASK) << BITS_PER_AXIS)
+        | ((cz + AXIS_OFFSET) & AXIS_MASK);
+  }
+
+  private static float distanceSquared(Entry<?> entry, float x, float y, float z) {
+    float dx = entry.x - x;
+    float dy = entry.y - y;
+    float dz = entry.z - z;
+    return dx * dx + dy * dy + dz * dz;
+  }
+}
@@ -31,6 +31,7 @@ import android.media.Image;
 import android.media.ImageReader;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
+import android.opengl.Matrix;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.ConditionVariable;
@@ -38,7 +39,6 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.util.Log;
 import android.util.Size;
-import android.view.MotionEvent;
 import android.view.Surface;
 import android.widget.LinearLayout;
 import android.widget.Switch;
@@ -56,6 +56,7 @@ import com.google.ar.core.Plane;
 import com.google.ar.core.Point;
 import com.google.ar.core.Point.OrientationMode;
 import com.google.ar.core.PointCloud;
+import com.google.ar.core.Pose;
 import com.google.ar.core.Session;
 import com.google.ar.core.SharedCamera;
 import com.google.ar.core.Trackable;
@@ -63,10 +64,13 @@ import com.google.ar.core.TrackingState;
 import com.google.ar.core.examples.java.common.helpers.CameraPermissionHelper;
 import com.google.ar.core.examples.java.common.helpers.DisplayRotationHelper;
 import com.google.ar.core.examples.java.common.helpers.FullScreenHelper;
+import com.google.ar.core.examples.java.common.helpers.LatencyRecorder;
 import com.google.ar.core.examples.java.common.helpers.SnackbarHelper;
+import com.google.ar.core.examples.java.common.helpers.SpatialHashGrid;
 import com.google.ar.core.examples.java.common.helpers.TapHelper;
 import com.google.ar.core.examples.java.common.helpers.TrackingStateHelper;
 import com.google.ar.core.examples.java.common.rendering.BackgroundRenderer;
+import com.google.ar.core.examples.java.common.rendering.FrustumCuller;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer;
 import com.google.ar.core.examples.java.common.rendering.ObjectRenderer.BlendMode;
 import com.google.ar.core.examples.java.common.rendering.PlaneRenderer;
@@ -78,6 +82,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
@@ -173,6 +178,7 @@ public class SharedCameraActivity extends AppCompatActivity
   private DisplayRotationHelper displayRotationHelper;
   private final TrackingStateHelper trackingStateHelper = new TrackingStateHelper(this);
   private TapHelper tapHelper;
+  private final TapHelper.Event tapEvent = new TapHelper.Event();
 
   // Renderers, see hello_ar_java sample to learn more.
   private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
@@ -185,8 +191,26 @@ public class SharedCameraActivity extends AppCompatActivity
   private final float[] anchorMatrix = new float[16];
   private static final float[] DEFAULT_COLOR = new float[] {0f, 0f, 0f, 0f};
 
-  // Anchors created from taps, see hello_ar_java sample to learn more.
-  private final ArrayList<ColoredAnchor> anchors = new ArrayList<>();
+  // Anchors created from taps, see hello_ar_java sample to learn more. They are indexed by position
+  // so that only those near the view frustum are visited each frame.
+  private static final float ANCHOR_CELL_SIZE_METERS = 1.0f;
+  private static final float ANCHOR_CELL_MARGIN_METERS = 0.5f;
+  private static final int ANCHOR_POSITION_REFRESH_BATCH = 32;
+  private final SpatialHashGrid<ColoredAnchor> anchors =
+      new SpatialHashGrid<>(ANCHOR_CELL_SIZE_METERS, ANCHOR_CELL_MARGIN_METERS);
+  private final ArrayList<SpatialHashGrid.Entry<ColoredAnchor>> visibleAnchors = new ArrayList<>();
+  private final float[] viewProjectionMatrix = new float[16];
+  private final FrustumCuller frustumCuller = new FrustumCuller();
+  private final SpatialHashGrid.BoxTest frustumBoxTest = frustumCuller::isBoxVisible;
+  private final float[] frustumMin = new float[3];
+  private final float[] frustumMax = new float[3];
+  private final SpatialHashGrid.PositionSource<ColoredAnchor> anchorPositionSource =
+      SharedCameraActivity::getAnchorPosition;
+
+  // Time between consecutive AR frames, and time spent waiting in Session.update(), since ARCore
+  // was last resumed. Logged when it is paused.
+  private final LatencyRecorder renderFrameLatencyRecorder = new LatencyRecorder();
+  private final LatencyRecorder sessionUpdateLatencyRecorder = new LatencyRecorder();
 
   // Required for test run.
   private static final Short AUTOMATOR_DEFAULT = 0;
@@ -210,6 +234,17 @@ public class SharedCameraActivity extends AppCompatActivity
     }
   }
 
+  private static boolean getAnchorPosition(ColoredAnchor coloredAnchor, float[] outPosition) {
+    if (coloredAnchor.anchor.getTrackingState() != TrackingState.TRACKING) {
+      return false;
+    }
+    Pose pose = coloredAnchor.anchor.getPose();
+    outPosition[0] = pose.tx();
+    outPosition[1] = pose.ty();
+    outPosition[2] = pose.tz();
+    return true;
+  }
+
   // Camera device state callback.
   private final CameraDevice.StateCallback cameraDeviceCallback =
       new CameraDevice.StateCallback() {
@@ -461,6 +496,9 @@ public class SharedCameraActivity extends AppCompatActivity
         // Resume ARCore.
         sharedSession.resume();
         arcoreActive = true;
+        // Latencies of the previous run do not describe this one.
+        renderFrameLatencyRecorder.reset();
+        sessionUpdateLatencyRecorder.reset();
         updateSnackbarMessage();
 
         // Set capture session callback while in AR mode.
@@ -478,9 +516,25 @@ public class SharedCameraActivity extends AppCompatActivity
       sharedSession.pause();
       arcoreActive = false;
       updateSnackbarMessage();
+      logLatencies();
     }
   }
 
+  private void logLatencies() {
+    if (renderFrameLatencyRecorder.getCount() == 0) {
+      return;
+    }
+    Log.i(
+        TAG,
+        String.format(
+            Locale.US,
+            "Frame time p50 %.1f ms, p99 %.1f ms. Session.update() p50 %.1f ms, p99 %.1f ms.",
+            renderFrameLatencyRecorder.getPercentileMillis(50),
+            renderFrameLatencyRecorder.getPercentileMillis(99),
+            sessionUpdateLatencyRecorder.getPercentileMillis(50),
+            sessionUpdateLatencyRecorder.getPercentileMillis(99)));
+  }
+
   private void updateSnackbarMessage() {
     messageSnackbarHelper.showMessage(
         this,
@@ -871,8 +925,14 @@ public class SharedCameraActivity extends AppCompatActivity
       return;
     }
 
+    // The time since the previous frame started, which the first frame after a resume has none of.
+    renderFrameLatencyRecorder.stop();
+    renderFrameLatencyRecorder.start();
+
     // Perform ARCore per-frame update.
+    sessionUpdateLatencyRecorder.start();
     Frame frame = sharedSession.update();
+    sessionUpdateLatencyRecorder.stop();
     Camera camera = frame.getCamera();
 
     // ARCore attached the surface to GL context using the texture ID we provided
@@ -880,7 +940,7 @@ public class SharedCameraActivity extends AppCompatActivity
     isGlAttached = true;
 
     // Handle screen tap.
-    handleTap(frame, camera);
+    handleTaps(frame, camera);
 
     // If frame is ready, render camera preview image to the GL surface.
     backgroundRenderer.draw(frame);
@@ -928,15 +988,25 @@ public class SharedCameraActivity extends AppCompatActivity
     planeRenderer.drawPlanes(
         sharedSession.getAllTrackables(Plane.class), camera.getDisplayOrientedPose(), projmtx);
 
-    // Visualize anchors created by touch.
+    // Visualize anchors created by touch. Only anchors in grid cells that intersect the view
+    // frustum are visited; ObjectRenderer culls the remaining off-screen ones individually.
     float scaleFactor = 1.0f;
-    for (ColoredAnchor coloredAnchor : anchors) {
+    Matrix.multiplyMM(viewProjectionMatrix, 0, projmtx, 0, viewmtx, 0);
+    frustumCuller.setFromMatrix(viewProjectionMatrix);
+    frustumCuller.getBounds(frustumMin, frustumMax);
+    anchors.refreshPositions(anchorPositionSource, ANCHOR_POSITION_REFRESH_BATCH);
+    visibleAnchors.clear();
+    anchors.queryVisible(frustumMin, frustumMax, frustumBoxTest, visibleAnchors);
+    for (int i = 0; i < visibleAnchors.size(); ++i) {
+      SpatialHashGrid.Entry<ColoredAnchor> entry = visibleAnchors.get(i);
+      ColoredAnchor coloredAnchor = entry.getItem();
       if (coloredAnchor.anchor.getTrackingState() != TrackingState.TRACKING) {
         continue;
       }
       // Get the current pose of an Anchor in world space. The Anchor pose is updated
       // during calls to sharedSession.update() as ARCore refines its estimate of the world.
       coloredAnchor.anchor.getPose().toMatrix(anchorMatrix, 0);
+      anchors.move(entry, anchorMatrix[12], anchorMatrix[13], anchorMatrix[14]);
 
       // Update and draw the model and its shadow.
       virtualObject.updateModelMatrix(anchorMatrix, scaleFactor);
@@ -946,46 +1016,48 @@ public class SharedCameraActivity extends AppCompatActivity
     }
   }
 
-  // Handle only one tap per frame, as taps are usually low frequency compared to frame rate.
-  private void handleTap(Frame frame, Camera camera) {
-    MotionEvent tap = tapHelper.poll();
-    if (tap != null && camera.getTrackingState() == TrackingState.TRACKING) {
-      for (HitResult hit : frame.hitTest(tap)) {
-        // Check if any plane was hit, and if it was hit inside the plane polygon
-        Trackable trackable = hit.getTrackable();
-        // Creates an anchor if a plane or an oriented point was hit.
-        if ((trackable instanceof Plane
-                && ((Plane) trackable).isPoseInPolygon(hit.getHitPose())
-                && (PlaneRenderer.calculateDistanceToPlane(hit.getHitPose(), camera.getPose()) > 0))
-            || (trackable instanceof Point
-                && ((Point) trackable).getOrientationMode()
-                    == OrientationMode.ESTIMATED_SURFACE_NORMAL)) {
-          // Hits are sorted by depth. Consider only closest hit on a plane or oriented point.
-          // Cap the number of objects created. This avoids overloading both the
-          // rendering system and ARCore.
-          if (anchors.size() >= 20) {
-            anchors.get(0).anchor.detach();
-            anchors.remove(0);
-          }
-
-          // Assign a color to the object for rendering based on the trackable type
-          // this anchor attached to. For AR_TRACKABLE_POINT, it's blue color, and
-          // for AR_TRACKABLE_PLANE, it's green color.
-          float[] objColor;
-          if (trackable instanceof Point) {
-            objColor = new float[] {66.0f, 133.0f, 244.0f, 255.0f};
-          } else if (trackable instanceof Plane) {
-            objColor = new float[] {139.0f, 195.0f, 74.0f, 255.0f};
-          } else {
-            objColor = DEFAULT_COLOR;
-          }
+  // Handle all taps queued since the previous frame. Drags are not used by this sample.
+  private void handleTaps(Frame frame, Camera camera) {
+    while (tapHelper.poll(tapEvent)) {
+      if (tapEvent.action == TapHelper.ACTION_TAP
+          && camera.getTrackingState() == TrackingState.TRACKING) {
+        handleTap(frame, camera, tapEvent.x, tapEvent.y);
+      }
+    }
+  }
 
-          // Adding an Anchor tells ARCore that it should track this position in
-          // space. This anchor is created on the Plane to place the 3D model
-          // in the correct position relative both to the world and to the plane.
-          anchors.add(new ColoredAnchor(hit.createAnchor(), objColor));
-          break;
+  private void handleTap(Frame frame, Camera camera, float tapX, float tapY) {
+    for (HitResult hit : frame.hitTest(tapX, tapY)) {
+      // Check if any plane was hit, and if it was hit inside the plane polygon
+      Trackable trackable = hit.getTrackable();
+      // Creates an anchor if a plane or an oriented point was hit.
+      if ((trackable instanceof Plane
+              && ((Plane) trackable).isPoseInPolygon(hit.getHitPose())
+              && (PlaneRenderer.calculateDistanceToPlane(hit.getHitPose(), camera.getPose()) > 0))
+          || (trackable instanceof Point
+              && ((Point) trackable).getOrientationMode()
+                  == OrientationMode.ESTIMATED_SURFACE_NORMAL)) {
+        // Hits are sorted by depth. Consider only closest hit on a plane or oriented point.
+        // Assign a color to the object for rendering based on the trackable type
+        // this anchor attached to. For AR_TRACKABLE_POINT, it's blue color, and
+        // for AR_TRACKABLE_PLANE, it's green color.
+        float[] objColor;
+        if (trackable instanceof Point) {
+          objColor = new float[] {66.0f, 133.0f, 244.0f, 255.0f};
+        } else if (trackable instanceof Plane) {
+          objColor = new float[] {139.0f, 195.0f, 74.0f, 255.0f};
+        } else {
+          objColor = DEFAULT_COLOR;
         }
+
+        // Adding an Anchor tells ARCore that it should track this position in
+        // space. This anchor is created on the Plane to place the 3D model
+        // in the correct position relative both to the world and to the plane.
+        Anchor anchor = hit.createAnchor();
+        Pose anchorPose = anchor.getPose();
+        anchors.insert(
+            new ColoredAnchor(anchor, objColor), anchorPose.tx(), anchorPose.ty(), anchorPose.tz());
+        break;
       }
     }
   }
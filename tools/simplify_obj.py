@@ -0,0 +1,333 @@
+# Copyright 2021 Google LLC
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+"""Generates level-of-detail versions of Wavefront OBJ models.
+
+Triangles are removed by half-edge collapses ordered by the quadric error
+metric, as described here:
+Garland and Heckbert 1997, "Surface Simplification Using Quadric Error Metrics"
+
+Collapsed vertices keep existing positions, so texture coordinates and normals
+of surviving triangles are taken over from the vertex they collapse into, which
+keeps UV seams intact. For each input model.obj and each requested ratio, the
+output is written next to the input as model_lod<level>.obj.
+
+Example:
+  python3 tools/simplify_obj.py -r 0.25 -r 0.0625 \
+      samples/hello_ar_java/app/src/main/assets/models/pawn.obj
+"""
+import argparse
+import glob
+import heapq
+import math
+import os
+
+# Weight of the quadrics that keep open boundaries in place, relative to the
+# quadrics of the surface itself.
+BOUNDARY_WEIGHT = 100.0
+# Collapses that rotate an adjacent triangle's normal by more than this are
+# rejected, to avoid fold-overs.
+MIN_NORMAL_COSINE = 0.2
+
+
+def sub(a, b):
+  return (a[0] - b[0], a[1] - b[1], a[2] - b[2])
+
+
+def cross(a, b):
+  return (a[1] * b[2] - a[2] * b[1], a[2] * b[0] - a[0] * b[2],
+          a[0] * b[1] - a[1] * b[0])
+
+
+def dot(a, b):
+  return a[0] * b[0] + a[1] * b[1] + a[2] * b[2]
+
+
+def plane_quadric(normal, point, weight):
+  """Returns the 10 unique entries of the quadric of a plane, times weight."""
+  a, b, c = normal
+  d = -dot(normal, point)
+  return [
+      weight * v for v in (a * a, a * b, a * c, a * d, b * b, b * c, b * d,
+                           c * c, c * d, d * d)
+  ]
+
+
+def add_quadric(q, r):
+  for i in range(10):
+    q[i] += r[i]
+
+
+def quadric_error(q, v):
+  x, y, z = v
+  return (q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3] * x +
+          q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y + q[7] * z * z +
+          2 * q[8] * z + q[9])
+
+
+class ObjModel(object):
+  """Triangles of an OBJ file, with corner attributes kept per triangle."""
+
+  def __init__(self, path):
+    self.positions = []
+    self.texcoords = []
+    self.normals = []
+    # Each face is [position, position, position] and each corner is a
+    # (texcoord, normal) pair, with -1 marking a missing attribute.
+    self.faces = []
+    self.corners = []
+    welded = {}
+    position_remap = []
+    with open(path) as fp:
+      for line in fp:
+        tokens = line.split()
+        if not tokens:
+          continue
+        if tokens[0] == 'v':
+          # Weld exact duplicates so that split vertices do not become holes.
+          key = tuple(tokens[1:4])
+          if key not in welded:
+            welded[key] = len(self.positions)
+            self.positions.append(tuple(float(t) for t in tokens[1:4]))
+          position_remap.append(welded[key])
+        elif tokens[0] == 'vt':
+          self.texcoords.append(tokens[1:3])
+        elif tokens[0] == 'vn':
+          self.normals.append(tokens[1:4])
+        elif tokens[0] == 'f':
+          refs = [self._parse_ref(t, position_remap) for t in tokens[1:]]
+          # Triangulate polygons as fans.
+          for i in range(1, len(refs) - 1):
+            tri = (refs[0], refs[i], refs[i + 1])
+            self.faces.append([r[0] for r in tri])
+            self.corners.append([(r[1], r[2]) for r in tri])
+
+  def _parse_ref(self, token, position_remap):
+    parts = token.split('/')
+    indices = []
+    counts = (len(position_remap), len(self.texcoords), len(self.normals))
+    for i in range(3):
+      if i < len(parts) and parts[i]:
+        index = int(parts[i])
+        indices.append(index - 1 if index > 0 else counts[i] + index)
+      else:
+        indices.append(-1)
+    return (position_remap[indices[0]], indices[1], indices[2])
+
+  def write(self, path, faces, corners, source_name):
+    used_positions = sorted({v for face in faces for v in face})
+    used_texcoords = sorted({c[0] for corner in corners for c in corner} - {-1})
+    used_normals = sorted({c[1] for corner in corners for c in corner} - {-1})
+    position_index = {v: i + 1 for i, v in enumerate(used_positions)}
+    texcoord_index = {vt: i + 1 for i, vt in enumerate(used_texcoords)}
+    normal_index = {vn: i + 1 for i, vn in enumerate(used_normals)}
+    with open(path, 'w') as fp:
+      fp.write('# Generated by tools/simplify_obj.py from %s (%d triangles)\n' %
+               (source_name, len(faces)))
+      for v in used_positions:
+        fp.write('v %.6f %.6f %.6f\n' % self.positions[v])
+      for vt in used_texcoords:
+        fp.write('vt %s\n' % ' '.join(self.texcoords[vt]))
+      for vn in used_normals:
+        fp.write('vn %s\n' % ' '.join(self.normals[vn]))
+      for face, corner in zip(faces, corners):
+        refs = []
+        for v, (vt, vn) in zip(face, corner):
+          ref = str(position_index[v])
+          if vt >= 0 or vn >= 0:
+            ref += '/' + (str(texcoord_index[vt]) if vt >= 0 else '')
+          if vn >= 0:
+            ref += '/' + str(normal_index[vn])
+          refs.append(ref)
+        fp.write('f %s\n' % ' '.join(refs))
+
+
+def face_normal(positions, face):
+  n = cross(
+      sub(positions[face[1]], positions[face[0]]),
+      sub(positions[face[2]], positions[face[0]]))
+  length = math.sqrt(dot(n, n))
+  if length == 0.0:
+    return None, 0.0
+  return (n[0] / length, n[1] / length, n[2] / length), length * 0.5
+
+
+def simplify(model, target_faces):
+  """Returns the faces and corners of model reduced to about target_faces."""
+  positions = model.positions
+  faces = [list(f) for f in model.faces]
+  corners = [list(c) for c in model.corners]
+  alive = [True] * len(faces)
+  live_faces = len(faces)
+  vertex_faces = [set() for _ in positions]
+  for f, face in enumerate(faces):
+    for v in face:
+      vertex_faces[v].add(f)
+
+  # Area-weighted quadrics of the planes around each vertex.
+  quadrics = [[0.0] * 10 for _ in positions]
+  edge_faces = {}
+  for f, face in enumerate(faces):
+    normal, area = face_normal(positions, face)
+    for i in range(3):
+      a, b = face[i], face[(i + 1) % 3]
+      edge_faces.setdefault((min(a, b), max(a, b)), []).append(f)
+    if normal is None:
+      continue
+    q = plane_quadric(normal, positions[face[0]], area)
+    for v in face:
+      add_quadric(quadrics[v], q)
+
+  # Boundary edges get a perpendicular plane so that open borders stay put.
+  for (a, b), adjacent in edge_faces.items():
+    if len(adjacent) != 1:
+      continue
+    normal, _ = face_normal(positions, faces[adjacent[0]])
+    if normal is None:
+      continue
+    edge = sub(positions[b], positions[a])
+    perpendicular = cross(edge, normal)
+    length = math.sqrt(dot(perpendicular, perpendicular))
+    if length == 0.0:
+      continue
+    perpendicular = tuple(c / length for c in perpendicular)
+    q = plane_quadric(perpendicular, positions[a], BOUNDARY_WEIGHT * dot(edge, edge))
+    add_quadric(quadrics[a], q)
+    add_quadric(quadrics[b], q)
+
+  version = [0] * len(positions)
+  heap = []
+
+  def push_edge(a, b):
+    q = [qa + qb for qa, qb in zip(quadrics[a], quadrics[b])]
+    cost_ab = quadric_error(q, positions[b])  # a collapses into b
+    cost_ba = quadric_error(q, positions[a])  # b collapses into a
+    if cost_ab <= cost_ba:
+      heapq.heappush(heap, (cost_ab, a, b, version[a], version[b]))
+    else:
+      heapq.heappush(heap, (cost_ba, b, a, version[b], version[a]))
+
+  def neighbors(v):
+    result = set()
+    for f in vertex_faces[v]:
+      result.update(faces[f])
+    result.discard(v)
+    return result
+
+  for a, b in edge_faces:
+    push_edge(a, b)
+
+  while live_faces > target_faces and heap:
+    _, a, b, version_a, version_b = heapq.heappop(heap)
+    if version_a != version[a] or version_b != version[b]:
+      continue
+    if not vertex_faces[a] or not vertex_faces[b]:
+      continue
+    shared = vertex_faces[a] & vertex_faces[b]
+    if not shared:
+      continue
+    # Link condition: the only common neighbors must be the opposite corners
+    # of the triangles being removed, or the surface becomes non-manifold.
+    if len(neighbors(a) & neighbors(b)) > len(shared):
+      continue
+
+    # Reject collapses that would flip one of the remaining triangles.
+    flips = False
+    for f in vertex_faces[a] - shared:
+      before, _ = face_normal(positions, faces[f])
+      after, _ = face_normal(positions, [b if v == a else v for v in faces[f]])
+      if before is not None and (after is None or
+                                 dot(before, after) < MIN_NORMAL_COSINE):
+        flips = True
+        break
+    if flips:
+      continue
+
+    # Corner attributes of a, as seen from each removed triangle, map to the
+    # attributes of b in the same triangle. Matching on a's attributes keeps
+    # the two sides of a UV seam apart.
+    attribute_remap = {}
+    for f in shared:
+      corner_a = corners[f][faces[f].index(a)]
+      corner_b = corners[f][faces[f].index(b)]
+      attribute_remap.setdefault(corner_a, corner_b)
+      alive[f] = False
+      live_faces -= 1
+      for v in faces[f]:
+        vertex_faces[v].discard(f)
+
+    for f in list(vertex_faces[a]):
+      i = faces[f].index(a)
+      faces[f][i] = b
+      corners[f][i] = attribute_remap.get(corners[f][i], corners[f][i])
+      vertex_faces[b].add(f)
+    vertex_faces[a].clear()
+
+    add_quadric(quadrics[b], quadrics[a])
+    version[a] += 1
+    version[b] += 1
+    for n in neighbors(b):
+      version[n] += 1
+    for n in neighbors(b):
+      push_edge(n, b)
+      for m in neighbors(n):
+        if m != b:
+          push_edge(n, m)
+
+  result_faces = [faces[f] for f in range(len(faces)) if alive[f]]
+  result_corners = [corners[f] for f in range(len(faces)) if alive[f]]
+  return result_faces, result_corners
+
+
+def main():
+  parser = argparse.ArgumentParser(
+      description='Generate level-of-detail OBJ models with quadric error '
+      'metric simplification.')
+  parser.add_argument(
+      '-r',
+      '--ratio',
+      dest='ratios',
+      action='append',
+      type=float,
+      help='Fraction of triangles to keep for each level of detail. May be '
+      'repeated; defaults to 0.25 and 0.0625.')
+  parser.add_argument(
+      'inputs',
+      nargs='+',
+      help='OBJ files, or directories whose OBJ files should all be processed.')
+  args = parser.parse_args()
+  ratios = args.ratios or [0.25, 0.0625]
+
+  paths = []
+  for path in args.inputs:
+    if os.path.isdir(path):
+      paths.extend(
+          p for p in sorted(glob.glob(os.path.join(path, '*.obj')))
+          if '_lod' not in os.path.basename(p))
+    else:
+      paths.append(path)
+
+  for path in paths:
+    model = ObjModel(path)
+    base, _ = os.path.splitext(path)
+    for level, ratio in enumerate(ratios, start=1):
+      target = max(1, int(len(model.faces) * ratio))
+      faces, corners = simplify(model, target)
+      output = '%s_lod%d.obj' % (base, level)
+      model.write(output, faces, corners, os.path.basename(path))
+      print('%s: %d -> %d triangles' % (output, len(model.faces), len(faces)))
+
+
+if __name__ == '__main__':
+  main()